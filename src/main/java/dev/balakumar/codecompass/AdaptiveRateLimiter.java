@@ -0,0 +1,411 @@
+package dev.balakumar.codecompass;
+
+import okhttp3.HttpUrl;
+import okhttp3.Interceptor;
+import okhttp3.Request;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
+import okio.ForwardingSource;
+import okio.Okio;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Paces the requests sent to an AI provider, shared by indexing and interactive use alike.
+ *
+ * Limits are kept per endpoint, which here means per model: Gemini names the model in the path,
+ * and OpenRouter and Ollama use one configured model per endpoint. For each of them:
+ * <ul>
+ *   <li>concurrency adapts additively and multiplicatively (AIMD): a full window of successful
+ *   requests allows one more in flight, a 429 or 503 halves the limit;</li>
+ *   <li>after a 429 no request is sent until the provider's Retry-After (or, without one, an
+ *   exponential backoff) has passed, and the request is then sent again;</li>
+ *   <li>rate limit headers describing the remaining requests of the current window fill a token
+ *   bucket, so requests wait for the window to reset instead of running into 429s.</li>
+ * </ul>
+ * Requests made from threads running {@link #background(Runnable)} work, such as indexing, yield
+ * to requests the user is waiting for whenever both are queued. A request counts as in flight
+ * until its response body is closed, so a streamed answer holds its slot while it is read.
+ */
+public class AdaptiveRateLimiter implements Interceptor {
+    // How often a request answered with 429 is sent again before the caller sees the 429
+    private static final int MAX_RATE_LIMIT_RETRIES = 3;
+    private static final long INITIAL_BACKOFF_MS = 2000;
+    private static final long MAX_BACKOFF_MS = 60 * 1000;
+    // Gemini puts the suggested delay in the error body instead of a header
+    private static final Pattern RETRY_DELAY = Pattern.compile("\"retryDelay\"\\s*:\\s*\"(\\d+(?:\\.\\d+)?)s\"");
+    private static final Pattern DURATION_PART = Pattern.compile("(\\d+(?:\\.\\d+)?)(ms|s|m|h)");
+    private static final ThreadLocal<Boolean> backgroundThread = ThreadLocal.withInitial(() -> false);
+
+    private final String provider;
+    private final Map<String, Limit> limits = new ConcurrentHashMap<>();
+    private volatile int ceiling;
+
+    public AdaptiveRateLimiter(String provider, int ceiling) {
+        this.provider = provider;
+        this.ceiling = Math.max(1, ceiling);
+    }
+
+    /**
+     * Set the most requests allowed in flight per endpoint, however well the provider copes.
+     */
+    public void setCeiling(int ceiling) {
+        this.ceiling = Math.max(1, ceiling);
+    }
+
+    /**
+     * Wrap work nobody is waiting for, so its requests give way to interactive ones.
+     */
+    public static Runnable background(Runnable runnable) {
+        return () -> {
+            backgroundThread.set(true);
+            try {
+                runnable.run();
+            } finally {
+                backgroundThread.remove();
+            }
+        };
+    }
+
+    /**
+     * Wrap a task handed to another thread so it keeps the priority of the thread creating it.
+     */
+    public static Runnable withCallerPriority(Runnable runnable) {
+        return backgroundThread.get() ? background(runnable) : runnable;
+    }
+
+    /**
+     * Mark a request made from background work, for requests sent from the HTTP client's own
+     * threads, where the caller's thread is not known.
+     */
+    public static Request withCallerPriority(Request request) {
+        return backgroundThread.get() ? request.newBuilder().tag(Background.class, Background.INSTANCE).build() : request;
+    }
+
+    @Override
+    public Response intercept(Chain chain) throws IOException {
+        Request request = chain.request();
+        Limit limit = limits.computeIfAbsent(endpointOf(request.url()), Limit::new);
+        boolean interactive = !backgroundThread.get() && request.tag(Background.class) == null;
+
+        for (int attempt = 0; ; attempt++) {
+            long startedAt = limit.acquire(interactive, ceiling);
+            Response response;
+            try {
+                response = releaseOnClose(chain.proceed(request), limit);
+            } catch (IOException | RuntimeException e) {
+                limit.release();
+                throw e;
+            }
+
+            int code = response.code();
+            if (code == 429 || code == 503) {
+                limit.onOverloaded(startedAt, code == 429 ? retryAfterMs(response) : 0, ceiling);
+                if (code == 429 && attempt < MAX_RATE_LIMIT_RETRIES) {
+                    System.out.println(provider + " rate limit reached for " + limit.endpoint + ", retrying after " +
+                            limit.remainingPauseMs() + "ms (attempt " + (attempt + 1) + " of " + MAX_RATE_LIMIT_RETRIES + ")");
+                    response.close();
+                    continue;
+                }
+                return response;
+            }
+            if (response.isSuccessful()) {
+                limit.onSuccess(ceiling);
+            }
+            limit.onRateLimitHeaders(remainingRequests(response), resetAtMs(response));
+            return response;
+        }
+    }
+
+    /**
+     * @return the response with a body that gives the request's slot back once it is closed;
+     * callers close every response, as they must anyway to free the connection
+     */
+    private static Response releaseOnClose(Response response, Limit limit) {
+        ResponseBody body = response.body();
+        if (body == null) {
+            limit.release();
+            return response;
+        }
+        AtomicBoolean released = new AtomicBoolean(false);
+        ForwardingSource source = new ForwardingSource(body.source()) {
+            @Override
+            public void close() throws IOException {
+                try {
+                    super.close();
+                } finally {
+                    if (released.compareAndSet(false, true)) {
+                        limit.release();
+                    }
+                }
+            }
+        };
+        return response.newBuilder()
+                .body(ResponseBody.create(Okio.buffer(source), body.contentType(), body.contentLength()))
+                .build();
+    }
+
+    private String endpointOf(HttpUrl url) {
+        // "/v1beta/models/embedding-001:embedContent" and ":batchEmbedContents" share a quota
+        String path = url.encodedPath();
+        int method = path.lastIndexOf(':');
+        if (method > path.lastIndexOf('/')) {
+            path = path.substring(0, method);
+        }
+        return url.host() + path;
+    }
+
+    private static long retryAfterMs(Response response) {
+        String retryAfter = response.header("Retry-After");
+        if (retryAfter != null) {
+            try {
+                return (long) (Double.parseDouble(retryAfter.trim()) * 1000);
+            } catch (NumberFormatException e) {
+                try {
+                    ZonedDateTime date = ZonedDateTime.parse(retryAfter.trim(), DateTimeFormatter.RFC_1123_DATE_TIME);
+                    return Math.max(0, date.toInstant().toEpochMilli() - System.currentTimeMillis());
+                } catch (DateTimeParseException ignored) {
+                    // Fall through to the other hints
+                }
+            }
+        }
+        long resetAt = resetAtMs(response);
+        if (resetAt > 0) {
+            return Math.max(0, resetAt - System.currentTimeMillis());
+        }
+        try {
+            Matcher matcher = RETRY_DELAY.matcher(response.peekBody(64 * 1024).string());
+            if (matcher.find()) {
+                return (long) (Double.parseDouble(matcher.group(1)) * 1000);
+            }
+        } catch (IOException ignored) {
+            // No hint; the limiter backs off on its own
+        }
+        return 0;
+    }
+
+    /**
+     * @return the requests left in the current window, or -1 if the response does not say
+     */
+    private static int remainingRequests(Response response) {
+        String remaining = firstHeader(response, "X-RateLimit-Remaining", "RateLimit-Remaining", "X-RateLimit-Remaining-Requests");
+        if (remaining == null) {
+            return -1;
+        }
+        try {
+            return Math.max(0, (int) Double.parseDouble(remaining.trim()));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * @return when the current rate limit window ends, in epoch milliseconds, or 0 if unknown.
+     * Providers send an epoch time in milliseconds or seconds, seconds from now, or a duration
+     * such as "6m0s".
+     */
+    private static long resetAtMs(Response response) {
+        String reset = firstHeader(response, "X-RateLimit-Reset", "RateLimit-Reset", "X-RateLimit-Reset-Requests");
+        if (reset == null) {
+            return 0;
+        }
+        long now = System.currentTimeMillis();
+        reset = reset.trim();
+        try {
+            double value = Double.parseDouble(reset);
+            if (value > 1e12) {
+                return (long) value;
+            } else if (value > 1e9) {
+                return (long) (value * 1000);
+            }
+            return now + (long) (value * 1000);
+        } catch (NumberFormatException e) {
+            Matcher matcher = DURATION_PART.matcher(reset);
+            double ms = 0;
+            boolean found = false;
+            while (matcher.find()) {
+                found = true;
+                double amount = Double.parseDouble(matcher.group(1));
+                switch (matcher.group(2)) {
+                    case "ms": ms += amount; break;
+                    case "s": ms += amount * 1000; break;
+                    case "m": ms += amount * 60 * 1000; break;
+                    default: ms += amount * 60 * 60 * 1000; break;
+                }
+            }
+            return found ? now + (long) ms : 0;
+        }
+    }
+
+    private static String firstHeader(Response response, String... names) {
+        for (String name : names) {
+            String value = response.header(name);
+            if (value != null) {
+                return value;
+            }
+        }
+        return null;
+    }
+
+    private enum Background {
+        INSTANCE
+    }
+
+    private static final class Limit {
+        final String endpoint;
+        // Requests allowed in flight, below the ceiling; starts at it and settles where the provider copes
+        private int limit = Integer.MAX_VALUE;
+        private int inFlight = 0;
+        private int successes = 0;
+        private int interactiveWaiting = 0;
+        private long pausedUntil = 0;
+        private long lastDecreaseAt = 0;
+        private int consecutiveOverloads = 0;
+        // Requests left until tokensResetAt, as reported by the provider; -1 when unknown
+        private int tokens = -1;
+        private long tokensResetAt = 0;
+        // A lock rather than monitors, so virtual threads waiting for a slot do not pin their carrier
+        private final ReentrantLock lock = new ReentrantLock();
+        // Signalled when a request finishes or an interactive request is admitted
+        private final Condition changed = lock.newCondition();
+
+        Limit(String endpoint) {
+            this.endpoint = endpoint;
+        }
+
+        /**
+         * Wait until a request may be sent.
+         *
+         * @return when the request was admitted
+         */
+        long acquire(boolean interactive, int ceiling) throws InterruptedIOException {
+            lock.lock();
+            if (interactive) {
+                interactiveWaiting++;
+            }
+            try {
+                while (true) {
+                    long now = System.currentTimeMillis();
+                    long waitMs = 0;
+                    if (pausedUntil > now) {
+                        waitMs = pausedUntil - now;
+                    } else if (tokens == 0) {
+                        if (tokensResetAt > now) {
+                            waitMs = tokensResetAt - now;
+                        } else {
+                            tokens = -1;
+                        }
+                    }
+                    boolean slotFree = inFlight < Math.min(limit, ceiling);
+                    boolean yieldToInteractive = !interactive && interactiveWaiting > 0;
+                    if (waitMs == 0 && slotFree && !yieldToInteractive) {
+                        inFlight++;
+                        if (tokens > 0) {
+                            tokens--;
+                        }
+                        return now;
+                    }
+                    // Woken early when a request finishes or an interactive request is admitted
+                    if (waitMs > 0) {
+                        changed.await(waitMs, TimeUnit.MILLISECONDS);
+                    } else {
+                        changed.await();
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for the rate limit of " + endpoint);
+            } finally {
+                if (interactive) {
+                    interactiveWaiting--;
+                    changed.signalAll();
+                }
+                lock.unlock();
+            }
+        }
+
+        void release() {
+            lock.lock();
+            try {
+                inFlight--;
+                changed.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        void onSuccess(int ceiling) {
+            lock.lock();
+            try {
+                consecutiveOverloads = 0;
+                if (limit >= ceiling) {
+                    return;
+                }
+                successes++;
+                if (successes >= limit) {
+                    successes = 0;
+                    limit = Math.min(limit + 1, ceiling);
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * Halve the concurrency, once for all requests that were already in flight when the
+         * provider pushed back, and pause for retryAfterMs or an exponential backoff.
+         */
+        void onOverloaded(long startedAt, long retryAfterMs, int ceiling) {
+            lock.lock();
+            try {
+                long now = System.currentTimeMillis();
+                if (startedAt >= lastDecreaseAt) {
+                    limit = Math.max(1, Math.min(limit, ceiling) / 2);
+                    successes = 0;
+                    lastDecreaseAt = now;
+                }
+                consecutiveOverloads++;
+                long backoffMs = retryAfterMs > 0 ? retryAfterMs
+                        : INITIAL_BACKOFF_MS << Math.min(consecutiveOverloads - 1, 5);
+                pausedUntil = Math.max(pausedUntil, now + Math.min(backoffMs, MAX_BACKOFF_MS));
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        void onRateLimitHeaders(int remaining, long resetAt) {
+            lock.lock();
+            try {
+                if (remaining < 0) {
+                    return;
+                }
+                // Requests still in flight will use up some of what is left
+                tokens = Math.max(0, remaining - inFlight);
+                tokensResetAt = resetAt > 0 ? resetAt : System.currentTimeMillis() + INITIAL_BACKOFF_MS;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        long remainingPauseMs() {
+            lock.lock();
+            try {
+                return Math.max(0, pausedUntil - System.currentTimeMillis());
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+}
@@ -0,0 +1,399 @@
+package dev.balakumar.codecompass;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * Append-only key/value store backed by a memory-mapped file under .codemapper, used for the
+ * local caches.
+ *
+ * Records are appended as [key length][key][value length][value]. Keys are indexed in memory in
+ * least-recently-used order; the index is saved next to the data on close and rebuilt from the
+ * data file if it is missing or stale. When the data grows past its size limit, the most recently
+ * used entries are copied into a new generation of the file in the background and the rest are
+ * dropped.
+ */
+public class BlobStore implements Closeable {
+    private static final int MAGIC = 0x43434253;
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 16;
+    private static final int MIN_CAPACITY = 1024 * 1024;
+    // Compaction keeps recently used entries up to this fraction of the size limit
+    private static final double COMPACT_RATIO = 0.7;
+    // Compactions of every store run here, away from the threads that fill the caches
+    private static final ExecutorService compactionExecutor = TaskExecutors.newExecutor("cache-compaction", 1, false);
+
+    private final Path directory;
+    private final String name;
+    private final long maxBytes;
+    private final LinkedHashMap<String, Long> index = new LinkedHashMap<>(1024, 0.75f, true);
+    private int generation;
+    private FileChannel channel;
+    private MappedByteBuffer buffer;
+    private long end;
+    private boolean compacting = false;
+
+    public BlobStore(Path directory, String name, long maxBytes) throws IOException {
+        this.directory = directory;
+        this.name = name;
+        this.maxBytes = Math.min(maxBytes, Integer.MAX_VALUE / 2);
+        Files.createDirectories(directory);
+        open();
+    }
+
+    public synchronized byte[] get(String key) {
+        Long offset = index.get(key);
+        if (offset == null || buffer == null) {
+            return null;
+        }
+        int position = (int) (long) offset;
+        int keyLength = buffer.getInt(position);
+        position += 4 + keyLength;
+        int valueLength = buffer.getInt(position);
+        byte[] value = new byte[valueLength];
+        buffer.get(position + 4, value);
+        return value;
+    }
+
+    public synchronized boolean contains(String key) {
+        return index.containsKey(key);
+    }
+
+    /**
+     * Store a value. Re-putting an existing key appends a new record; the old one is reclaimed by
+     * the next compaction.
+     */
+    public synchronized void put(String key, byte[] value) {
+        if (buffer == null) {
+            return;
+        }
+        byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+        int recordSize = 8 + keyBytes.length + value.length;
+        try {
+            ensureCapacity(end + recordSize);
+            int position = (int) end;
+            buffer.putInt(position, keyBytes.length);
+            buffer.put(position + 4, keyBytes);
+            buffer.putInt(position + 4 + keyBytes.length, value.length);
+            buffer.put(position + 8 + keyBytes.length, value);
+            index.put(key, end);
+            end += recordSize;
+            buffer.putLong(8, end);
+
+            if (end > maxBytes && !compacting) {
+                compacting = true;
+                compactionExecutor.execute(this::compact);
+            }
+        } catch (IOException e) {
+            System.err.println("Error writing to " + name + " cache: " + e.getMessage());
+        }
+    }
+
+    public synchronized int size() {
+        return index.size();
+    }
+
+    public synchronized long sizeInBytes() {
+        return end;
+    }
+
+    @Override
+    public synchronized void close() {
+        if (channel == null) {
+            return;
+        }
+        try {
+            buffer.force();
+            saveIndex();
+            channel.close();
+        } catch (IOException e) {
+            System.err.println("Error closing " + name + " cache: " + e.getMessage());
+        }
+        channel = null;
+        buffer = null;
+    }
+
+    // File handling
+
+    private Path dataFile(int gen) {
+        return directory.resolve(name + "." + gen + ".dat");
+    }
+
+    private Path indexFile() {
+        return directory.resolve(name + ".idx");
+    }
+
+    private void open() throws IOException {
+        generation = findLatestGeneration();
+        deleteOtherGenerations();
+        mapGeneration(generation);
+
+        if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION) {
+            System.out.println("Initializing " + name + " cache");
+            end = HEADER_SIZE;
+            buffer.putInt(0, MAGIC);
+            buffer.putInt(4, VERSION);
+            buffer.putLong(8, end);
+            Files.deleteIfExists(indexFile());
+            return;
+        }
+
+        end = buffer.getLong(8);
+        if (end < HEADER_SIZE || end > buffer.capacity()) {
+            end = HEADER_SIZE;
+        }
+        long indexedEnd = loadIndex();
+        scan(indexedEnd);
+        System.out.println("Loaded " + name + " cache: " + index.size() + " entries, " + end + " bytes");
+    }
+
+    private int findLatestGeneration() throws IOException {
+        int latest = 0;
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, name + ".*.dat")) {
+            for (Path file : files) {
+                String fileName = file.getFileName().toString();
+                String number = fileName.substring(name.length() + 1, fileName.length() - 4);
+                try {
+                    latest = Math.max(latest, Integer.parseInt(number));
+                } catch (NumberFormatException ignored) {
+                    // Not one of ours
+                }
+            }
+        }
+        return latest;
+    }
+
+    private void deleteOtherGenerations() {
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, name + ".*.dat")) {
+            for (Path file : files) {
+                if (!file.equals(dataFile(generation))) {
+                    try {
+                        Files.deleteIfExists(file);
+                    } catch (IOException e) {
+                        // Still mapped by an earlier session on some platforms; retried next time
+                    }
+                }
+            }
+        } catch (IOException e) {
+            System.err.println("Error cleaning up old " + name + " cache files: " + e.getMessage());
+        }
+    }
+
+    private void mapGeneration(int gen) throws IOException {
+        channel = FileChannel.open(dataFile(gen), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        long capacity = Math.max(MIN_CAPACITY, channel.size());
+        buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+    }
+
+    private void ensureCapacity(long required) throws IOException {
+        if (required <= buffer.capacity()) {
+            return;
+        }
+        long capacity = buffer.capacity();
+        while (capacity < required) {
+            capacity *= 2;
+        }
+        if (capacity > Integer.MAX_VALUE) {
+            throw new IOException("cache file would exceed 2 GB");
+        }
+        buffer.force();
+        buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+    }
+
+    /**
+     * Walk the records from the given offset to the end of the data, adding them to the index.
+     * Stops at the first record that does not fit, which is treated as the end of the data.
+     */
+    private void scan(long from) {
+        long position = Math.max(from, HEADER_SIZE);
+        while (position + 8 <= end) {
+            int keyLength = buffer.getInt((int) position);
+            if (keyLength <= 0 || position + 8 + keyLength > end) {
+                break;
+            }
+            byte[] keyBytes = new byte[keyLength];
+            buffer.get((int) position + 4, keyBytes);
+            int valueLength = buffer.getInt((int) position + 4 + keyLength);
+            long next = position + 8 + keyLength + valueLength;
+            if (valueLength < 0 || next > end) {
+                break;
+            }
+            index.put(new String(keyBytes, StandardCharsets.UTF_8), position);
+            position = next;
+        }
+        if (position != end) {
+            System.err.println("Truncating damaged " + name + " cache at offset " + position);
+            end = position;
+            buffer.putLong(8, end);
+        }
+    }
+
+    /**
+     * @return the data offset up to which the saved index is valid, or the header size if there
+     * is no usable index
+     */
+    private long loadIndex() {
+        Path file = indexFile();
+        if (!Files.exists(file)) {
+            return HEADER_SIZE;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+            if (in.readInt() != MAGIC || in.readInt() != generation) {
+                return HEADER_SIZE;
+            }
+            long indexedEnd = in.readLong();
+            if (indexedEnd > end) {
+                return HEADER_SIZE;
+            }
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                String key = in.readUTF();
+                index.put(key, in.readLong());
+            }
+            return indexedEnd;
+        } catch (IOException e) {
+            System.err.println("Rebuilding " + name + " cache index: " + e.getMessage());
+            index.clear();
+            return HEADER_SIZE;
+        }
+    }
+
+    private void saveIndex() throws IOException {
+        Path file = indexFile();
+        Path temp = directory.resolve(name + ".idx.tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(generation);
+            out.writeLong(end);
+            out.writeInt(index.size());
+            // Eldest first, so loading restores the same recency order
+            for (Map.Entry<String, Long> entry : index.entrySet()) {
+                out.writeUTF(entry.getKey());
+                out.writeLong(entry.getValue());
+            }
+        }
+        Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    /**
+     * Copy the most recently used entries into the next generation of the data file and switch
+     * to it. The copy is made without holding the store's lock, so reads and writes go on
+     * meanwhile; records are never changed once appended, so the copy stays valid. Only the
+     * switch, which also carries over what was appended during the copy, holds the lock. The old
+     * file is deleted, or left for the next session if the platform still holds its mapping.
+     */
+    private void compact() {
+        List<Map.Entry<String, Long>> entries;
+        ByteBuffer source;
+        long copiedEnd;
+        int nextGeneration;
+        synchronized (this) {
+            if (buffer == null) {
+                compacting = false;
+                return;
+            }
+            entries = new ArrayList<>(index.entrySet());
+            source = buffer.duplicate();
+            copiedEnd = end;
+            nextGeneration = generation + 1;
+        }
+        Collections.reverse(entries);
+        long budget = (long) (maxBytes * COMPACT_RATIO);
+
+        Map<String, Long> kept = new HashMap<>();
+        long position = HEADER_SIZE;
+        try {
+            try (FileChannel out = FileChannel.open(dataFile(nextGeneration), StandardOpenOption.CREATE,
+                    StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+                out.position(HEADER_SIZE);
+                for (Map.Entry<String, Long> entry : entries) {
+                    int offset = (int) (long) entry.getValue();
+                    int keyLength = source.getInt(offset);
+                    int valueLength = source.getInt(offset + 4 + keyLength);
+                    int recordSize = 8 + keyLength + valueLength;
+                    if (position + recordSize > budget) {
+                        break;
+                    }
+                    byte[] record = new byte[recordSize];
+                    source.get(offset, record);
+                    out.write(ByteBuffer.wrap(record));
+                    kept.put(entry.getKey(), position);
+                    position += recordSize;
+                }
+                ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+                header.putInt(MAGIC).putInt(VERSION).putLong(position).flip();
+                out.write(header, 0);
+            }
+            switchGeneration(nextGeneration, kept, copiedEnd, position);
+        } catch (IOException e) {
+            System.err.println("Error compacting " + name + " cache: " + e.getMessage());
+            synchronized (this) {
+                compacting = false;
+            }
+        }
+    }
+
+    /**
+     * Switch to a compacted generation holding the kept entries up to keptEnd, and append the
+     * records written since the copy was taken at copiedEnd.
+     */
+    private synchronized void switchGeneration(int nextGeneration, Map<String, Long> kept, long copiedEnd,
+                                               long keptEnd) throws IOException {
+        try {
+            if (buffer == null) {
+                // Closed while compacting
+                Files.deleteIfExists(dataFile(nextGeneration));
+                return;
+            }
+            MappedByteBuffer oldBuffer = buffer;
+            FileChannel oldChannel = channel;
+            int oldSize = index.size();
+            Path oldFile = dataFile(generation);
+            byte[] appended = new byte[(int) (end - copiedEnd)];
+            oldBuffer.get((int) copiedEnd, appended);
+
+            mapGeneration(nextGeneration);
+            try {
+                ensureCapacity(keptEnd + appended.length);
+            } catch (IOException e) {
+                channel.close();
+                channel = oldChannel;
+                buffer = oldBuffer;
+                Files.deleteIfExists(dataFile(nextGeneration));
+                throw e;
+            }
+            buffer.put((int) keptEnd, appended);
+            end = keptEnd + appended.length;
+            buffer.putLong(8, end);
+
+            // Rebuilt in the current eldest-first order, so lookups made during the copy still count
+            List<Map.Entry<String, Long>> entries = new ArrayList<>(index.entrySet());
+            index.clear();
+            for (Map.Entry<String, Long> entry : entries) {
+                long offset = entry.getValue();
+                if (offset >= copiedEnd) {
+                    index.put(entry.getKey(), keptEnd + (offset - copiedEnd));
+                } else if (kept.containsKey(entry.getKey())) {
+                    index.put(entry.getKey(), kept.get(entry.getKey()));
+                }
+            }
+            generation = nextGeneration;
+            oldChannel.close();
+            saveIndex();
+            try {
+                Files.deleteIfExists(oldFile);
+            } catch (IOException e) {
+                // Deleted on next open
+            }
+            System.out.println("Compacted " + name + " cache: kept " + index.size() + " entries, dropped " + (oldSize - index.size()));
+        } finally {
+            compacting = false;
+        }
+    }
+}
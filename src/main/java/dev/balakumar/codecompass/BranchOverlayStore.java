@@ -0,0 +1,288 @@
+package dev.balakumar.codecompass;
+
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+
+/**
+ * {@link VectorStore} for a git branch other than the base branch: the base collection, built
+ * while the base branch was checked out, plus a small overlay collection per branch holding only
+ * the files that differ on it.
+ *
+ * Writes go to the overlay. A file with points in the overlay, or a tombstone there because it
+ * was deleted on the branch, shadows all of its points in the base. Searches query both
+ * collections, leave shadowed files out of the base results and merge the two by score. Switching
+ * to a branch therefore costs only its changed files, and switching back finds the base as it was.
+ */
+public class BranchOverlayStore implements VectorStore {
+    static final String OVERLAY_PREFIX = VectorDBService.COLLECTION_NAME + "_branch_";
+    private static final int MAX_BRANCH_NAME_LENGTH = 64;
+
+    private final VectorDBService base;
+    private final VectorDBService overlay;
+    private final String branch;
+    private final EmbeddingService aiService;
+    // Files whose base points are hidden: written or deleted on this branch
+    private final Set<String> shadowed = ConcurrentHashMap.newKeySet();
+
+    public BranchOverlayStore(VectorDBService base, VectorDBService overlay, String branch, EmbeddingService aiService) {
+        this.base = base;
+        this.overlay = overlay;
+        this.branch = branch;
+        this.aiService = aiService;
+        Set<String> written = overlay.getIndexedPaths();
+        Set<String> deleted = overlay.getDeletedPaths();
+        if (written == null || deleted == null) {
+            System.err.println("Could not read the overlay of branch " + branch + "; base results may show files changed on it");
+        }
+        if (written != null) {
+            shadowed.addAll(written);
+        }
+        if (deleted != null) {
+            shadowed.addAll(deleted);
+        }
+        System.out.println("Opened overlay of branch " + branch + " with " + shadowed.size() + " changed files");
+    }
+
+    /**
+     * @return the branch to keep in an overlay, or null if the project is on its base branch or is
+     * not a git repository
+     */
+    public static String overlayBranch(String projectPath, String baseBranch) {
+        String current = GitDelta.currentBranch(projectPath);
+        if (current == null) {
+            return null;
+        }
+        String baseName = baseBranch == null || baseBranch.isBlank() ? GitDelta.defaultBranch(projectPath) : baseBranch.trim();
+        if (baseName == null || baseName.equals(current)) {
+            return null;
+        }
+        // Without a branch checked out the overlay holds whatever commit is
+        return "HEAD".equals(current) ? "detached" : current;
+    }
+
+    /**
+     * @return the Qdrant collection of a branch's overlay; branch names that only differ in
+     * characters Qdrant does not allow still get collections of their own
+     */
+    public static String collectionName(String branch) {
+        String safe = branch.replaceAll("[^A-Za-z0-9_-]", "_");
+        if (safe.length() > MAX_BRANCH_NAME_LENGTH) {
+            safe = safe.substring(0, MAX_BRANCH_NAME_LENGTH);
+        }
+        return OVERLAY_PREFIX + safe + "_" + String.format("%08x", branch.hashCode());
+    }
+
+    @Override
+    public String getName() {
+        return base.getName();
+    }
+
+    @Override
+    public String getOverlayBranch() {
+        return branch;
+    }
+
+    /**
+     * @return a live view of the shadowed files
+     */
+    @Override
+    public Set<String> getOverlayPaths() {
+        return Collections.unmodifiableSet(shadowed);
+    }
+
+    @Override
+    public boolean isConnected() {
+        return base.isConnected();
+    }
+
+    @Override
+    public void addOrUpdateDocument(String id, String content, String filePath, String summary, Map<String, String> metadata) {
+        shadowed.add(filePath);
+        overlay.addOrUpdateDocument(id, content, filePath, summary, metadata);
+    }
+
+    @Override
+    public boolean upsertDocument(String id, String content, String filePath, String summary, Map<String, String> metadata, float[] embedding) {
+        shadowed.add(filePath);
+        return overlay.upsertDocument(id, content, filePath, summary, metadata, embedding);
+    }
+
+    @Override
+    public UpsertBuffer openUpsertBuffer(int maxPoints, long maxBytes) {
+        UpsertBuffer buffer = overlay.openUpsertBuffer(maxPoints, maxBytes);
+        return new UpsertBuffer() {
+            @Override
+            public void add(String id, String content, String filePath, String summary, Map<String, String> metadata,
+                            float[] embedding, Consumer<Boolean> callback) {
+                shadowed.add(filePath);
+                buffer.add(id, content, filePath, summary, metadata, embedding, callback);
+            }
+
+            @Override
+            public void close() {
+                buffer.close();
+            }
+        };
+    }
+
+    @Override
+    public void deleteStaleChunks(Map<String, Integer> chunkCounts) {
+        // Chunks of the base are shadowed by the file's overlay points anyway
+        overlay.deleteStaleChunks(chunkCounts);
+    }
+
+    /**
+     * Summaries of files unchanged on this branch are shared with the base branch.
+     */
+    @Override
+    public boolean updateSummary(String filePath, String contentHash, String summary) {
+        return shadowed.contains(filePath)
+                ? overlay.updateSummary(filePath, contentHash, summary)
+                : base.updateSummary(filePath, contentHash, summary);
+    }
+
+    @Override
+    public void refreshDocumentCount() {
+        base.refreshDocumentCount();
+        overlay.refreshDocumentCount();
+    }
+
+    @Override
+    public void deleteDocument(String filePath) {
+        deleteDocuments(Collections.singletonList(filePath));
+    }
+
+    @Override
+    public void deleteDocuments(Collection<String> filePaths) {
+        shadowed.addAll(filePaths);
+        overlay.deleteDocuments(filePaths);
+        overlay.markDeleted(filePaths);
+    }
+
+    @Override
+    public Set<String> getIndexedPaths() {
+        Set<String> basePaths = base.getIndexedPaths();
+        Set<String> overlayPaths = overlay.getIndexedPaths();
+        if (basePaths == null || overlayPaths == null) {
+            return null;
+        }
+        basePaths.removeAll(shadowed);
+        basePaths.addAll(overlayPaths);
+        return basePaths;
+    }
+
+    /**
+     * The overlay's points, then those of the base that the overlay does not shadow.
+     */
+    @Override
+    public boolean forEachPoint(Consumer<StoredPoint> visitor) {
+        if (!overlay.forEachPoint(visitor)) {
+            return false;
+        }
+        return base.forEachPoint(point -> {
+            if (!shadowed.contains(point.getFilePath())) {
+                visitor.accept(point);
+            }
+        });
+    }
+
+    @Override
+    public boolean importPoints(List<StoredPoint> points) {
+        for (StoredPoint point : points) {
+            shadowed.add(point.getFilePath());
+        }
+        return overlay.importPoints(points);
+    }
+
+    @Override
+    public Map<String, String> getFingerprints() {
+        Map<String, String> fingerprints = new HashMap<>(base.getFingerprints());
+        fingerprints.keySet().removeAll(shadowed);
+        fingerprints.putAll(overlay.getFingerprints());
+        return fingerprints;
+    }
+
+    @Override
+    public Map<String, String> getPendingSummaries() {
+        Map<String, String> pending = new HashMap<>(base.getPendingSummaries());
+        pending.keySet().removeAll(shadowed);
+        pending.putAll(overlay.getPendingSummaries());
+        return pending;
+    }
+
+    @Override
+    public String getFingerprint(String filePath) {
+        return shadowed.contains(filePath) ? overlay.getFingerprint(filePath) : base.getFingerprint(filePath);
+    }
+
+    @Override
+    public List<CodeSearchResult> search(String query, int limit, Map<String, String> filters, float similarityThreshold) {
+        float[] queryEmbedding;
+        try {
+            queryEmbedding = aiService.getEmbedding(query);
+        } catch (IOException e) {
+            System.err.println("Error embedding search query: " + e.getMessage());
+            return Collections.emptyList();
+        }
+        return searchByEmbedding(queryEmbedding, limit, filters, similarityThreshold);
+    }
+
+    @Override
+    public List<CodeSearchResult> searchByEmbedding(float[] queryEmbedding, int limit, Map<String, String> filters, float similarityThreshold) {
+        List<CodeSearchResult> results = new ArrayList<>(overlay.searchByEmbedding(queryEmbedding, limit, filters, similarityThreshold));
+        results.addAll(base.searchByEmbedding(queryEmbedding, limit, filters, similarityThreshold, new ArrayList<>(shadowed)));
+        Collections.sort(results);
+        return results.size() > limit ? new ArrayList<>(results.subList(0, limit)) : results;
+    }
+
+    @Override
+    public void saveIndex() {
+        base.saveIndex();
+        overlay.saveIndex();
+    }
+
+    /**
+     * Drops the branch's changes, so it shows the base index again.
+     */
+    @Override
+    public void deleteAll() {
+        overlay.deleteAll();
+        shadowed.clear();
+    }
+
+    @Override
+    public void deleteAllBranches() {
+        base.deleteAll();
+        base.deleteOverlays(overlay.getCollectionName());
+        overlay.deleteAll();
+        shadowed.clear();
+    }
+
+    /**
+     * @return the points in both collections, counting each point the overlay shadows as well
+     */
+    @Override
+    public int getDocumentCount() {
+        return base.getDocumentCount() + overlay.getDocumentCount();
+    }
+
+    @Override
+    public int getDimension() {
+        return base.getDimension();
+    }
+
+    @Override
+    public void close() {
+        base.close();
+        overlay.close();
+    }
+
+    @Override
+    public List<String> getUniqueLanguages() {
+        Set<String> languages = new LinkedHashSet<>(base.getUniqueLanguages());
+        languages.addAll(overlay.getUniqueLanguages());
+        return new ArrayList<>(languages);
+    }
+}
@@ -5,6 +5,7 @@ import com.intellij.openapi.application.ApplicationManager;
 import com.intellij.openapi.editor.colors.EditorColorsManager;
 import com.intellij.openapi.editor.colors.EditorColorsScheme;
 import com.intellij.openapi.fileEditor.FileEditorManager;
+import com.intellij.openapi.fileEditor.OpenFileDescriptor;
 import com.intellij.openapi.progress.ProgressIndicator;
 import com.intellij.openapi.progress.ProgressManager;
 import com.intellij.openapi.progress.Task;
@@ -18,9 +19,6 @@ import com.intellij.ui.components.JBLabel;
 import com.intellij.ui.components.JBScrollPane;
 import com.intellij.util.ui.JBUI;
 import javax.swing.Timer;
-import okhttp3.OkHttpClient;
-import okhttp3.Request;
-import okhttp3.Response;
 import org.jetbrains.annotations.NotNull;
 import javax.swing.*;
 import javax.swing.border.EmptyBorder;
@@ -34,10 +32,11 @@ import java.time.format.DateTimeFormatter;
 import java.util.List;
 import java.util.*;
 import java.util.concurrent.CopyOnWriteArrayList;
-import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 public class ChatPanel extends SimpleToolWindowPanel {
+    // How often a streaming answer is copied into the chat while tokens arrive
+    private static final int STREAM_REFRESH_MS = 50;
     private final Project project;
     private SimpleIndexer indexer;
     private GenerationService aiService;
@@ -250,6 +249,9 @@ public class ChatPanel extends SimpleToolWindowPanel {
                 if (value instanceof CodeSearchResult) {
                     CodeSearchResult result = (CodeSearchResult) value;
                     String displayPath = getDisplayPath(result.getFilePath());
+                    if (result.hasLineRange()) {
+                        displayPath += ":" + result.getStartLine() + "-" + result.getEndLine();
+                    }
                     String text = String.format("%s (%.2f)", displayPath, result.getSimilarity());
                     return super.getListCellRendererComponent(list, text, index, isSelected, cellHasFocus);
                 }
@@ -271,7 +273,7 @@ public class ChatPanel extends SimpleToolWindowPanel {
                 if (e.getClickCount() == 2) {
                     CodeSearchResult selectedResult = relevantFilesList.getSelectedValue();
                     if (selectedResult != null) {
-                        openFile(selectedResult.getFilePath());
+                        openFile(selectedResult.getFilePath(), selectedResult.getStartLine());
                     }
                 }
             }
@@ -311,72 +313,48 @@ public class ChatPanel extends SimpleToolWindowPanel {
         // Initialize with a more robust approach
         Thread initThread = new Thread(() -> {
             try {
-                // First check if Qdrant is running before trying to create services
-                boolean qdrantRunning = false;
-                try {
-                    // Use a simple HTTP client with shorter timeout for health check
-                    OkHttpClient httpClient = new OkHttpClient.Builder()
-                            .connectTimeout(5, TimeUnit.SECONDS)
-                            .readTimeout(5, TimeUnit.SECONDS)
-                            .build();
-
-                    Request request = new Request.Builder()
-                            .url("http://localhost:6333/healthz")
-                            .get()
-                            .build();
-
-                    try (Response response = httpClient.newCall(request).execute()) {
-                        qdrantRunning = response.isSuccessful();
-                        if (qdrantRunning) {
-                            SwingUtilities.invokeLater(() -> {
-                                statusLabel.setText("Qdrant is running, initializing AI service...");
-                            });
-                        }
-                    }
-                } catch (Exception e) {
-                    System.err.println("Qdrant health check error: " + e.getMessage());
-                    qdrantRunning = false;
-                }
-
-                if (!qdrantRunning) {
-                    SwingUtilities.invokeLater(() -> {
-                        addErrorMessage("⚠️ Vector database (Qdrant) is not running. Please make sure Qdrant is installed and running at http://localhost:6333");
-                        statusLabel.setText("⚠️ Vector database unavailable. Chat will not work properly.");
-                        initialized.set(true); // Allow UI interaction
-                        updateSendButton();
-                    });
-                    return;
-                }
-
-                // Then try to create the AI service
+                // The indexer and its services are shared by the project, so only the first panel creates them
+                CodeCompassService service = CodeCompassService.getInstance(project);
                 try {
-                    aiService = ProviderSettings.getGenerationService(project);
+                    indexer = service.getIndexer();
+                    aiService = service.getGenerationService();
                     SwingUtilities.invokeLater(() -> {
-                        statusLabel.setText("AI service initialized, checking connection...");
+                        statusLabel.setText("Services initialized, checking connections...");
                     });
                 } catch (Exception e) {
-                    System.err.println("Error creating AI service: " + e.getMessage());
+                    System.err.println("Error creating indexer: " + e.getMessage());
                     SwingUtilities.invokeLater(() -> {
-                        addErrorMessage("Failed to initialize AI service: " + e.getMessage());
-                        statusLabel.setText("Error initializing AI service. Chat will not work properly.");
+                        addErrorMessage("Failed to initialize services: " + e.getMessage());
+                        statusLabel.setText("Error initializing services. Chat will not work properly.");
                         initialized.set(true); // Allow UI interaction
                         updateSendButton();
                     });
                     return;
                 }
 
-                // Check AI service connection
+                // Check that Qdrant is running. The embedded vector index needs no server.
+                if (VectorStore.QDRANT.equals(CodeMapperSettingsState.getInstance(project).vectorStore)) {
+                    VectorStore vectorStore = indexer.getVectorStore();
+                    if (vectorStore == null || !vectorStore.isConnected()) {
+                        SwingUtilities.invokeLater(() -> {
+                            addErrorMessage("⚠️ Vector database (Qdrant) is not running. Please make sure Qdrant is installed and running at http://localhost:6333");
+                            statusLabel.setText("⚠️ Vector database unavailable. Chat will not work properly.");
+                            initialized.set(true); // Allow UI interaction
+                            updateSendButton();
+                        });
+                        return;
+                    }
+                }
+
+                // Check AI service connection; a recent result from another panel is reused
                 boolean aiServiceConnected = false;
                 try {
-                    aiServiceConnected = aiService.testConnection();
-                    boolean finalAiServiceConnected = aiServiceConnected;
-                    SwingUtilities.invokeLater(() -> {
-                        if (finalAiServiceConnected) {
-                            statusLabel.setText("AI service connected, initializing indexer...");
-                        } else {
+                    aiServiceConnected = service.isGenerationServiceAvailable();
+                    if (!aiServiceConnected) {
+                        SwingUtilities.invokeLater(() -> {
                             statusLabel.setText("AI service connection failed, attempting to continue...");
-                        }
-                    });
+                        });
+                    }
                 } catch (Exception e) {
                     System.err.println("AI service connection error: " + e.getMessage());
                     SwingUtilities.invokeLater(() -> {
@@ -384,23 +362,6 @@ public class ChatPanel extends SimpleToolWindowPanel {
                     });
                 }
 
-                // Then try to create the indexer
-                try {
-                    indexer = new SimpleIndexer(project);
-                    SwingUtilities.invokeLater(() -> {
-                        statusLabel.setText("Indexer initialized successfully!");
-                    });
-                } catch (Exception e) {
-                    System.err.println("Error creating indexer: " + e.getMessage());
-                    SwingUtilities.invokeLater(() -> {
-                        addErrorMessage("Failed to initialize indexer: " + e.getMessage());
-                        statusLabel.setText("Error initializing indexer. Chat will not work properly.");
-                        initialized.set(true); // Allow UI interaction
-                        updateSendButton();
-                    });
-                    return;
-                }
-
                 // Skip language fetching entirely
                 // Just use default "All Languages" option that's already in the combo box
 
@@ -441,7 +402,7 @@ public class ChatPanel extends SimpleToolWindowPanel {
         Timer timeoutTimer = new Timer(30000, e -> {
             if (!initialized.get()) {
                 SwingUtilities.invokeLater(() -> {
-                    addErrorMessage("Initialization timed out after 30 seconds. This usually means Qdrant vector database is not running or is not accessible.");
+                    addErrorMessage("Initialization timed out after 30 seconds. This usually means the AI service or the Qdrant vector database is not running or is not accessible.");
                     statusLabel.setText("Initialization timed out. Make sure Qdrant is running at http://localhost:6333");
                     initialized.set(true); // Set to true so UI is not blocked
                     updateSendButton();
@@ -488,12 +449,14 @@ public class ChatPanel extends SimpleToolWindowPanel {
         updateSendButton();
         retryButton.setEnabled(false);
 
-        // Add a placeholder for the AI response
-        JPanel aiMessagePanel = createMessagePanel("Thinking...", false, true);
+        // Add a placeholder for the AI response; the answer streams into it as it is generated
+        StreamingMessage streamingMessage = new StreamingMessage();
+        JPanel aiMessagePanel = streamingMessage.getPanel();
         messagesPanel.add(aiMessagePanel);
         messagesPanel.revalidate();
         messagesPanel.repaint();
         scrollToBottom();
+        streamingMessage.start();
 
         ProgressManager.getInstance().run(new Task.Backgroundable(project, "Processing Question...", false) {
             private String answer;
@@ -508,6 +471,8 @@ public class ChatPanel extends SimpleToolWindowPanel {
                 indicator.setIndeterminate(true);
 
                 while (retryCount < MAX_RETRIES && !success) {
+                    // Drop whatever a failed attempt streamed before it broke off
+                    streamingMessage.reset();
                     try {
                         // Get result limit from spinner
                         int limit = (Integer) resultLimitSpinner.getValue();
@@ -529,12 +494,23 @@ public class ChatPanel extends SimpleToolWindowPanel {
                         // If we didn't find anything and it's a follow-up, try a broader search
                         if (searchResults.isEmpty() && isFollowUp) {
                             indicator.setText("Broadening search for follow-up question...");
-                            searchResults = indexer.search(userMessage, limit, currentFilters, 0.5f); // Lower threshold
+                            // Lower threshold; the candidates of the first search are reused, so this costs no embedding call
+                            searchResults = indexer.search(userMessage, limit, currentFilters, 0.5f);
                         }
 
                         results = searchResults;
 
                         if (!results.isEmpty()) {
+                            // Files indexed without a summary get one now, so the answer has full context
+                            for (CodeSearchResult result : results) {
+                                if (!result.hasSummary()) {
+                                    indicator.setText("Summarizing " + result.getDisplayName() + "...");
+                                    indexer.ensureSummary(result);
+                                }
+                            }
+
+                            // Only the results that go into the prompt need their code
+                            indexer.loadContent(results, GenerationService.CONTEXT_FILE_COUNT);
                             indicator.setText("Generating answer...");
 
                             // Convert ChatMessage objects to Maps for the API
@@ -550,7 +526,7 @@ public class ChatPanel extends SimpleToolWindowPanel {
                                 }
                             }
 
-                            answer = aiService.askQuestionWithHistory(userMessage, results, historyMaps);
+                            answer = aiService.streamQuestionWithHistory(userMessage, results, historyMaps, streamingMessage::append);
                             success = true;
                         } else {
                             answer = "I couldn't find any relevant files in the codebase for your question. Try rephrasing or asking about a different topic.";
@@ -559,13 +535,9 @@ public class ChatPanel extends SimpleToolWindowPanel {
                     } catch (IOException e) {
                         retryCount++;
                         if (e.getMessage().contains("429") || e.getMessage().contains("resource") || e.getMessage().contains("limit") || e.getMessage().contains("quota")) {
-                            // Rate limit or resource exhaustion
-                            indicator.setText("Rate limited. Retrying in 5 seconds... (" + retryCount + "/" + MAX_RETRIES + ")");
-                            try {
-                                Thread.sleep(5000);
-                            } catch (InterruptedException ie) {
-                                Thread.currentThread().interrupt();
-                            }
+                            // Rate limit or resource exhaustion. The provider's rate limiter waits for the
+                            // limit to reset before the retried request goes out.
+                            indicator.setText("Rate limited. Waiting for the provider's limit to reset... (" + retryCount + "/" + MAX_RETRIES + ")");
                         } else if (retryCount >= MAX_RETRIES) {
                             errorMessage = "Error after " + MAX_RETRIES + " attempts: " + e.getMessage();
                             results = Collections.emptyList();
@@ -588,6 +560,7 @@ public class ChatPanel extends SimpleToolWindowPanel {
             @Override
             public void onSuccess() {
                 // Remove the placeholder message
+                streamingMessage.stop();
                 messagesPanel.remove(aiMessagePanel);
 
                 if (success) {
@@ -618,6 +591,7 @@ public class ChatPanel extends SimpleToolWindowPanel {
             @Override
             public void onThrowable(@NotNull Throwable error) {
                 // Remove the placeholder message
+                streamingMessage.stop();
                 messagesPanel.remove(aiMessagePanel);
                 addErrorMessage("Error: " + error.getMessage());
                 isProcessing.set(false);
@@ -1173,6 +1147,16 @@ public class ChatPanel extends SimpleToolWindowPanel {
         }
     }
 
+    /**
+     * Open a file with the caret on the given 1-based line, or at the top if the line is unknown.
+     */
+    private void openFile(String filePath, int line) {
+        VirtualFile file = LocalFileSystem.getInstance().findFileByPath(filePath);
+        if (file != null) {
+            new OpenFileDescriptor(project, file, Math.max(0, line - 1), 0).navigate(true);
+        }
+    }
+
     private void copyPathsToClipboard() {
         if (currentResults.isEmpty()) {
             return;
@@ -1188,6 +1172,93 @@ public class ChatPanel extends SimpleToolWindowPanel {
         statusLabel.setText("Copied " + currentResults.size() + " file paths to clipboard");
     }
 
+    /**
+     * Placeholder for an answer that is still being generated. Tokens are appended from the
+     * background thread; a timer on the EDT moves them into the panel every STREAM_REFRESH_MS,
+     * so a fast stream costs one relayout per tick instead of one per token.
+     */
+    private class StreamingMessage {
+        private final JPanel panel;
+        private final JTextArea textArea;
+        private final Timer timer;
+        private final StringBuilder buffer = new StringBuilder();
+        // Number of buffered characters already shown in the text area
+        private int shown = 0;
+        // Set when the buffer was cleared since the last refresh
+        private boolean cleared = false;
+
+        StreamingMessage() {
+            panel = createMessagePanel("Thinking...", false, true);
+            textArea = new JTextArea();
+            textArea.setEditable(false);
+            textArea.setLineWrap(true);
+            textArea.setWrapStyleWord(true);
+            textArea.setOpaque(false);
+            textArea.setBorder(BorderFactory.createEmptyBorder());
+            textArea.setFont(UIManager.getFont("Label.font"));
+            timer = new Timer(STREAM_REFRESH_MS, e -> refresh());
+            timer.setCoalesce(true);
+        }
+
+        JPanel getPanel() {
+            return panel;
+        }
+
+        void start() {
+            timer.start();
+        }
+
+        void stop() {
+            timer.stop();
+        }
+
+        void append(String token) {
+            synchronized (buffer) {
+                buffer.append(token);
+            }
+        }
+
+        void reset() {
+            synchronized (buffer) {
+                buffer.setLength(0);
+                cleared = true;
+            }
+        }
+
+        private void refresh() {
+            String text;
+            boolean restart;
+            synchronized (buffer) {
+                restart = cleared;
+                cleared = false;
+                if (!restart && buffer.length() == shown) {
+                    return;
+                }
+                text = restart ? buffer.toString() : buffer.substring(shown);
+                shown = buffer.length();
+            }
+
+            // Swap the "Thinking..." label for the text area once the first tokens arrive
+            if (textArea.getParent() != panel) {
+                Component thinkingLabel = ((BorderLayout) panel.getLayout()).getLayoutComponent(BorderLayout.CENTER);
+                if (thinkingLabel != null) {
+                    panel.remove(thinkingLabel);
+                }
+                panel.add(textArea, BorderLayout.CENTER);
+            }
+            if (restart) {
+                textArea.setText(text);
+            } else {
+                textArea.append(text);
+            }
+
+            panel.setMaximumSize(new Dimension(Integer.MAX_VALUE, panel.getPreferredSize().height));
+            messagesPanel.revalidate();
+            messagesPanel.repaint();
+            scrollToBottom();
+        }
+    }
+
     private static class ChatMessage {
         private final String message;
         private final boolean userMessage;
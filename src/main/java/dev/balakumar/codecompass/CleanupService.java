@@ -1,14 +1,18 @@
 package dev.balakumar.codecompass;
 
+import com.intellij.openapi.project.Project;
+
 import java.io.File;
 
 public class CleanupService {
     /**
      * Delete all index files to force a fresh start
      */
-    public static void cleanupIndexFiles(String projectPath) {
+    public static void cleanupIndexFiles(Project project) {
+        // Without the manifest the next run checks every file again
+        IndexManifest.getInstance(project).reset();
         try {
-            File dbDir = new File(projectPath, ".codemapper");
+            File dbDir = new File(project.getBasePath(), ".codemapper");
             if (dbDir.exists()) {
                 // We only need to delete the config file as Qdrant
                 // manages the actual vector data
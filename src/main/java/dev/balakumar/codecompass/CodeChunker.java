@@ -0,0 +1,193 @@
+package dev.balakumar.codecompass;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Pattern;
+
+/**
+ * Splits source files into overlapping chunks that each get their own embedding, so large files
+ * are searchable past the embedding models' input limits.
+ *
+ * Chunks are cut at class, function or method declarations where possible (together with the
+ * comments and annotations directly above them), otherwise at blank lines, and only as a last
+ * resort in the middle of code. Consecutive chunks share a few lines of overlap. A single line
+ * longer than a chunk, as in minified JavaScript or JSON, is split into pieces of its own that
+ * share a few characters instead.
+ */
+public class CodeChunker {
+    // Stays under Ollama's 4000 character embedding limit including the chunk header
+    static final int MAX_CHUNK_CHARS = 3000;
+    // Don't cut at a declaration before a chunk has at least this much content
+    private static final int MIN_CHUNK_CHARS = 1000;
+    private static final int OVERLAP_LINES = 3;
+    private static final int OVERLAP_CHARS = 200;
+
+    private static final Pattern DECLARATION = Pattern.compile(
+            // Java, Kotlin, Scala, Groovy, C# types and Kotlin functions
+            "^((public|protected|private|internal|static|final|abstract|sealed|open|data|override|suspend|inline|partial)\\s+)*" +
+                    "(class|interface|enum|record|object|trait|fun|def|struct)\\s+\\w+.*" +
+                    // Java/C# methods with at least one modifier
+                    "|^((public|protected|private|static|final|abstract|synchronized|native|override|virtual|async)\\s+)+[\\w<>\\[\\],.?\\s]+\\s+\\w+\\s*\\(.*" +
+                    // Python
+                    "|^(async\\s+)?def\\s+\\w+.*" +
+                    // JavaScript / TypeScript
+                    "|^(export\\s+)?(default\\s+)?(async\\s+)?function\\b.*" +
+                    "|^(export\\s+)?(default\\s+)?(abstract\\s+)?class\\b.*" +
+                    "|^(export\\s+)?(const|let|var)\\s+\\w+\\s*=\\s*(async\\s*)?(\\(|function\\b|\\w+\\s*=>).*" +
+                    // Go, Rust, PHP, Ruby
+                    "|^func\\b.*" +
+                    "|^(pub(\\([\\w:]+\\))?\\s+)?(async\\s+)?(fn|impl|mod)\\b.*" +
+                    "|^((public|protected|private|static|abstract|final)\\s+)*function\\s+\\w+.*" +
+                    "|^(module|class)\\s+[A-Z]\\w*.*");
+
+    public static class Chunk {
+        private final int index;
+        private final int startLine;
+        private final int endLine;
+        private final String text;
+
+        Chunk(int index, int startLine, int endLine, String text) {
+            this.index = index;
+            this.startLine = startLine;
+            this.endLine = endLine;
+            this.text = text;
+        }
+
+        public int getIndex() {
+            return index;
+        }
+
+        /**
+         * @return first line of the chunk, 1-based
+         */
+        public int getStartLine() {
+            return startLine;
+        }
+
+        /**
+         * @return last line of the chunk, 1-based and inclusive
+         */
+        public int getEndLine() {
+            return endLine;
+        }
+
+        public String getText() {
+            return text;
+        }
+    }
+
+    /**
+     * Split file content into chunks. Content that fits into one chunk is returned whole.
+     */
+    public static List<Chunk> chunk(String content) {
+        String[] lines = content.split("\n", -1);
+        List<Chunk> chunks = new ArrayList<>();
+        if (content.length() <= MAX_CHUNK_CHARS) {
+            chunks.add(new Chunk(0, 1, lines.length, content));
+            return chunks;
+        }
+
+        int start = 0;
+        while (start < lines.length) {
+            if (lines[start].length() > MAX_CHUNK_CHARS) {
+                splitLine(chunks, lines[start], start + 1);
+                start++;
+                continue;
+            }
+            int size = 0;
+            int end = start;
+            int lastDeclaration = -1;
+            int lastBlank = -1;
+            while (end < lines.length && (end == start || size + lines[end].length() + 1 <= MAX_CHUNK_CHARS)) {
+                if (end > start && size >= MIN_CHUNK_CHARS) {
+                    String trimmed = lines[end].trim();
+                    if (DECLARATION.matcher(trimmed).matches()) {
+                        lastDeclaration = end;
+                    } else if (trimmed.isEmpty()) {
+                        lastBlank = end;
+                    }
+                }
+                size += lines[end].length() + 1;
+                end++;
+            }
+
+            int split;
+            if (end >= lines.length) {
+                split = lines.length;
+            } else if (lastDeclaration > start) {
+                split = includeLeadingComments(lines, start, lastDeclaration);
+            } else if (lastBlank > start) {
+                split = lastBlank;
+            } else {
+                split = end;
+            }
+
+            chunks.add(new Chunk(chunks.size(), start + 1, split, join(lines, start, split)));
+            if (split >= lines.length) {
+                break;
+            }
+            // Overlap only where the next chunk gets past it, as it does not before a long line
+            int next = Math.max(split - OVERLAP_LINES, start + 1);
+            start = length(lines, next, split + 1) > MAX_CHUNK_CHARS ? split : next;
+        }
+        return chunks;
+    }
+
+    /**
+     * Add a line too long for one chunk as overlapping pieces of at most {@link #MAX_CHUNK_CHARS}
+     * characters, never splitting a surrogate pair.
+     */
+    private static void splitLine(List<Chunk> chunks, String line, int lineNumber) {
+        int from = 0;
+        while (true) {
+            int to = Math.min(line.length(), from + MAX_CHUNK_CHARS);
+            if (to < line.length() && Character.isHighSurrogate(line.charAt(to - 1))) {
+                to--;
+            }
+            chunks.add(new Chunk(chunks.size(), lineNumber, lineNumber, line.substring(from, to)));
+            if (to >= line.length()) {
+                return;
+            }
+            from = to - OVERLAP_CHARS;
+            if (Character.isLowSurrogate(line.charAt(from))) {
+                from--;
+            }
+        }
+    }
+
+    /**
+     * Move a split point up past the doc comments and annotations belonging to the declaration.
+     */
+    private static int includeLeadingComments(String[] lines, int start, int declaration) {
+        int split = declaration;
+        while (split - 1 > start && isCommentOrAnnotation(lines[split - 1].trim())) {
+            split--;
+        }
+        return split;
+    }
+
+    private static boolean isCommentOrAnnotation(String trimmed) {
+        return trimmed.startsWith("/**") || trimmed.startsWith("/*") || trimmed.startsWith("*") ||
+                trimmed.startsWith("//") || trimmed.startsWith("#") || trimmed.startsWith("@") ||
+                trimmed.startsWith("\"\"\"");
+    }
+
+    private static int length(String[] lines, int from, int to) {
+        int length = 0;
+        for (int i = from; i < to; i++) {
+            length += lines[i].length() + 1;
+        }
+        return length;
+    }
+
+    private static String join(String[] lines, int from, int to) {
+        StringBuilder text = new StringBuilder();
+        for (int i = from; i < to; i++) {
+            if (i > from) {
+                text.append('\n');
+            }
+            text.append(lines[i]);
+        }
+        return text.toString();
+    }
+}
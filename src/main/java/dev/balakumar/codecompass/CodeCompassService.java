@@ -0,0 +1,97 @@
+package dev.balakumar.codecompass;
+
+import com.intellij.openapi.Disposable;
+import com.intellij.openapi.components.ServiceManager;
+import com.intellij.openapi.project.Project;
+
+/**
+ * Owns the project's {@link SimpleIndexer}, and with it the embedding and generation services,
+ * their HTTP clients and the vector store. Search, chat, questions and the background indexers all
+ * share it, so opening one of them does not create clients or probe the providers again.
+ *
+ * The indexer is created on first use and replaced when a setting it was built from changes. A
+ * replaced indexer is retired rather than closed at once: searches and index runs still holding
+ * it finish on its vector store, which the last of them closes.
+ */
+public class CodeCompassService implements Disposable {
+    // How long the result of a provider connection test is trusted
+    private static final long CONNECTION_CHECK_TTL_MS = 60 * 1000;
+
+    private final Project project;
+    private SimpleIndexer indexer;
+    private String indexerSettings;
+    private Boolean generationAvailable;
+    private long generationCheckedAt = 0;
+
+    public CodeCompassService(Project project) {
+        this.project = project;
+    }
+
+    public static CodeCompassService getInstance(Project project) {
+        return ServiceManager.getService(project, CodeCompassService.class);
+    }
+
+    public synchronized SimpleIndexer getIndexer() {
+        String settings = describeSettings();
+        if (indexer == null || !settings.equals(indexerSettings)) {
+            if (indexer != null) {
+                System.out.println("CodeCompass settings changed, recreating indexer");
+                // Closes the store once the searches and runs still using it are done
+                indexer.close();
+            }
+            indexer = new SimpleIndexer(project);
+            indexerSettings = settings;
+            generationAvailable = null;
+        }
+        return indexer;
+    }
+
+    public GenerationService getGenerationService() {
+        return getIndexer().getGenerationService();
+    }
+
+    /**
+     * @return whether the generation provider answered a connection test, repeating the test only
+     * when the last result is older than a minute
+     */
+    public boolean isGenerationServiceAvailable() {
+        GenerationService generationService = getGenerationService();
+        synchronized (this) {
+            if (generationAvailable != null && System.currentTimeMillis() - generationCheckedAt < CONNECTION_CHECK_TTL_MS) {
+                return generationAvailable;
+            }
+        }
+        boolean available = generationService.testConnection();
+        synchronized (this) {
+            generationAvailable = available;
+            generationCheckedAt = System.currentTimeMillis();
+        }
+        return available;
+    }
+
+    private String describeSettings() {
+        CodeMapperSettingsState settings = CodeMapperSettingsState.getInstance(project);
+        return String.join("\n",
+                settings.embeddingProvider,
+                ProviderSettings.getEmbeddingModel(settings, settings.embeddingProvider),
+                settings.generationProvider,
+                settings.openRouterGenerationModel,
+                settings.geminiGenerationModel,
+                settings.ollamaGenerationModel,
+                settings.vectorStore,
+                String.valueOf(settings.branchOverlays),
+                settings.baseBranch,
+                String.valueOf(settings.useVirtualThreads),
+                settings.ollamaEndpoint,
+                settings.geminiApiKey,
+                settings.openRouterApiKey);
+    }
+
+    @Override
+    public synchronized void dispose() {
+        if (indexer != null) {
+            indexer.close();
+            indexer = null;
+        }
+    }
+}
@@ -24,7 +24,27 @@ public class CodeMapperSettings implements Configurable {
     // General settings
     private JComboBox<String> embeddingProviderComboBox;
     private JComboBox<String> generationProviderComboBox;
+    private JComboBox<String> vectorStoreComboBox;
+    private JBCheckBox branchOverlaysCheckBox;
+    private JBTextField baseBranchField;
     private JBCheckBox startupIndexingCheckBox;
+    private JBCheckBox incrementalIndexingCheckBox;
+    private JComboBox<String> summaryModeComboBox;
+
+    // Indexing concurrency
+    private JSpinner ollamaConcurrencySpinner;
+    private JSpinner geminiConcurrencySpinner;
+    private JSpinner openRouterConcurrencySpinner;
+    private JBCheckBox virtualThreadsCheckBox;
+
+    // Vector database write batching
+    private JSpinner upsertBatchSizeSpinner;
+    private JSpinner upsertBatchMaxMbSpinner;
+
+    // Local caches
+    private JSpinner embeddingCacheMaxMbSpinner;
+    private JSpinner summaryCacheMaxMbSpinner;
+    private JSpinner contentStoreMaxMbSpinner;
 
     // API keys
     private JBTextField openRouterApiKeyField;
@@ -73,8 +93,41 @@ public class CodeMapperSettings implements Configurable {
 
     private JPanel createGeneralSettingsPanel() {
         startupIndexingCheckBox = new JBCheckBox("Enable startup indexing", settings.enableStartupIndexing);
+        incrementalIndexingCheckBox = new JBCheckBox("Update index when files change", settings.enableIncrementalIndexing);
+        summaryModeComboBox = new JComboBox<>(new String[]{"EAGER", "DEFERRED", "ON_DEMAND"});
+        summaryModeComboBox.setSelectedItem(settings.summaryMode);
+        summaryModeComboBox.setToolTipText("EAGER: summarize while indexing. DEFERRED: make files searchable first and " +
+                "summarize in the background. ON_DEMAND: summarize when a result is first shown.");
+        ollamaConcurrencySpinner = new JSpinner(new SpinnerNumberModel(settings.ollamaConcurrency, 1, 64, 1));
+        geminiConcurrencySpinner = new JSpinner(new SpinnerNumberModel(settings.geminiConcurrency, 1, 64, 1));
+        openRouterConcurrencySpinner = new JSpinner(new SpinnerNumberModel(settings.openRouterConcurrency, 1, 64, 1));
+        virtualThreadsCheckBox = new JBCheckBox("Use virtual threads (Java 21 or later)", settings.useVirtualThreads);
+        virtualThreadsCheckBox.setToolTipText("Run indexing and search tasks on virtual threads, so waiting on the " +
+                "providers holds no platform thread. Older runtimes use a bounded thread pool.");
+        upsertBatchSizeSpinner = new JSpinner(new SpinnerNumberModel(settings.upsertBatchSize, 1, 4096, 1));
+        upsertBatchMaxMbSpinner = new JSpinner(new SpinnerNumberModel(settings.upsertBatchMaxMb, 1, 64, 1));
+        embeddingCacheMaxMbSpinner = new JSpinner(new SpinnerNumberModel(settings.embeddingCacheMaxMb, 16, 1024, 16));
+        summaryCacheMaxMbSpinner = new JSpinner(new SpinnerNumberModel(settings.summaryCacheMaxMb, 16, 1024, 16));
+        contentStoreMaxMbSpinner = new JSpinner(new SpinnerNumberModel(settings.contentStoreMaxMb, 64, 1024, 64));
         FormBuilder builder = FormBuilder.createFormBuilder()
                 .addComponent(startupIndexingCheckBox)
+                .addComponent(incrementalIndexingCheckBox)
+                .addLabeledComponent(new JBLabel("File summaries:"), summaryModeComboBox)
+                .addSeparator()
+                .addLabeledComponent(new JBLabel("Parallel requests while indexing:"), new JLabel(""), true)
+                .addLabeledComponent(new JBLabel("Ollama:"), ollamaConcurrencySpinner)
+                .addLabeledComponent(new JBLabel("Gemini:"), geminiConcurrencySpinner)
+                .addLabeledComponent(new JBLabel("OpenRouter:"), openRouterConcurrencySpinner)
+                .addComponent(virtualThreadsCheckBox)
+                .addSeparator()
+                .addLabeledComponent(new JBLabel("Vector database write batches:"), new JLabel(""), true)
+                .addLabeledComponent(new JBLabel("Max points per batch:"), upsertBatchSizeSpinner)
+                .addLabeledComponent(new JBLabel("Max batch size (MB):"), upsertBatchMaxMbSpinner)
+                .addSeparator()
+                .addLabeledComponent(new JBLabel("Local caches (applied after restart):"), new JLabel(""), true)
+                .addLabeledComponent(new JBLabel("Embedding cache size (MB):"), embeddingCacheMaxMbSpinner)
+                .addLabeledComponent(new JBLabel("Summary cache size (MB):"), summaryCacheMaxMbSpinner)
+                .addLabeledComponent(new JBLabel("Code content store size (MB):"), contentStoreMaxMbSpinner)
                 .addComponentFillVertically(new JPanel(), 0);
         return builder.getPanel();
     }
@@ -86,9 +139,23 @@ public class CodeMapperSettings implements Configurable {
         generationProviderComboBox = new JComboBox<>(new String[]{"OPENROUTER", "GEMINI", "OLLAMA"});
         generationProviderComboBox.setSelectedItem(settings.generationProvider);
 
+        vectorStoreComboBox = new JComboBox<>(new String[]{VectorStore.EMBEDDED, VectorStore.QDRANT});
+        vectorStoreComboBox.setSelectedItem(settings.vectorStore);
+        vectorStoreComboBox.setToolTipText("EMBEDDED: index kept in .codemapper, no external process. " +
+                "QDRANT: Qdrant server at http://localhost:6333. Switching requires re-indexing.");
+        branchOverlaysCheckBox = new JBCheckBox("Keep other branches in overlays on the base branch index (Qdrant)",
+                settings.branchOverlays);
+        branchOverlaysCheckBox.setToolTipText("Files that differ from the base branch are indexed into a small " +
+                "collection per branch, so switching branches only indexes the difference.");
+        baseBranchField = new JBTextField(settings.baseBranch);
+        baseBranchField.setToolTipText("Leave empty to use the default branch of origin, or else main or master.");
+
         FormBuilder builder = FormBuilder.createFormBuilder()
                 .addLabeledComponent(new JBLabel("Embedding Provider:"), embeddingProviderComboBox)
                 .addLabeledComponent(new JBLabel("Generation Provider:"), generationProviderComboBox)
+                .addLabeledComponent(new JBLabel("Vector Store:"), vectorStoreComboBox)
+                .addComponent(branchOverlaysCheckBox)
+                .addLabeledComponent(new JBLabel("Base branch:"), baseBranchField)
                 .addComponentFillVertically(new JPanel(), 0);
         return builder.getPanel();
     }
@@ -131,7 +198,21 @@ public class CodeMapperSettings implements Configurable {
     public void apply() throws ConfigurationException {
         settings.embeddingProvider = (String) embeddingProviderComboBox.getSelectedItem();
         settings.generationProvider = (String) generationProviderComboBox.getSelectedItem();
+        settings.vectorStore = (String) vectorStoreComboBox.getSelectedItem();
+        settings.branchOverlays = branchOverlaysCheckBox.isSelected();
+        settings.baseBranch = baseBranchField.getText().trim();
         settings.enableStartupIndexing = startupIndexingCheckBox.isSelected();
+        settings.enableIncrementalIndexing = incrementalIndexingCheckBox.isSelected();
+        settings.summaryMode = (String) summaryModeComboBox.getSelectedItem();
+        settings.ollamaConcurrency = (Integer) ollamaConcurrencySpinner.getValue();
+        settings.geminiConcurrency = (Integer) geminiConcurrencySpinner.getValue();
+        settings.openRouterConcurrency = (Integer) openRouterConcurrencySpinner.getValue();
+        settings.useVirtualThreads = virtualThreadsCheckBox.isSelected();
+        settings.upsertBatchSize = (Integer) upsertBatchSizeSpinner.getValue();
+        settings.upsertBatchMaxMb = (Integer) upsertBatchMaxMbSpinner.getValue();
+        settings.embeddingCacheMaxMb = (Integer) embeddingCacheMaxMbSpinner.getValue();
+        settings.summaryCacheMaxMb = (Integer) summaryCacheMaxMbSpinner.getValue();
+        settings.contentStoreMaxMb = (Integer) contentStoreMaxMbSpinner.getValue();
 
         settings.openRouterApiKey = openRouterApiKeyField.getText();
         settings.geminiApiKey = geminiApiKeyField.getText();
@@ -149,7 +230,21 @@ public class CodeMapperSettings implements Configurable {
     public void reset() {
         embeddingProviderComboBox.setSelectedItem(settings.embeddingProvider);
         generationProviderComboBox.setSelectedItem(settings.generationProvider);
+        vectorStoreComboBox.setSelectedItem(settings.vectorStore);
+        branchOverlaysCheckBox.setSelected(settings.branchOverlays);
+        baseBranchField.setText(settings.baseBranch);
         startupIndexingCheckBox.setSelected(settings.enableStartupIndexing);
+        incrementalIndexingCheckBox.setSelected(settings.enableIncrementalIndexing);
+        summaryModeComboBox.setSelectedItem(settings.summaryMode);
+        ollamaConcurrencySpinner.setValue(settings.ollamaConcurrency);
+        geminiConcurrencySpinner.setValue(settings.geminiConcurrency);
+        openRouterConcurrencySpinner.setValue(settings.openRouterConcurrency);
+        virtualThreadsCheckBox.setSelected(settings.useVirtualThreads);
+        upsertBatchSizeSpinner.setValue(settings.upsertBatchSize);
+        upsertBatchMaxMbSpinner.setValue(settings.upsertBatchMaxMb);
+        embeddingCacheMaxMbSpinner.setValue(settings.embeddingCacheMaxMb);
+        summaryCacheMaxMbSpinner.setValue(settings.summaryCacheMaxMb);
+        contentStoreMaxMbSpinner.setValue(settings.contentStoreMaxMb);
 
         openRouterApiKeyField.setText(settings.openRouterApiKey);
         geminiApiKeyField.setText(settings.geminiApiKey);
@@ -167,7 +262,21 @@ public class CodeMapperSettings implements Configurable {
     public boolean isModified() {
         return !embeddingProviderComboBox.getSelectedItem().equals(settings.embeddingProvider) ||
                 !generationProviderComboBox.getSelectedItem().equals(settings.generationProvider) ||
+                !vectorStoreComboBox.getSelectedItem().equals(settings.vectorStore) ||
+                branchOverlaysCheckBox.isSelected() != settings.branchOverlays ||
+                !baseBranchField.getText().trim().equals(settings.baseBranch) ||
                 startupIndexingCheckBox.isSelected() != settings.enableStartupIndexing ||
+                incrementalIndexingCheckBox.isSelected() != settings.enableIncrementalIndexing ||
+                !summaryModeComboBox.getSelectedItem().equals(settings.summaryMode) ||
+                (Integer) ollamaConcurrencySpinner.getValue() != settings.ollamaConcurrency ||
+                (Integer) geminiConcurrencySpinner.getValue() != settings.geminiConcurrency ||
+                (Integer) openRouterConcurrencySpinner.getValue() != settings.openRouterConcurrency ||
+                virtualThreadsCheckBox.isSelected() != settings.useVirtualThreads ||
+                (Integer) upsertBatchSizeSpinner.getValue() != settings.upsertBatchSize ||
+                (Integer) upsertBatchMaxMbSpinner.getValue() != settings.upsertBatchMaxMb ||
+                (Integer) embeddingCacheMaxMbSpinner.getValue() != settings.embeddingCacheMaxMb ||
+                (Integer) summaryCacheMaxMbSpinner.getValue() != settings.summaryCacheMaxMb ||
+                (Integer) contentStoreMaxMbSpinner.getValue() != settings.contentStoreMaxMb ||
                 !openRouterApiKeyField.getText().equals(settings.openRouterApiKey) ||
                 !geminiApiKeyField.getText().equals(settings.geminiApiKey) ||
                 !ollamaEndpointField.getText().equals(settings.ollamaEndpoint) ||
@@ -13,7 +13,17 @@ public class CodeMapperSettingsState implements PersistentStateComponent<CodeMap
     // Provider selections
     public String embeddingProvider = "GEMINI";
     public String generationProvider = "OPENROUTER";
+    // EMBEDDED: in-process index under .codemapper; QDRANT: Qdrant server on localhost:6333
+    public String vectorStore = VectorStore.EMBEDDED;
+    // QDRANT only: index branches other than the base branch into overlays on the base index
+    public boolean branchOverlays = true;
+    // Empty: the default branch of origin, else main or master
+    public String baseBranch = "";
     public boolean enableStartupIndexing = false;
+    public boolean enableIncrementalIndexing = true;
+    // EAGER: summarize while indexing; DEFERRED: index first, summarize in the background;
+    // ON_DEMAND: summarize when a result is first shown
+    public String summaryMode = "EAGER";
 
     // API Keys
     public String openRouterApiKey = "";
@@ -29,6 +39,22 @@ public class CodeMapperSettingsState implements PersistentStateComponent<CodeMap
     public String geminiGenerationModel = "gemini-1.5-pro";
     public String ollamaGenerationModel = "codellama:7b-code";
 
+    // Indexing concurrency (parallel requests per provider)
+    public int ollamaConcurrency = 2;
+    public int geminiConcurrency = 8;
+    public int openRouterConcurrency = 4;
+    // Run indexing and search tasks on virtual threads where the IDE runs on Java 21 or later
+    public boolean useVirtualThreads = true;
+
+    // Vector database write batching
+    public int upsertBatchSize = 256;
+    public int upsertBatchMaxMb = 8;
+
+    // Local caches under .codemapper
+    public int embeddingCacheMaxMb = 256;
+    public int summaryCacheMaxMb = 64;
+    public int contentStoreMaxMb = 512;
+
     @Nullable
     @Override
     public CodeMapperSettingsState getState() {
@@ -39,7 +65,12 @@ public class CodeMapperSettingsState implements PersistentStateComponent<CodeMap
     public void loadState(@NotNull CodeMapperSettingsState state) {
         this.embeddingProvider = state.embeddingProvider;
         this.generationProvider = state.generationProvider;
+        this.vectorStore = state.vectorStore;
+        this.branchOverlays = state.branchOverlays;
+        this.baseBranch = state.baseBranch;
         this.enableStartupIndexing = state.enableStartupIndexing;
+        this.enableIncrementalIndexing = state.enableIncrementalIndexing;
+        this.summaryMode = state.summaryMode;
         // API Keys
         this.openRouterApiKey = state.openRouterApiKey;
         this.geminiApiKey = state.geminiApiKey;
@@ -51,6 +82,18 @@ public class CodeMapperSettingsState implements PersistentStateComponent<CodeMap
         this.openRouterGenerationModel = state.openRouterGenerationModel;
         this.geminiGenerationModel = state.geminiGenerationModel;
         this.ollamaGenerationModel = state.ollamaGenerationModel;
+        // Indexing concurrency
+        this.ollamaConcurrency = state.ollamaConcurrency;
+        this.geminiConcurrency = state.geminiConcurrency;
+        this.openRouterConcurrency = state.openRouterConcurrency;
+        this.useVirtualThreads = state.useVirtualThreads;
+        // Vector database write batching
+        this.upsertBatchSize = state.upsertBatchSize;
+        this.upsertBatchMaxMb = state.upsertBatchMaxMb;
+        // Local caches
+        this.embeddingCacheMaxMb = state.embeddingCacheMaxMb;
+        this.summaryCacheMaxMb = state.summaryCacheMaxMb;
+        this.contentStoreMaxMb = state.contentStoreMaxMb;
     }
 
     public static CodeMapperSettingsState getInstance(Project project) {
@@ -6,7 +6,7 @@ import com.intellij.ui.components.JBList;
 import com.intellij.ui.components.JBScrollPane;
 import com.intellij.openapi.vfs.LocalFileSystem;
 import com.intellij.openapi.vfs.VirtualFile;
-import com.intellij.openapi.fileEditor.FileEditorManager;
+import com.intellij.openapi.fileEditor.OpenFileDescriptor;
 import com.intellij.openapi.progress.ProgressIndicator;
 import com.intellij.openapi.progress.ProgressManager;
 import com.intellij.openapi.progress.Task;
@@ -23,6 +23,7 @@ import java.awt.*;
 import java.awt.datatransfer.StringSelection;
 import java.awt.event.MouseAdapter;
 import java.awt.event.MouseEvent;
+import java.io.InterruptedIOException;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
@@ -46,8 +47,9 @@ public class CodeQuestionDialog extends DialogWrapper {
     public CodeQuestionDialog(Project project) {
         super(project);
         this.project = project;
-        this.indexer = new SimpleIndexer(project); // Assumes SimpleIndexer retrieves EmbeddingService internally
-        this.generationService = ProviderSettings.getGenerationService(project); // Default: OpenRouter
+        CodeCompassService service = CodeCompassService.getInstance(project);
+        this.indexer = service.getIndexer();
+        this.generationService = service.getGenerationService();
         setTitle("Ask Questions About Your Code");
         setSize(1000, 800);
         init();
@@ -86,20 +88,13 @@ public class CodeQuestionDialog extends DialogWrapper {
         languageFilterComboBox = new JComboBox<>();
         languageFilterComboBox.addItem("All Languages");
 
-        VectorDBService vectorDB = null;
         try {
-            EmbeddingService embeddingService = ProviderSettings.getEmbeddingService(project); // Default: Gemini
-            vectorDB = new VectorDBService(project.getBasePath(), embeddingService);
-            List<String> languages = vectorDB.getUniqueLanguages();
+            List<String> languages = indexer.getUniqueLanguages();
             for (String language : languages) {
                 languageFilterComboBox.addItem(language);
             }
         } catch (Exception e) {
             System.err.println("Error loading languages: " + e.getMessage());
-        } finally {
-            if (vectorDB != null) {
-                vectorDB.close();
-            }
         }
         languageFilterComboBox.addActionListener(e -> {
             String selectedLanguage = (String) languageFilterComboBox.getSelectedItem();
@@ -129,6 +124,9 @@ public class CodeQuestionDialog extends DialogWrapper {
             public Component getListCellRendererComponent(JList<?> list, Object value, int index, boolean isSelected, boolean cellHasFocus) {
                 if (value instanceof CodeSearchResult result) {
                     String displayPath = getDisplayPath(result.getFilePath());
+                    if (result.hasLineRange()) {
+                        displayPath += ":" + result.getStartLine() + "-" + result.getEndLine();
+                    }
                     String text = String.format("%s (%.2f)", displayPath, result.getSimilarity());
                     return super.getListCellRendererComponent(list, text, index, isSelected, cellHasFocus);
                 }
@@ -144,7 +142,8 @@ public class CodeQuestionDialog extends DialogWrapper {
             @Override
             public void mouseClicked(MouseEvent e) {
                 if (e.getClickCount() == 2 && relevantFilesList.getSelectedValue() != null) {
-                    openFile(relevantFilesList.getSelectedValue().getFilePath());
+                    CodeSearchResult selected = relevantFilesList.getSelectedValue();
+                    openFile(selected.getFilePath(), selected.getStartLine());
                 }
             }
         });
@@ -181,10 +180,13 @@ public class CodeQuestionDialog extends DialogWrapper {
         askButton.setEnabled(!questionField.getText().trim().isEmpty());
     }
 
-    private void openFile(String filePath) {
+    /**
+     * Open a file with the caret on the given 1-based line, or at the top if the line is unknown.
+     */
+    private void openFile(String filePath, int line) {
         VirtualFile file = LocalFileSystem.getInstance().findFileByPath(filePath);
         if (file != null) {
-            FileEditorManager.getInstance(project).openFile(file, true);
+            new OpenFileDescriptor(project, file, Math.max(0, line - 1), 0).navigate(true);
         }
     }
 
@@ -217,10 +219,13 @@ public class CodeQuestionDialog extends DialogWrapper {
 
                     if (!results.isEmpty()) {
                         indicator.setText("Generating answer...");
-                        answer = generationService.askQuestion(question, results);
+                        indexer.loadContent(results, GenerationService.CONTEXT_FILE_COUNT);
+                        answer = ProviderCalls.await(generationService.askQuestionWithHistoryAsync(question, results, Collections.emptyList()), indicator);
                     } else {
                         answer = "No relevant files found in the codebase for your question. Try rephrasing or asking about a different topic.";
                     }
+                } catch (InterruptedIOException e) {
+                    answer = "Question cancelled.";
                 } catch (Exception e) {
                     results = Collections.emptyList();
                     answer = "Error generating answer: " + e.getMessage();
@@ -5,10 +5,13 @@ import java.util.Map;
 public class CodeSearchResult implements Comparable<CodeSearchResult> {
     private final String id;
     private final String filePath;
-    private final String summary;
+    private String summary;
     private final float similarity;
     private final Map<String, String> metadata;
     private String content = "";  // Added to store file content for RAG
+    // Line range of the matching chunk, 1-based and inclusive; 0 when unknown
+    private int startLine = 0;
+    private int endLine = 0;
 
     public CodeSearchResult(String id, String filePath, String summary, float similarity, Map<String, String> metadata) {
         this.id = id;
@@ -30,6 +33,14 @@ public class CodeSearchResult implements Comparable<CodeSearchResult> {
         return summary;
     }
 
+    public void setSummary(String summary) {
+        this.summary = summary;
+    }
+
+    public boolean hasSummary() {
+        return summary != null && !summary.isEmpty();
+    }
+
     public float getSimilarity() {
         return similarity;
     }
@@ -46,6 +57,23 @@ public class CodeSearchResult implements Comparable<CodeSearchResult> {
         this.content = content;
     }
 
+    public int getStartLine() {
+        return startLine;
+    }
+
+    public int getEndLine() {
+        return endLine;
+    }
+
+    public void setLineRange(int startLine, int endLine) {
+        this.startLine = startLine;
+        this.endLine = endLine;
+    }
+
+    public boolean hasLineRange() {
+        return startLine > 0;
+    }
+
     public String getDisplayName() {
         String name = filePath;
         int lastSlash = filePath.lastIndexOf('/');
@@ -0,0 +1,37 @@
+package dev.balakumar.codecompass;
+
+import com.intellij.openapi.actionSystem.AnAction;
+import com.intellij.openapi.actionSystem.AnActionEvent;
+import com.intellij.openapi.progress.ProgressIndicator;
+import com.intellij.openapi.progress.ProgressManager;
+import com.intellij.openapi.progress.Task;
+import com.intellij.openapi.project.Project;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Removes files that no longer exist in the project from the index.
+ */
+public class CompactIndexAction extends AnAction {
+    @Override
+    public void actionPerformed(AnActionEvent e) {
+        Project project = e.getProject();
+        if (project == null) {
+            return;
+        }
+        ProgressManager.getInstance().run(new Task.Backgroundable(project, "Compacting CodeCompass index", true) {
+            @Override
+            public void run(@NotNull ProgressIndicator indicator) {
+                indicator.setIndeterminate(true);
+                SimpleIndexer indexer = CodeCompassService.getInstance(project).getIndexer();
+                int removed = indexer.compactIndex(indicator);
+                if (removed < 0) {
+                    ErrorHandler.showError(project, "CodeCompass Compaction Failed",
+                            "The index could not be read. Make sure the vector database is running.");
+                } else {
+                    ErrorHandler.showInfo(project, "CodeCompass Index Compacted",
+                            "Removed " + removed + " deleted files. " + indexer.getDocumentCount() + " documents remain.");
+                }
+            }
+        });
+    }
+}
@@ -0,0 +1,156 @@
+package dev.balakumar.codecompass;
+
+import com.intellij.openapi.Disposable;
+import com.intellij.openapi.components.ServiceManager;
+import com.intellij.openapi.project.Project;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Project-local store of the indexed chunk texts in .codemapper, compressed with Deflate and
+ * keyed by chunk id and the file's content hash.
+ *
+ * The vector store payloads only carry small fields, so search results come back without the
+ * code. The texts are fetched from here only for the few results that go into a prompt. A text
+ * missing from the store, say because it was evicted or indexed before the store existed, is read
+ * from the file on disk instead.
+ */
+public class ContentStore implements Disposable {
+    private static final String STORE_NAME = "content_store";
+
+    private final BlobStore store;
+
+    public ContentStore(Project project) {
+        BlobStore opened = null;
+        if (project.getBasePath() != null) {
+            long maxBytes = CodeMapperSettingsState.getInstance(project).contentStoreMaxMb * 1024L * 1024L;
+            try {
+                opened = new BlobStore(Path.of(project.getBasePath(), ".codemapper"), STORE_NAME, maxBytes);
+            } catch (IOException e) {
+                System.err.println("Content store unavailable: " + e.getMessage());
+            }
+        }
+        this.store = opened;
+    }
+
+    public static ContentStore getInstance(Project project) {
+        return ServiceManager.getService(project, ContentStore.class);
+    }
+
+    public void put(String chunkId, String contentHash, String content) {
+        if (store == null || contentHash == null || content == null) {
+            return;
+        }
+        store.put(key(chunkId, contentHash), compress(content.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    /**
+     * @return the text stored for the chunk at this content hash, or null
+     */
+    public String get(String chunkId, String contentHash) {
+        if (store == null || contentHash == null) {
+            return null;
+        }
+        byte[] value = store.get(key(chunkId, contentHash));
+        if (value == null) {
+            return null;
+        }
+        try {
+            return new String(decompress(value), StandardCharsets.UTF_8);
+        } catch (DataFormatException e) {
+            System.err.println("Damaged content store entry for " + chunkId + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Fill in the content of the first count results that have none.
+     */
+    public void loadContent(List<CodeSearchResult> results, int count) {
+        for (int i = 0; i < Math.min(count, results.size()); i++) {
+            CodeSearchResult result = results.get(i);
+            if (result.getContent() != null && !result.getContent().isEmpty()) {
+                continue;
+            }
+            Map<String, String> metadata = result.getMetadata();
+            int chunkIndex = Integer.parseInt(metadata.getOrDefault("chunkIndex", "0"));
+            String content = get(SimpleIndexer.chunkId(result.getFilePath(), chunkIndex), metadata.get("contentHash"));
+            if (content == null) {
+                content = readFromDisk(result);
+            }
+            if (content != null) {
+                result.setContent(content);
+            }
+        }
+    }
+
+    /**
+     * @return the lines of the result's chunk as the file holds them now, or null if unreadable
+     */
+    private static String readFromDisk(CodeSearchResult result) {
+        try {
+            List<String> lines = Files.readAllLines(Path.of(result.getFilePath()), StandardCharsets.UTF_8);
+            int from = result.hasLineRange() ? Math.min(lines.size(), result.getStartLine() - 1) : 0;
+            int to = result.hasLineRange() ? Math.min(lines.size(), result.getEndLine()) : lines.size();
+            return String.join("\n", lines.subList(from, Math.max(from, to)));
+        } catch (IOException | RuntimeException e) {
+            System.err.println("Could not read content of " + result.getFilePath() + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    private static String key(String chunkId, String contentHash) {
+        return chunkId + "/" + contentHash;
+    }
+
+    private static byte[] compress(byte[] data) {
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try {
+            deflater.setInput(data);
+            deflater.finish();
+            ByteArrayOutputStream out = new ByteArrayOutputStream(Math.max(64, data.length / 3));
+            byte[] buffer = new byte[8192];
+            while (!deflater.finished()) {
+                out.write(buffer, 0, deflater.deflate(buffer));
+            }
+            return out.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    private static byte[] decompress(byte[] data) throws DataFormatException {
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(data);
+            ByteArrayOutputStream out = new ByteArrayOutputStream(data.length * 3);
+            byte[] buffer = new byte[8192];
+            while (!inflater.finished()) {
+                int read = inflater.inflate(buffer);
+                if (read == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new DataFormatException("truncated entry");
+                }
+                out.write(buffer, 0, read);
+            }
+            return out.toByteArray();
+        } finally {
+            inflater.end();
+        }
+    }
+
+    @Override
+    public void dispose() {
+        if (store != null) {
+            store.close();
+        }
+    }
+}
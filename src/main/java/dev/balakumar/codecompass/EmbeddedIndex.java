@@ -0,0 +1,837 @@
+package dev.balakumar.codecompass;
+
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.intellij.openapi.Disposable;
+import com.intellij.openapi.components.ServiceManager;
+import com.intellij.openapi.project.Project;
+
+import java.io.*;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
+import java.util.function.IntPredicate;
+import java.util.function.Predicate;
+
+/**
+ * In-process vector index under .codemapper/embedded, shared by every {@link EmbeddedVectorStore}
+ * of a project.
+ *
+ * Normalized embeddings are kept in a memory-mapped float file with one fixed-size slot per
+ * point, and linked into an {@link HnswGraph} that is saved next to it. Payloads are held in
+ * memory and persisted as an append-only log of put and delete records that is replayed on open.
+ * Replacing or deleting a point leaves a dead slot behind; once dead slots make up a large part
+ * of the file, the live points are copied into a new generation of the files.
+ */
+public class EmbeddedIndex implements Disposable {
+    private static final String DIRECTORY = "embedded";
+    private static final int MAGIC = 0x43435646;
+    private static final int VERSION = 1;
+    // magic, version, dimension, slot count
+    private static final int HEADER_SIZE = 16;
+    private static final int MIN_CAPACITY = 1024 * 1024;
+    private static final int HNSW_M = 16;
+    private static final int HNSW_EF_CONSTRUCTION = 100;
+    private static final int HNSW_EF_SEARCH = 64;
+    // Up to this many points an exact scan is about as fast as the graph, and always exact
+    private static final int FULL_SCAN_THRESHOLD = 2000;
+    // Copy the live points into a new generation once this fraction of slots is dead
+    private static final double MAX_DEAD_RATIO = 0.3;
+    private static final byte RECORD_PUT = 1;
+    private static final byte RECORD_DELETE = 2;
+
+    private final Path directory;
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private final Map<String, Point> points = new HashMap<>();
+    private final Map<String, Set<String>> idsByPath = new HashMap<>();
+    // Slots are copied out of the mapped file in bulk, which is much faster than reading them float by float
+    private final ThreadLocal<float[][]> scratch = ThreadLocal.withInitial(() -> new float[2][0]);
+    private final HnswGraph.Similarity similarity = new HnswGraph.Similarity() {
+        @Override
+        public float[] vector(int node) {
+            float[] vector = new float[dimension];
+            floats.get(node * dimension, vector);
+            return vector;
+        }
+
+        @Override
+        public float between(int a, int b) {
+            float[][] buffers = scratchBuffers();
+            floats.get(a * dimension, buffers[0]);
+            floats.get(b * dimension, buffers[1]);
+            return dot(buffers[0], buffers[1]);
+        }
+
+        @Override
+        public float to(float[] query, int node) {
+            float[] buffer = scratchBuffers()[0];
+            floats.get(node * dimension, buffer);
+            return dot(query, buffer);
+        }
+    };
+    // Id of the point stored in each slot, or null for dead slots
+    private String[] slotIds = new String[1024];
+    private int generation;
+    private FileChannel vectorChannel;
+    private MappedByteBuffer vectors;
+    // View of the vector slots after the header
+    private FloatBuffer floats;
+    private int dimension;
+    private int count;
+    private HnswGraph graph;
+    private boolean graphDirty = false;
+    private DataOutputStream log;
+    private long logRecords = 0;
+    private boolean open = false;
+
+    public EmbeddedIndex(Project project) {
+        this.directory = project.getBasePath() != null
+                ? Path.of(project.getBasePath(), ".codemapper", DIRECTORY)
+                : null;
+        if (directory != null) {
+            try {
+                open();
+                open = true;
+            } catch (IOException e) {
+                System.err.println("Embedded vector index unavailable: " + e.getMessage());
+            }
+        }
+    }
+
+    public static EmbeddedIndex getInstance(Project project) {
+        return ServiceManager.getService(project, EmbeddedIndex.class);
+    }
+
+    public boolean isOpen() {
+        return open;
+    }
+
+    public int getDimension() {
+        return dimension;
+    }
+
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return points.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Store a point, replacing any point with the same id. A vector of a different dimension than
+     * the stored ones means the embedding model changed, so the index is cleared first.
+     */
+    public boolean put(String id, JsonObject payload, float[] embedding) {
+        lock.writeLock().lock();
+        try {
+            if (!open) {
+                return false;
+            }
+            if (embedding.length != dimension) {
+                if (count == 0) {
+                    dimension = embedding.length;
+                    vectors.putInt(8, dimension);
+                } else {
+                    System.out.println("Warning: Embedding dimension mismatch. Expected: " + dimension +
+                            ", Got: " + embedding.length + ". Clearing embedded vector index.");
+                    rewrite(embedding.length, false);
+                }
+            }
+            int slot = count;
+            ensureCapacity(HEADER_SIZE + (long) (slot + 1) * dimension * 4);
+            floats.put(slot * dimension, normalize(embedding));
+            count++;
+            vectors.putInt(12, count);
+            if (slot >= slotIds.length) {
+                slotIds = Arrays.copyOf(slotIds, slotIds.length * 2);
+            }
+            graph.add(slot);
+            graphDirty = true;
+            applyPut(id, slot, payload);
+            writePut(log, id, slot, payload);
+            logRecords++;
+            return true;
+        } catch (IOException e) {
+            System.err.println("Error writing to embedded vector index: " + e.getMessage());
+            return false;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public void deleteByPath(String filePath) {
+        deleteWhere(filePath, payload -> true);
+    }
+
+    /**
+     * @return the path of every file with at least one point
+     */
+    public Set<String> getPaths() {
+        lock.readLock().lock();
+        try {
+            return new HashSet<>(idsByPath.keySet());
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Pass every point to the visitor with its normalized vector and a copy of its payload.
+     * Writers wait until the visitor has seen them all.
+     */
+    public void forEachPoint(Consumer<StoredPoint> visitor) {
+        lock.readLock().lock();
+        try {
+            if (!open) {
+                return;
+            }
+            for (Map.Entry<String, Point> entry : points.entrySet()) {
+                Point point = entry.getValue();
+                visitor.accept(new StoredPoint(entry.getKey(), similarity.vector(point.slot), point.payload.deepCopy(), null));
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Delete chunks at or beyond each file's current chunk count.
+     */
+    public void deleteStaleChunks(Map<String, Integer> chunkCounts) {
+        for (Map.Entry<String, Integer> entry : chunkCounts.entrySet()) {
+            int chunkCount = entry.getValue();
+            deleteWhere(entry.getKey(), payload ->
+                    payload.has("chunkIndex") && payload.get("chunkIndex").getAsInt() >= chunkCount);
+        }
+    }
+
+    private void deleteWhere(String filePath, Predicate<JsonObject> condition) {
+        lock.writeLock().lock();
+        try {
+            Set<String> ids = idsByPath.get(filePath);
+            if (!open || ids == null) {
+                return;
+            }
+            for (String id : new ArrayList<>(ids)) {
+                if (condition.test(points.get(id).payload)) {
+                    applyDelete(id);
+                    writeDelete(log, id);
+                    logRecords++;
+                }
+            }
+        } catch (IOException e) {
+            System.err.println("Error deleting from embedded vector index: " + e.getMessage());
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Set the summary of every chunk of a file whose content hash still matches.
+     */
+    public void updateSummary(String filePath, String contentHash, String summary) {
+        lock.writeLock().lock();
+        try {
+            Set<String> ids = idsByPath.get(filePath);
+            if (!open || ids == null) {
+                return;
+            }
+            for (String id : ids) {
+                Point point = points.get(id);
+                if (point.payload.has("contentHash") && contentHash.equals(point.payload.get("contentHash").getAsString())) {
+                    point.payload.addProperty("summary", summary);
+                    point.payload.addProperty("summaryPending", false);
+                    writePut(log, id, point.slot, point.payload);
+                    logRecords++;
+                }
+            }
+        } catch (IOException e) {
+            System.err.println("Error updating summary in embedded vector index: " + e.getMessage());
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * @return file path to content hash of every point whose payload matches
+     */
+    public Map<String, String> getFingerprints(Predicate<JsonObject> condition) {
+        lock.readLock().lock();
+        try {
+            Map<String, String> fingerprints = new HashMap<>();
+            for (Point point : points.values()) {
+                JsonObject payload = point.payload;
+                if (payload.has("contentHash") && condition.test(payload)) {
+                    fingerprints.put(payload.get("filePath").getAsString(), payload.get("contentHash").getAsString());
+                }
+            }
+            return fingerprints;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public String getFingerprint(String filePath) {
+        lock.readLock().lock();
+        try {
+            Set<String> ids = idsByPath.get(filePath);
+            if (ids == null) {
+                return null;
+            }
+            for (String id : ids) {
+                JsonObject payload = points.get(id).payload;
+                if (payload.has("contentHash")) {
+                    return payload.get("contentHash").getAsString();
+                }
+            }
+            return null;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public List<String> getLanguages() {
+        lock.readLock().lock();
+        try {
+            Set<String> languages = new TreeSet<>();
+            for (Point point : points.values()) {
+                if (point.payload.has("language")) {
+                    languages.add(point.payload.get("language").getAsString());
+                }
+            }
+            return new ArrayList<>(languages);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Find the points closest to a query embedding by cosine similarity.
+     *
+     * @param filters payload field to required value
+     */
+    public List<CodeSearchResult> search(float[] queryEmbedding, int limit, Map<String, String> filters, float similarityThreshold) {
+        lock.readLock().lock();
+        try {
+            if (!open || points.isEmpty() || queryEmbedding.length != dimension) {
+                return Collections.emptyList();
+            }
+            float[] query = normalize(queryEmbedding);
+            boolean filtered = filters != null && !filters.isEmpty();
+            IntPredicate accept = slot -> {
+                String id = slotIds[slot];
+                return id != null && (!filtered || PointPayload.matches(points.get(id).payload, filters));
+            };
+
+            List<HnswGraph.Candidate> candidates;
+            if (points.size() <= FULL_SCAN_THRESHOLD) {
+                candidates = scan(query, limit, accept);
+            } else {
+                int ef = Math.max(HNSW_EF_SEARCH, filtered ? limit * 4 : limit * 2);
+                candidates = graph.search(query, limit, ef, accept);
+                if (filtered && candidates.size() < limit) {
+                    // The filter matches too few points near the query for the graph to find them
+                    candidates = scan(query, limit, accept);
+                }
+            }
+
+            List<CodeSearchResult> results = new ArrayList<>();
+            for (HnswGraph.Candidate candidate : candidates) {
+                if (candidate.score < similarityThreshold) {
+                    continue;
+                }
+                String id = slotIds[candidate.node];
+                results.add(PointPayload.toSearchResult(id, candidate.score, points.get(id).payload));
+            }
+            return results;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private List<HnswGraph.Candidate> scan(float[] query, int limit, IntPredicate accept) {
+        PriorityQueue<HnswGraph.Candidate> best = new PriorityQueue<>(Comparator.comparingDouble((HnswGraph.Candidate c) -> c.score));
+        for (int slot = 0; slot < count; slot++) {
+            if (!accept.test(slot)) {
+                continue;
+            }
+            float score = similarity.to(query, slot);
+            if (best.size() < limit) {
+                best.add(new HnswGraph.Candidate(slot, score));
+            } else if (score > best.peek().score) {
+                best.poll();
+                best.add(new HnswGraph.Candidate(slot, score));
+            }
+        }
+        List<HnswGraph.Candidate> result = new ArrayList<>(best);
+        result.sort(Comparator.comparingDouble((HnswGraph.Candidate c) -> c.score).reversed());
+        return result;
+    }
+
+    /**
+     * Write buffered log records to disk.
+     */
+    public void flush() {
+        lock.writeLock().lock();
+        try {
+            if (open) {
+                log.flush();
+            }
+        } catch (IOException e) {
+            System.err.println("Error flushing embedded vector index: " + e.getMessage());
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Persist the log, vectors and graph, compacting the files first if enough slots are dead.
+     */
+    public void save() {
+        lock.writeLock().lock();
+        try {
+            if (!open) {
+                return;
+            }
+            int dead = count - points.size();
+            if (count > 0 && (dead > count * MAX_DEAD_RATIO || logRecords > 2L * Math.max(1, points.size()) + 1000)) {
+                rewrite(dimension, true);
+            }
+            log.flush();
+            vectors.force();
+            if (graphDirty) {
+                saveGraph();
+            }
+        } catch (IOException e) {
+            System.err.println("Error saving embedded vector index: " + e.getMessage());
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public void clear() {
+        lock.writeLock().lock();
+        try {
+            if (open) {
+                rewrite(dimension, false);
+            }
+        } catch (IOException e) {
+            System.err.println("Error clearing embedded vector index: " + e.getMessage());
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public void dispose() {
+        lock.writeLock().lock();
+        try {
+            if (!open) {
+                return;
+            }
+            save();
+            open = false;
+            log.close();
+            vectorChannel.close();
+        } catch (IOException e) {
+            System.err.println("Error closing embedded vector index: " + e.getMessage());
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    // In-memory bookkeeping
+
+    private void applyPut(String id, int slot, JsonObject payload) {
+        // Points written before the content store existed carry their text, which is not kept in memory
+        payload.remove("content");
+        Point previous = points.put(id, new Point(slot, payload));
+        if (previous != null) {
+            if (previous.slot != slot && id.equals(slotIds[previous.slot])) {
+                slotIds[previous.slot] = null;
+            }
+            removePath(previous.payload, id);
+        }
+        slotIds[slot] = id;
+        idsByPath.computeIfAbsent(payload.get("filePath").getAsString(), path -> new HashSet<>()).add(id);
+    }
+
+    private void applyDelete(String id) {
+        Point previous = points.remove(id);
+        if (previous != null) {
+            slotIds[previous.slot] = null;
+            removePath(previous.payload, id);
+        }
+    }
+
+    private void removePath(JsonObject payload, String id) {
+        String path = payload.get("filePath").getAsString();
+        Set<String> ids = idsByPath.get(path);
+        if (ids != null) {
+            ids.remove(id);
+            if (ids.isEmpty()) {
+                idsByPath.remove(path);
+            }
+        }
+    }
+
+    private int slotOffset(int slot) {
+        return HEADER_SIZE + slot * dimension * 4;
+    }
+
+    private float[][] scratchBuffers() {
+        float[][] buffers = scratch.get();
+        if (buffers[0].length != dimension) {
+            buffers[0] = new float[dimension];
+            buffers[1] = new float[dimension];
+        }
+        return buffers;
+    }
+
+    private static float dot(float[] a, float[] b) {
+        float sum = 0;
+        for (int i = 0; i < a.length; i++) {
+            sum += a[i] * b[i];
+        }
+        return sum;
+    }
+
+    private static float[] normalize(float[] vector) {
+        double norm = 0;
+        for (float value : vector) {
+            norm += value * value;
+        }
+        norm = Math.sqrt(norm);
+        float[] normalized = new float[vector.length];
+        if (norm > 0) {
+            for (int i = 0; i < vector.length; i++) {
+                normalized[i] = (float) (vector[i] / norm);
+            }
+        }
+        return normalized;
+    }
+
+    // File handling
+
+    private Path vectorFile(int gen) {
+        return directory.resolve("vectors." + gen + ".dat");
+    }
+
+    private Path graphFile(int gen) {
+        return directory.resolve("graph." + gen + ".bin");
+    }
+
+    private Path logFile(int gen) {
+        return directory.resolve("points." + gen + ".log");
+    }
+
+    private void open() throws IOException {
+        Files.createDirectories(directory);
+        generation = findLatestGeneration();
+        deleteOtherGenerations();
+        mapVectors(generation);
+
+        dimension = vectors.getInt(8);
+        count = vectors.getInt(12);
+        boolean valid = vectors.getInt(0) == MAGIC && vectors.getInt(4) == VERSION && dimension >= 0 && count >= 0 &&
+                (dimension > 0 || count == 0) && HEADER_SIZE + (long) count * dimension * 4 <= vectors.capacity();
+        if (!valid) {
+            System.out.println("Initializing embedded vector index");
+            dimension = 0;
+            count = 0;
+            writeHeader(vectors, 0, 0);
+            Files.deleteIfExists(logFile(generation));
+            Files.deleteIfExists(graphFile(generation));
+        }
+        slotIds = new String[Math.max(1024, Integer.highestOneBit(Math.max(1, count)) * 2)];
+
+        replayLog();
+        loadGraph();
+        log = new DataOutputStream(new BufferedOutputStream(
+                Files.newOutputStream(logFile(generation), StandardOpenOption.CREATE, StandardOpenOption.APPEND)));
+        System.out.println("Loaded embedded vector index: " + points.size() + " points, dimension " + dimension);
+    }
+
+    /**
+     * @return the newest generation with a complete log; a generation's log is written last
+     */
+    private int findLatestGeneration() throws IOException {
+        int latest = 0;
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "points.*.log")) {
+            for (Path file : files) {
+                String fileName = file.getFileName().toString();
+                try {
+                    latest = Math.max(latest, Integer.parseInt(fileName.substring("points.".length(), fileName.length() - 4)));
+                } catch (NumberFormatException ignored) {
+                    // Not one of ours
+                }
+            }
+        }
+        return latest;
+    }
+
+    private void deleteOtherGenerations() {
+        Set<Path> current = new HashSet<>(Arrays.asList(vectorFile(generation), graphFile(generation), logFile(generation)));
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory)) {
+            for (Path file : files) {
+                if (!current.contains(file)) {
+                    try {
+                        Files.deleteIfExists(file);
+                    } catch (IOException e) {
+                        // Still mapped by an earlier session on some platforms; retried next time
+                    }
+                }
+            }
+        } catch (IOException e) {
+            System.err.println("Error cleaning up old embedded index files: " + e.getMessage());
+        }
+    }
+
+    private void mapVectors(int gen) throws IOException {
+        vectorChannel = FileChannel.open(vectorFile(gen), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        long capacity = Math.max(MIN_CAPACITY, vectorChannel.size());
+        vectors = vectorChannel.map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+        vectors.order(ByteOrder.LITTLE_ENDIAN);
+        floats = floatView(vectors);
+    }
+
+    private static FloatBuffer floatView(MappedByteBuffer buffer) {
+        return buffer.slice(HEADER_SIZE, buffer.capacity() - HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN).asFloatBuffer();
+    }
+
+    private static void writeHeader(MappedByteBuffer buffer, int dimension, int count) {
+        buffer.putInt(0, MAGIC);
+        buffer.putInt(4, VERSION);
+        buffer.putInt(8, dimension);
+        buffer.putInt(12, count);
+    }
+
+    private void ensureCapacity(long required) throws IOException {
+        if (required <= vectors.capacity()) {
+            return;
+        }
+        long capacity = vectors.capacity();
+        while (capacity < required) {
+            capacity *= 2;
+        }
+        if (capacity > Integer.MAX_VALUE) {
+            throw new IOException("vector file would exceed 2 GB");
+        }
+        vectors.force();
+        vectors = vectorChannel.map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+        vectors.order(ByteOrder.LITTLE_ENDIAN);
+        floats = floatView(vectors);
+    }
+
+    /**
+     * Rebuild the points from the log. A record cut off by a crash ends the log, and records for
+     * slots whose vector was never written are ignored.
+     */
+    private void replayLog() throws IOException {
+        Path file = logFile(generation);
+        if (!Files.exists(file)) {
+            return;
+        }
+        long validEnd = 0;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+            while (true) {
+                int type = in.read();
+                if (type < 0) {
+                    break;
+                }
+                byte[] id = readBytes(in);
+                long recordSize = 1 + 4 + id.length;
+                if (type == RECORD_PUT) {
+                    int slot = in.readInt();
+                    byte[] payload = readBytes(in);
+                    recordSize += 4 + 4 + payload.length;
+                    if (slot >= 0 && slot < count) {
+                        JsonObject payloadJson = JsonParser.parseString(new String(payload, StandardCharsets.UTF_8)).getAsJsonObject();
+                        applyPut(new String(id, StandardCharsets.UTF_8), slot, payloadJson);
+                    }
+                } else if (type == RECORD_DELETE) {
+                    applyDelete(new String(id, StandardCharsets.UTF_8));
+                } else {
+                    break;
+                }
+                validEnd += recordSize;
+                logRecords++;
+            }
+        } catch (EOFException e) {
+            // Partial record at the end
+        } catch (RuntimeException e) {
+            System.err.println("Damaged record in embedded index log: " + e.getMessage());
+        }
+        if (validEnd < Files.size(file)) {
+            System.err.println("Truncating damaged embedded index log at offset " + validEnd);
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+                channel.truncate(validEnd);
+            }
+        }
+    }
+
+    private static byte[] readBytes(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0) {
+            throw new EOFException();
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return bytes;
+    }
+
+    private static void writePut(DataOutputStream out, String id, int slot, JsonObject payload) throws IOException {
+        out.writeByte(RECORD_PUT);
+        writeBytes(out, id.getBytes(StandardCharsets.UTF_8));
+        out.writeInt(slot);
+        writeBytes(out, payload.toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static void writeDelete(DataOutputStream out, String id) throws IOException {
+        out.writeByte(RECORD_DELETE);
+        writeBytes(out, id.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static void writeBytes(DataOutputStream out, byte[] bytes) throws IOException {
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    /**
+     * Load the saved graph and link in any vectors added after it was saved, or build the graph
+     * from scratch if there is no usable saved graph.
+     */
+    private void loadGraph() {
+        graph = null;
+        Path file = graphFile(generation);
+        if (Files.exists(file)) {
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+                graph = HnswGraph.read(in, similarity, HNSW_M, HNSW_EF_CONSTRUCTION, count);
+            } catch (IOException e) {
+                System.err.println("Rebuilding embedded index graph: " + e.getMessage());
+            }
+        }
+        if (graph == null) {
+            graph = new HnswGraph(similarity, HNSW_M, HNSW_EF_CONSTRUCTION);
+        }
+        int linked = graph.size();
+        for (int slot = linked; slot < count; slot++) {
+            graph.add(slot);
+        }
+        if (linked < count) {
+            graphDirty = true;
+            System.out.println("Linked " + (count - linked) + " vectors into embedded index graph");
+        }
+    }
+
+    private void saveGraph() throws IOException {
+        Path temp = directory.resolve("graph.tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp)))) {
+            graph.write(out);
+        }
+        Files.move(temp, graphFile(generation), StandardCopyOption.REPLACE_EXISTING);
+        graphDirty = false;
+    }
+
+    /**
+     * Move to the next generation of files, either with the live points copied over densely or
+     * empty. The new log is written last and is what makes the new generation current, so a
+     * crash part-way through leaves the old generation in place.
+     */
+    private void rewrite(int newDimension, boolean keepPoints) throws IOException {
+        int nextGeneration = generation + 1;
+        int liveCount = keepPoints ? points.size() : 0;
+        long capacity = Math.max(MIN_CAPACITY, HEADER_SIZE + (long) liveCount * newDimension * 4);
+        if (capacity > Integer.MAX_VALUE) {
+            throw new IOException("vector file would exceed 2 GB");
+        }
+
+        FileChannel nextChannel = FileChannel.open(vectorFile(nextGeneration), StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        MappedByteBuffer nextVectors = nextChannel.map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+        nextVectors.order(ByteOrder.LITTLE_ENDIAN);
+        Map<String, Point> moved = new HashMap<>();
+        String[] nextSlotIds = new String[Math.max(1024, Integer.highestOneBit(Math.max(1, liveCount)) * 2)];
+        int nextCount = 0;
+        if (keepPoints) {
+            int slotBytes = newDimension * 4;
+            byte[] slotData = new byte[slotBytes];
+            for (int slot = 0; slot < count; slot++) {
+                String id = slotIds[slot];
+                if (id == null) {
+                    continue;
+                }
+                vectors.get(slotOffset(slot), slotData);
+                nextVectors.put(HEADER_SIZE + nextCount * slotBytes, slotData);
+                moved.put(id, new Point(nextCount, points.get(id).payload));
+                nextSlotIds[nextCount] = id;
+                nextCount++;
+            }
+        }
+        writeHeader(nextVectors, newDimension, nextCount);
+        nextVectors.force();
+
+        Path tempLog = directory.resolve("points.log.tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tempLog)))) {
+            for (Map.Entry<String, Point> entry : moved.entrySet()) {
+                writePut(out, entry.getKey(), entry.getValue().slot, entry.getValue().payload);
+            }
+        }
+        Files.move(tempLog, logFile(nextGeneration), StandardCopyOption.REPLACE_EXISTING);
+
+        // The new generation is committed; switch over to it
+        int previousGeneration = generation;
+        log.close();
+        vectorChannel.close();
+        generation = nextGeneration;
+        vectorChannel = nextChannel;
+        vectors = nextVectors;
+        floats = floatView(vectors);
+        dimension = newDimension;
+        count = nextCount;
+        slotIds = nextSlotIds;
+        points.clear();
+        idsByPath.clear();
+        for (Map.Entry<String, Point> entry : moved.entrySet()) {
+            applyPut(entry.getKey(), entry.getValue().slot, entry.getValue().payload);
+        }
+        logRecords = moved.size();
+        log = new DataOutputStream(new BufferedOutputStream(
+                Files.newOutputStream(logFile(generation), StandardOpenOption.CREATE, StandardOpenOption.APPEND)));
+
+        graph = new HnswGraph(similarity, HNSW_M, HNSW_EF_CONSTRUCTION);
+        for (int slot = 0; slot < count; slot++) {
+            graph.add(slot);
+        }
+        saveGraph();
+
+        for (Path file : Arrays.asList(vectorFile(previousGeneration), graphFile(previousGeneration), logFile(previousGeneration))) {
+            try {
+                Files.deleteIfExists(file);
+            } catch (IOException e) {
+                // Deleted on next open
+            }
+        }
+        if (keepPoints) {
+            System.out.println("Compacted embedded vector index: " + count + " points");
+        }
+    }
+
+    private static final class Point {
+        final int slot;
+        final JsonObject payload;
+
+        Point(int slot, JsonObject payload) {
+            this.slot = slot;
+            this.payload = payload;
+        }
+    }
+}
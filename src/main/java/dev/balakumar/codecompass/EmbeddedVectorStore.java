@@ -0,0 +1,201 @@
+package dev.balakumar.codecompass;
+
+import com.intellij.openapi.project.Project;
+
+import java.io.IOException;
+import java.util.*;
+import java.util.function.Consumer;
+
+/**
+ * {@link VectorStore} backed by the project's {@link EmbeddedIndex}. Needs no external process;
+ * searches run in-process against the memory-mapped vectors.
+ */
+public class EmbeddedVectorStore implements VectorStore {
+    private final EmbeddedIndex index;
+    private final EmbeddingService aiService;
+
+    public EmbeddedVectorStore(Project project, EmbeddingService aiService) throws IOException {
+        this.index = EmbeddedIndex.getInstance(project);
+        this.aiService = aiService;
+        if (index == null || !index.isOpen()) {
+            throw new IOException("Embedded vector index could not be opened in .codemapper");
+        }
+    }
+
+    @Override
+    public String getName() {
+        return "Embedded index";
+    }
+
+    @Override
+    public boolean isConnected() {
+        return index.isOpen();
+    }
+
+    @Override
+    public void addOrUpdateDocument(String id, String content, String filePath, String summary, Map<String, String> metadata) {
+        float[] embedding;
+        try {
+            embedding = aiService.getEmbedding(content);
+        } catch (Exception e) {
+            System.err.println("Error getting embedding for document " + id + ": " + e.getMessage());
+            return;
+        }
+        upsertDocument(id, content, filePath, summary, metadata, embedding);
+    }
+
+    @Override
+    public boolean upsertDocument(String id, String content, String filePath, String summary, Map<String, String> metadata, float[] embedding) {
+        boolean stored = index.put(id, PointPayload.build(filePath, summary, metadata), embedding);
+        if (stored) {
+            System.out.println("Added/updated document: " + id);
+        } else {
+            System.err.println("Failed to add document: " + id);
+        }
+        return stored;
+    }
+
+    /**
+     * Points are written to the index as they are added, so there is nothing to batch; closing
+     * the buffer flushes the index log.
+     */
+    @Override
+    public VectorStore.UpsertBuffer openUpsertBuffer(int maxPoints, long maxBytes) {
+        return new VectorStore.UpsertBuffer() {
+            @Override
+            public void add(String id, String content, String filePath, String summary, Map<String, String> metadata,
+                            float[] embedding, Consumer<Boolean> callback) {
+                callback.accept(index.put(id, PointPayload.build(filePath, summary, metadata), embedding));
+            }
+
+            @Override
+            public void close() {
+                index.flush();
+            }
+        };
+    }
+
+    @Override
+    public void deleteStaleChunks(Map<String, Integer> chunkCounts) {
+        index.deleteStaleChunks(chunkCounts);
+    }
+
+    @Override
+    public boolean updateSummary(String filePath, String contentHash, String summary) {
+        index.updateSummary(filePath, contentHash, summary);
+        return true;
+    }
+
+    @Override
+    public void refreshDocumentCount() {
+        // The count is always current
+    }
+
+    @Override
+    public void deleteDocument(String filePath) {
+        index.deleteByPath(filePath);
+        System.out.println("Deleted document: " + filePath);
+    }
+
+    @Override
+    public void deleteDocuments(Collection<String> filePaths) {
+        for (String filePath : filePaths) {
+            index.deleteByPath(filePath);
+        }
+        System.out.println("Deleted " + filePaths.size() + " documents");
+    }
+
+    @Override
+    public Set<String> getIndexedPaths() {
+        return index.getPaths();
+    }
+
+    @Override
+    public boolean forEachPoint(Consumer<StoredPoint> visitor) {
+        index.forEachPoint(visitor);
+        return index.isOpen();
+    }
+
+    @Override
+    public boolean importPoints(List<StoredPoint> points) {
+        boolean stored = true;
+        for (StoredPoint point : points) {
+            stored &= index.put(point.id, point.payload, point.vector);
+        }
+        index.flush();
+        return stored;
+    }
+
+    @Override
+    public Map<String, String> getFingerprints() {
+        return index.getFingerprints(payload -> true);
+    }
+
+    @Override
+    public Map<String, String> getPendingSummaries() {
+        return index.getFingerprints(payload ->
+                payload.has("summaryPending") && payload.get("summaryPending").getAsBoolean());
+    }
+
+    @Override
+    public String getFingerprint(String filePath) {
+        return index.getFingerprint(filePath);
+    }
+
+    @Override
+    public List<CodeSearchResult> search(String query, int limit, Map<String, String> filters, float similarityThreshold) {
+        if (index.size() == 0) {
+            return Collections.emptyList();
+        }
+        float[] queryEmbedding;
+        try {
+            queryEmbedding = aiService.getEmbedding(query);
+        } catch (IOException e) {
+            System.err.println("Error embedding search query: " + e.getMessage());
+            return Collections.emptyList();
+        }
+        return searchByEmbedding(queryEmbedding, limit, filters, similarityThreshold);
+    }
+
+    @Override
+    public List<CodeSearchResult> searchByEmbedding(float[] queryEmbedding, int limit, Map<String, String> filters, float similarityThreshold) {
+        if (queryEmbedding.length != index.getDimension()) {
+            System.out.println("Warning: Query embedding dimension (" + queryEmbedding.length + ") doesn't match index dimension (" + index.getDimension() + ").");
+            return Collections.emptyList();
+        }
+        return index.search(queryEmbedding, limit, filters, similarityThreshold);
+    }
+
+    @Override
+    public void saveIndex() {
+        index.save();
+    }
+
+    @Override
+    public void deleteAll() {
+        index.clear();
+    }
+
+    @Override
+    public int getDocumentCount() {
+        return index.size();
+    }
+
+    @Override
+    public int getDimension() {
+        return index.getDimension();
+    }
+
+    /**
+     * The index is shared by the whole project and closed with it; this only flushes the log.
+     */
+    @Override
+    public void close() {
+        index.flush();
+    }
+
+    @Override
+    public List<String> getUniqueLanguages() {
+        return index.getLanguages();
+    }
+}
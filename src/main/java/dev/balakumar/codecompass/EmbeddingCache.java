@@ -0,0 +1,104 @@
+package dev.balakumar.codecompass;
+
+import com.intellij.openapi.Disposable;
+import com.intellij.openapi.components.ServiceManager;
+import com.intellij.openapi.project.Project;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Project-local cache of embeddings in .codemapper, keyed by embedding provider, model, vector
+ * dimension and a hash of the embedded text. Lets branch switches and re-indexing reuse vectors
+ * for content that was already embedded.
+ *
+ * The dimension a model produced last is remembered per model, so a model that starts returning
+ * vectors of a different size never serves stale entries.
+ */
+public class EmbeddingCache implements Disposable {
+    private static final String STORE_NAME = "embedding_cache";
+
+    private final BlobStore store;
+    private final AtomicLong hits = new AtomicLong(0);
+    private final AtomicLong misses = new AtomicLong(0);
+
+    public EmbeddingCache(Project project) {
+        BlobStore opened = null;
+        if (project.getBasePath() != null) {
+            long maxBytes = CodeMapperSettingsState.getInstance(project).embeddingCacheMaxMb * 1024L * 1024L;
+            try {
+                opened = new BlobStore(Path.of(project.getBasePath(), ".codemapper"), STORE_NAME, maxBytes);
+            } catch (IOException e) {
+                System.err.println("Embedding cache unavailable: " + e.getMessage());
+            }
+        }
+        this.store = opened;
+    }
+
+    public static EmbeddingCache getInstance(Project project) {
+        return ServiceManager.getService(project, EmbeddingCache.class);
+    }
+
+    /**
+     * @return the cached embedding for this text, or null if it has not been embedded with this model
+     */
+    public float[] get(String provider, String model, String text) {
+        if (store == null) {
+            return null;
+        }
+        byte[] dimension = store.get(dimensionKey(provider, model));
+        if (dimension == null) {
+            misses.incrementAndGet();
+            return null;
+        }
+        byte[] value = store.get(entryKey(provider, model, ByteBuffer.wrap(dimension).getInt(), text));
+        if (value == null) {
+            misses.incrementAndGet();
+            return null;
+        }
+        hits.incrementAndGet();
+        float[] embedding = new float[value.length / 4];
+        ByteBuffer.wrap(value).asFloatBuffer().get(embedding);
+        return embedding;
+    }
+
+    public void put(String provider, String model, String text, float[] embedding) {
+        if (store == null || embedding == null || embedding.length == 0) {
+            return;
+        }
+        String dimensionKey = dimensionKey(provider, model);
+        byte[] dimension = store.get(dimensionKey);
+        if (dimension == null || ByteBuffer.wrap(dimension).getInt() != embedding.length) {
+            store.put(dimensionKey, ByteBuffer.allocate(4).putInt(embedding.length).array());
+        }
+        ByteBuffer value = ByteBuffer.allocate(embedding.length * 4);
+        value.asFloatBuffer().put(embedding);
+        store.put(entryKey(provider, model, embedding.length, text), value.array());
+    }
+
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    public long getMissCount() {
+        return misses.get();
+    }
+
+    private static String dimensionKey(String provider, String model) {
+        return "dim/" + provider + "/" + model;
+    }
+
+    private static String entryKey(String provider, String model, int dimension, String text) {
+        return provider + "/" + model + "/" + dimension + "/" + ContentHash.sha256(text);
+    }
+
+    @Override
+    public void dispose() {
+        if (store != null) {
+            store.close();
+            System.out.println("Embedding cache closed: " + hits.get() + " hits, " + misses.get() + " misses");
+        }
+    }
+}
@@ -1,8 +1,61 @@
 package dev.balakumar.codecompass;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
 
 public interface EmbeddingService {
     float[] getEmbedding(String text) throws IOException;
+
+    /**
+     * Like {@link #getEmbedding}, without blocking the caller. Retries are scheduled rather than
+     * slept through, and cancelling the future aborts the request. Providers without an
+     * asynchronous implementation run the blocking call on a pooled thread.
+     */
+    default CompletableFuture<float[]> getEmbeddingAsync(String text) {
+        return ProviderCalls.supplyAsync(() -> getEmbedding(text));
+    }
+
+    /**
+     * Embed several texts, in as few requests as the provider allows. The returned list has
+     * one embedding per input text, in the same order.
+     */
+    default List<float[]> getEmbeddings(List<String> texts) throws IOException {
+        return ProviderCalls.await(getEmbeddingsAsync(texts));
+    }
+
+    /**
+     * Like {@link #getEmbeddings}, without blocking the caller. Cancelling the future aborts the
+     * requests. Providers without a native batch endpoint send one request per text.
+     */
+    default CompletableFuture<List<float[]>> getEmbeddingsAsync(List<String> texts) {
+        List<CompletableFuture<float[]>> requests = new ArrayList<>(texts.size());
+        for (String text : texts) {
+            requests.add(getEmbeddingAsync(text));
+        }
+        CompletableFuture<List<float[]>> embeddings = CompletableFuture.allOf(requests.toArray(new CompletableFuture[0]))
+                .thenApply(done -> {
+                    List<float[]> results = new ArrayList<>(requests.size());
+                    for (CompletableFuture<float[]> request : requests) {
+                        results.add(request.join());
+                    }
+                    return results;
+                });
+        embeddings.whenComplete((value, error) -> {
+            if (embeddings.isCancelled()) {
+                requests.forEach(request -> request.cancel(true));
+            }
+        });
+        return embeddings;
+    }
+
+    /**
+     * @return the largest number of texts worth sending to {@link #getEmbeddings} at once
+     */
+    default int getMaxBatchSize() {
+        return 1;
+    }
+
     boolean testConnection();
-}
\ No newline at end of file
+}
@@ -1,11 +1,12 @@
 package dev.balakumar.codecompass;
 
+import com.intellij.openapi.application.ApplicationManager;
 import com.intellij.openapi.project.Project;
 import com.intellij.openapi.ui.DialogWrapper;
 import com.intellij.ui.components.JBList;
 import com.intellij.openapi.vfs.LocalFileSystem;
 import com.intellij.openapi.vfs.VirtualFile;
-import com.intellij.openapi.fileEditor.FileEditorManager;
+import com.intellij.openapi.fileEditor.OpenFileDescriptor;
 import com.intellij.openapi.progress.ProgressIndicator;
 import com.intellij.openapi.progress.ProgressManager;
 import com.intellij.openapi.progress.Task;
@@ -36,7 +37,7 @@ public class EnhancedSearchDialog extends DialogWrapper {
     public EnhancedSearchDialog(Project project) {
         super(project);
         this.project = project;
-        this.indexer = new SimpleIndexer(project);
+        this.indexer = CodeCompassService.getInstance(project).getIndexer();
         setTitle("AI Code Search");
         setSize(900, 700);
         init();
@@ -78,6 +79,9 @@ public class EnhancedSearchDialog extends DialogWrapper {
                 if (value instanceof CodeSearchResult) {
                     CodeSearchResult result = (CodeSearchResult) value;
                     String displayPath = getDisplayPath(result.getFilePath());
+                    if (result.hasLineRange()) {
+                        displayPath += ":" + result.getStartLine() + "-" + result.getEndLine();
+                    }
                     String text = String.format("%s (%.2f)", displayPath, result.getSimilarity());
                     return super.getListCellRendererComponent(list, text, index, isSelected, cellHasFocus);
                 }
@@ -95,18 +99,19 @@ public class EnhancedSearchDialog extends DialogWrapper {
         resultList.addListSelectionListener(e -> {
             if (!e.getValueIsAdjusting()) {
                 CodeSearchResult selectedResult = resultList.getSelectedValue();
-                if (selectedResult != null) {
-                    summaryArea.setText(selectedResult.getSummary());
-                    StringBuilder metadataText = new StringBuilder();
-                    for (String key : selectedResult.getMetadata().keySet()) {
-                        String value = selectedResult.getMetadata().get(key);
-                        if (value != null && !value.isEmpty()) {
-                            metadataText.append(key).append(": ").append(value).append("\n");
-                        }
-                    }
-                    if (metadataText.length() > 0) {
-                        summaryArea.setText(selectedResult.getSummary() + "\n\n--- Metadata ---\n" + metadataText);
-                    }
+                if (selectedResult != null && !selectedResult.hasSummary()) {
+                    // Indexed without a summary (deferred or on-demand mode): generate it now
+                    summaryArea.setText("Generating summary...");
+                    ApplicationManager.getApplication().executeOnPooledThread(() -> {
+                        indexer.ensureSummary(selectedResult);
+                        SwingUtilities.invokeLater(() -> {
+                            if (resultList.getSelectedValue() == selectedResult) {
+                                showResultDetails(selectedResult);
+                            }
+                        });
+                    });
+                } else if (selectedResult != null) {
+                    showResultDetails(selectedResult);
                 } else {
                     summaryArea.setText("");
                 }
@@ -118,7 +123,7 @@ public class EnhancedSearchDialog extends DialogWrapper {
                 if (e.getClickCount() == 2) {
                     CodeSearchResult selectedResult = resultList.getSelectedValue();
                     if (selectedResult != null) {
-                        openFile(selectedResult.getFilePath());
+                        openFile(selectedResult.getFilePath(), selectedResult.getStartLine());
                     }
                 }
             }
@@ -157,10 +162,13 @@ public class EnhancedSearchDialog extends DialogWrapper {
         return panel;
     }
 
-    private void openFile(String filePath) {
+    /**
+     * Open a file with the caret on the given 1-based line, or at the top if the line is unknown.
+     */
+    private void openFile(String filePath, int line) {
         VirtualFile file = LocalFileSystem.getInstance().findFileByPath(filePath);
         if (file != null) {
-            FileEditorManager.getInstance(project).openFile(file, true);
+            new OpenFileDescriptor(project, file, Math.max(0, line - 1), 0).navigate(true);
         }
     }
 
@@ -186,7 +194,7 @@ public class EnhancedSearchDialog extends DialogWrapper {
                 try {
                     results = indexer.search(query, 20);
                     if (!results.isEmpty()) {
-                        searchContext = indexer.generateSearchContext(query, results);
+                        searchContext = indexer.generateSearchContext(query, results, indicator);
                     } else {
                         searchContext = "No matching files found for query: " + query;
                     }
@@ -223,6 +231,20 @@ public class EnhancedSearchDialog extends DialogWrapper {
         });
     }
 
+    private void showResultDetails(CodeSearchResult selectedResult) {
+        summaryArea.setText(selectedResult.getSummary());
+        StringBuilder metadataText = new StringBuilder();
+        for (String key : selectedResult.getMetadata().keySet()) {
+            String value = selectedResult.getMetadata().get(key);
+            if (value != null && !value.isEmpty()) {
+                metadataText.append(key).append(": ").append(value).append("\n");
+            }
+        }
+        if (metadataText.length() > 0) {
+            summaryArea.setText(selectedResult.getSummary() + "\n\n--- Metadata ---\n" + metadataText);
+        }
+    }
+
     // Add this method to EnhancedSearchDialog.java
     // Fixed method to use JTextPane's getStyledDocument
     private void displayFormattedContext(String context) {
@@ -341,7 +363,7 @@ public class EnhancedSearchDialog extends DialogWrapper {
         ProgressManager.getInstance().run(new Task.Backgroundable(project, "Reindexing Project") {
             @Override
             public void run(@NotNull ProgressIndicator indicator) {
-                CleanupService.cleanupIndexFiles(project.getBasePath());
+                CleanupService.cleanupIndexFiles(project);
                 indexer.reindexAll(project, indicator);
                 SwingUtilities.invokeLater(() -> {
                     statusLabel.setText("Indexed " + indexer.getDocumentCount() + " files");
@@ -0,0 +1,52 @@
+package dev.balakumar.codecompass;
+
+import com.intellij.openapi.actionSystem.AnAction;
+import com.intellij.openapi.actionSystem.AnActionEvent;
+import com.intellij.openapi.fileChooser.FileChooserFactory;
+import com.intellij.openapi.fileChooser.FileSaverDescriptor;
+import com.intellij.openapi.progress.ProgressIndicator;
+import com.intellij.openapi.progress.ProgressManager;
+import com.intellij.openapi.progress.Task;
+import com.intellij.openapi.project.Project;
+import com.intellij.openapi.vfs.VirtualFileWrapper;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.nio.file.Path;
+
+/**
+ * Writes the index to a snapshot file that teammates can import instead of indexing the project
+ * from scratch.
+ */
+public class ExportIndexSnapshotAction extends AnAction {
+    @Override
+    public void actionPerformed(AnActionEvent e) {
+        Project project = e.getProject();
+        if (project == null) {
+            return;
+        }
+        FileSaverDescriptor descriptor = new FileSaverDescriptor("Export CodeCompass Index Snapshot",
+                "Choose where to save the index snapshot", IndexSnapshot.EXTENSION);
+        VirtualFileWrapper target = FileChooserFactory.getInstance().createSaveFileDialog(descriptor, project)
+                .save(project.getBaseDir(), project.getName() + "." + IndexSnapshot.EXTENSION);
+        if (target == null) {
+            return;
+        }
+        Path file = target.getFile().toPath();
+        ProgressManager.getInstance().run(new Task.Backgroundable(project, "Exporting CodeCompass index snapshot", true) {
+            @Override
+            public void run(@NotNull ProgressIndicator indicator) {
+                indicator.setIndeterminate(true);
+                SimpleIndexer indexer = CodeCompassService.getInstance(project).getIndexer();
+                try {
+                    int points = indexer.exportSnapshot(file, indicator);
+                    ErrorHandler.showInfo(project, "CodeCompass Index Exported",
+                            "Wrote " + points + " points to " + file.getFileName() + ".");
+                } catch (IOException ex) {
+                    ErrorHandler.showError(project, "CodeCompass Export Failed",
+                            "The index snapshot could not be written: " + ex.getMessage());
+                }
+            }
+        });
+    }
+}
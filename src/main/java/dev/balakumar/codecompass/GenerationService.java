@@ -3,11 +3,48 @@ package dev.balakumar.codecompass;
 import java.io.IOException;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Consumer;
 
 public interface GenerationService {
+    // Number of top results whose code goes into a question prompt; see ContentStore#loadContent
+    int CONTEXT_FILE_COUNT = 3;
+
     String generateSummary(String codeContent, String fileName) throws IOException;
     String generateCodeContext(String query, List<CodeSearchResult> results) throws IOException;
     String askQuestion(String question, List<CodeSearchResult> relevantFiles) throws IOException;
     String askQuestionWithHistory(String question, List<CodeSearchResult> relevantFiles, List<Map<String, Object>> chatHistory) throws IOException;
+
+    /*
+     * Asynchronous variants of the calls above. Retries are scheduled rather than slept through,
+     * and cancelling the future aborts the request. Providers without an asynchronous
+     * implementation run the blocking call on a pooled thread.
+     */
+
+    default CompletableFuture<String> generateSummaryAsync(String codeContent, String fileName) {
+        return ProviderCalls.supplyAsync(() -> generateSummary(codeContent, fileName));
+    }
+
+    default CompletableFuture<String> generateCodeContextAsync(String query, List<CodeSearchResult> results) {
+        return ProviderCalls.supplyAsync(() -> generateCodeContext(query, results));
+    }
+
+    default CompletableFuture<String> askQuestionWithHistoryAsync(String question, List<CodeSearchResult> relevantFiles,
+                                                                  List<Map<String, Object>> chatHistory) {
+        return ProviderCalls.supplyAsync(() -> askQuestionWithHistory(question, relevantFiles, chatHistory));
+    }
+
+    /**
+     * Like {@link #askQuestionWithHistory}, but hands each piece of the answer to onToken as soon
+     * as the provider produces it. Returns the complete answer. Providers without a streaming API
+     * deliver the whole answer as a single token.
+     */
+    default String streamQuestionWithHistory(String question, List<CodeSearchResult> relevantFiles, List<Map<String, Object>> chatHistory,
+                                             Consumer<String> onToken) throws IOException {
+        String answer = askQuestionWithHistory(question, relevantFiles, chatHistory);
+        onToken.accept(answer);
+        return answer;
+    }
+
     boolean testConnection();
-}
\ No newline at end of file
+}
@@ -0,0 +1,140 @@
+package dev.balakumar.codecompass;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Asks git which files may differ from the ones indexed at an earlier commit, so an index run
+ * after a pull or branch switch only looks at those instead of every file in the project.
+ *
+ * It also names the branches {@link BranchOverlayStore} keeps apart.
+ *
+ * git is run as a command in the project directory. Every method returns null when git is not
+ * installed, the project is not in a repository, or the commit is unknown (say after a rebase
+ * and garbage collection); callers then fall back to checking every file.
+ */
+final class GitDelta {
+    private static final long GIT_TIMEOUT_SECONDS = 30;
+
+    private GitDelta() {
+    }
+
+    /**
+     * @return the commit checked out in the project directory, or null
+     */
+    static String head(String projectPath) {
+        String output = run(projectPath, "rev-parse", "--verify", "--quiet", "HEAD");
+        return output == null || output.isBlank() ? null : output.trim();
+    }
+
+    /**
+     * @return the name of the branch checked out in the project directory, "HEAD" if no branch is
+     * checked out, or null
+     */
+    static String currentBranch(String projectPath) {
+        String output = run(projectPath, "rev-parse", "--abbrev-ref", "HEAD");
+        return output == null || output.isBlank() ? null : output.trim();
+    }
+
+    /**
+     * @return the branch the remote "origin" names as its default, else "main" or "master" if such
+     * a branch exists, or null
+     */
+    static String defaultBranch(String projectPath) {
+        String remoteHead = run(projectPath, "symbolic-ref", "--quiet", "--short", "refs/remotes/origin/HEAD");
+        if (remoteHead != null && remoteHead.trim().startsWith("origin/")) {
+            return remoteHead.trim().substring("origin/".length());
+        }
+        for (String candidate : new String[]{"main", "master"}) {
+            if (run(projectPath, "rev-parse", "--verify", "--quiet", "refs/heads/" + candidate) != null) {
+                return candidate;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Files under the project directory whose working tree content may differ from the given
+     * commit: tracked files changed, added or deleted since it, and untracked files that are not
+     * ignored. Renames show up as the deleted old path plus the new one.
+     *
+     * @return absolute paths, or null
+     */
+    static Set<String> changedSince(String projectPath, String commit) {
+        // Compares the commit with the working tree, so staged and unstaged changes are included
+        String changed = run(projectPath, "diff", "--name-only", "--no-renames", "--no-ext-diff", "--relative", "-z",
+                commit, "--");
+        if (changed == null) {
+            return null;
+        }
+        String untracked = run(projectPath, "ls-files", "--others", "--exclude-standard", "-z");
+        if (untracked == null) {
+            return null;
+        }
+        Set<String> paths = new HashSet<>();
+        addPaths(projectPath, changed, paths);
+        addPaths(projectPath, untracked, paths);
+        return paths;
+    }
+
+    private static void addPaths(String projectPath, String output, Set<String> paths) {
+        Path base = Path.of(projectPath);
+        for (String relative : output.split("\0")) {
+            if (!relative.isEmpty()) {
+                paths.add(base.resolve(relative).normalize().toString().replace('\\', '/'));
+            }
+        }
+    }
+
+    /**
+     * @return what git wrote to standard output, or null if it could not be run or failed
+     */
+    private static String run(String projectPath, String... args) {
+        List<String> command = new ArrayList<>();
+        command.add("git");
+        command.addAll(Arrays.asList(args));
+        Path output = null;
+        try {
+            output = Files.createTempFile("codecompass-git", ".out");
+            ProcessBuilder builder = new ProcessBuilder(command)
+                    .directory(Path.of(projectPath).toFile())
+                    .redirectOutput(output.toFile())
+                    .redirectError(ProcessBuilder.Redirect.DISCARD);
+            // Keep git from taking the repository's index lock, which would get in the way of the user's own git commands
+            builder.environment().put("GIT_OPTIONAL_LOCKS", "0");
+            Process process = builder.start();
+            if (!process.waitFor(GIT_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+                process.destroyForcibly();
+                System.err.println("git " + args[0] + " timed out after " + GIT_TIMEOUT_SECONDS + "s");
+                return null;
+            }
+            if (process.exitValue() != 0) {
+                System.out.println("git " + args[0] + " failed with exit code " + process.exitValue());
+                return null;
+            }
+            return Files.readString(output, StandardCharsets.UTF_8);
+        } catch (IOException e) {
+            System.out.println("git not available: " + e.getMessage());
+            return null;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        } finally {
+            if (output != null) {
+                try {
+                    Files.deleteIfExists(output);
+                } catch (IOException ignored) {
+                    // A leftover temp file is harmless
+                }
+            }
+        }
+    }
+}
@@ -2,26 +2,27 @@ package dev.balakumar.codecompass;
 
 import com.google.gson.*;
 import com.intellij.openapi.project.Project;
-import java.security.SecureRandom;
-import java.security.cert.X509Certificate;
-import javax.net.ssl.SSLContext;
-import javax.net.ssl.TrustManager;
-import javax.net.ssl.X509TrustManager;
 import okhttp3.*;
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
 import java.util.Map;
-import java.util.concurrent.TimeUnit;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Consumer;
+import okio.BufferedSource;
 
 public class GoogleGeminiService implements EmbeddingService, GenerationService {
     private static final String GEMINI_EMBEDDING_ENDPOINT = "https://generativelanguage.googleapis.com/v1beta/models/%s:embedContent?key=%s";
+    private static final String GEMINI_BATCH_EMBEDDING_ENDPOINT = "https://generativelanguage.googleapis.com/v1beta/models/%s:batchEmbedContents?key=%s";
+    // batchEmbedContents accepts at most 100 requests per call
+    private static final int MAX_EMBEDDING_BATCH_SIZE = 100;
     private static final String GEMINI_GENERATION_ENDPOINT = "https://generativelanguage.googleapis.com/v1beta/models/%s:generateContent?key=%s";
+    private static final String GEMINI_STREAM_ENDPOINT = "https://generativelanguage.googleapis.com/v1beta/models/%s:streamGenerateContent?alt=sse&key=%s";
 
-    private OkHttpClient client = new OkHttpClient.Builder()
-            .connectTimeout(240, TimeUnit.SECONDS)
-            .readTimeout(240, TimeUnit.SECONDS)
-            .build();
+    private final OkHttpClient client;
     private final Gson gson = new Gson();
     private final Project project;
     private final CodeMapperSettingsState settings;
@@ -29,42 +30,23 @@ public class GoogleGeminiService implements EmbeddingService, GenerationService
     public GoogleGeminiService(Project project) {
         this.project = project;
         this.settings = CodeMapperSettingsState.getInstance(project);
-        // Create trust-all client to fix SSL issues
-        this.client = createTrustAllClient();
+        this.client = HttpClients.get(HttpClients.GEMINI, ProviderSettings.getConcurrency(settings, HttpClients.GEMINI));
     }
 
-    // Create a client that trusts all certificates
-    private OkHttpClient createTrustAllClient() {
+    // EmbeddingService Implementation
+    @Override
+    public float[] getEmbedding(String text) throws IOException {
         try {
-            TrustManager[] trustAllCerts = new TrustManager[] {
-                    new X509TrustManager() {
-                        public X509Certificate[] getAcceptedIssuers() {
-                            return new X509Certificate[0];
-                        }
-                        public void checkClientTrusted(X509Certificate[] certs, String authType) {}
-                        public void checkServerTrusted(X509Certificate[] certs, String authType) {}
-                    }
-            };
-            SSLContext sslContext = SSLContext.getInstance("SSL");
-            sslContext.init(null, trustAllCerts, new SecureRandom());
-            return new OkHttpClient.Builder()
-                    .sslSocketFactory(sslContext.getSocketFactory(), (X509TrustManager)trustAllCerts[0])
-                    .hostnameVerifier((hostname, session) -> true)
-                    .connectTimeout(240, TimeUnit.SECONDS)
-                    .readTimeout(240, TimeUnit.SECONDS)
-                    .build();
-        } catch (Exception e) {
-            System.err.println("Error creating SSL-bypassing client: " + e.getMessage());
-            return new OkHttpClient.Builder()
-                    .connectTimeout(240, TimeUnit.SECONDS)
-                    .readTimeout(240, TimeUnit.SECONDS)
-                    .build();
+            return ProviderCalls.await(getEmbeddingAsync(text));
+        } catch (InterruptedIOException e) {
+            throw e;
+        } catch (IOException e) {
+            throw new IOException("Error getting embedding: " + e.getMessage());
         }
     }
 
-    // EmbeddingService Implementation
     @Override
-    public float[] getEmbedding(String text) throws IOException {
+    public CompletableFuture<float[]> getEmbeddingAsync(String text) {
         String endpoint = String.format(GEMINI_EMBEDDING_ENDPOINT, settings.geminiEmbeddingModel, settings.geminiApiKey);
 
         JsonObject requestBody = new JsonObject();
@@ -73,6 +55,12 @@ public class GoogleGeminiService implements EmbeddingService, GenerationService
         JsonObject part = new JsonObject();
 
         String truncatedText = text.length() > 8000 ? text.substring(0, 8000) : text;
+        EmbeddingCache cache = EmbeddingCache.getInstance(project);
+        float[] cached = cache.get("GEMINI", settings.geminiEmbeddingModel, truncatedText);
+        if (cached != null) {
+            return CompletableFuture.completedFuture(cached);
+        }
+
         part.addProperty("text", truncatedText);
         parts.add(part);
         content.add("parts", parts);
@@ -83,7 +71,7 @@ public class GoogleGeminiService implements EmbeddingService, GenerationService
                 .post(RequestBody.create(gson.toJson(requestBody), MediaType.get("application/json")))
                 .build();
 
-        try (Response response = client.newCall(request).execute()) {
+        return ProviderCalls.send(client, request, response -> {
             if (!response.isSuccessful()) {
                 String errorBody = response.body() != null ? response.body().string() : "";
                 throw new IOException("Gemini embedding API error " + response.code() + ": " + errorBody);
@@ -98,10 +86,97 @@ public class GoogleGeminiService implements EmbeddingService, GenerationService
                 embedding[i] = values.get(i).getAsFloat();
             }
 
+            cache.put("GEMINI", settings.geminiEmbeddingModel, truncatedText, embedding);
             return embedding;
+        });
+    }
+
+    @Override
+    public List<float[]> getEmbeddings(List<String> texts) throws IOException {
+        try {
+            return ProviderCalls.await(getEmbeddingsAsync(texts));
+        } catch (InterruptedIOException e) {
+            throw e;
         } catch (IOException e) {
-            throw new IOException("Error getting embedding: " + e.getMessage());
+            throw new IOException("Error getting batch embeddings: " + e.getMessage());
+        }
+    }
+
+    @Override
+    public CompletableFuture<List<float[]>> getEmbeddingsAsync(List<String> texts) {
+        if (texts.isEmpty()) {
+            return CompletableFuture.completedFuture(new ArrayList<>());
+        }
+        String endpoint = String.format(GEMINI_BATCH_EMBEDDING_ENDPOINT, settings.geminiEmbeddingModel, settings.geminiApiKey);
+
+        // Serve what we can from the cache and only send the rest
+        EmbeddingCache cache = EmbeddingCache.getInstance(project);
+        float[][] results = new float[texts.size()][];
+        List<Integer> missing = new ArrayList<>();
+        List<String> missingTexts = new ArrayList<>();
+        for (int i = 0; i < texts.size(); i++) {
+            String text = texts.get(i);
+            String truncatedText = text.length() > 8000 ? text.substring(0, 8000) : text;
+            results[i] = cache.get("GEMINI", settings.geminiEmbeddingModel, truncatedText);
+            if (results[i] == null) {
+                missing.add(i);
+                missingTexts.add(truncatedText);
+            }
+        }
+        if (missing.isEmpty()) {
+            return CompletableFuture.completedFuture(Arrays.asList(results));
+        }
+
+        JsonObject requestBody = new JsonObject();
+        JsonArray requests = new JsonArray();
+        for (String truncatedText : missingTexts) {
+            JsonObject embedRequest = new JsonObject();
+            embedRequest.addProperty("model", "models/" + settings.geminiEmbeddingModel);
+            JsonObject content = new JsonObject();
+            JsonArray parts = new JsonArray();
+            JsonObject part = new JsonObject();
+            part.addProperty("text", truncatedText);
+            parts.add(part);
+            content.add("parts", parts);
+            embedRequest.add("content", content);
+            requests.add(embedRequest);
         }
+        requestBody.add("requests", requests);
+
+        Request request = new Request.Builder()
+                .url(endpoint)
+                .post(RequestBody.create(gson.toJson(requestBody), MediaType.get("application/json")))
+                .build();
+
+        return ProviderCalls.send(client, request, response -> {
+            if (!response.isSuccessful()) {
+                String errorBody = response.body() != null ? response.body().string() : "";
+                throw new IOException("Gemini batch embedding API error " + response.code() + ": " + errorBody);
+            }
+
+            JsonObject jsonResponse = gson.fromJson(response.body().string(), JsonObject.class);
+            JsonArray embeddingsArray = jsonResponse.getAsJsonArray("embeddings");
+            if (embeddingsArray == null || embeddingsArray.size() != missing.size()) {
+                throw new IOException("Gemini batch embedding returned " +
+                        (embeddingsArray == null ? 0 : embeddingsArray.size()) + " embeddings for " + missing.size() + " texts");
+            }
+
+            for (int m = 0; m < missing.size(); m++) {
+                JsonArray values = embeddingsArray.get(m).getAsJsonObject().getAsJsonArray("values");
+                float[] embedding = new float[values.size()];
+                for (int i = 0; i < values.size(); i++) {
+                    embedding[i] = values.get(i).getAsFloat();
+                }
+                results[missing.get(m)] = embedding;
+                cache.put("GEMINI", settings.geminiEmbeddingModel, missingTexts.get(m), embedding);
+            }
+            return Arrays.asList(results);
+        });
+    }
+
+    @Override
+    public int getMaxBatchSize() {
+        return MAX_EMBEDDING_BATCH_SIZE;
     }
 
     @Override
@@ -112,35 +187,28 @@ public class GoogleGeminiService implements EmbeddingService, GenerationService
     // GenerationService Implementation
     @Override
     public String generateSummary(String codeContent, String fileName) throws IOException {
-        String endpoint = String.format(GEMINI_GENERATION_ENDPOINT, settings.geminiGenerationModel, settings.geminiApiKey);
+        return ProviderCalls.await(generateSummaryAsync(codeContent, fileName));
+    }
+
+    @Override
+    public CompletableFuture<String> generateSummaryAsync(String codeContent, String fileName) {
         String language = getLanguageFromFileName(fileName);
         String prompt = "Generate a concise summary (max 3 sentences) of this " + language + " file. Include main classes, methods, and functionality:\n\n" + codeContent;
-
-        JsonObject requestBody = buildGenerationRequest(prompt);
-        Request request = new Request.Builder()
-                .url(endpoint)
-                .post(RequestBody.create(gson.toJson(requestBody), MediaType.get("application/json")))
-                .build();
-
-        return executeGenerationRequest(request);
+        return executeGenerationRequest(prompt);
     }
 
     @Override
     public String generateCodeContext(String query, List<CodeSearchResult> results) throws IOException {
-        String endpoint = String.format(GEMINI_GENERATION_ENDPOINT, settings.geminiGenerationModel, settings.geminiApiKey);
+        return ProviderCalls.await(generateCodeContextAsync(query, results));
+    }
 
+    @Override
+    public CompletableFuture<String> generateCodeContextAsync(String query, List<CodeSearchResult> results) {
         StringBuilder context = new StringBuilder("Generate a code context for the query: \"" + query + "\" based on these files:\n");
         for (CodeSearchResult result : results) {
             context.append(result.getFilePath()).append(": ").append(result.getSummary()).append("\n");
         }
-
-        JsonObject requestBody = buildGenerationRequest(context.toString());
-        Request request = new Request.Builder()
-                .url(endpoint)
-                .post(RequestBody.create(gson.toJson(requestBody), MediaType.get("application/json")))
-                .build();
-
-        return executeGenerationRequest(request);
+        return executeGenerationRequest(context.toString());
     }
 
     @Override
@@ -150,8 +218,71 @@ public class GoogleGeminiService implements EmbeddingService, GenerationService
 
     @Override
     public String askQuestionWithHistory(String question, List<CodeSearchResult> relevantFiles, List<Map<String, Object>> chatHistory) throws IOException {
-        String endpoint = String.format(GEMINI_GENERATION_ENDPOINT, settings.geminiGenerationModel, settings.geminiApiKey);
+        return ProviderCalls.await(askQuestionWithHistoryAsync(question, relevantFiles, chatHistory));
+    }
+
+    @Override
+    public CompletableFuture<String> askQuestionWithHistoryAsync(String question, List<CodeSearchResult> relevantFiles,
+                                                                 List<Map<String, Object>> chatHistory) {
+        return executeGenerationRequest(buildQuestionPrompt(question, relevantFiles, chatHistory));
+    }
+
+    /**
+     * Streams the answer from streamGenerateContent as server-sent events; every event is a
+     * partial response whose candidate parts hold the next piece of text.
+     */
+    @Override
+    public String streamQuestionWithHistory(String question, List<CodeSearchResult> relevantFiles, List<Map<String, Object>> chatHistory,
+                                            Consumer<String> onToken) throws IOException {
+        String endpoint = String.format(GEMINI_STREAM_ENDPOINT, settings.geminiGenerationModel, settings.geminiApiKey);
 
+        JsonObject requestBody = buildGenerationRequest(buildQuestionPrompt(question, relevantFiles, chatHistory));
+        Request request = new Request.Builder()
+                .url(endpoint)
+                .header("Accept", "text/event-stream")
+                .post(RequestBody.create(gson.toJson(requestBody), MediaType.get("application/json")))
+                .build();
+
+        StringBuilder answer = new StringBuilder();
+        try (Response response = client.newCall(request).execute()) {
+            if (!response.isSuccessful()) {
+                String errorBody = response.body() != null ? response.body().string() : "";
+                throw new IOException(handleApiError(response.code(), errorBody));
+            }
+
+            BufferedSource source = response.body().source();
+            String line;
+            while ((line = source.readUtf8Line()) != null) {
+                if (!line.startsWith("data:")) {
+                    continue;
+                }
+                JsonObject chunk = JsonParser.parseString(line.substring(5).trim()).getAsJsonObject();
+                JsonArray candidates = chunk.getAsJsonArray("candidates");
+                if (candidates == null || candidates.size() == 0) {
+                    continue;
+                }
+                JsonObject content = candidates.get(0).getAsJsonObject().getAsJsonObject("content");
+                if (content == null || !content.has("parts")) {
+                    continue;
+                }
+                for (JsonElement part : content.getAsJsonArray("parts")) {
+                    JsonObject partObject = part.getAsJsonObject();
+                    if (partObject.has("text")) {
+                        String token = partObject.get("text").getAsString();
+                        if (!token.isEmpty()) {
+                            answer.append(token);
+                            onToken.accept(token);
+                        }
+                    }
+                }
+            }
+        } catch (JsonParseException | IllegalStateException e) {
+            throw new IOException("Failed to parse Gemini stream: " + e.getMessage(), e);
+        }
+        return answer.toString();
+    }
+
+    private String buildQuestionPrompt(String question, List<CodeSearchResult> relevantFiles, List<Map<String, Object>> chatHistory) {
         StringBuilder prompt = new StringBuilder("Answer the question: \"" + question + "\" based on these files:\n");
         for (CodeSearchResult file : relevantFiles) {
             prompt.append(file.getFilePath()).append(": ").append(file.getSummary()).append("\n");
@@ -163,14 +294,7 @@ public class GoogleGeminiService implements EmbeddingService, GenerationService
                 prompt.append(entry.get("role")).append(": ").append(entry.get("content")).append("\n");
             }
         }
-
-        JsonObject requestBody = buildGenerationRequest(prompt.toString());
-        Request request = new Request.Builder()
-                .url(endpoint)
-                .post(RequestBody.create(gson.toJson(requestBody), MediaType.get("application/json")))
-                .build();
-
-        return executeGenerationRequest(request);
+        return prompt.toString();
     }
 
     // Helper Methods
@@ -191,8 +315,14 @@ public class GoogleGeminiService implements EmbeddingService, GenerationService
         return requestBody;
     }
 
-    private String executeGenerationRequest(Request request) throws IOException {
-        try (Response response = client.newCall(request).execute()) {
+    private CompletableFuture<String> executeGenerationRequest(String prompt) {
+        String endpoint = String.format(GEMINI_GENERATION_ENDPOINT, settings.geminiGenerationModel, settings.geminiApiKey);
+        Request request = new Request.Builder()
+                .url(endpoint)
+                .post(RequestBody.create(gson.toJson(buildGenerationRequest(prompt)), MediaType.get("application/json")))
+                .build();
+
+        return ProviderCalls.send(client, request, response -> {
             if (!response.isSuccessful()) {
                 String errorBody = response.body() != null ? response.body().string() : "";
                 throw new IOException(handleApiError(response.code(), errorBody));
@@ -206,7 +336,7 @@ public class GoogleGeminiService implements EmbeddingService, GenerationService
                     .getAsJsonArray("parts")
                     .get(0).getAsJsonObject()
                     .get("text").getAsString();
-        }
+        });
     }
 
     private String getLanguageFromFileName(String fileName) {
@@ -0,0 +1,418 @@
+package dev.balakumar.codecompass;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.*;
+import java.util.function.IntPredicate;
+
+/**
+ * Hierarchical navigable small world graph for approximate nearest neighbour search
+ * (Malkov and Yashunin). Nodes are the slot numbers of a vector file and are added in order;
+ * similarities are computed by the caller, so the graph itself holds only the links.
+ *
+ * Not thread-safe: {@link EmbeddedIndex} guards it with a read/write lock.
+ */
+class HnswGraph {
+    /**
+     * Similarity between stored vectors, and between a query and a stored vector. Higher is closer.
+     */
+    interface Similarity {
+        /**
+         * @return a copy of a stored vector, used as the query when linking a new node
+         */
+        float[] vector(int node);
+
+        float between(int a, int b);
+
+        float to(float[] query, int node);
+    }
+
+    private interface NodeScore {
+        float score(int node);
+    }
+
+    private static final int MAGIC = 0x43434847;
+    private static final int VERSION = 1;
+
+    private final Similarity similarity;
+    private final int m;
+    private final int maxLinks0;
+    private final int efConstruction;
+    private final double levelMultiplier;
+    private final Random random = new Random(42);
+    private int size = 0;
+    // links[node][level] holds the neighbour count followed by the neighbours
+    private int[][][] links = new int[1024][][];
+    private int entryPoint = -1;
+    private int maxLevel = -1;
+
+    HnswGraph(Similarity similarity, int m, int efConstruction) {
+        this.similarity = similarity;
+        this.m = m;
+        this.maxLinks0 = m * 2;
+        this.efConstruction = efConstruction;
+        this.levelMultiplier = 1 / Math.log(m);
+    }
+
+    int size() {
+        return size;
+    }
+
+    /**
+     * Link the next node into the graph. Nodes must be added in slot order, starting at 0.
+     */
+    void add(int node) {
+        if (node != size) {
+            throw new IllegalArgumentException("Expected node " + size + " but got " + node);
+        }
+        if (size == links.length) {
+            links = Arrays.copyOf(links, size * 2);
+        }
+        int level = randomLevel();
+        links[node] = new int[level + 1][];
+        for (int l = 0; l <= level; l++) {
+            links[node][l] = new int[maxLinks(l) + 1];
+        }
+        size++;
+
+        if (entryPoint < 0) {
+            entryPoint = node;
+            maxLevel = level;
+            return;
+        }
+
+        float[] vector = similarity.vector(node);
+        NodeScore score = other -> similarity.to(vector, other);
+        int current = entryPoint;
+        for (int l = maxLevel; l > level; l--) {
+            current = greedyClosest(score, current, l);
+        }
+        for (int l = Math.min(level, maxLevel); l >= 0; l--) {
+            List<Candidate> candidates = searchLayer(score, current, efConstruction, l);
+            List<Candidate> neighbours = selectNeighbours(candidates, maxLinks(l));
+            int[] nodeLinks = links[node][l];
+            for (Candidate neighbour : neighbours) {
+                nodeLinks[++nodeLinks[0]] = neighbour.node;
+                connect(neighbour.node, node, l);
+            }
+            current = candidates.get(0).node;
+        }
+        if (level > maxLevel) {
+            entryPoint = node;
+            maxLevel = level;
+        }
+    }
+
+    /**
+     * Find the closest accepted nodes to a query.
+     *
+     * @param ef     size of the dynamic candidate list; larger is slower but more accurate
+     * @param accept nodes that may appear in the result, e.g. those not deleted
+     * @return node and similarity pairs, closest first
+     */
+    List<Candidate> search(float[] query, int limit, int ef, IntPredicate accept) {
+        if (entryPoint < 0) {
+            return Collections.emptyList();
+        }
+        NodeScore score = node -> similarity.to(query, node);
+        int current = entryPoint;
+        for (int l = maxLevel; l > 0; l--) {
+            current = greedyClosest(score, current, l);
+        }
+        List<Candidate> results = new ArrayList<>();
+        for (Candidate candidate : searchLayer(score, current, Math.max(ef, limit), 0)) {
+            if (accept.test(candidate.node)) {
+                results.add(candidate);
+                if (results.size() == limit) {
+                    break;
+                }
+            }
+        }
+        return results;
+    }
+
+    private int maxLinks(int level) {
+        return level == 0 ? maxLinks0 : m;
+    }
+
+    private int randomLevel() {
+        return (int) (-Math.log(1 - random.nextDouble()) * levelMultiplier);
+    }
+
+    private int greedyClosest(NodeScore score, int start, int level) {
+        int current = start;
+        float currentScore = score.score(current);
+        boolean improved = true;
+        while (improved) {
+            improved = false;
+            int[] neighbours = links[current][level];
+            for (int i = 1; i <= neighbours[0]; i++) {
+                float s = score.score(neighbours[i]);
+                if (s > currentScore) {
+                    currentScore = s;
+                    current = neighbours[i];
+                    improved = true;
+                }
+            }
+        }
+        return current;
+    }
+
+    /**
+     * Beam search within one layer.
+     *
+     * @return up to ef nodes, closest first
+     */
+    private List<Candidate> searchLayer(NodeScore score, int start, int ef, int level) {
+        BitSet visited = new BitSet(size);
+        ScoreHeap toVisit = new ScoreHeap(ef * 2, true);
+        ScoreHeap found = new ScoreHeap(ef + 1, false);
+        float startScore = score.score(start);
+        visited.set(start);
+        toVisit.push(start, startScore);
+        found.push(start, startScore);
+
+        while (toVisit.size() > 0) {
+            float closestScore = toVisit.topScore();
+            int closest = toVisit.pop();
+            if (found.size() >= ef && closestScore < found.topScore()) {
+                break;
+            }
+            int[][] nodeLinks = links[closest];
+            if (level >= nodeLinks.length) {
+                continue;
+            }
+            int[] neighbours = nodeLinks[level];
+            for (int i = 1; i <= neighbours[0]; i++) {
+                int neighbour = neighbours[i];
+                if (visited.get(neighbour)) {
+                    continue;
+                }
+                visited.set(neighbour);
+                float s = score.score(neighbour);
+                if (found.size() < ef || s > found.topScore()) {
+                    toVisit.push(neighbour, s);
+                    found.push(neighbour, s);
+                    if (found.size() > ef) {
+                        found.pop();
+                    }
+                }
+            }
+        }
+
+        Candidate[] result = new Candidate[found.size()];
+        for (int i = result.length - 1; i >= 0; i--) {
+            float s = found.topScore();
+            result[i] = new Candidate(found.pop(), s);
+        }
+        return Arrays.asList(result);
+    }
+
+    /**
+     * Neighbour selection heuristic: keep a candidate only if it is closer to the new node than to
+     * any neighbour already kept, which spreads links across clusters. Remaining slots are filled
+     * with the closest pruned candidates.
+     */
+    private List<Candidate> selectNeighbours(List<Candidate> candidates, int max) {
+        List<Candidate> selected = new ArrayList<>(max);
+        List<Candidate> pruned = new ArrayList<>(max);
+        for (Candidate candidate : candidates) {
+            if (selected.size() >= max) {
+                break;
+            }
+            boolean diverse = true;
+            for (Candidate kept : selected) {
+                if (similarity.between(candidate.node, kept.node) > candidate.score) {
+                    diverse = false;
+                    break;
+                }
+            }
+            if (diverse) {
+                selected.add(candidate);
+            } else if (pruned.size() < max) {
+                pruned.add(candidate);
+            }
+        }
+        for (int i = 0; i < pruned.size() && selected.size() < max; i++) {
+            selected.add(pruned.get(i));
+        }
+        return selected;
+    }
+
+    /**
+     * Add a back link from an existing node. If the node is full, its links are reselected with
+     * the same heuristic as for new nodes.
+     */
+    private void connect(int from, int to, int level) {
+        int[] nodeLinks = links[from][level];
+        int count = nodeLinks[0];
+        if (count < nodeLinks.length - 1) {
+            nodeLinks[count + 1] = to;
+            nodeLinks[0] = count + 1;
+            return;
+        }
+        List<Candidate> candidates = new ArrayList<>(count + 1);
+        candidates.add(new Candidate(to, similarity.between(from, to)));
+        for (int i = 1; i <= count; i++) {
+            candidates.add(new Candidate(nodeLinks[i], similarity.between(from, nodeLinks[i])));
+        }
+        candidates.sort(Comparator.comparingDouble((Candidate c) -> c.score).reversed());
+        List<Candidate> kept = selectNeighbours(candidates, count);
+        nodeLinks[0] = kept.size();
+        for (int i = 0; i < kept.size(); i++) {
+            nodeLinks[i + 1] = kept.get(i).node;
+        }
+    }
+
+    // Persistence
+
+    void write(DataOutputStream out) throws IOException {
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeInt(m);
+        out.writeInt(size);
+        out.writeInt(entryPoint);
+        out.writeInt(maxLevel);
+        for (int node = 0; node < size; node++) {
+            int[][] nodeLinks = links[node];
+            out.writeByte(nodeLinks.length - 1);
+            for (int[] levelLinks : nodeLinks) {
+                out.writeShort(levelLinks[0]);
+                for (int i = 1; i <= levelLinks[0]; i++) {
+                    out.writeInt(levelLinks[i]);
+                }
+            }
+        }
+    }
+
+    /**
+     * Load a graph written by {@link #write}.
+     *
+     * @param maxNodes number of vectors available; a graph with more nodes is rejected
+     * @throws IOException if the data is not a compatible graph
+     */
+    static HnswGraph read(DataInputStream in, Similarity similarity, int m, int efConstruction, int maxNodes) throws IOException {
+        if (in.readInt() != MAGIC || in.readInt() != VERSION || in.readInt() != m) {
+            throw new IOException("incompatible graph file");
+        }
+        int size = in.readInt();
+        if (size < 0 || size > maxNodes) {
+            throw new IOException("graph has " + size + " nodes but only " + maxNodes + " vectors exist");
+        }
+        HnswGraph graph = new HnswGraph(similarity, m, efConstruction);
+        graph.entryPoint = in.readInt();
+        graph.maxLevel = in.readInt();
+        graph.links = new int[Math.max(1024, size)][][];
+        for (int node = 0; node < size; node++) {
+            int level = in.readUnsignedByte();
+            int[][] nodeLinks = new int[level + 1][];
+            for (int l = 0; l <= level; l++) {
+                int count = in.readUnsignedShort();
+                int[] levelLinks = new int[graph.maxLinks(l) + 1];
+                if (count > levelLinks.length - 1) {
+                    throw new IOException("node " + node + " has too many links");
+                }
+                levelLinks[0] = count;
+                for (int i = 1; i <= count; i++) {
+                    int neighbour = in.readInt();
+                    if (neighbour < 0 || neighbour >= size) {
+                        throw new IOException("node " + node + " links to unknown node " + neighbour);
+                    }
+                    levelLinks[i] = neighbour;
+                }
+                nodeLinks[l] = levelLinks;
+            }
+            graph.links[node] = nodeLinks;
+        }
+        graph.size = size;
+        if (size > 0 && (graph.entryPoint < 0 || graph.entryPoint >= size)) {
+            throw new IOException("invalid entry point");
+        }
+        return graph;
+    }
+
+    /**
+     * Binary heap of nodes keyed by score, without boxing. The top is the highest score for a
+     * max-heap and the lowest for a min-heap.
+     */
+    private static final class ScoreHeap {
+        private final boolean max;
+        private int[] nodes;
+        private float[] scores;
+        private int size = 0;
+
+        ScoreHeap(int capacity, boolean max) {
+            this.max = max;
+            this.nodes = new int[Math.max(16, capacity)];
+            this.scores = new float[nodes.length];
+        }
+
+        int size() {
+            return size;
+        }
+
+        float topScore() {
+            return scores[0];
+        }
+
+        void push(int node, float score) {
+            if (size == nodes.length) {
+                nodes = Arrays.copyOf(nodes, size * 2);
+                scores = Arrays.copyOf(scores, size * 2);
+            }
+            int i = size++;
+            while (i > 0) {
+                int parent = (i - 1) / 2;
+                if (!above(score, scores[parent])) {
+                    break;
+                }
+                nodes[i] = nodes[parent];
+                scores[i] = scores[parent];
+                i = parent;
+            }
+            nodes[i] = node;
+            scores[i] = score;
+        }
+
+        int pop() {
+            int top = nodes[0];
+            size--;
+            int node = nodes[size];
+            float score = scores[size];
+            int i = 0;
+            while (true) {
+                int child = 2 * i + 1;
+                if (child >= size) {
+                    break;
+                }
+                if (child + 1 < size && above(scores[child + 1], scores[child])) {
+                    child++;
+                }
+                if (!above(scores[child], score)) {
+                    break;
+                }
+                nodes[i] = nodes[child];
+                scores[i] = scores[child];
+                i = child;
+            }
+            nodes[i] = node;
+            scores[i] = score;
+            return top;
+        }
+
+        private boolean above(float a, float b) {
+            return max ? a > b : a < b;
+        }
+    }
+
+    static final class Candidate {
+        final int node;
+        final float score;
+
+        Candidate(int node, float score) {
+            this.node = node;
+            this.score = score;
+        }
+    }
+}
@@ -0,0 +1,233 @@
+package dev.balakumar.codecompass;
+
+import com.intellij.openapi.project.Project;
+import okhttp3.*;
+import okio.Buffer;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.TrustManager;
+import javax.net.ssl.X509TrustManager;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.security.SecureRandom;
+import java.security.cert.X509Certificate;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * HTTP clients shared by every service talking to the same provider, in all open projects.
+ *
+ * Each provider gets one client with its own connection pool and dispatcher, so connections,
+ * TLS sessions and threads are reused across services instead of every service building a client
+ * of its own, and a slow provider cannot hold up connections meant for another. HTTPS providers
+ * negotiate HTTP/2, which carries concurrent requests over a single connection. The dispatcher
+ * limits how many asynchronous calls run against the provider at once; it follows the provider's
+ * concurrency setting, with room for a few interactive requests next to the indexer. Requests to
+ * the AI providers also pass through an {@link AdaptiveRateLimiter} with the same ceiling.
+ */
+public final class HttpClients {
+    public static final String OLLAMA = "OLLAMA";
+    public static final String GEMINI = "GEMINI";
+    public static final String OPENROUTER = "OPENROUTER";
+    public static final String QDRANT = "QDRANT";
+
+    private static final long CONNECT_TIMEOUT_SECONDS = 30;
+    private static final long KEEP_ALIVE_MINUTES = 5;
+    // Sent on idle HTTP/2 connections so a connection dropped by a proxy is noticed before it is reused
+    private static final long PING_INTERVAL_SECONDS = 30;
+    // Requests the user is waiting for may run next to this many indexing requests
+    private static final int INTERACTIVE_HEADROOM = 2;
+    // Request bodies from this size on are compressed, where the provider accepts it
+    private static final long GZIP_MIN_BYTES = 32 * 1024;
+    private static final String GEMINI_HOST = "https://generativelanguage.googleapis.com/";
+    private static final String OPENROUTER_HOST = "https://openrouter.ai/";
+    private static final String QDRANT_HOST = "http://localhost:6333/";
+
+    private static final Map<String, OkHttpClient> clients = new HashMap<>();
+    private static final Map<String, AdaptiveRateLimiter> rateLimiters = new HashMap<>();
+
+    private HttpClients() {
+    }
+
+    /**
+     * @return the shared client of the provider, with its dispatcher allowing maxRequestsPerHost
+     * concurrent calls plus a little headroom
+     */
+    public static synchronized OkHttpClient get(String provider, int maxRequestsPerHost) {
+        OkHttpClient client = client(provider);
+        int limit = Math.max(1, maxRequestsPerHost) + INTERACTIVE_HEADROOM;
+        AdaptiveRateLimiter rateLimiter = rateLimiters.get(provider);
+        if (rateLimiter != null) {
+            rateLimiter.setCeiling(limit);
+        }
+        if (client.dispatcher().getMaxRequestsPerHost() != limit) {
+            client.dispatcher().setMaxRequestsPerHost(limit);
+            client.dispatcher().setMaxRequests(Math.max(limit, client.dispatcher().getMaxRequests()));
+        }
+        return client;
+    }
+
+    private static synchronized OkHttpClient client(String provider) {
+        OkHttpClient client = clients.get(provider);
+        if (client == null) {
+            client = create(provider);
+            clients.put(provider, client);
+        }
+        return client;
+    }
+
+    /**
+     * Open connections to the providers the project is configured for, so the first search or
+     * indexing request does not pay for DNS, TCP and TLS setup. Failures are ignored.
+     */
+    public static void prewarm(Project project) {
+        CodeMapperSettingsState settings = CodeMapperSettingsState.getInstance(project);
+        Map<String, String> hosts = new HashMap<>();
+        for (String provider : Arrays.asList(settings.embeddingProvider, settings.generationProvider)) {
+            switch (provider) {
+                case GEMINI:
+                    hosts.put(GEMINI, GEMINI_HOST);
+                    break;
+                case OPENROUTER:
+                    hosts.put(OPENROUTER, OPENROUTER_HOST);
+                    break;
+                case OLLAMA:
+                    hosts.put(OLLAMA, settings.ollamaEndpoint);
+                    break;
+                default:
+                    break;
+            }
+        }
+        if (VectorStore.QDRANT.equals(settings.vectorStore)) {
+            hosts.put(QDRANT, QDRANT_HOST);
+        }
+
+        for (Map.Entry<String, String> host : hosts.entrySet()) {
+            Request request;
+            try {
+                request = new Request.Builder().url(host.getValue()).head().build();
+            } catch (IllegalArgumentException e) {
+                System.err.println("Not prewarming invalid endpoint " + host.getValue() + ": " + e.getMessage());
+                continue;
+            }
+            client(host.getKey()).newCall(request).enqueue(new Callback() {
+                @Override
+                public void onFailure(Call call, IOException e) {
+                    System.out.println("Could not prewarm connection to " + host.getValue() + ": " + e.getMessage());
+                }
+
+                @Override
+                public void onResponse(Call call, Response response) {
+                    // Any answer means the connection is open and back in the pool
+                    response.close();
+                }
+            });
+        }
+    }
+
+    private static OkHttpClient create(String provider) {
+        OkHttpClient.Builder builder = new OkHttpClient.Builder()
+                .connectionPool(new ConnectionPool(5, KEEP_ALIVE_MINUTES, TimeUnit.MINUTES))
+                .dispatcher(new Dispatcher())
+                .connectTimeout(CONNECT_TIMEOUT_SECONDS, TimeUnit.SECONDS)
+                .retryOnConnectionFailure(true);
+        switch (provider) {
+            case GEMINI:
+            case OPENROUTER:
+                // Generation can take minutes on long prompts
+                builder.readTimeout(240, TimeUnit.SECONDS)
+                        .writeTimeout(60, TimeUnit.SECONDS)
+                        .protocols(Arrays.asList(Protocol.HTTP_2, Protocol.HTTP_1_1))
+                        .pingInterval(PING_INTERVAL_SECONDS, TimeUnit.SECONDS);
+                trustAllCertificates(builder);
+                break;
+            case OLLAMA:
+                // Local models may need to be loaded before they answer; plain HTTP has no HTTP/2
+                builder.readTimeout(240, TimeUnit.SECONDS)
+                        .writeTimeout(60, TimeUnit.SECONDS)
+                        .protocols(Collections.singletonList(Protocol.HTTP_1_1));
+                break;
+            case QDRANT:
+                // Upsert batches are large JSON bodies, which Qdrant accepts compressed
+                builder.readTimeout(60, TimeUnit.SECONDS)
+                        .writeTimeout(60, TimeUnit.SECONDS)
+                        .protocols(Collections.singletonList(Protocol.HTTP_1_1))
+                        .addInterceptor(new GzipRequestInterceptor());
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown HTTP provider: " + provider);
+        }
+        if (!QDRANT.equals(provider)) {
+            AdaptiveRateLimiter rateLimiter = new AdaptiveRateLimiter(provider, Integer.MAX_VALUE);
+            rateLimiters.put(provider, rateLimiter);
+            builder.addInterceptor(rateLimiter);
+        }
+        return builder.build();
+    }
+
+    // The hosted providers have always been called without certificate checks, to work behind
+    // intercepting corporate proxies
+    private static void trustAllCertificates(OkHttpClient.Builder builder) {
+        try {
+            TrustManager[] trustAllCerts = new TrustManager[] {
+                    new X509TrustManager() {
+                        public X509Certificate[] getAcceptedIssuers() {
+                            return new X509Certificate[0];
+                        }
+                        public void checkClientTrusted(X509Certificate[] certs, String authType) {}
+                        public void checkServerTrusted(X509Certificate[] certs, String authType) {}
+                    }
+            };
+            SSLContext sslContext = SSLContext.getInstance("SSL");
+            sslContext.init(null, trustAllCerts, new SecureRandom());
+            builder.sslSocketFactory(sslContext.getSocketFactory(), (X509TrustManager) trustAllCerts[0])
+                    .hostnameVerifier((hostname, session) -> true);
+        } catch (Exception e) {
+            System.err.println("Error creating SSL-bypassing client: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Compresses large request bodies with gzip. If the server answers 415 Unsupported Media
+     * Type, the request is sent again uncompressed and the client stops compressing.
+     */
+    private static final class GzipRequestInterceptor implements Interceptor {
+        private volatile boolean unsupported = false;
+
+        @Override
+        public Response intercept(Chain chain) throws IOException {
+            Request request = chain.request();
+            RequestBody body = request.body();
+            if (unsupported || body == null || request.header("Content-Encoding") != null ||
+                    body.contentLength() < GZIP_MIN_BYTES) {
+                return chain.proceed(request);
+            }
+
+            Buffer plain = new Buffer();
+            body.writeTo(plain);
+            ByteArrayOutputStream compressed = new ByteArrayOutputStream((int) (plain.size() / 4));
+            try (GZIPOutputStream gzip = new GZIPOutputStream(compressed)) {
+                plain.copyTo(gzip);
+            }
+            Request gzipped = request.newBuilder()
+                    .header("Content-Encoding", "gzip")
+                    .method(request.method(), RequestBody.create(compressed.toByteArray(), body.contentType()))
+                    .build();
+
+            Response response = chain.proceed(gzipped);
+            if (response.code() != 415) {
+                return response;
+            }
+            response.close();
+            unsupported = true;
+            System.out.println("Server does not accept compressed requests; sending them uncompressed");
+            return chain.proceed(request.newBuilder()
+                    .method(request.method(), RequestBody.create(plain.readByteArray(), body.contentType()))
+                    .build());
+        }
+    }
+}
@@ -0,0 +1,391 @@
+package dev.balakumar.codecompass;
+
+import com.google.gson.JsonObject;
+
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.function.Consumer;
+
+/**
+ * {@link VectorStore} that keeps the project's {@link LexicalIndex} in step with another store and
+ * combines both in search. Every point written to the store is also indexed for keywords, and the
+ * keyword and vector rankings are merged by reciprocal rank fusion. The chunk texts go to the
+ * {@link ContentStore} rather than into either index. A query that is a single code
+ * identifier is answered from the keyword index alone when it has a match, so looking up a class
+ * or method by name needs no embedding call. Other queries search both indexes at once: the
+ * embedding call and vector search run on a task of their own while the keyword index is searched.
+ *
+ * On a branch kept in a {@link BranchOverlayStore}, keyword entries are written under the branch
+ * and the base entries of the files the overlay shadows are left out, as in the vector search.
+ */
+public class HybridVectorStore implements VectorStore {
+    // Rank offset of reciprocal rank fusion; 60 is the customary value and keeps one list's top
+    // hit from outweighing a result both lists rank well
+    private static final int RRF_K = 60;
+    // Cosine similarity never falls below this, so candidates fetched with it are unfiltered
+    private static final float NO_THRESHOLD = -1f;
+    // Searches running at once when virtual threads are unavailable
+    private static final int SEARCH_THREADS = 4;
+
+    private final VectorStore vectorStore;
+    private final LexicalIndex lexicalIndex;
+    private final QueryCache queryCache;
+    private final ContentStore contentStore;
+    private final EmbeddingService aiService;
+    private final ExecutorService searchExecutor;
+    // Branch the keyword entries are written under, null for the base
+    private final String branch;
+    // Files whose base keyword entries the branch hides
+    private final Set<String> shadowed;
+
+    public HybridVectorStore(VectorStore vectorStore, LexicalIndex lexicalIndex, QueryCache queryCache, ContentStore contentStore,
+                             EmbeddingService aiService, boolean virtualThreads) {
+        this.vectorStore = vectorStore;
+        this.lexicalIndex = lexicalIndex;
+        this.queryCache = queryCache;
+        this.contentStore = contentStore;
+        this.aiService = aiService;
+        this.searchExecutor = TaskExecutors.newExecutor("search", SEARCH_THREADS, virtualThreads);
+        this.branch = vectorStore.getOverlayBranch();
+        this.shadowed = vectorStore.getOverlayPaths();
+    }
+
+    @Override
+    public String getName() {
+        return vectorStore.getName();
+    }
+
+    @Override
+    public String getOverlayBranch() {
+        return vectorStore.getOverlayBranch();
+    }
+
+    @Override
+    public Set<String> getOverlayPaths() {
+        return shadowed;
+    }
+
+    @Override
+    public boolean isConnected() {
+        return vectorStore.isConnected();
+    }
+
+    @Override
+    public void addOrUpdateDocument(String id, String content, String filePath, String summary, Map<String, String> metadata) {
+        vectorStore.addOrUpdateDocument(id, content, filePath, summary, metadata);
+        contentStore.put(id, metadata.get("contentHash"), content);
+        lexicalIndex.put(branch, id, PointPayload.build(filePath, summary, metadata), content);
+        queryCache.invalidateCandidates();
+    }
+
+    @Override
+    public boolean upsertDocument(String id, String content, String filePath, String summary, Map<String, String> metadata, float[] embedding) {
+        boolean stored = vectorStore.upsertDocument(id, content, filePath, summary, metadata, embedding);
+        if (stored) {
+            contentStore.put(id, metadata.get("contentHash"), content);
+            lexicalIndex.put(branch, id, PointPayload.build(filePath, summary, metadata), content);
+            queryCache.invalidateCandidates();
+        }
+        return stored;
+    }
+
+    /**
+     * Points enter the keyword index once the wrapped store reports them stored.
+     */
+    @Override
+    public VectorStore.UpsertBuffer openUpsertBuffer(int maxPoints, long maxBytes) {
+        VectorStore.UpsertBuffer buffer = vectorStore.openUpsertBuffer(maxPoints, maxBytes);
+        return new VectorStore.UpsertBuffer() {
+            @Override
+            public void add(String id, String content, String filePath, String summary, Map<String, String> metadata,
+                            float[] embedding, Consumer<Boolean> callback) {
+                JsonObject payload = PointPayload.build(filePath, summary, metadata);
+                buffer.add(id, content, filePath, summary, metadata, embedding, stored -> {
+                    if (stored) {
+                        contentStore.put(id, metadata.get("contentHash"), content);
+                        lexicalIndex.put(branch, id, payload, content);
+                        queryCache.invalidateCandidates();
+                    }
+                    callback.accept(stored);
+                });
+            }
+
+            @Override
+            public void close() {
+                buffer.close();
+            }
+        };
+    }
+
+    @Override
+    public void deleteStaleChunks(Map<String, Integer> chunkCounts) {
+        vectorStore.deleteStaleChunks(chunkCounts);
+        lexicalIndex.deleteStaleChunks(branch, chunkCounts);
+        queryCache.invalidateCandidates();
+    }
+
+    @Override
+    public boolean updateSummary(String filePath, String contentHash, String summary) {
+        lexicalIndex.updateSummary(keywordBranch(filePath), filePath, contentHash, summary);
+        queryCache.invalidateCandidates();
+        return vectorStore.updateSummary(filePath, contentHash, summary);
+    }
+
+    @Override
+    public void refreshDocumentCount() {
+        vectorStore.refreshDocumentCount();
+    }
+
+    @Override
+    public void deleteDocument(String filePath) {
+        vectorStore.deleteDocument(filePath);
+        lexicalIndex.deleteByPath(branch, filePath);
+        queryCache.invalidateCandidates();
+    }
+
+    @Override
+    public void deleteDocuments(Collection<String> filePaths) {
+        vectorStore.deleteDocuments(filePaths);
+        for (String filePath : filePaths) {
+            lexicalIndex.deleteByPath(branch, filePath);
+        }
+        queryCache.invalidateCandidates();
+    }
+
+    /**
+     * Files with points in either index, so entries left behind in only one of them are found too.
+     */
+    @Override
+    public Set<String> getIndexedPaths() {
+        Set<String> paths = vectorStore.getIndexedPaths();
+        if (paths != null) {
+            paths.addAll(keywordFingerprints().keySet());
+        }
+        return paths;
+    }
+
+    /**
+     * Points come with their chunk text from the {@link ContentStore}, or as the file on disk
+     * holds it where the store has none.
+     */
+    @Override
+    public boolean forEachPoint(Consumer<StoredPoint> visitor) {
+        return vectorStore.forEachPoint(point -> {
+            List<CodeSearchResult> result = new ArrayList<>(List.of(PointPayload.toSearchResult(point.id, 0, point.payload)));
+            contentStore.loadContent(result, 1);
+            visitor.accept(point.withContent(result.get(0).getContent()));
+        });
+    }
+
+    @Override
+    public boolean importPoints(List<StoredPoint> points) {
+        boolean stored = vectorStore.importPoints(points);
+        if (stored) {
+            for (StoredPoint point : points) {
+                String contentHash = point.payload.has("contentHash") ? point.payload.get("contentHash").getAsString() : null;
+                contentStore.put(point.id, contentHash, point.content);
+                lexicalIndex.put(branch, point.id, point.payload, point.content);
+            }
+        }
+        queryCache.invalidateCandidates();
+        return stored;
+    }
+
+    /**
+     * Only files whose keyword entries match the stored fingerprint count as indexed, so files
+     * missing from the keyword index (say after it was lost in a crash) are indexed again.
+     */
+    @Override
+    public Map<String, String> getFingerprints() {
+        Map<String, String> fingerprints = new HashMap<>(vectorStore.getFingerprints());
+        Map<String, String> keywordFingerprints = keywordFingerprints();
+        int before = fingerprints.size();
+        fingerprints.entrySet().removeIf(entry -> !entry.getValue().equals(keywordFingerprints.get(entry.getKey())));
+        if (fingerprints.size() < before) {
+            System.out.println((before - fingerprints.size()) + " indexed files are missing from the keyword index and will be indexed again");
+        }
+        return fingerprints;
+    }
+
+    @Override
+    public Map<String, String> getPendingSummaries() {
+        return vectorStore.getPendingSummaries();
+    }
+
+    @Override
+    public String getFingerprint(String filePath) {
+        String fingerprint = vectorStore.getFingerprint(filePath);
+        return fingerprint != null && fingerprint.equals(lexicalIndex.getFingerprint(keywordBranch(filePath), filePath))
+                ? fingerprint : null;
+    }
+
+    /**
+     * @return file path to content hash of the keyword entries this store sees: the branch's, and
+     * the base's of files the branch does not shadow
+     */
+    private Map<String, String> keywordFingerprints() {
+        Map<String, String> fingerprints = lexicalIndex.getFingerprints(null);
+        if (branch != null) {
+            fingerprints.keySet().removeAll(shadowed);
+            fingerprints.putAll(lexicalIndex.getFingerprints(branch));
+        }
+        return fingerprints;
+    }
+
+    /**
+     * @return the branch holding the keyword entries of a file, as the overlay routes its points
+     */
+    private String keywordBranch(String filePath) {
+        return branch != null && shadowed.contains(filePath) ? branch : null;
+    }
+
+    /**
+     * Fused results are ordered by their reciprocal rank fusion score but keep their own
+     * similarity, the cosine similarity where the vector search found them, so what is shown and
+     * compared with the threshold stays on one scale. When only one list has results they are
+     * returned as they are.
+     */
+    @Override
+    public List<CodeSearchResult> search(String query, int limit, Map<String, String> filters, float similarityThreshold) {
+        int candidates = limit * 2;
+        boolean identifierQuery = LexicalIndex.isIdentifierQuery(query);
+        Future<List<CodeSearchResult>> vectorSearch = identifierQuery
+                ? null
+                : searchExecutor.submit(() -> vectorCandidates(query, candidates, filters));
+        List<CodeSearchResult> keywordResults = lexicalIndex.search(query, candidates, filters, branch, shadowed);
+        if (!keywordResults.isEmpty() && identifierQuery) {
+            return truncate(keywordResults, limit);
+        }
+
+        List<CodeSearchResult> vectorResults = new ArrayList<>();
+        List<CodeSearchResult> nearest = vectorSearch != null ? await(vectorSearch) : vectorCandidates(query, candidates, filters);
+        for (CodeSearchResult result : nearest) {
+            if (result.getSimilarity() >= similarityThreshold) {
+                vectorResults.add(result);
+            }
+        }
+        if (keywordResults.isEmpty()) {
+            return truncate(vectorResults, limit);
+        }
+        if (vectorResults.isEmpty()) {
+            return truncate(keywordResults, limit);
+        }
+
+        // Keyed by chunk rather than point id, since stores may assign ids of their own
+        Map<String, CodeSearchResult> resultsByChunk = new LinkedHashMap<>();
+        Map<String, Double> fusedScores = new HashMap<>();
+        for (List<CodeSearchResult> ranking : Arrays.asList(vectorResults, keywordResults)) {
+            for (int rank = 0; rank < ranking.size(); rank++) {
+                CodeSearchResult result = ranking.get(rank);
+                String key = chunkKey(result);
+                resultsByChunk.putIfAbsent(key, result);
+                fusedScores.merge(key, 1.0 / (RRF_K + rank + 1), Double::sum);
+            }
+        }
+
+        // Vector results were added first, so chunks found by both keep their vector similarity
+        List<String> ranked = new ArrayList<>(resultsByChunk.keySet());
+        ranked.sort(Comparator.comparingDouble((String key) -> fusedScores.get(key)).reversed());
+        List<CodeSearchResult> fused = new ArrayList<>();
+        for (String key : ranked) {
+            fused.add(resultsByChunk.get(key));
+        }
+        return truncate(fused, limit);
+    }
+
+    @Override
+    public List<CodeSearchResult> searchByEmbedding(float[] queryEmbedding, int limit, Map<String, String> filters, float similarityThreshold) {
+        return vectorStore.searchByEmbedding(queryEmbedding, limit, filters, similarityThreshold);
+    }
+
+    /**
+     * The nearest chunks to the query regardless of threshold. A threshold only cuts the tail off
+     * the top results, so the list is cached and searching the same query again with a different
+     * threshold needs neither an embedding call nor a search.
+     */
+    private List<CodeSearchResult> vectorCandidates(String query, int limit, Map<String, String> filters) {
+        String key = vectorStore.getName() + "\n" + limit + "\n" + (filters == null ? "" : new TreeMap<>(filters)) + "\n" + query;
+        List<CodeSearchResult> cached = queryCache.getCandidates(key);
+        if (cached != null) {
+            return cached;
+        }
+        float[] queryEmbedding;
+        try {
+            queryEmbedding = queryCache.getEmbedding(query, aiService);
+        } catch (IOException e) {
+            System.err.println("Error embedding search query: " + e.getMessage());
+            return Collections.emptyList();
+        }
+        List<CodeSearchResult> results = vectorStore.searchByEmbedding(queryEmbedding, limit, filters, NO_THRESHOLD);
+        // An empty list may come from a store that is briefly unreachable, so it is not kept
+        if (!results.isEmpty()) {
+            queryCache.putCandidates(key, results);
+        }
+        return results;
+    }
+
+    private static List<CodeSearchResult> await(Future<List<CodeSearchResult>> vectorSearch) {
+        try {
+            return vectorSearch.get();
+        } catch (InterruptedException e) {
+            vectorSearch.cancel(true);
+            Thread.currentThread().interrupt();
+            return Collections.emptyList();
+        } catch (ExecutionException e) {
+            System.err.println("Error during vector search: " + e.getCause().getMessage());
+            return Collections.emptyList();
+        }
+    }
+
+    private static String chunkKey(CodeSearchResult result) {
+        return result.getFilePath() + "#" + result.getMetadata().getOrDefault("chunkIndex", "0");
+    }
+
+    private static List<CodeSearchResult> truncate(List<CodeSearchResult> results, int limit) {
+        return results.size() > limit ? new ArrayList<>(results.subList(0, limit)) : results;
+    }
+
+    @Override
+    public void saveIndex() {
+        vectorStore.saveIndex();
+        lexicalIndex.save();
+    }
+
+    @Override
+    public void deleteAll() {
+        vectorStore.deleteAll();
+        lexicalIndex.clear(branch);
+        queryCache.invalidateCandidates();
+    }
+
+    @Override
+    public void deleteAllBranches() {
+        vectorStore.deleteAllBranches();
+        lexicalIndex.clear();
+        queryCache.invalidateCandidates();
+    }
+
+    @Override
+    public int getDocumentCount() {
+        return vectorStore.getDocumentCount();
+    }
+
+    @Override
+    public int getDimension() {
+        return vectorStore.getDimension();
+    }
+
+    @Override
+    public void close() {
+        searchExecutor.shutdown();
+        vectorStore.close();
+    }
+
+    @Override
+    public List<String> getUniqueLanguages() {
+        return vectorStore.getUniqueLanguages();
+    }
+}
@@ -0,0 +1,63 @@
+package dev.balakumar.codecompass;
+
+import com.intellij.openapi.actionSystem.AnAction;
+import com.intellij.openapi.actionSystem.AnActionEvent;
+import com.intellij.openapi.fileChooser.FileChooser;
+import com.intellij.openapi.fileChooser.FileChooserDescriptorFactory;
+import com.intellij.openapi.progress.ProgressIndicator;
+import com.intellij.openapi.progress.ProgressManager;
+import com.intellij.openapi.progress.Task;
+import com.intellij.openapi.project.Project;
+import com.intellij.openapi.vfs.VirtualFile;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.nio.file.Path;
+
+/**
+ * Replaces the index with an exported snapshot, then indexes only the files that differ from it
+ * in this checkout.
+ */
+public class ImportIndexSnapshotAction extends AnAction {
+    @Override
+    public void actionPerformed(AnActionEvent e) {
+        Project project = e.getProject();
+        if (project == null) {
+            return;
+        }
+        VirtualFile source = FileChooser.chooseFile(
+                FileChooserDescriptorFactory.createSingleFileDescriptor(IndexSnapshot.EXTENSION)
+                        .withTitle("Import CodeCompass Index Snapshot"),
+                project, project.getBaseDir());
+        if (source == null) {
+            return;
+        }
+        Path file = Path.of(source.getPath());
+        ProgressManager.getInstance().run(new Task.Backgroundable(project, "Importing CodeCompass index snapshot", true) {
+            @Override
+            public void run(@NotNull ProgressIndicator indicator) {
+                indicator.setIndeterminate(true);
+                SimpleIndexer indexer = CodeCompassService.getInstance(project).getIndexer();
+                int points;
+                try {
+                    points = indexer.importSnapshot(file, indicator);
+                } catch (IOException ex) {
+                    ErrorHandler.showError(project, "CodeCompass Import Failed",
+                            "The index snapshot could not be imported: " + ex.getMessage());
+                    return;
+                }
+                if (points < 0) {
+                    return;
+                }
+
+                indicator.setText("Indexing local changes...");
+                indexer.indexProject(project, indicator);
+                if (!indicator.isCanceled()) {
+                    ErrorHandler.showInfo(project, "CodeCompass Index Imported",
+                            "Imported " + points + " points and indexed local changes. " +
+                                    indexer.getDocumentCount() + " documents in the index.");
+                }
+            }
+        });
+    }
+}
@@ -0,0 +1,212 @@
+package dev.balakumar.codecompass;
+
+import com.intellij.openapi.Disposable;
+import com.intellij.openapi.application.ApplicationManager;
+import com.intellij.openapi.components.ServiceManager;
+import com.intellij.openapi.progress.ProgressIndicator;
+import com.intellij.openapi.progress.Task;
+import com.intellij.openapi.project.Project;
+import com.intellij.openapi.vfs.LocalFileSystem;
+import com.intellij.openapi.vfs.VirtualFile;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Collects changed and deleted paths reported by {@link IndexUpdateListener} and applies them to
+ * the index in debounced batches, so a git checkout touching hundreds of files results in one
+ * background update instead of hundreds.
+ */
+public class IncrementalIndexer implements Disposable {
+    private static final long DEBOUNCE_MS = 1500;
+    private static final long MAX_DELAY_MS = 30000;
+    // Least time between two reconciliations of the index with the project's files
+    private static final long COMPACT_INTERVAL_MS = 10 * 60 * 1000;
+
+    private final Project project;
+    // Path -> true if the file was deleted, false if it was created or modified. Last event wins.
+    private final Map<String, Boolean> pending = new LinkedHashMap<>();
+    private final ScheduledExecutorService scheduler;
+    private final AtomicBoolean updateRunning = new AtomicBoolean(false);
+    private ScheduledFuture<?> scheduledFlush;
+    private long firstQueuedAt = 0;
+    private volatile long lastCompactedAt = 0;
+
+    public IncrementalIndexer(Project project) {
+        this.project = project;
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(AdaptiveRateLimiter.background(runnable), "CodeCompass-incremental-indexer");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    public static IncrementalIndexer getInstance(Project project) {
+        return ServiceManager.getService(project, IncrementalIndexer.class);
+    }
+
+    public void fileChanged(String path) {
+        queue(path, false);
+    }
+
+    public void fileDeleted(String path) {
+        queue(path, true);
+    }
+
+    private synchronized void queue(String path, boolean deleted) {
+        pending.remove(path);
+        pending.put(path, deleted);
+        long now = System.currentTimeMillis();
+        if (firstQueuedAt == 0) {
+            firstQueuedAt = now;
+        }
+        scheduleFlush(Math.min(DEBOUNCE_MS, Math.max(0, firstQueuedAt + MAX_DELAY_MS - now)));
+    }
+
+    private synchronized void scheduleFlush(long delayMs) {
+        if (scheduler.isShutdown()) {
+            return;
+        }
+        if (scheduledFlush != null) {
+            scheduledFlush.cancel(false);
+        }
+        scheduledFlush = scheduler.schedule(this::flush, delayMs, TimeUnit.MILLISECONDS);
+    }
+
+    private void flush() {
+        if (project.isDisposed()) {
+            return;
+        }
+        // Only one update task at a time; anything queued meanwhile is picked up afterwards.
+        if (!updateRunning.compareAndSet(false, true)) {
+            scheduleFlush(DEBOUNCE_MS);
+            return;
+        }
+
+        Map<String, Boolean> batch;
+        synchronized (this) {
+            batch = new LinkedHashMap<>(pending);
+            pending.clear();
+            firstQueuedAt = 0;
+        }
+        if (batch.isEmpty()) {
+            updateRunning.set(false);
+            return;
+        }
+
+        ApplicationManager.getApplication().invokeLater(() -> {
+            if (project.isDisposed()) {
+                updateRunning.set(false);
+                return;
+            }
+            new Task.Backgroundable(project, "Updating CodeCompass index", true) {
+                @Override
+                public void run(@NotNull ProgressIndicator indicator) {
+                    applyChanges(batch, indicator);
+                }
+
+                @Override
+                public void onFinished() {
+                    updateRunning.set(false);
+                }
+            }.queue();
+        });
+    }
+
+    private void applyChanges(Map<String, Boolean> batch, ProgressIndicator indicator) {
+        SimpleIndexer indexer = getIndexer();
+        // A checkout changes files and branch at once; its files belong to the new branch
+        VectorStore store = indexer.beginRun();
+        try {
+            if (store == null || store.getDocumentCount() == 0) {
+                // Nothing has been indexed yet; a full index run will pick these files up.
+                System.out.println("Skipping incremental update of " + batch.size() + " files: index is empty");
+                return;
+            }
+
+            System.out.println("Applying incremental index update for " + batch.size() + " files");
+            markGitDirty(store.getOverlayBranch(), batch.keySet());
+            indicator.setIndeterminate(false);
+            int done = 0;
+            // Deleted files are removed together, with one request per batch of paths
+            List<String> removed = new ArrayList<>();
+            Iterator<Map.Entry<String, Boolean>> iterator = batch.entrySet().iterator();
+            while (iterator.hasNext()) {
+                if (indicator.isCanceled()) {
+                    indexer.removeFiles(removed);
+                    requeue(iterator);
+                    return;
+                }
+                Map.Entry<String, Boolean> entry = iterator.next();
+                String path = entry.getKey();
+                indicator.setText("Updating index: " + path);
+                indicator.setFraction((double) done / batch.size());
+
+                VirtualFile file = entry.getValue() ? null : LocalFileSystem.getInstance().findFileByPath(path);
+                if (file == null || !file.isValid()) {
+                    removed.add(path);
+                } else {
+                    indexer.indexSingleFile(file, indexer, indicator);
+                }
+                done++;
+            }
+            indexer.removeFiles(removed);
+
+            // Catch files whose deletion was never reported, e.g. because it happened outside the IDE
+            long now = System.currentTimeMillis();
+            if (now - lastCompactedAt >= COMPACT_INTERVAL_MS) {
+                lastCompactedAt = now;
+                int orphans = indexer.compactIndex(indicator);
+                if (orphans > 0) {
+                    System.out.println("Incremental update removed " + orphans + " files missing from the project");
+                }
+            }
+        } finally {
+            indexer.endRun(store);
+        }
+    }
+
+    /**
+     * Let the next full run on the branch know these files were indexed apart from the commit it
+     * recorded, so it checks them even if git no longer reports them as changed.
+     */
+    private void markGitDirty(String branch, Set<String> paths) {
+        IndexManifest manifest = IndexManifest.getInstance(project);
+        if (manifest.addGitDirtyFiles(branch, paths)) {
+            manifest.save();
+        }
+    }
+
+    /**
+     * Put the files a canceled update did not reach back in the queue and schedule their update,
+     * so they do not wait for the next file event.
+     */
+    private void requeue(Iterator<Map.Entry<String, Boolean>> remaining) {
+        synchronized (this) {
+            while (remaining.hasNext()) {
+                Map.Entry<String, Boolean> entry = remaining.next();
+                pending.putIfAbsent(entry.getKey(), entry.getValue());
+            }
+            if (!pending.isEmpty()) {
+                if (firstQueuedAt == 0) {
+                    firstQueuedAt = System.currentTimeMillis();
+                }
+                scheduleFlush(DEBOUNCE_MS);
+            }
+        }
+    }
+
+    private SimpleIndexer getIndexer() {
+        return CodeCompassService.getInstance(project).getIndexer();
+    }
+
+    @Override
+    public void dispose() {
+        scheduler.shutdownNow();
+    }
+}
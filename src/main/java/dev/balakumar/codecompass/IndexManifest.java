@@ -0,0 +1,313 @@
+package dev.balakumar.codecompass;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+import com.intellij.openapi.components.ServiceManager;
+import com.intellij.openapi.project.Project;
+import com.intellij.openapi.vfs.VirtualFile;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Describes the persisted index, so a restart can continue from it instead of starting over.
+ * Kept in .codemapper/index_manifest.json.
+ *
+ * It records the schema version, embedding model, vector dimension and vector store the index
+ * was built with, and for each file the time stamp, size and content hash it had when its
+ * chunks were last known to match it. A file whose time stamp and size are unchanged, and whose
+ * recorded hash is still the one stored in the index, is not read again.
+ *
+ * When the project is a git repository it also records the commit checked out at the end of the
+ * last complete run, plus the files that differed from that commit then. Only those files and
+ * the ones git reports as changed since the commit can differ from what is indexed. This git state
+ * is kept for the base index and for each branch kept in a {@link BranchOverlayStore}, since every
+ * branch's index reaches another commit; methods take the overlay branch, null for the base.
+ *
+ * There is one manifest per project, shared by full runs, incremental updates and snapshot
+ * imports. It is loaded once, every change is made to that copy under its lock, and each save
+ * writes the merged state, so one writer cannot overwrite what another recorded in between.
+ */
+public class IndexManifest {
+    // Bump when chunking or the point payload changes, so existing indexes are rebuilt
+    static final int SCHEMA_VERSION = 1;
+    static final String FILE_NAME = "index_manifest.json";
+    private static final Gson gson = new Gson();
+
+    // Null for projects without a base path, whose manifest is never saved
+    private final Path file;
+    private Data data;
+
+    public IndexManifest(Project project) {
+        this.file = project.getBasePath() != null ? Path.of(project.getBasePath(), ".codemapper", FILE_NAME) : null;
+        this.data = load(file);
+    }
+
+    public static IndexManifest getInstance(Project project) {
+        return ServiceManager.getService(project, IndexManifest.class);
+    }
+
+    /**
+     * Read the manifest, or start an empty one if there is none or it is unreadable.
+     */
+    private static Data load(Path file) {
+        Data data = null;
+        if (file != null && Files.exists(file)) {
+            try (Reader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+                data = gson.fromJson(reader, Data.class);
+            } catch (IOException | JsonParseException e) {
+                System.err.println("Ignoring unreadable index manifest: " + e.getMessage());
+            }
+        }
+        if (data == null || data.files == null) {
+            data = new Data();
+        }
+        return data;
+    }
+
+    /**
+     * @return why the stored vectors cannot be used with the current settings, or null if they can
+     */
+    public synchronized String checkCompatibility(CodeMapperSettingsState settings, int dimension) {
+        if (data.schemaVersion == 0) {
+            // No manifest yet; the stored fingerprints decide what is indexed again
+            return null;
+        }
+        if (data.schemaVersion != SCHEMA_VERSION) {
+            return "index format changed (version " + data.schemaVersion + ", now " + SCHEMA_VERSION + ")";
+        }
+        String model = ProviderSettings.getEmbeddingModel(settings, settings.embeddingProvider);
+        if (!settings.embeddingProvider.equals(data.embeddingProvider) || !model.equals(data.embeddingModel)) {
+            return "embedding model changed from " + data.embeddingProvider + "/" + data.embeddingModel +
+                    " to " + settings.embeddingProvider + "/" + model;
+        }
+        if (data.dimension > 0 && dimension > 0 && data.dimension != dimension) {
+            return "embedding dimension changed from " + data.dimension + " to " + dimension;
+        }
+        return null;
+    }
+
+    /**
+     * Record the settings the index is now built with. File stamps taken against another vector
+     * store say nothing about this one and are dropped.
+     */
+    public synchronized void describe(CodeMapperSettingsState settings, int dimension) {
+        if (!settings.vectorStore.equals(data.vectorStore)) {
+            clearFiles();
+        }
+        data.schemaVersion = SCHEMA_VERSION;
+        data.embeddingProvider = settings.embeddingProvider;
+        data.embeddingModel = ProviderSettings.getEmbeddingModel(settings, settings.embeddingProvider);
+        data.vectorStore = settings.vectorStore;
+        if (dimension > 0) {
+            data.dimension = dimension;
+        }
+    }
+
+    /**
+     * @return true if the file has the time stamp and size it had when it was last verified, and
+     * the content hash recorded then is the one currently stored in the index
+     */
+    public synchronized boolean isUnchanged(VirtualFile file, String storedHash, String vectorStore) {
+        if (storedHash == null || !vectorStore.equals(data.vectorStore)) {
+            return false;
+        }
+        FileStamp stamp = data.files.get(file.getPath());
+        return stamp != null && stamp.timeStamp == file.getTimeStamp() && stamp.length == file.getLength() &&
+                storedHash.equals(stamp.hash);
+    }
+
+    /**
+     * @return the time stamp and size of a file, to be recorded once its content is verified
+     */
+    public static FileStamp stamp(VirtualFile file) {
+        return new FileStamp(file.getTimeStamp(), file.getLength(), null);
+    }
+
+    public synchronized void put(String path, FileStamp stamp, String contentHash) {
+        data.files.put(path, new FileStamp(stamp.timeStamp, stamp.length, contentHash));
+    }
+
+    /**
+     * Forget files that are no longer part of the project.
+     */
+    public synchronized void retainFiles(Set<String> paths) {
+        data.files.keySet().retainAll(paths);
+    }
+
+    public synchronized void removeFiles(Collection<String> paths) {
+        data.files.keySet().removeAll(paths);
+    }
+
+    public synchronized void clearFiles() {
+        data.files.clear();
+        clearGitState();
+    }
+
+    /**
+     * @return the commit the index of the branch was last completely built for with this vector
+     * store, or null
+     */
+    public synchronized String getGitHead(String vectorStore, String branch) {
+        if (!vectorStore.equals(data.vectorStore)) {
+            return null;
+        }
+        if (branch == null) {
+            return data.gitHead;
+        }
+        GitState state = data.branchGitStates != null ? data.branchGitStates.get(branch) : null;
+        return state != null ? state.head : null;
+    }
+
+    /**
+     * @return the files that differed from {@link #getGitHead} of the branch when it was recorded
+     */
+    public synchronized Set<String> getGitDirtyFiles(String branch) {
+        Set<String> dirtyFiles;
+        if (branch == null) {
+            dirtyFiles = data.gitDirtyFiles;
+        } else {
+            GitState state = data.branchGitStates != null ? data.branchGitStates.get(branch) : null;
+            dirtyFiles = state != null ? state.dirtyFiles : null;
+        }
+        return dirtyFiles != null ? new HashSet<>(dirtyFiles) : new HashSet<>();
+    }
+
+    /**
+     * Record that every file of the project is indexed for the branch as of this commit, with
+     * the given files differing from it.
+     */
+    public synchronized void setGitState(String branch, String head, Set<String> dirtyFiles) {
+        if (branch == null) {
+            data.gitHead = head;
+            data.gitDirtyFiles = new HashSet<>(dirtyFiles);
+            return;
+        }
+        if (data.branchGitStates == null) {
+            data.branchGitStates = new HashMap<>();
+        }
+        data.branchGitStates.put(branch, new GitState(head, new HashSet<>(dirtyFiles)));
+    }
+
+    /**
+     * Record files indexed for the branch outside a full run, whose indexed content may differ
+     * from the recorded commit even after they are reverted to it.
+     *
+     * @return true if any file was added
+     */
+    public synchronized boolean addGitDirtyFiles(String branch, Collection<String> paths) {
+        if (branch == null) {
+            if (data.gitHead == null) {
+                return false;
+            }
+            if (data.gitDirtyFiles == null) {
+                data.gitDirtyFiles = new HashSet<>();
+            }
+            return data.gitDirtyFiles.addAll(paths);
+        }
+        GitState state = data.branchGitStates != null ? data.branchGitStates.get(branch) : null;
+        if (state == null) {
+            return false;
+        }
+        if (state.dirtyFiles == null) {
+            state.dirtyFiles = new HashSet<>();
+        }
+        return state.dirtyFiles.addAll(paths);
+    }
+
+    /**
+     * Forget the recorded commit of the base and of every branch, so the next run checks every file.
+     */
+    public synchronized void clearGitState() {
+        data.gitHead = null;
+        data.gitDirtyFiles = null;
+        data.branchGitStates = null;
+    }
+
+    /**
+     * Forget everything and delete the saved manifest, so the next run checks every file.
+     */
+    public synchronized void reset() {
+        data = new Data();
+        if (file == null) {
+            return;
+        }
+        try {
+            Files.deleteIfExists(file);
+            System.out.println("Deleted index manifest");
+        } catch (IOException e) {
+            System.err.println("Error deleting index manifest: " + e.getMessage());
+        }
+    }
+
+    public synchronized void save() {
+        if (file == null) {
+            return;
+        }
+        Path temp = null;
+        try {
+            Files.createDirectories(file.getParent());
+            temp = Files.createTempFile(file.getParent(), FILE_NAME, ".tmp");
+            try (Writer writer = Files.newBufferedWriter(temp, StandardCharsets.UTF_8)) {
+                gson.toJson(data, writer);
+            }
+            Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            System.err.println("Error saving index manifest: " + e.getMessage());
+        } finally {
+            if (temp != null) {
+                try {
+                    Files.deleteIfExists(temp);
+                } catch (IOException e) {
+                    System.err.println("Error deleting " + temp + ": " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    public static final class FileStamp {
+        final long timeStamp;
+        final long length;
+        final String hash;
+
+        FileStamp(long timeStamp, long length, String hash) {
+            this.timeStamp = timeStamp;
+            this.length = length;
+            this.hash = hash;
+        }
+    }
+
+    private static final class GitState {
+        String head;
+        Set<String> dirtyFiles;
+
+        GitState(String head, Set<String> dirtyFiles) {
+            this.head = head;
+            this.dirtyFiles = dirtyFiles;
+        }
+    }
+
+    private static final class Data {
+        int schemaVersion = 0;
+        String embeddingProvider;
+        String embeddingModel;
+        String vectorStore;
+        int dimension = 0;
+        Map<String, FileStamp> files = new HashMap<>();
+        // Git state of the base index
+        String gitHead;
+        Set<String> gitDirtyFiles;
+        // Git state of each overlay branch's index
+        Map<String, GitState> branchGitStates;
+    }
+}
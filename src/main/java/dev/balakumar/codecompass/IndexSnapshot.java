@@ -0,0 +1,324 @@
+package dev.balakumar.codecompass;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * A copy of a whole index in one Deflate-compressed file, so a teammate can start from an index
+ * built elsewhere instead of embedding every file of the project again.
+ *
+ * The file holds a JSON header with the embedding model and dimension the vectors were made with
+ * and the git commit they match, then the content hash of every indexed file, then every point
+ * with its payload, vector and chunk text. File paths are stored relative to the project root,
+ * so the snapshot can be imported into a checkout in another directory.
+ *
+ * Files that may be indexed in another version than the commit, such as files with uncommitted
+ * changes when the snapshot was taken, are listed in the header. An import checks those again
+ * along with the files git reports as changed since the commit.
+ */
+final class IndexSnapshot {
+    static final String EXTENSION = "ccsnap";
+    private static final int MAGIC = 0x43435350;
+    private static final int VERSION = 1;
+    // Lengths read from a damaged file are checked against these before anything is allocated
+    private static final int MAX_STRING_BYTES = 64 * 1024 * 1024;
+    private static final int MAX_DIMENSION = 65536;
+    private static final int READ_BUFFER_BYTES = 64 * 1024;
+    private static final Gson gson = new Gson();
+
+    private IndexSnapshot() {
+    }
+
+    /**
+     * What the snapshot's vectors were made with and which files they match.
+     */
+    static final class Header {
+        int schemaVersion;
+        String embeddingProvider;
+        String embeddingModel;
+        int dimension;
+        // Null when it is not known which commit the index matches
+        String gitCommit;
+        // Relative paths of files that may be indexed in another version than gitCommit
+        List<String> changedFiles = new ArrayList<>();
+        long createdAt;
+
+        static Header describe(CodeMapperSettingsState settings, int dimension, String gitCommit) {
+            Header header = new Header();
+            header.schemaVersion = IndexManifest.SCHEMA_VERSION;
+            header.embeddingProvider = settings.embeddingProvider;
+            header.embeddingModel = ProviderSettings.getEmbeddingModel(settings, settings.embeddingProvider);
+            header.dimension = dimension;
+            header.gitCommit = gitCommit;
+            header.createdAt = System.currentTimeMillis();
+            return header;
+        }
+
+        /**
+         * @return why the snapshot's vectors cannot be used with the current settings, or null if
+         * they can
+         */
+        String checkCompatibility(CodeMapperSettingsState settings) {
+            if (schemaVersion != IndexManifest.SCHEMA_VERSION) {
+                return "the snapshot was taken with another index format (version " + schemaVersion +
+                        ", now " + IndexManifest.SCHEMA_VERSION + ")";
+            }
+            String model = ProviderSettings.getEmbeddingModel(settings, settings.embeddingProvider);
+            if (!settings.embeddingProvider.equals(embeddingProvider) || !model.equals(embeddingModel)) {
+                return "the snapshot was made with " + embeddingProvider + "/" + embeddingModel +
+                        ", but the embedding model is set to " + settings.embeddingProvider + "/" + model;
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Write a snapshot of the store. The file is written to a temporary file first, so a failed
+     * export leaves an earlier snapshot at the target intact.
+     *
+     * @param fingerprints absolute file path to content hash
+     * @param changedFiles absolute paths of files that may differ from the header's commit
+     * @return the number of points written
+     */
+    static int write(Path target, String projectPath, Header header, Map<String, String> fingerprints,
+                     Collection<String> changedFiles, VectorStore store) throws IOException {
+        String root = root(projectPath);
+        header.changedFiles = new ArrayList<>();
+        for (String path : changedFiles) {
+            header.changedFiles.add(relative(root, path));
+        }
+        Path temp = target.resolveSibling(target.getFileName() + ".tmp");
+        int[] written = {0};
+        try {
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                    new DeflaterOutputStream(Files.newOutputStream(temp))))) {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                writeString(out, gson.toJson(header));
+                out.writeInt(fingerprints.size());
+                for (Map.Entry<String, String> entry : fingerprints.entrySet()) {
+                    writeString(out, relative(root, entry.getKey()));
+                    writeString(out, entry.getValue());
+                }
+                boolean complete;
+                try {
+                    complete = store.forEachPoint(point -> {
+                        try {
+                            writePoint(out, root, point);
+                            written[0]++;
+                        } catch (IOException e) {
+                            throw new UncheckedIOException(e);
+                        }
+                    });
+                } catch (UncheckedIOException e) {
+                    throw e.getCause();
+                }
+                if (!complete) {
+                    throw new IOException("could not read every point from " + store.getName());
+                }
+                out.writeBoolean(false);
+            }
+            Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+        return written[0];
+    }
+
+    private static void writePoint(DataOutputStream out, String root, StoredPoint point) throws IOException {
+        JsonObject payload = point.payload.deepCopy();
+        payload.addProperty("filePath", relative(root, point.getFilePath()));
+        out.writeBoolean(true);
+        writeString(out, payload.toString());
+        out.writeInt(point.vector.length);
+        for (float value : point.vector) {
+            out.writeFloat(value);
+        }
+        out.writeBoolean(point.content != null);
+        if (point.content != null) {
+            writeString(out, point.content);
+        }
+    }
+
+    /**
+     * Reads a snapshot: the header and fingerprints when opened, then the points in batches.
+     * Paths come back absolute, under the project the snapshot is imported into.
+     */
+    static final class Reader implements Closeable {
+        private final DataInputStream in;
+        private final String root;
+        private final Header header;
+        private final Map<String, String> fingerprints = new HashMap<>();
+        private boolean finished = false;
+
+        private Reader(DataInputStream in, String root) throws IOException {
+            this.in = in;
+            this.root = root;
+            if (in.readInt() != MAGIC) {
+                throw new IOException("not a CodeCompass index snapshot");
+            }
+            int version = in.readInt();
+            if (version != VERSION) {
+                throw new IOException("unsupported snapshot version " + version);
+            }
+            try {
+                this.header = gson.fromJson(readString(in), Header.class);
+            } catch (JsonParseException e) {
+                throw new IOException("damaged snapshot header: " + e.getMessage());
+            }
+            if (header == null) {
+                throw new IOException("snapshot has no header");
+            }
+            // 0 when the exporting store did not know its dimension
+            if (header.dimension < 0 || header.dimension > MAX_DIMENSION) {
+                throw new IOException("damaged snapshot: vector dimension " + header.dimension);
+            }
+            int count = in.readInt();
+            if (count < 0) {
+                throw new IOException("damaged snapshot: " + count + " fingerprints");
+            }
+            for (int i = 0; i < count; i++) {
+                String path = absolute(root, readString(in));
+                fingerprints.put(path, readString(in));
+            }
+        }
+
+        static Reader open(Path source, String projectPath) throws IOException {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(
+                    new InflaterInputStream(Files.newInputStream(source))));
+            try {
+                return new Reader(in, root(projectPath));
+            } catch (IOException | RuntimeException e) {
+                in.close();
+                throw e;
+            }
+        }
+
+        Header getHeader() {
+            return header;
+        }
+
+        /**
+         * @return absolute file path to content hash
+         */
+        Map<String, String> getFingerprints() {
+            return fingerprints;
+        }
+
+        /**
+         * @return absolute paths of the files that may differ from the header's commit
+         */
+        Set<String> getChangedFiles() {
+            Set<String> paths = new HashSet<>();
+            if (header.changedFiles != null) {
+                for (String path : header.changedFiles) {
+                    paths.add(absolute(root, path));
+                }
+            }
+            return paths;
+        }
+
+        /**
+         * @return up to max points, or an empty list once every point was read
+         */
+        List<StoredPoint> next(int max) throws IOException {
+            List<StoredPoint> points = new ArrayList<>();
+            while (!finished && points.size() < max) {
+                if (!in.readBoolean()) {
+                    finished = true;
+                    break;
+                }
+                JsonObject payload;
+                String filePath;
+                int chunkIndex;
+                try {
+                    payload = JsonParser.parseString(readString(in)).getAsJsonObject();
+                    JsonElement path = payload.get("filePath");
+                    if (path == null || !path.isJsonPrimitive()) {
+                        throw new IOException("damaged snapshot: point without a file path");
+                    }
+                    filePath = absolute(root, path.getAsString());
+                    chunkIndex = payload.has("chunkIndex") ? payload.get("chunkIndex").getAsInt() : 0;
+                } catch (JsonParseException | IllegalStateException | UnsupportedOperationException | NumberFormatException e) {
+                    throw new IOException("damaged point payload: " + e.getMessage());
+                }
+                payload.addProperty("filePath", filePath);
+                int length = in.readInt();
+                if (header.dimension > 0 ? length != header.dimension : length <= 0 || length > MAX_DIMENSION) {
+                    throw new IOException("damaged snapshot: vector of length " + length + " in a snapshot of dimension " +
+                            header.dimension);
+                }
+                float[] vector = new float[length];
+                for (int i = 0; i < vector.length; i++) {
+                    vector[i] = in.readFloat();
+                }
+                String content = in.readBoolean() ? readString(in) : null;
+                points.add(new StoredPoint(SimpleIndexer.chunkId(filePath, chunkIndex), vector, payload, content));
+            }
+            return points;
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+
+    private static String root(String projectPath) {
+        String root = projectPath.replace('\\', '/');
+        return root.endsWith("/") ? root.substring(0, root.length() - 1) : root;
+    }
+
+    /**
+     * Files outside the project keep their absolute path.
+     */
+    private static String relative(String root, String path) {
+        String normalized = path.replace('\\', '/');
+        return normalized.startsWith(root + "/") ? normalized.substring(root.length() + 1) : normalized;
+    }
+
+    private static String absolute(String root, String path) {
+        return Path.of(path).isAbsolute() || path.startsWith("/") ? path : root + "/" + path;
+    }
+
+    /**
+     * Read a length-prefixed string. The bytes are read in pieces, so a damaged length runs into
+     * the end of the file instead of allocating its full size up front.
+     */
+    private static String readString(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0 || length > MAX_STRING_BYTES) {
+            throw new IOException("damaged snapshot: string of length " + length);
+        }
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(Math.min(length, READ_BUFFER_BYTES));
+        byte[] buffer = new byte[Math.min(length, READ_BUFFER_BYTES)];
+        int remaining = length;
+        while (remaining > 0) {
+            int read = in.read(buffer, 0, Math.min(remaining, buffer.length));
+            if (read < 0) {
+                throw new IOException("damaged snapshot: file ends inside a string");
+            }
+            bytes.write(buffer, 0, read);
+            remaining -= read;
+        }
+        return new String(bytes.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+}
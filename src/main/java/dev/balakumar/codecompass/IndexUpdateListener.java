@@ -0,0 +1,125 @@
+package dev.balakumar.codecompass;
+
+import com.intellij.openapi.project.Project;
+import com.intellij.openapi.vfs.VirtualFile;
+import com.intellij.openapi.vfs.newvfs.BulkFileListener;
+import com.intellij.openapi.vfs.newvfs.events.*;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.List;
+
+/**
+ * Forwards created, modified, moved, renamed and deleted code files under the project to
+ * {@link IncrementalIndexer}. Directory moves and deletes are expanded into their files in
+ * {@link #before}, while the directory contents can still be walked.
+ */
+public class IndexUpdateListener implements BulkFileListener {
+    private final Project project;
+
+    public IndexUpdateListener(Project project) {
+        this.project = project;
+    }
+
+    @Override
+    public void before(@NotNull List<? extends VFileEvent> events) {
+        if (!isEnabled()) {
+            return;
+        }
+        IncrementalIndexer incrementalIndexer = IncrementalIndexer.getInstance(project);
+        String basePath = project.getBasePath();
+        for (VFileEvent event : events) {
+            VirtualFile file = event.getFile();
+            if (file == null || !file.isValid() || !file.isDirectory()) {
+                continue;
+            }
+            if (event instanceof VFileDeleteEvent) {
+                visitCodeFiles(file, "", (path, relativePath) -> deleted(incrementalIndexer, basePath, path));
+            } else if (event instanceof VFileMoveEvent) {
+                String newPath = ((VFileMoveEvent) event).getNewPath();
+                queueDirectoryMove(incrementalIndexer, file, newPath);
+            } else if (event instanceof VFilePropertyChangeEvent && ((VFilePropertyChangeEvent) event).isRename()) {
+                String newPath = ((VFilePropertyChangeEvent) event).getNewPath();
+                queueDirectoryMove(incrementalIndexer, file, newPath);
+            }
+        }
+    }
+
+    @Override
+    public void after(@NotNull List<? extends VFileEvent> events) {
+        if (!isEnabled()) {
+            return;
+        }
+        IncrementalIndexer incrementalIndexer = IncrementalIndexer.getInstance(project);
+        String basePath = project.getBasePath();
+        for (VFileEvent event : events) {
+            if (event instanceof VFileCreateEvent) {
+                if (!((VFileCreateEvent) event).isDirectory()) {
+                    changed(incrementalIndexer, basePath, event.getPath());
+                }
+            } else if (event instanceof VFileContentChangeEvent) {
+                changed(incrementalIndexer, basePath, event.getPath());
+            } else if (event instanceof VFileCopyEvent) {
+                VirtualFile created = ((VFileCopyEvent) event).findCreatedFile();
+                if (created != null && !created.isDirectory()) {
+                    changed(incrementalIndexer, basePath, created.getPath());
+                }
+            } else if (event instanceof VFileDeleteEvent) {
+                // Directories were expanded in before(); a directory path never looks like a code file.
+                deleted(incrementalIndexer, basePath, event.getPath());
+            } else if (event instanceof VFileMoveEvent) {
+                VFileMoveEvent moveEvent = (VFileMoveEvent) event;
+                if (moveEvent.getFile() != null && !moveEvent.getFile().isDirectory()) {
+                    deleted(incrementalIndexer, basePath, moveEvent.getOldPath());
+                    changed(incrementalIndexer, basePath, moveEvent.getNewPath());
+                }
+            } else if (event instanceof VFilePropertyChangeEvent) {
+                VFilePropertyChangeEvent propertyEvent = (VFilePropertyChangeEvent) event;
+                if (propertyEvent.isRename() && propertyEvent.getFile() != null && !propertyEvent.getFile().isDirectory()) {
+                    deleted(incrementalIndexer, basePath, propertyEvent.getOldPath());
+                    changed(incrementalIndexer, basePath, propertyEvent.getNewPath());
+                }
+            }
+        }
+    }
+
+    private boolean isEnabled() {
+        return !project.isDisposed() && CodeMapperSettingsState.getInstance(project).enableIncrementalIndexing;
+    }
+
+    private void changed(IncrementalIndexer incrementalIndexer, String basePath, String path) {
+        if (SimpleIndexer.isIndexablePath(basePath, path)) {
+            incrementalIndexer.fileChanged(path);
+        }
+    }
+
+    private void deleted(IncrementalIndexer incrementalIndexer, String basePath, String path) {
+        if (SimpleIndexer.isIndexablePath(basePath, path)) {
+            incrementalIndexer.fileDeleted(path);
+        }
+    }
+
+    private void queueDirectoryMove(IncrementalIndexer incrementalIndexer, VirtualFile directory, String newDirectoryPath) {
+        String basePath = project.getBasePath();
+        visitCodeFiles(directory, "", (oldPath, relativePath) -> {
+            deleted(incrementalIndexer, basePath, oldPath);
+            changed(incrementalIndexer, basePath, newDirectoryPath + "/" + relativePath);
+        });
+    }
+
+    private void visitCodeFiles(VirtualFile directory, String relativeDir, CodeFileVisitor visitor) {
+        for (VirtualFile child : directory.getChildren()) {
+            String relativePath = relativeDir.isEmpty() ? child.getName() : relativeDir + "/" + child.getName();
+            if (child.isDirectory()) {
+                if (!SimpleIndexer.shouldSkipDirectory(child.getName())) {
+                    visitCodeFiles(child, relativePath, visitor);
+                }
+            } else if (SimpleIndexer.isCodeFile(child)) {
+                visitor.visit(child.getPath(), relativePath);
+            }
+        }
+    }
+
+    private interface CodeFileVisitor {
+        void visit(String path, String relativePath);
+    }
+}
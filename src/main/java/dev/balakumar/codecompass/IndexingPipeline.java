@@ -0,0 +1,632 @@
+package dev.balakumar.codecompass;
+
+import com.intellij.openapi.progress.ProgressIndicator;
+import com.intellij.openapi.vfs.VirtualFile;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Staged indexing pipeline used by {@link SimpleIndexer#indexProject}.
+ *
+ * Every file flows through read -> metadata -> summarize -> embed -> upsert. Each stage has its
+ * own concurrency limit and bounded backlog, so a slow summary call for one file no longer holds up
+ * reading, embedding or storing the others. When a downstream queue is full the upstream
+ * worker waits, which keeps memory bounded on very large projects.
+ *
+ * Each file is split into chunks by {@link CodeChunker}, and every chunk becomes its own point.
+ * Embedding requests are packed into batches of chunks by count and size, so one round-trip
+ * covers many chunks when the provider has a batch endpoint. Points are likewise buffered and written to the
+ * vector database in batches; {@link #run} returns only after the final batch has been applied.
+ *
+ * Files whose content fingerprint matches the one already stored in the index are dropped
+ * right after the read stage, before any summary or embedding call is made.
+ */
+public class IndexingPipeline {
+    private static final int QUEUE_CAPACITY = 64;
+    private static final int READ_THREADS = 4;
+    private static final int METADATA_THREADS = 2;
+    private static final int UPSERT_THREADS = 2;
+    private static final int MAX_FILE_SIZE = 500000;
+    private static final int MAX_RETRIES = 3;
+    private static final int RETRY_DELAY_MS = 2000;
+    private static final long POLL_INTERVAL_MS = 200;
+    private static final int EMBED_BATCH_SIZE = 64;
+    private static final int EMBED_BATCH_MAX_BYTES = 1024 * 1024;
+    // A partial batch is sent once nothing new has arrived for this long
+    private static final long EMBED_BATCH_LINGER_MS = 200;
+
+    private final SimpleIndexer indexer;
+    private final VectorStore vectorDBService;
+    private final EmbeddingService embeddingService;
+    private final GenerationService generationService;
+    private final int summaryConcurrency;
+    private final int embeddingConcurrency;
+    private final String generationProvider;
+    private final String embeddingProvider;
+    private final boolean useVirtualThreads;
+    private final Map<String, String> fingerprints;
+    private final SummaryCache summaryCache;
+    private final boolean summarizeWhileIndexing;
+    private final int upsertBatchSize;
+    private final long upsertBatchMaxBytes;
+    private VectorStore.UpsertBuffer upsertBuffer;
+    // Chunk counts of re-indexed files that were in the index before, to drop chunks they no longer have
+    private final Map<String, Integer> reindexedChunkCounts = new ConcurrentHashMap<>();
+
+    private final AtomicInteger finished = new AtomicInteger(0);
+    private final AtomicInteger indexed = new AtomicInteger(0);
+    private final AtomicInteger skipped = new AtomicInteger(0);
+    private final AtomicInteger unchanged = new AtomicInteger(0);
+    private final AtomicInteger errors = new AtomicInteger(0);
+    // Path to content hash of every file whose stored chunks are known to match its content
+    private final Map<String, String> currentHashes = new ConcurrentHashMap<>();
+    private final AtomicBoolean aborted = new AtomicBoolean(false);
+    private final Object reconnectLock = new Object();
+    private volatile ProgressIndicator indicator;
+    private volatile CountDownLatch remaining;
+    private int total;
+
+    public IndexingPipeline(SimpleIndexer indexer, VectorStore vectorDBService, EmbeddingService embeddingService,
+                            GenerationService generationService, CodeMapperSettingsState settings,
+                            Map<String, String> fingerprints) {
+        this.indexer = indexer;
+        this.vectorDBService = vectorDBService;
+        this.embeddingService = embeddingService;
+        this.generationService = generationService;
+        this.summaryConcurrency = ProviderSettings.getConcurrency(settings, settings.generationProvider);
+        this.embeddingConcurrency = ProviderSettings.getConcurrency(settings, settings.embeddingProvider);
+        this.generationProvider = settings.generationProvider;
+        this.embeddingProvider = settings.embeddingProvider;
+        this.useVirtualThreads = settings.useVirtualThreads;
+        this.fingerprints = fingerprints;
+        this.summaryCache = SummaryCache.getInstance(indexer.getProject());
+        this.summarizeWhileIndexing = "EAGER".equals(settings.summaryMode);
+        this.upsertBatchSize = settings.upsertBatchSize;
+        this.upsertBatchMaxBytes = settings.upsertBatchMaxMb * 1024L * 1024L;
+    }
+
+    /**
+     * Index the given files, blocking until every file has left the pipeline, the indicator is
+     * cancelled or the AI/vector services become unreachable.
+     */
+    public Result run(List<SimpleIndexer.IndexedFile> files, ProgressIndicator indicator) {
+        this.indicator = indicator;
+        this.total = files.size();
+        this.remaining = new CountDownLatch(total);
+        this.upsertBuffer = vectorDBService.openUpsertBuffer(upsertBatchSize, upsertBatchMaxBytes);
+        long summaryHitsAtStart = summaryCache.getHitCount();
+        long summaryMissesAtStart = summaryCache.getMissCount();
+
+        Stage readStage = new Stage("read", READ_THREADS);
+        Stage metadataStage = new Stage("metadata", METADATA_THREADS);
+        Stage summarizeStage = new Stage("summarize", summaryConcurrency,
+                TaskExecutors.permits(generationProvider + "/generation", summaryConcurrency));
+        Stage embedStage = new Stage("embed", embeddingConcurrency,
+                TaskExecutors.permits(embeddingProvider + "/embedding", embeddingConcurrency));
+        Stage upsertStage = new Stage("upsert", UPSERT_THREADS);
+        EmbeddingBatcher embeddingBatcher = new EmbeddingBatcher(embedStage, upsertStage);
+
+        System.out.println("Indexing pipeline started: " + total + " files, " + summaryConcurrency +
+                " summary requests, " + embeddingConcurrency + " embedding requests at once, on " +
+                (useVirtualThreads && TaskExecutors.virtualThreadsAvailable() ? "virtual threads" : "platform threads"));
+
+        try {
+            for (SimpleIndexer.IndexedFile indexedFile : files) {
+                if (isStopped()) {
+                    break;
+                }
+                FileWork work = new FileWork(indexedFile.virtualFile);
+                readStage.submit(work, w -> {
+                    if (read(w)) {
+                        metadataStage.submit(w, m -> {
+                            prepare(m);
+                            summarizeStage.submit(m, s -> {
+                                summarize(s);
+                                embeddingBatcher.add(s);
+                            });
+                        });
+                    }
+                });
+            }
+
+            while (!awaitRemaining()) {
+                if (isStopped()) {
+                    break;
+                }
+                embeddingBatcher.flushIfIdle();
+            }
+        } finally {
+            readStage.shutdown();
+            metadataStage.shutdown();
+            summarizeStage.shutdown();
+            embedStage.shutdown();
+            upsertStage.shutdown();
+            // Write the last partial batch and wait until everything has been applied
+            upsertStage.awaitTermination();
+            upsertBuffer.close();
+        }
+
+        if (!reindexedChunkCounts.isEmpty()) {
+            vectorDBService.deleteStaleChunks(reindexedChunkCounts);
+        }
+
+        vectorDBService.saveIndex();
+        vectorDBService.refreshDocumentCount();
+
+        long summaryHits = summaryCache.getHitCount() - summaryHitsAtStart;
+        long summaryMisses = summaryCache.getMissCount() - summaryMissesAtStart;
+        System.out.println("Indexing pipeline finished: " + indexed.get() + " indexed, " + unchanged.get() +
+                " unchanged, " + skipped.get() + " skipped, " + errors.get() + " errors" +
+                (aborted.get() ? " (aborted)" : "") + "; summary cache " + summaryHits + " hits, " + summaryMisses + " misses");
+        return new Result(indexed.get(), unchanged.get(), skipped.get(), errors.get(), aborted.get(), summaryHits, summaryMisses,
+                new HashMap<>(currentHashes));
+    }
+
+    private boolean awaitRemaining() {
+        try {
+            return remaining.await(POLL_INTERVAL_MS, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            aborted.set(true);
+            return true;
+        }
+    }
+
+    private boolean isStopped() {
+        return aborted.get() || indicator.isCanceled();
+    }
+
+    // Stage bodies
+
+    private boolean read(FileWork work) throws Exception {
+        VirtualFile file = work.file;
+        indicator.setText("Processing: " + file.getPath());
+        if (file.getLength() > MAX_FILE_SIZE) {
+            System.out.println("Skipping large file: " + file.getPath());
+            skip(work);
+            return false;
+        }
+
+        byte[] bytes = file.contentsToByteArray();
+        String contentHash = ContentHash.sha256(bytes);
+        if (contentHash.equals(fingerprints.get(file.getPath()))) {
+            unchanged.incrementAndGet();
+            currentHashes.put(file.getPath(), contentHash);
+            release(work);
+            return false;
+        }
+
+        String content = new String(bytes);
+        if (SimpleIndexer.isBinaryFile(content)) {
+            System.out.println("Skipping binary file: " + file.getPath());
+            skip(work);
+            return false;
+        }
+        work.content = content;
+        work.contentHash = contentHash;
+        return true;
+    }
+
+    private void prepare(FileWork work) {
+        work.metadata = indexer.extractMetadata(work.file, work.content);
+        work.metadata.put("contentHash", work.contentHash);
+        work.chunks = CodeChunker.chunk(work.content);
+        work.chunkTexts = new ArrayList<>(work.chunks.size());
+        for (CodeChunker.Chunk chunk : work.chunks) {
+            work.chunkTexts.add(indexer.buildChunkText(work.file, chunk, work.chunks.size(), work.metadata));
+        }
+        work.embeddings = new float[work.chunks.size()][];
+        work.pendingEmbeddings.set(work.chunks.size());
+    }
+
+    private void summarize(FileWork work) throws Exception {
+        String cached = summaryCache.get(work.contentHash);
+        if (cached != null) {
+            work.summary = cached;
+            return;
+        }
+        if (!summarizeWhileIndexing) {
+            // Stored with an empty summary; filled in later by SummaryBackfill or on demand
+            work.summary = "";
+            return;
+        }
+        work.summary = withRetries("summarizing " + work.file.getPath(),
+                () -> generationService.generateSummaryAsync(work.content, work.file.getName()));
+        summaryCache.put(work.contentHash, work.summary);
+    }
+
+    /**
+     * Embed a batch of chunks, possibly from several files. Files whose last chunk is in this
+     * batch move on to the upsert stage.
+     */
+    private void embed(List<ChunkRef> refs, Stage upsertStage) throws Exception {
+        // Skip chunks of files that already left the pipeline, say because another batch with their chunks failed
+        List<ChunkRef> batch = new ArrayList<>(refs.size());
+        List<String> texts = new ArrayList<>(refs.size());
+        for (ChunkRef ref : refs) {
+            List<String> chunkTexts = ref.work.chunkTexts;
+            if (!ref.work.released.get() && chunkTexts != null) {
+                batch.add(ref);
+                texts.add(chunkTexts.get(ref.index));
+            }
+        }
+        if (batch.isEmpty()) {
+            return;
+        }
+        String description = batch.size() == 1
+                ? "embedding " + batch.get(0).work.file.getPath()
+                : "embedding batch of " + batch.size() + " chunks";
+        List<float[]> embeddings = withRetries(description, () -> embeddingService.getEmbeddingsAsync(texts));
+        for (int i = 0; i < batch.size(); i++) {
+            ChunkRef ref = batch.get(i);
+            ref.work.embeddings[ref.index] = embeddings.get(i);
+            if (ref.work.pendingEmbeddings.decrementAndGet() == 0 && !ref.work.released.get()) {
+                upsertStage.submit(ref.work, this::upsert);
+            }
+        }
+    }
+
+    /**
+     * Hand the file's points to the upsert buffer. The file leaves the pipeline here; whether it
+     * was stored is counted once the batches holding all its chunks are written.
+     */
+    private void upsert(FileWork work) {
+        String path = work.file.getPath();
+        int chunkCount = work.chunks.size();
+        if (fingerprints.containsKey(path)) {
+            reindexedChunkCounts.put(path, chunkCount);
+        }
+        AtomicInteger pendingStores = new AtomicInteger(chunkCount);
+        AtomicBoolean storeFailed = new AtomicBoolean(false);
+        for (CodeChunker.Chunk chunk : work.chunks) {
+            upsertBuffer.add(SimpleIndexer.chunkId(path, chunk.getIndex()), work.chunkTexts.get(chunk.getIndex()), path,
+                    work.summary, SimpleIndexer.chunkMetadata(work.metadata, chunk, chunkCount),
+                    work.embeddings[chunk.getIndex()], stored -> {
+                        if (!stored) {
+                            storeFailed.set(true);
+                        }
+                        if (pendingStores.decrementAndGet() == 0) {
+                            if (storeFailed.get()) {
+                                errors.incrementAndGet();
+                                System.err.println("Error indexing file " + path + ": vector database rejected the document");
+                            } else {
+                                indexed.incrementAndGet();
+                                currentHashes.put(path, work.contentHash);
+                            }
+                        }
+                    });
+        }
+        release(work);
+    }
+
+    /**
+     * Run a provider call, retrying failures without holding the worker thread while waiting. A
+     * cancelled indicator cancels the call in flight.
+     */
+    private <T> T withRetries(String description, Callable<CompletableFuture<T>> attempt) throws IOException {
+        return ProviderCalls.await(ProviderCalls.withRetries(description, MAX_RETRIES,
+                error -> isStopped() ? -1 : RETRY_DELAY_MS, attempt), indicator);
+    }
+
+    // Bookkeeping
+
+    private void skip(FileWork work) {
+        skipped.incrementAndGet();
+        release(work);
+    }
+
+    private void fail(List<FileWork> batch, Exception e) {
+        for (FileWork work : batch) {
+            // A file whose chunks span several embedding batches is only counted once
+            if (release(work)) {
+                errors.incrementAndGet();
+                System.err.println("Error indexing file " + work.file.getPath() + ": " + e.getMessage());
+            }
+        }
+        if (isServiceError(e)) {
+            checkServices();
+        }
+    }
+
+    private void releaseAll(List<FileWork> batch) {
+        for (FileWork work : batch) {
+            release(work);
+        }
+    }
+
+    /**
+     * Mark a file as having left the pipeline.
+     *
+     * @return false if it had already left
+     */
+    private boolean release(FileWork work) {
+        if (!work.released.compareAndSet(false, true)) {
+            return false;
+        }
+        work.content = null;
+        work.chunkTexts = null;
+        int done = finished.incrementAndGet();
+        indicator.setFraction((double) done / Math.max(1, total));
+        remaining.countDown();
+        return true;
+    }
+
+    private boolean isServiceError(Exception e) {
+        String message = e.getMessage();
+        return message != null &&
+                (message.contains("connection") ||
+                        message.contains("timeout") ||
+                        message.contains("unavailable"));
+    }
+
+    /**
+     * After a connection-type failure, make sure both services are still reachable. Only one
+     * worker performs the check; if it fails the whole pipeline is aborted.
+     */
+    private void checkServices() {
+        synchronized (reconnectLock) {
+            if (aborted.get()) {
+                return;
+            }
+            if (!indexer.testAIServiceWithRetry() || !vectorDBService.isConnected()) {
+                System.err.println("Service connection lost. Aborting indexing.");
+                aborted.set(true);
+            }
+        }
+    }
+
+    private interface StageTask {
+        void run(FileWork work) throws Exception;
+    }
+
+    private interface BatchTask {
+        void run(List<FileWork> batch) throws Exception;
+    }
+
+    /**
+     * Collects the chunks of files leaving the summarize stage and hands them to the embed stage
+     * in batches of up to {@link #EMBED_BATCH_SIZE} chunks or {@link #EMBED_BATCH_MAX_BYTES} of
+     * text, whichever is reached first. Partial batches are flushed by {@link #flushIfIdle}.
+     */
+    private final class EmbeddingBatcher {
+        private final Stage embedStage;
+        private final Stage upsertStage;
+        private final int maxCount;
+        private List<ChunkRef> pending = new ArrayList<>();
+        private int pendingBytes = 0;
+        private long lastAddedAt = 0;
+
+        EmbeddingBatcher(Stage embedStage, Stage upsertStage) {
+            this.embedStage = embedStage;
+            this.upsertStage = upsertStage;
+            this.maxCount = Math.max(1, Math.min(EMBED_BATCH_SIZE, embeddingService.getMaxBatchSize()));
+        }
+
+        void add(FileWork work) {
+            // Released, and its texts dropped, as soon as a batch already holding some of its chunks fails
+            List<String> chunkTexts = work.chunkTexts;
+            for (int i = 0; i < work.chunks.size() && !work.released.get(); i++) {
+                List<ChunkRef> batch = null;
+                synchronized (this) {
+                    pending.add(new ChunkRef(work, i));
+                    pendingBytes += chunkTexts.get(i).getBytes(StandardCharsets.UTF_8).length;
+                    lastAddedAt = System.currentTimeMillis();
+                    if (pending.size() >= maxCount || pendingBytes >= EMBED_BATCH_MAX_BYTES) {
+                        batch = take();
+                    }
+                }
+                if (batch != null) {
+                    dispatch(batch);
+                }
+            }
+        }
+
+        void flushIfIdle() {
+            List<ChunkRef> batch = null;
+            synchronized (this) {
+                if (!pending.isEmpty() && System.currentTimeMillis() - lastAddedAt >= EMBED_BATCH_LINGER_MS) {
+                    batch = take();
+                }
+            }
+            if (batch != null) {
+                dispatch(batch);
+            }
+        }
+
+        private List<ChunkRef> take() {
+            List<ChunkRef> batch = pending;
+            pending = new ArrayList<>();
+            pendingBytes = 0;
+            return batch;
+        }
+
+        private void dispatch(List<ChunkRef> batch) {
+            List<FileWork> works = new ArrayList<>();
+            for (ChunkRef ref : batch) {
+                if (works.isEmpty() || works.get(works.size() - 1) != ref.work) {
+                    works.add(ref.work);
+                }
+            }
+            embedStage.submit(works, ignored -> embed(batch, upsertStage));
+        }
+    }
+
+    /**
+     * A named stage running at most a given number of tasks at once, with room for
+     * {@link #QUEUE_CAPACITY} more waiting. Submitting to a full stage blocks the caller until
+     * there is room, or until the pipeline is stopped. Tasks run on virtual threads where
+     * available; what limits them is the stage's semaphore, which the summarize and embed stages
+     * share with every other indexing run against the same provider.
+     */
+    private final class Stage {
+        private final ExecutorService executor;
+        private final Semaphore running;
+        // Tasks submitted and not yet finished
+        private final Semaphore admitted;
+
+        Stage(String name, int concurrency) {
+            this(name, concurrency, new Semaphore(concurrency));
+        }
+
+        Stage(String name, int concurrency, Semaphore running) {
+            this.running = running;
+            this.admitted = new Semaphore(concurrency + QUEUE_CAPACITY);
+            this.executor = TaskExecutors.newExecutor(name, concurrency, useVirtualThreads);
+        }
+
+        void submit(FileWork work, StageTask task) {
+            submit(Collections.singletonList(work), batch -> task.run(batch.get(0)));
+        }
+
+        void submit(List<FileWork> batch, BatchTask task) {
+            if (!waitForCapacity()) {
+                releaseAll(batch);
+                return;
+            }
+            try {
+                executor.execute(AdaptiveRateLimiter.background(() -> {
+                    try {
+                        if (isStopped()) {
+                            releaseAll(batch);
+                            return;
+                        }
+                        running.acquire();
+                        try {
+                            task.run(batch);
+                        } catch (Exception e) {
+                            fail(batch, e);
+                        } finally {
+                            running.release();
+                        }
+                    } catch (InterruptedException e) {
+                        releaseAll(batch);
+                    } finally {
+                        admitted.release();
+                    }
+                }));
+            } catch (RejectedExecutionException e) {
+                admitted.release();
+                releaseAll(batch);
+            }
+        }
+
+        private boolean waitForCapacity() {
+            try {
+                while (!admitted.tryAcquire(POLL_INTERVAL_MS, TimeUnit.MILLISECONDS)) {
+                    if (isStopped() || executor.isShutdown()) {
+                        return false;
+                    }
+                }
+                return true;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+
+        void shutdown() {
+            executor.shutdownNow();
+        }
+
+        void awaitTermination() {
+            try {
+                executor.awaitTermination(30, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private static final class FileWork {
+        final VirtualFile file;
+        final AtomicInteger pendingEmbeddings = new AtomicInteger(0);
+        final AtomicBoolean released = new AtomicBoolean(false);
+        String content;
+        String contentHash;
+        Map<String, String> metadata;
+        List<CodeChunker.Chunk> chunks;
+        List<String> chunkTexts;
+        float[][] embeddings;
+        String summary;
+
+        FileWork(VirtualFile file) {
+            this.file = file;
+        }
+    }
+
+    private static final class ChunkRef {
+        final FileWork work;
+        final int index;
+
+        ChunkRef(FileWork work, int index) {
+            this.work = work;
+            this.index = index;
+        }
+    }
+
+    public static class Result {
+        private final int indexedCount;
+        private final int unchangedCount;
+        private final int skippedCount;
+        private final int errorCount;
+        private final boolean aborted;
+        private final long summaryCacheHits;
+        private final long summaryCacheMisses;
+        private final Map<String, String> currentHashes;
+
+        public Result(int indexedCount, int unchangedCount, int skippedCount, int errorCount, boolean aborted,
+                      long summaryCacheHits, long summaryCacheMisses, Map<String, String> currentHashes) {
+            this.indexedCount = indexedCount;
+            this.unchangedCount = unchangedCount;
+            this.skippedCount = skippedCount;
+            this.errorCount = errorCount;
+            this.aborted = aborted;
+            this.summaryCacheHits = summaryCacheHits;
+            this.summaryCacheMisses = summaryCacheMisses;
+            this.currentHashes = currentHashes;
+        }
+
+        /**
+         * @return path to content hash of every file that was found unchanged or stored successfully
+         */
+        public Map<String, String> getCurrentHashes() {
+            return currentHashes;
+        }
+
+        public int getIndexedCount() {
+            return indexedCount;
+        }
+
+        public int getUnchangedCount() {
+            return unchangedCount;
+        }
+
+        public int getSkippedCount() {
+            return skippedCount;
+        }
+
+        public int getErrorCount() {
+            return errorCount;
+        }
+
+        public boolean isAborted() {
+            return aborted;
+        }
+
+        public long getSummaryCacheHits() {
+            return summaryCacheHits;
+        }
+
+        public long getSummaryCacheMisses() {
+            return summaryCacheMisses;
+        }
+    }
+}
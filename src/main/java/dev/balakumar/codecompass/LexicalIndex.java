@@ -0,0 +1,660 @@
+package dev.balakumar.codecompass;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.intellij.openapi.Disposable;
+import com.intellij.openapi.components.ServiceManager;
+import com.intellij.openapi.project.Project;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Keyword index over the indexed chunks, kept alongside the vector store so exact identifiers are
+ * found without an embedding call. Chunks are ranked with BM25 over their text; terms that occur
+ * in the extracted classes, functions and imports or in the file name count extra, so the chunk
+ * that declares an identifier ranks above the ones that merely use it.
+ *
+ * Identifiers are indexed whole and split into their camelCase and snake_case parts, so
+ * "CodeMapperSettingsState" matches both that exact name and a query for "settings state".
+ *
+ * The index lives in memory and is saved as a compressed snapshot in .codemapper/lexical.bin
+ * holding each chunk's payload and term frequencies; the postings are rebuilt from it on open.
+ * The chunk text itself is not kept; it lives in the {@link ContentStore}.
+ *
+ * Like the vector store, the index keeps the chunks written on a branch with a
+ * {@link BranchOverlayStore} apart from those of the base branch: every method takes the branch
+ * it acts on, null for the base. All branches share one set of term statistics, so scores of
+ * base and branch chunks can be compared directly.
+ */
+public class LexicalIndex implements Disposable {
+    private static final String FILE_NAME = "lexical.bin";
+    private static final int MAGIC = 0x4343424d;
+    private static final int VERSION = 2;
+    // Snapshots of this version held the chunk text in the payload instead of the terms
+    private static final int PAYLOAD_TEXT_VERSION = 1;
+    private static final double K1 = 1.2;
+    private static final double B = 0.75;
+    // An occurrence in the identifier fields counts as this many occurrences in the text
+    private static final int IDENTIFIER_WEIGHT = 3;
+    // Rebuild the postings once this fraction of slots belongs to replaced or deleted chunks
+    private static final double MAX_DEAD_RATIO = 0.3;
+    // Separates the branch from the chunk id or path in keys of branch chunks; git refuses it in branch names
+    private static final char BRANCH_SEPARATOR = '\n';
+    private static final Pattern WORD = Pattern.compile("[A-Za-z0-9_$]+");
+    private static final Pattern SUBWORD_BOUNDARY = Pattern.compile("[_$]+|(?<=[a-z0-9])(?=[A-Z])|(?<=[A-Z])(?=[A-Z][a-z])");
+    // A single name such as fooBar, FOO_BAR or SimpleIndexer.search, optionally followed by ()
+    private static final Pattern IDENTIFIER = Pattern.compile("[A-Za-z_$][\\w$]*(\\.[A-Za-z_$][\\w$]*)*(\\(\\))?");
+    private static final Set<String> STOP_WORDS = new HashSet<>(Arrays.asList(
+            "a", "an", "and", "are", "as", "at", "be", "by", "can", "do", "does", "for", "from", "how", "i",
+            "in", "is", "it", "of", "on", "or", "the", "this", "that", "to", "what", "when", "where", "which",
+            "who", "why", "with"));
+
+    private final Path file;
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    // Held while the snapshot is written, so two saves never write it at once
+    private final Object saveLock = new Object();
+    // Document of each slot, or null for slots of replaced or deleted chunks
+    private final List<Doc> docs = new ArrayList<>();
+    private final Map<String, Integer> slotsById = new HashMap<>();
+    // Ids of the chunks of each file, keyed by the file's scoped path
+    private final Map<String, Set<String>> idsByPath = new HashMap<>();
+    private final Map<String, Postings> postings = new HashMap<>();
+    private long totalLength = 0;
+    private int deadSlots = 0;
+    private volatile boolean dirty = false;
+
+    public LexicalIndex(Project project) {
+        this.file = project.getBasePath() != null
+                ? Path.of(project.getBasePath(), ".codemapper", FILE_NAME)
+                : null;
+        if (file != null) {
+            load();
+        }
+    }
+
+    public static LexicalIndex getInstance(Project project) {
+        return ServiceManager.getService(project, LexicalIndex.class);
+    }
+
+    /**
+     * @return true if the query is a single code identifier rather than a phrase, e.g.
+     * "CodeMapperSettingsState", "chunk_id" or "SimpleIndexer.search"
+     */
+    public static boolean isIdentifierQuery(String query) {
+        String trimmed = query.trim();
+        if (!IDENTIFIER.matcher(trimmed).matches()) {
+            return false;
+        }
+        // A plain word like "indexing" is as likely to be prose as a name
+        return trimmed.indexOf('.') >= 0 || trimmed.indexOf('_') >= 0 || trimmed.indexOf('$') >= 0 ||
+                SUBWORD_BOUNDARY.matcher(trimmed).find();
+    }
+
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return slotsById.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Index a chunk by its text and the identifier fields of its payload, replacing any chunk of
+     * the branch with the same id.
+     */
+    public void put(String branch, String id, JsonObject payload, String content) {
+        insert(new Doc(scoped(branch, id), payload, termFrequencies(payload, content)));
+    }
+
+    private void insert(Doc doc) {
+        lock.writeLock().lock();
+        try {
+            String id = doc.id;
+            remove(id);
+            int slot = docs.size();
+            docs.add(doc);
+            slotsById.put(id, slot);
+            idsByPath.computeIfAbsent(scoped(doc.branch, doc.filePath), path -> new HashSet<>()).add(id);
+            for (int i = 0; i < doc.terms.length; i++) {
+                postings.computeIfAbsent(doc.terms[i], term -> new Postings()).add(slot, doc.frequencies[i]);
+            }
+            totalLength += doc.length;
+            dirty = true;
+            compactIfNeeded();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public void deleteByPath(String branch, String filePath) {
+        deleteWhere(branch, filePath, payload -> true);
+    }
+
+    /**
+     * @return the path of every file with at least one chunk on the branch
+     */
+    public Set<String> getPaths(String branch) {
+        lock.readLock().lock();
+        try {
+            Set<String> paths = new HashSet<>();
+            for (Set<String> ids : idsByPath.values()) {
+                Doc doc = docs.get(slotsById.get(ids.iterator().next()));
+                if (Objects.equals(doc.branch, branch)) {
+                    paths.add(doc.filePath);
+                }
+            }
+            return paths;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Delete chunks at or beyond each file's current chunk count.
+     */
+    public void deleteStaleChunks(String branch, Map<String, Integer> chunkCounts) {
+        for (Map.Entry<String, Integer> entry : chunkCounts.entrySet()) {
+            int chunkCount = entry.getValue();
+            deleteWhere(branch, entry.getKey(), payload ->
+                    payload.has("chunkIndex") && payload.get("chunkIndex").getAsInt() >= chunkCount);
+        }
+    }
+
+    private void deleteWhere(String branch, String filePath, Predicate<JsonObject> condition) {
+        lock.writeLock().lock();
+        try {
+            Set<String> ids = idsByPath.get(scoped(branch, filePath));
+            if (ids == null) {
+                return;
+            }
+            for (String id : new ArrayList<>(ids)) {
+                if (condition.test(docs.get(slotsById.get(id)).payload)) {
+                    remove(id);
+                    dirty = true;
+                }
+            }
+            compactIfNeeded();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Set the summary of every chunk of a file whose content hash still matches. The summary is
+     * not indexed; it is kept so keyword results carry it.
+     */
+    public void updateSummary(String branch, String filePath, String contentHash, String summary) {
+        lock.writeLock().lock();
+        try {
+            Set<String> ids = idsByPath.get(scoped(branch, filePath));
+            if (ids == null) {
+                return;
+            }
+            for (String id : ids) {
+                JsonObject payload = docs.get(slotsById.get(id)).payload;
+                if (payload.has("contentHash") && contentHash.equals(payload.get("contentHash").getAsString())) {
+                    payload.addProperty("summary", summary);
+                    payload.addProperty("summaryPending", false);
+                    dirty = true;
+                }
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * @return map of file path to content hash of every file indexed on the branch
+     */
+    public Map<String, String> getFingerprints(String branch) {
+        lock.readLock().lock();
+        try {
+            Map<String, String> fingerprints = new HashMap<>();
+            for (Set<String> ids : idsByPath.values()) {
+                Doc doc = docs.get(slotsById.get(ids.iterator().next()));
+                JsonObject payload = doc.payload;
+                if (Objects.equals(doc.branch, branch) && payload.has("contentHash")) {
+                    fingerprints.put(payload.get("filePath").getAsString(), payload.get("contentHash").getAsString());
+                }
+            }
+            return fingerprints;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public String getFingerprint(String branch, String filePath) {
+        lock.readLock().lock();
+        try {
+            Set<String> ids = idsByPath.get(scoped(branch, filePath));
+            if (ids == null) {
+                return null;
+            }
+            JsonObject payload = docs.get(slotsById.get(ids.iterator().next())).payload;
+            return payload.has("contentHash") ? payload.get("contentHash").getAsString() : null;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Rank chunks against the query with BM25. For an identifier query (see
+     * {@link #isIdentifierQuery}) only chunks containing every name in it are returned.
+     *
+     * @param filters payload field to required value
+     * @param branch the branch searched; its own chunks and those of the base are searched
+     * @param hiddenBasePaths files whose base chunks the branch replaces or deletes
+     * @return at most limit results, scored relative to the best match (which scores 1)
+     */
+    public List<CodeSearchResult> search(String query, int limit, Map<String, String> filters, String branch,
+                                         Set<String> hiddenBasePaths) {
+        Set<String> queryTerms = new LinkedHashSet<>();
+        Set<String> requiredTerms = new HashSet<>();
+        Matcher words = WORD.matcher(query);
+        while (words.find()) {
+            addTerms(words.group(), queryTerms::add);
+            String whole = words.group().toLowerCase(Locale.ROOT);
+            if (whole.length() > 1 && !STOP_WORDS.contains(whole)) {
+                requiredTerms.add(whole);
+            }
+        }
+        if (!isIdentifierQuery(query)) {
+            requiredTerms.clear();
+        }
+        if (queryTerms.isEmpty()) {
+            return Collections.emptyList();
+        }
+
+        lock.readLock().lock();
+        try {
+            int live = slotsById.size();
+            if (live == 0) {
+                return Collections.emptyList();
+            }
+            double averageLength = (double) totalLength / live;
+            double[] scores = new double[docs.size()];
+            int[] requiredHits = new int[requiredTerms.isEmpty() ? 0 : docs.size()];
+            for (String term : queryTerms) {
+                Postings termPostings = postings.get(term);
+                if (termPostings == null) {
+                    continue;
+                }
+                double idf = Math.log(1 + (live - termPostings.live + 0.5) / (termPostings.live + 0.5));
+                boolean required = requiredTerms.contains(term);
+                for (int i = 0; i < termPostings.size; i++) {
+                    int slot = termPostings.slots[i];
+                    Doc doc = docs.get(slot);
+                    if (doc == null) {
+                        continue;
+                    }
+                    double tf = termPostings.frequencies[i];
+                    scores[slot] += idf * tf * (K1 + 1) / (tf + K1 * (1 - B + B * doc.length / averageLength));
+                    if (required) {
+                        requiredHits[slot]++;
+                    }
+                }
+            }
+
+            boolean filtered = filters != null && !filters.isEmpty();
+            PriorityQueue<Integer> best = new PriorityQueue<>(Comparator.comparingDouble(slot -> scores[slot]));
+            for (int slot = 0; slot < scores.length; slot++) {
+                if (scores[slot] <= 0 || (!requiredTerms.isEmpty() && requiredHits[slot] < requiredTerms.size())) {
+                    continue;
+                }
+                Doc doc = docs.get(slot);
+                boolean visible = Objects.equals(doc.branch, branch) ||
+                        (doc.branch == null && !hiddenBasePaths.contains(doc.filePath));
+                if (!visible) {
+                    continue;
+                }
+                if (filtered && !PointPayload.matches(doc.payload, filters)) {
+                    continue;
+                }
+                if (best.size() < limit) {
+                    best.add(slot);
+                } else if (scores[slot] > scores[best.peek()]) {
+                    best.poll();
+                    best.add(slot);
+                }
+            }
+
+            List<Integer> ranked = new ArrayList<>(best);
+            ranked.sort(Comparator.comparingDouble((Integer slot) -> scores[slot]).reversed());
+            List<CodeSearchResult> results = new ArrayList<>();
+            for (int slot : ranked) {
+                Doc doc = docs.get(slot);
+                float score = (float) (scores[slot] / scores[ranked.get(0)]);
+                results.add(PointPayload.toSearchResult(doc.chunkId, score, doc.payload));
+            }
+            return results;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Delete every chunk of one branch, or of the base if branch is null.
+     */
+    public void clear(String branch) {
+        lock.writeLock().lock();
+        try {
+            for (Doc doc : docs) {
+                if (doc != null && Objects.equals(doc.branch, branch)) {
+                    remove(doc.id);
+                    dirty = true;
+                }
+            }
+            compactIfNeeded();
+        } finally {
+            lock.writeLock().unlock();
+        }
+        save();
+    }
+
+    /**
+     * Delete the chunks of every branch and of the base.
+     */
+    public void clear() {
+        lock.writeLock().lock();
+        try {
+            docs.clear();
+            slotsById.clear();
+            idsByPath.clear();
+            postings.clear();
+            totalLength = 0;
+            deadSlots = 0;
+            dirty = true;
+        } finally {
+            lock.writeLock().unlock();
+        }
+        save();
+    }
+
+    /**
+     * Write the snapshot if anything changed since it was last written. The snapshot is written
+     * to a temporary file first, so a crash leaves the previous one intact. Saves run one at a
+     * time, while searches and writes may go on during one.
+     */
+    public void save() {
+        if (file == null) {
+            return;
+        }
+        synchronized (saveLock) {
+            if (!dirty) {
+                return;
+            }
+            Path temp = null;
+            lock.readLock().lock();
+            try {
+                dirty = false;
+                Files.createDirectories(file.getParent());
+                temp = Files.createTempFile(file.getParent(), FILE_NAME, ".tmp");
+                try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                        new DeflaterOutputStream(Files.newOutputStream(temp))))) {
+                    out.writeInt(MAGIC);
+                    out.writeInt(VERSION);
+                    out.writeInt(slotsById.size());
+                    for (Doc doc : docs) {
+                        if (doc != null) {
+                            writeBytes(out, doc.id.getBytes(StandardCharsets.UTF_8));
+                            writeBytes(out, doc.payload.toString().getBytes(StandardCharsets.UTF_8));
+                            out.writeInt(doc.terms.length);
+                            for (int i = 0; i < doc.terms.length; i++) {
+                                out.writeUTF(doc.terms[i]);
+                                out.writeInt(doc.frequencies[i]);
+                            }
+                        }
+                    }
+                }
+                Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING);
+                temp = null;
+            } catch (IOException e) {
+                dirty = true;
+                System.err.println("Error saving keyword index: " + e.getMessage());
+            } finally {
+                lock.readLock().unlock();
+                deleteQuietly(temp);
+            }
+        }
+    }
+
+    private static void deleteQuietly(Path temp) {
+        if (temp == null) {
+            return;
+        }
+        try {
+            Files.deleteIfExists(temp);
+        } catch (IOException e) {
+            System.err.println("Could not delete " + temp + ": " + e.getMessage());
+        }
+    }
+
+    @Override
+    public void dispose() {
+        save();
+    }
+
+    /**
+     * Load the snapshot. A missing or damaged snapshot leaves the index empty; the files it
+     * lacks then no longer match their stored fingerprints and are indexed again.
+     */
+    private void load() {
+        if (!Files.exists(file)) {
+            return;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(
+                new InflaterInputStream(Files.newInputStream(file))))) {
+            int version = in.readInt() == MAGIC ? in.readInt() : -1;
+            if (version != VERSION && version != PAYLOAD_TEXT_VERSION) {
+                System.out.println("Ignoring keyword index from an incompatible version");
+                return;
+            }
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                String id = new String(readBytes(in), StandardCharsets.UTF_8);
+                JsonObject payload = JsonParser.parseString(new String(readBytes(in), StandardCharsets.UTF_8)).getAsJsonObject();
+                if (version == PAYLOAD_TEXT_VERSION) {
+                    // Index the text once more and drop it; the next save writes the current version
+                    JsonElement content = payload.remove("content");
+                    insert(new Doc(id, payload, termFrequencies(payload,
+                            content != null && !content.isJsonNull() ? content.getAsString() : null)));
+                    continue;
+                }
+                int termCount = in.readInt();
+                Map<String, Integer> frequencies = new HashMap<>(termCount * 2);
+                for (int t = 0; t < termCount; t++) {
+                    String term = in.readUTF();
+                    frequencies.put(term, in.readInt());
+                }
+                insert(new Doc(id, payload, frequencies));
+            }
+            dirty = version != VERSION;
+            System.out.println("Loaded keyword index: " + slotsById.size() + " chunks, " + postings.size() + " terms");
+        } catch (IOException | RuntimeException e) {
+            System.err.println("Discarding damaged keyword index: " + e.getMessage());
+            clear();
+        }
+    }
+
+    private void remove(String id) {
+        Integer slot = slotsById.remove(id);
+        if (slot == null) {
+            return;
+        }
+        Doc doc = docs.set(slot, null);
+        for (String term : doc.terms) {
+            Postings termPostings = postings.get(term);
+            if (--termPostings.live == 0) {
+                postings.remove(term);
+            }
+        }
+        totalLength -= doc.length;
+        deadSlots++;
+        String pathKey = scoped(doc.branch, doc.filePath);
+        Set<String> ids = idsByPath.get(pathKey);
+        if (ids != null) {
+            ids.remove(id);
+            if (ids.isEmpty()) {
+                idsByPath.remove(pathKey);
+            }
+        }
+    }
+
+    /**
+     * Renumber the live documents densely and rebuild the postings without the dead slots.
+     */
+    private void compactIfNeeded() {
+        if (deadSlots < 1000 || deadSlots < docs.size() * MAX_DEAD_RATIO) {
+            return;
+        }
+        List<Doc> live = new ArrayList<>(slotsById.size());
+        for (Doc doc : docs) {
+            if (doc != null) {
+                live.add(doc);
+            }
+        }
+        docs.clear();
+        slotsById.clear();
+        postings.clear();
+        for (Doc doc : live) {
+            int slot = docs.size();
+            docs.add(doc);
+            slotsById.put(doc.id, slot);
+            for (int i = 0; i < doc.terms.length; i++) {
+                postings.computeIfAbsent(doc.terms[i], term -> new Postings()).add(slot, doc.frequencies[i]);
+            }
+        }
+        deadSlots = 0;
+    }
+
+    private static Map<String, Integer> termFrequencies(JsonObject payload, String content) {
+        Map<String, Integer> frequencies = new HashMap<>();
+        if (content != null) {
+            addWords(content, 1, frequencies);
+        }
+        for (String field : Arrays.asList("classes", "functions", "imports")) {
+            if (payload.has(field) && !payload.get(field).isJsonNull()) {
+                addWords(payload.get(field).getAsString(), IDENTIFIER_WEIGHT, frequencies);
+            }
+        }
+        String filePath = payload.get("filePath").getAsString();
+        String fileName = filePath.substring(Math.max(filePath.lastIndexOf('/'), filePath.lastIndexOf('\\')) + 1);
+        addWords(fileName, IDENTIFIER_WEIGHT, frequencies);
+        return frequencies;
+    }
+
+    private static void addWords(String text, int weight, Map<String, Integer> frequencies) {
+        Matcher words = WORD.matcher(text);
+        while (words.find()) {
+            addTerms(words.group(), term -> frequencies.merge(term, weight, Integer::sum));
+        }
+    }
+
+    /**
+     * Emit the lower-cased word and, for compound identifiers, each of its parts.
+     */
+    private static void addTerms(String word, Consumer<String> sink) {
+        String whole = word.toLowerCase(Locale.ROOT);
+        if (whole.length() > 1 && !STOP_WORDS.contains(whole)) {
+            sink.accept(whole);
+        }
+        String[] parts = SUBWORD_BOUNDARY.split(word);
+        if (parts.length > 1) {
+            for (String part : parts) {
+                String term = part.toLowerCase(Locale.ROOT);
+                if (term.length() > 1 && !STOP_WORDS.contains(term)) {
+                    sink.accept(term);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the key of a chunk id or file path on a branch; base keys are the plain value, so
+     * snapshots from before branches were kept apart load as the base
+     */
+    private static String scoped(String branch, String value) {
+        return branch == null ? value : branch + BRANCH_SEPARATOR + value;
+    }
+
+    private static byte[] readBytes(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0) {
+            throw new EOFException();
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return bytes;
+    }
+
+    private static void writeBytes(DataOutputStream out, byte[] bytes) throws IOException {
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static final class Doc {
+        // Scoped id, see scoped()
+        final String id;
+        final String branch;
+        final String chunkId;
+        final String filePath;
+        final JsonObject payload;
+        final String[] terms;
+        final int[] frequencies;
+        final int length;
+
+        Doc(String id, JsonObject payload, Map<String, Integer> termFrequencies) {
+            this.id = id;
+            int separator = id.indexOf(BRANCH_SEPARATOR);
+            this.branch = separator >= 0 ? id.substring(0, separator) : null;
+            this.chunkId = separator >= 0 ? id.substring(separator + 1) : id;
+            this.filePath = payload.get("filePath").getAsString();
+            this.payload = payload;
+            this.terms = new String[termFrequencies.size()];
+            this.frequencies = new int[termFrequencies.size()];
+            int i = 0;
+            int total = 0;
+            for (Map.Entry<String, Integer> entry : termFrequencies.entrySet()) {
+                terms[i] = entry.getKey();
+                frequencies[i] = entry.getValue();
+                total += entry.getValue();
+                i++;
+            }
+            this.length = total;
+        }
+    }
+
+    /**
+     * Slots containing a term with the term's weighted frequency in each. Entries of dead slots
+     * stay until the next compaction; live counts only the others and is the document frequency.
+     */
+    private static final class Postings {
+        int[] slots = new int[4];
+        int[] frequencies = new int[4];
+        int size = 0;
+        int live = 0;
+
+        void add(int slot, int frequency) {
+            if (size == slots.length) {
+                slots = Arrays.copyOf(slots, size * 2);
+                frequencies = Arrays.copyOf(frequencies, size * 2);
+            }
+            slots[size] = slot;
+            frequencies[size] = frequency;
+            size++;
+            live++;
+        }
+    }
+}
@@ -4,136 +4,204 @@ import com.intellij.openapi.project.Project;
 import okhttp3.*;
 import com.google.gson.*;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.util.List;
 import java.util.Map;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
-import java.util.concurrent.TimeUnit;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Consumer;
+import okio.BufferedSource;
 
 public class OllamaService implements EmbeddingService, GenerationService {
-    private final OkHttpClient client = new OkHttpClient.Builder()
-            .connectTimeout(240, TimeUnit.SECONDS)
-            .readTimeout(240, TimeUnit.SECONDS)
-            .build();
+    private final OkHttpClient client;
     private final Gson gson = new Gson();
     private final Project project;
     private final CodeMapperSettingsState settings;
     private int embeddingDimension = 384;
     private static final int MAX_RETRIES = 3;
     private static final int RETRY_DELAY_MS = 2000;
+    private static final int MAX_EMBEDDING_BATCH_SIZE = 64;
+    // Set when the server predates /api/embed, so batches go through /api/embeddings one by one
+    private volatile boolean batchEndpointUnsupported = false;
 
     public OllamaService(Project project) {
         this.project = project;
         this.settings = CodeMapperSettingsState.getInstance(project);
+        this.client = HttpClients.get(HttpClients.OLLAMA, ProviderSettings.getConcurrency(settings, HttpClients.OLLAMA));
     }
 
     @Override
     public float[] getEmbedding(String text) throws IOException {
+        return ProviderCalls.await(getEmbeddingAsync(text));
+    }
+
+    @Override
+    public CompletableFuture<float[]> getEmbeddingAsync(String text) {
         String truncatedText = text.length() > 4000 ? text.substring(0, 4000) : text;
+        EmbeddingCache cache = EmbeddingCache.getInstance(project);
+        float[] cached = cache.get("OLLAMA", settings.ollamaEmbeddingModel, truncatedText);
+        if (cached != null) {
+            return CompletableFuture.completedFuture(cached);
+        }
         JsonObject jsonRequest = new JsonObject();
         jsonRequest.addProperty("model", settings.ollamaEmbeddingModel);
         jsonRequest.addProperty("prompt", "Represent this code for retrieval: " + truncatedText);
         String jsonRequestString = gson.toJson(jsonRequest);
         String embeddingEndpoint = settings.ollamaEndpoint + "/api/embeddings";
-        int retries = 0;
-        while (retries < MAX_RETRIES) {
-            try {
-                Request request = new Request.Builder()
-                        .url(embeddingEndpoint)
-                        .post(RequestBody.create(jsonRequestString, MediaType.get("application/json")))
-                        .build();
-                try (Response response = client.newCall(request).execute()) {
-                    if (!response.isSuccessful()) {
-                        String errorBody = response.body() != null ? response.body().string() : "";
-                        throw new IOException("Unexpected code " + response + ": " + errorBody);
-                    }
-                    String responseBody = response.body().string();
-                    JsonObject jsonResponse = gson.fromJson(responseBody, JsonObject.class);
-                    JsonArray embeddingArray = jsonResponse.getAsJsonArray("embedding");
-                    if (embeddingArray == null) {
-                        throw new IOException("No embedding found in response: " + jsonResponse);
-                    }
-                    float[] embedding = new float[embeddingArray.size()];
-                    for (int i = 0; i < embeddingArray.size(); i++) {
-                        embedding[i] = embeddingArray.get(i).getAsFloat();
-                    }
-                    embeddingDimension = embedding.length;
-                    System.out.println("Embedding dimension: " + embeddingDimension);
-                    return embedding;
+        return ProviderCalls.withRetries("Ollama embedding request", MAX_RETRIES, ProviderCalls.retryIoErrors(RETRY_DELAY_MS), () -> {
+            Request request = new Request.Builder()
+                    .url(embeddingEndpoint)
+                    .post(RequestBody.create(jsonRequestString, MediaType.get("application/json")))
+                    .build();
+            return ProviderCalls.send(client, request, response -> {
+                if (!response.isSuccessful()) {
+                    String errorBody = response.body() != null ? response.body().string() : "";
+                    throw new IOException("Unexpected code " + response + ": " + errorBody);
                 }
-            } catch (IOException e) {
-                retries++;
-                if (retries < MAX_RETRIES) {
-                    System.err.println("Retrying Ollama embedding request after error: " + e.getMessage() + " (Attempt " + retries + " of " + MAX_RETRIES + ")");
-                    try {
-                        Thread.sleep(RETRY_DELAY_MS);
-                    } catch (InterruptedException ie) {
-                        Thread.currentThread().interrupt();
-                        throw new IOException("Embedding request interrupted", ie);
-                    }
-                } else {
-                    throw new IOException("Failed to get embedding after " + MAX_RETRIES + " attempts: " + e.getMessage(), e);
+                String responseBody = response.body().string();
+                JsonObject jsonResponse = gson.fromJson(responseBody, JsonObject.class);
+                JsonArray embeddingArray = jsonResponse.getAsJsonArray("embedding");
+                if (embeddingArray == null) {
+                    throw new IOException("No embedding found in response: " + jsonResponse);
+                }
+                float[] embedding = new float[embeddingArray.size()];
+                for (int i = 0; i < embeddingArray.size(); i++) {
+                    embedding[i] = embeddingArray.get(i).getAsFloat();
                 }
-            } catch (JsonSyntaxException e) {
-                throw new IOException("Failed to parse response: " + e.getMessage(), e);
+                embeddingDimension = embedding.length;
+                System.out.println("Embedding dimension: " + embeddingDimension);
+                cache.put("OLLAMA", settings.ollamaEmbeddingModel, truncatedText, embedding);
+                return embedding;
+            });
+        });
+    }
+
+    @Override
+    public List<float[]> getEmbeddings(List<String> texts) throws IOException {
+        return ProviderCalls.await(getEmbeddingsAsync(texts));
+    }
+
+    @Override
+    public CompletableFuture<List<float[]>> getEmbeddingsAsync(List<String> texts) {
+        if (texts.isEmpty()) {
+            return CompletableFuture.completedFuture(new ArrayList<>());
+        }
+        if (batchEndpointUnsupported) {
+            return EmbeddingService.super.getEmbeddingsAsync(texts);
+        }
+
+        // Serve what we can from the cache and only send the rest
+        EmbeddingCache cache = EmbeddingCache.getInstance(project);
+        float[][] results = new float[texts.size()][];
+        List<Integer> missing = new ArrayList<>();
+        List<String> missingTexts = new ArrayList<>();
+        for (int i = 0; i < texts.size(); i++) {
+            String text = texts.get(i);
+            String truncatedText = text.length() > 4000 ? text.substring(0, 4000) : text;
+            results[i] = cache.get("OLLAMA", settings.ollamaEmbeddingModel, truncatedText);
+            if (results[i] == null) {
+                missing.add(i);
+                missingTexts.add(truncatedText);
             }
         }
-        throw new IOException("Failed to get embedding after " + MAX_RETRIES + " attempts");
+        if (missing.isEmpty()) {
+            return CompletableFuture.completedFuture(Arrays.asList(results));
+        }
+
+        JsonObject jsonRequest = new JsonObject();
+        jsonRequest.addProperty("model", settings.ollamaEmbeddingModel);
+        JsonArray input = new JsonArray();
+        for (String truncatedText : missingTexts) {
+            input.add("Represent this code for retrieval: " + truncatedText);
+        }
+        jsonRequest.add("input", input);
+        String jsonRequestString = gson.toJson(jsonRequest);
+        String embeddingEndpoint = settings.ollamaEndpoint + "/api/embed";
+        // Completes with null when the server has no /api/embed endpoint
+        CompletableFuture<List<float[]>> batch = ProviderCalls.withRetries("Ollama batch embedding request", MAX_RETRIES,
+                ProviderCalls.retryIoErrors(RETRY_DELAY_MS), () -> {
+                    Request request = new Request.Builder()
+                            .url(embeddingEndpoint)
+                            .post(RequestBody.create(jsonRequestString, MediaType.get("application/json")))
+                            .build();
+                    return ProviderCalls.send(client, request, response -> {
+                        if (response.code() == 404 && !isModelNotFound(response)) {
+                            return null;
+                        }
+                        if (!response.isSuccessful()) {
+                            String errorBody = response.body() != null ? response.body().string() : "";
+                            throw new IOException("Unexpected code " + response + ": " + errorBody);
+                        }
+                        JsonObject jsonResponse = gson.fromJson(response.body().string(), JsonObject.class);
+                        JsonArray embeddingsArray = jsonResponse.getAsJsonArray("embeddings");
+                        if (embeddingsArray == null || embeddingsArray.size() != missing.size()) {
+                            throw new IOException("Expected " + missing.size() + " embeddings in response: " +
+                                    (embeddingsArray == null ? "none" : embeddingsArray.size()));
+                        }
+                        for (int m = 0; m < missing.size(); m++) {
+                            JsonArray embeddingArray = embeddingsArray.get(m).getAsJsonArray();
+                            float[] embedding = new float[embeddingArray.size()];
+                            for (int i = 0; i < embeddingArray.size(); i++) {
+                                embedding[i] = embeddingArray.get(i).getAsFloat();
+                            }
+                            results[missing.get(m)] = embedding;
+                            cache.put("OLLAMA", settings.ollamaEmbeddingModel, missingTexts.get(m), embedding);
+                        }
+                        embeddingDimension = results[missing.get(0)].length;
+                        return Arrays.asList(results);
+                    });
+                });
+        return ProviderCalls.cancelling(batch.thenCompose(embeddings -> {
+            if (embeddings != null) {
+                return CompletableFuture.completedFuture(embeddings);
+            }
+            System.out.println("Ollama server has no /api/embed endpoint, embedding texts one at a time");
+            batchEndpointUnsupported = true;
+            return EmbeddingService.super.getEmbeddingsAsync(texts);
+        }), batch);
+    }
+
+    @Override
+    public int getMaxBatchSize() {
+        return MAX_EMBEDDING_BATCH_SIZE;
+    }
+
+    // A missing model is also reported as 404 by /api/embed; only an unknown route means the endpoint is missing
+    private boolean isModelNotFound(Response response) throws IOException {
+        String errorBody = response.peekBody(4096).string();
+        return errorBody.contains("model");
     }
 
     @Override
     public String generateSummary(String codeContent, String fileName) throws IOException {
+        return ProviderCalls.await(generateSummaryAsync(codeContent, fileName));
+    }
+
+    @Override
+    public CompletableFuture<String> generateSummaryAsync(String codeContent, String fileName) {
         String truncatedCode = codeContent.length() > 8000 ? codeContent.substring(0, 8000) + "..." : codeContent;
         JsonObject jsonRequest = new JsonObject();
         jsonRequest.addProperty("model", settings.ollamaGenerationModel);
         jsonRequest.addProperty("prompt", "Generate a concise summary (max 3 sentences) of this " + getLanguageFromFileName(fileName) + " file. Include the main classes, methods, and functionality:\n\n" + truncatedCode);
         jsonRequest.addProperty("stream", false);
-        String jsonRequestString = gson.toJson(jsonRequest);
-        String generationEndpoint = settings.ollamaEndpoint + "/api/generate";
-        int retries = 0;
-        while (retries < MAX_RETRIES) {
-            try {
-                Request request = new Request.Builder()
-                        .url(generationEndpoint)
-                        .post(RequestBody.create(jsonRequestString, MediaType.get("application/json")))
-                        .build();
-                try (Response response = client.newCall(request).execute()) {
-                    if (!response.isSuccessful()) {
-                        String errorBody = response.body() != null ? response.body().string() : "";
-                        throw new IOException("Unexpected code " + response + ": " + errorBody);
-                    }
-                    JsonObject jsonResponse = gson.fromJson(response.body().charStream(), JsonObject.class);
-                    String summary = jsonResponse.get("response").getAsString();
-                    summary = summary.replaceAll("^[\"']|[\"']$", "").trim();
-                    if (summary.length() > 500) {
-                        summary = summary.substring(0, 497) + "...";
-                    }
-                    return summary;
-                }
-            } catch (IOException e) {
-                retries++;
-                if (retries < MAX_RETRIES) {
-                    System.err.println("Retrying Ollama summary generation after error: " + e.getMessage() + " (Attempt " + retries + " of " + MAX_RETRIES + ")");
-                    try {
-                        Thread.sleep(RETRY_DELAY_MS);
-                    } catch (InterruptedException ie) {
-                        Thread.currentThread().interrupt();
-                        throw new IOException("Summary generation interrupted", ie);
-                    }
-                } else {
-                    return "Failed to generate summary: " + e.getMessage();
-                }
-            } catch (Exception e) {
-                return "Failed to generate summary: " + e.getMessage();
-            }
-        }
-        return "Failed to generate summary after " + MAX_RETRIES + " attempts";
+        CompletableFuture<String> summary = generate("Ollama summary generation", gson.toJson(jsonRequest));
+        return orFailureMessage(summary.thenApply(response -> {
+            String trimmed = response.replaceAll("^[\"']|[\"']$", "").trim();
+            return trimmed.length() > 500 ? trimmed.substring(0, 497) + "..." : trimmed;
+        }), summary, "Failed to generate summary: ");
     }
 
     @Override
     public String generateCodeContext(String query, List<CodeSearchResult> results) throws IOException {
+        return ProviderCalls.await(generateCodeContextAsync(query, results));
+    }
+
+    @Override
+    public CompletableFuture<String> generateCodeContextAsync(String query, List<CodeSearchResult> results) {
         if (results.isEmpty()) {
-            return "No matching files found for query: " + query;
+            return CompletableFuture.completedFuture("No matching files found for query: " + query);
         }
         StringBuilder contextBuilder = new StringBuilder();
         contextBuilder.append("Query: ").append(query).append("\n\n");
@@ -148,45 +216,115 @@ public class OllamaService implements EmbeddingService, GenerationService {
         jsonRequest.addProperty("model", settings.ollamaGenerationModel);
         jsonRequest.addProperty("prompt", "Based on the user query and the matching files, provide a brief explanation of which files are most relevant and why. Focus on functionality:\n\n" + contextBuilder.toString());
         jsonRequest.addProperty("stream", false);
-        String jsonRequestString = gson.toJson(jsonRequest);
+        CompletableFuture<String> context = generate("Ollama context generation", gson.toJson(jsonRequest));
+        return orFailureMessage(context, context, "Failed to generate context: ");
+    }
+
+    @Override
+    public String askQuestionWithHistory(String question, List<CodeSearchResult> relevantFiles, List<Map<String, Object>> chatHistory) throws IOException {
+        return ProviderCalls.await(askQuestionWithHistoryAsync(question, relevantFiles, chatHistory));
+    }
+
+    @Override
+    public CompletableFuture<String> askQuestionWithHistoryAsync(String question, List<CodeSearchResult> relevantFiles,
+                                                                 List<Map<String, Object>> chatHistory) {
+        JsonObject jsonRequest = new JsonObject();
+        jsonRequest.addProperty("model", settings.ollamaGenerationModel);
+        jsonRequest.addProperty("prompt", buildQuestionPrompt(question, relevantFiles, chatHistory));
+        jsonRequest.addProperty("stream", false);
+        jsonRequest.addProperty("temperature", 0.2);
+        CompletableFuture<String> answer = generate("Ollama question answering", gson.toJson(jsonRequest));
+        return orFailureMessage(answer, answer, "Failed to generate answer: ");
+    }
+
+    /**
+     * Send a non-streaming request to /api/generate, retrying I/O errors.
+     */
+    private CompletableFuture<String> generate(String description, String jsonRequestString) {
         String generationEndpoint = settings.ollamaEndpoint + "/api/generate";
-        int retries = 0;
-        while (retries < MAX_RETRIES) {
-            try {
-                Request request = new Request.Builder()
-                        .url(generationEndpoint)
-                        .post(RequestBody.create(jsonRequestString, MediaType.get("application/json")))
-                        .build();
-                try (Response response = client.newCall(request).execute()) {
-                    if (!response.isSuccessful()) {
-                        String errorBody = response.body() != null ? response.body().string() : "";
-                        throw new IOException("Unexpected code " + response + ": " + errorBody);
-                    }
-                    JsonObject jsonResponse = gson.fromJson(response.body().charStream(), JsonObject.class);
-                    return jsonResponse.get("response").getAsString();
-                }
-            } catch (IOException e) {
-                retries++;
-                if (retries < MAX_RETRIES) {
-                    System.err.println("Retrying Ollama context generation after error: " + e.getMessage() + " (Attempt " + retries + " of " + MAX_RETRIES + ")");
-                    try {
-                        Thread.sleep(RETRY_DELAY_MS);
-                    } catch (InterruptedException ie) {
-                        Thread.currentThread().interrupt();
-                        throw new IOException("Context generation interrupted", ie);
-                    }
-                } else {
-                    return "Failed to generate context: " + e.getMessage();
+        return ProviderCalls.withRetries(description, MAX_RETRIES, ProviderCalls.retryIoErrors(RETRY_DELAY_MS), () -> {
+            Request request = new Request.Builder()
+                    .url(generationEndpoint)
+                    .post(RequestBody.create(jsonRequestString, MediaType.get("application/json")))
+                    .build();
+            return ProviderCalls.send(client, request, response -> {
+                if (!response.isSuccessful()) {
+                    String errorBody = response.body() != null ? response.body().string() : "";
+                    throw new IOException("Unexpected code " + response + ": " + errorBody);
                 }
-            } catch (Exception e) {
-                return "Failed to generate context: " + e.getMessage();
-            }
-        }
-        return "Failed to generate context after " + MAX_RETRIES + " attempts";
+                JsonObject jsonResponse = gson.fromJson(response.body().charStream(), JsonObject.class);
+                return jsonResponse.get("response").getAsString();
+            });
+        });
     }
 
+    // Generation failures are reported as the text of the result rather than as errors
+    private static CompletableFuture<String> orFailureMessage(CompletableFuture<String> result, CompletableFuture<String> request, String prefix) {
+        return ProviderCalls.cancelling(result.exceptionally(e -> prefix + ProviderCalls.unwrap(e).getMessage()), request);
+    }
+
+    /**
+     * Streams the answer from /api/generate, which sends one JSON object per line until "done".
+     * A failed request is retried only while nothing has been handed to onToken yet.
+     */
     @Override
-    public String askQuestionWithHistory(String question, List<CodeSearchResult> relevantFiles, List<Map<String, Object>> chatHistory) throws IOException {
+    public String streamQuestionWithHistory(String question, List<CodeSearchResult> relevantFiles, List<Map<String, Object>> chatHistory,
+                                            Consumer<String> onToken) throws IOException {
+        JsonObject jsonRequest = new JsonObject();
+        jsonRequest.addProperty("model", settings.ollamaGenerationModel);
+        jsonRequest.addProperty("prompt", buildQuestionPrompt(question, relevantFiles, chatHistory));
+        jsonRequest.addProperty("stream", true);
+        jsonRequest.addProperty("temperature", 0.2);
+        String jsonRequestString = gson.toJson(jsonRequest);
+        String generationEndpoint = settings.ollamaEndpoint + "/api/generate";
+        StringBuilder answer = new StringBuilder();
+        CompletableFuture<String> streamed = ProviderCalls.withRetries("Ollama question answering", MAX_RETRIES,
+                error -> answer.length() == 0 && (error instanceof IOException || error instanceof JsonParseException
+                        || error instanceof IllegalStateException) ? RETRY_DELAY_MS : -1,
+                () -> {
+                    Request request = new Request.Builder()
+                            .url(generationEndpoint)
+                            .post(RequestBody.create(jsonRequestString, MediaType.get("application/json")))
+                            .build();
+                    return ProviderCalls.send(client, request, response -> {
+                        if (!response.isSuccessful()) {
+                            String errorBody = response.body() != null ? response.body().string() : "";
+                            throw new IOException("Unexpected code " + response + ": " + errorBody);
+                        }
+                        BufferedSource source = response.body().source();
+                        String line;
+                        while ((line = source.readUtf8Line()) != null) {
+                            if (line.isEmpty()) {
+                                continue;
+                            }
+                            JsonObject chunk = JsonParser.parseString(line).getAsJsonObject();
+                            if (chunk.has("error")) {
+                                throw new IOException("Ollama error: " + chunk.get("error").getAsString());
+                            }
+                            if (chunk.has("response")) {
+                                String token = chunk.get("response").getAsString();
+                                if (!token.isEmpty()) {
+                                    answer.append(token);
+                                    onToken.accept(token);
+                                }
+                            }
+                            if (chunk.has("done") && chunk.get("done").getAsBoolean()) {
+                                break;
+                            }
+                        }
+                        return answer.toString();
+                    });
+                });
+        try {
+            return ProviderCalls.await(streamed);
+        } catch (InterruptedIOException e) {
+            throw e;
+        } catch (IOException e) {
+            throw new IOException("Failed to generate answer: " + e.getMessage(), e);
+        }
+    }
+
+    private String buildQuestionPrompt(String question, List<CodeSearchResult> relevantFiles, List<Map<String, Object>> chatHistory) {
         StringBuilder prompt = new StringBuilder();
         prompt.append("You are a code assistant. Answer the following question about the codebase using the provided file contents and conversation history.\n\n");
         int historyLimit = Math.min(chatHistory.size(), 6);
@@ -205,7 +343,7 @@ public class OllamaService implements EmbeddingService, GenerationService {
             prompt.append("I couldn't find any directly relevant files for your question. Please answer based on our conversation history.");
         } else {
             prompt.append("Here are the relevant files from the codebase:\n\n");
-            for (int i = 0; i < Math.min(3, relevantFiles.size()); i++) {
+            for (int i = 0; i < Math.min(CONTEXT_FILE_COUNT, relevantFiles.size()); i++) {
                 CodeSearchResult file = relevantFiles.get(i);
                 prompt.append("FILE ").append(i+1).append(": ").append(file.getFilePath()).append("\n");
                 if (file.getContent() != null && !file.getContent().isEmpty()) {
@@ -220,46 +358,7 @@ public class OllamaService implements EmbeddingService, GenerationService {
             }
             prompt.append("Based on these files and our conversation history, please answer the question. Include code snippets in your explanation when relevant.");
         }
-        JsonObject jsonRequest = new JsonObject();
-        jsonRequest.addProperty("model", settings.ollamaGenerationModel);
-        jsonRequest.addProperty("prompt", prompt.toString());
-        jsonRequest.addProperty("stream", false);
-        jsonRequest.addProperty("temperature", 0.2);
-        String jsonRequestString = gson.toJson(jsonRequest);
-        String generationEndpoint = settings.ollamaEndpoint + "/api/generate";
-        int retries = 0;
-        while (retries < MAX_RETRIES) {
-            try {
-                Request request = new Request.Builder()
-                        .url(generationEndpoint)
-                        .post(RequestBody.create(jsonRequestString, MediaType.get("application/json")))
-                        .build();
-                try (Response response = client.newCall(request).execute()) {
-                    if (!response.isSuccessful()) {
-                        String errorBody = response.body() != null ? response.body().string() : "";
-                        throw new IOException("Unexpected code " + response + ": " + errorBody);
-                    }
-                    JsonObject jsonResponse = gson.fromJson(response.body().charStream(), JsonObject.class);
-                    return jsonResponse.get("response").getAsString();
-                }
-            } catch (IOException e) {
-                retries++;
-                if (retries < MAX_RETRIES) {
-                    System.err.println("Retrying Ollama question answering after error: " + e.getMessage() + " (Attempt " + retries + " of " + MAX_RETRIES + ")");
-                    try {
-                        Thread.sleep(RETRY_DELAY_MS);
-                    } catch (InterruptedException ie) {
-                        Thread.currentThread().interrupt();
-                        throw new IOException("Question answering interrupted", ie);
-                    }
-                } else {
-                    return "Failed to generate answer: " + e.getMessage();
-                }
-            } catch (Exception e) {
-                return "Failed to generate answer: " + e.getMessage();
-            }
-        }
-        return "Failed to generate answer after " + MAX_RETRIES + " attempts";
+        return prompt.toString();
     }
 
     @Override
@@ -1,69 +1,41 @@
 package dev.balakumar.codecompass;
 
 import com.intellij.openapi.project.Project;
-import java.security.SecureRandom;
-import java.security.cert.X509Certificate;
 import java.util.Map;
-import javax.net.ssl.SSLContext;
-import javax.net.ssl.TrustManager;
-import javax.net.ssl.X509TrustManager;
 import okhttp3.*;
 import com.google.gson.*;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.util.List;
 import java.util.Collections;
-import java.util.concurrent.TimeUnit;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.function.Consumer;
+import okio.BufferedSource;
 
 public class OpenRouterService implements GenerationService {
     private static final String OPENROUTER_GENERATION_ENDPOINT = "https://openrouter.ai/api/v1/chat/completions";
-    private OkHttpClient client = new OkHttpClient.Builder()
-            .connectTimeout(240, TimeUnit.SECONDS)
-            .readTimeout(240, TimeUnit.SECONDS)
-            .build();
+    private final OkHttpClient client;
     private final Gson gson = new Gson();
     private final Project project;
     private final CodeMapperSettingsState settings;
     private static final int MAX_RETRIES = 3;
     private static final int RETRY_DELAY_MS = 2000;
-    private static final int RATE_LIMIT_RETRY_DELAY_MS = 5000;
 
     public OpenRouterService(Project project) {
         this.project = project;
         this.settings = CodeMapperSettingsState.getInstance(project);
-        this.client = createTrustAllClient();
+        this.client = HttpClients.get(HttpClients.OPENROUTER, ProviderSettings.getConcurrency(settings, HttpClients.OPENROUTER));
     }
 
-    // Create a client that trusts all certificates
-    private OkHttpClient createTrustAllClient() {
-        try {
-            TrustManager[] trustAllCerts = new TrustManager[] {
-                    new X509TrustManager() {
-                        public X509Certificate[] getAcceptedIssuers() {
-                            return new X509Certificate[0];
-                        }
-                        public void checkClientTrusted(X509Certificate[] certs, String authType) {}
-                        public void checkServerTrusted(X509Certificate[] certs, String authType) {}
-                    }
-            };
-            SSLContext sslContext = SSLContext.getInstance("SSL");
-            sslContext.init(null, trustAllCerts, new SecureRandom());
-            return new OkHttpClient.Builder()
-                    .sslSocketFactory(sslContext.getSocketFactory(), (X509TrustManager)trustAllCerts[0])
-                    .hostnameVerifier((hostname, session) -> true)
-                    .connectTimeout(240, TimeUnit.SECONDS)
-                    .readTimeout(240, TimeUnit.SECONDS)
-                    .build();
-        } catch (Exception e) {
-            System.err.println("Error creating SSL-bypassing client: " + e.getMessage());
-            return new OkHttpClient.Builder()
-                    .connectTimeout(240, TimeUnit.SECONDS)
-                    .readTimeout(240, TimeUnit.SECONDS)
-                    .build();
-        }
+    @Override
+    public String generateSummary(String codeContent, String fileName) throws IOException {
+        return ProviderCalls.await(generateSummaryAsync(codeContent, fileName));
     }
 
     @Override
-    public String generateSummary(String codeContent, String fileName) throws IOException {
+    public CompletableFuture<String> generateSummaryAsync(String codeContent, String fileName) {
         String truncatedCode = codeContent.length() > 8000 ? codeContent.substring(0, 8000) + "..." : codeContent;
         String language = getLanguageFromFileName(fileName);
 
@@ -76,56 +48,16 @@ public class OpenRouterService implements GenerationService {
         messages.add(message);
         jsonRequest.add("messages", messages);
 
-        String jsonRequestString = gson.toJson(jsonRequest);
-        int retries = 0;
-        while (true) {
-            try {
-                Request request = new Request.Builder()
-                        .url(OPENROUTER_GENERATION_ENDPOINT)
-                        .header("Authorization", "Bearer " + settings.openRouterApiKey)
-                        .header("Content-Type", "application/json")
-                        .post(RequestBody.create(jsonRequestString, MediaType.get("application/json")))
-                        .build();
-
-                try (Response response = client.newCall(request).execute()) {
-                    if (!response.isSuccessful()) {
-                        String errorMessage = handleApiError(response);
-                        throw new IOException(errorMessage);
-                    }
-
-                    String contentType = response.header("Content-Type");
-                    if (contentType == null || !contentType.contains("application/json")) {
-                        String errorBody = response.body() != null ? response.body().string() : "";
-                        throw new IOException("Unexpected response type: " + contentType + ". Body: " + errorBody);
-                    }
-
-                    String responseBody = response.body().string();
-                    JsonObject jsonResponse = gson.fromJson(responseBody, JsonObject.class);
-                    return jsonResponse.getAsJsonArray("choices")
-                            .get(0).getAsJsonObject()
-                            .getAsJsonObject("message")
-                            .get("content").getAsString();
-                }
-            } catch (IOException e) {
-                if (shouldRetry(e, retries)) {
-                    retries++;
-                    int delayMs = isRateLimitError(e) ? RATE_LIMIT_RETRY_DELAY_MS : RETRY_DELAY_MS;
-                    System.out.println("Retrying summary generation after error: " + e.getMessage() + " (Attempt " + retries + " of " + MAX_RETRIES + ", waiting " + delayMs + "ms)");
-                    try {
-                        Thread.sleep(delayMs);
-                    } catch (InterruptedException ie) {
-                        Thread.currentThread().interrupt();
-                        throw new IOException("Summary generation interrupted", ie);
-                    }
-                } else {
-                    throw new IOException("Failed to process OpenRouter response: " + e.getMessage(), e);
-                }
-            }
-        }
+        return sendChatRequest("summary generation", jsonRequest, true);
     }
 
     @Override
     public String generateCodeContext(String query, List<CodeSearchResult> results) throws IOException {
+        return ProviderCalls.await(generateCodeContextAsync(query, results));
+    }
+
+    @Override
+    public CompletableFuture<String> generateCodeContextAsync(String query, List<CodeSearchResult> results) {
         JsonObject jsonRequest = new JsonObject();
         jsonRequest.addProperty("model", settings.openRouterGenerationModel);
         JsonArray messages = new JsonArray();
@@ -163,50 +95,91 @@ public class OpenRouterService implements GenerationService {
         messages.add(message);
         jsonRequest.add("messages", messages);
 
+        return sendChatRequest("context generation", jsonRequest, false);
+    }
+
+    @Override
+    public String askQuestionWithHistory(String question, List<CodeSearchResult> relevantFiles, List<Map<String, Object>> chatHistory) throws IOException {
+        return ProviderCalls.await(askQuestionWithHistoryAsync(question, relevantFiles, chatHistory));
+    }
+
+    @Override
+    public CompletableFuture<String> askQuestionWithHistoryAsync(String question, List<CodeSearchResult> relevantFiles,
+                                                                 List<Map<String, Object>> chatHistory) {
+        return sendChatRequest("question answering", buildQuestionRequest(question, relevantFiles, chatHistory), false);
+    }
+
+    /**
+     * Streams the answer as server-sent events. Each "data:" line carries a completion chunk whose
+     * delta holds the next piece of text; the stream ends with "data: [DONE]". A failed request is
+     * retried only while nothing has been handed to onToken yet.
+     */
+    @Override
+    public String streamQuestionWithHistory(String question, List<CodeSearchResult> relevantFiles, List<Map<String, Object>> chatHistory,
+                                            Consumer<String> onToken) throws IOException {
+        JsonObject jsonRequest = buildQuestionRequest(question, relevantFiles, chatHistory);
+        jsonRequest.addProperty("stream", true);
         String jsonRequestString = gson.toJson(jsonRequest);
-        int retries = 0;
-        while (true) {
-            try {
-                Request request = new Request.Builder()
-                        .url(OPENROUTER_GENERATION_ENDPOINT)
-                        .header("Authorization", "Bearer " + settings.openRouterApiKey)
-                        .header("Content-Type", "application/json")
-                        .post(RequestBody.create(jsonRequestString, MediaType.get("application/json")))
-                        .build();
-
-                try (Response response = client.newCall(request).execute()) {
-                    if (!response.isSuccessful()) {
-                        String errorMessage = handleApiError(response);
-                        throw new IOException(errorMessage);
-                    }
+        StringBuilder answer = new StringBuilder();
+        CompletableFuture<String> streamed = ProviderCalls.withRetries("question answering", MAX_RETRIES + 1, error -> {
+            IOException e = error instanceof IOException ? (IOException) error : new IOException(error.getMessage(), error);
+            return answer.length() == 0 && isTransient(e) ? retryDelayMs(e) : -1;
+        }, () -> {
+            Request request = new Request.Builder()
+                    .url(OPENROUTER_GENERATION_ENDPOINT)
+                    .header("Authorization", "Bearer " + settings.openRouterApiKey)
+                    .header("Content-Type", "application/json")
+                    .header("Accept", "text/event-stream")
+                    .post(RequestBody.create(jsonRequestString, MediaType.get("application/json")))
+                    .build();
 
-                    String responseBody = response.body().string();
-                    JsonObject jsonResponse = gson.fromJson(responseBody, JsonObject.class);
-                    return jsonResponse.getAsJsonArray("choices")
-                            .get(0).getAsJsonObject()
-                            .getAsJsonObject("message")
-                            .get("content").getAsString();
+            return ProviderCalls.send(client, request, response -> {
+                if (!response.isSuccessful()) {
+                    String errorMessage = handleApiError(response);
+                    throw new IOException(errorMessage);
                 }
-            } catch (IOException e) {
-                if (shouldRetry(e, retries)) {
-                    retries++;
-                    int delayMs = isRateLimitError(e) ? RATE_LIMIT_RETRY_DELAY_MS : RETRY_DELAY_MS;
-                    System.out.println("Retrying context generation after error: " + e.getMessage() + " (Attempt " + retries + " of " + MAX_RETRIES + ", waiting " + delayMs + "ms)");
-                    try {
-                        Thread.sleep(delayMs);
-                    } catch (InterruptedException ie) {
-                        Thread.currentThread().interrupt();
-                        throw new IOException("Context generation interrupted", ie);
+
+                BufferedSource source = response.body().source();
+                String line;
+                while ((line = source.readUtf8Line()) != null) {
+                    // Blank lines separate events; lines starting with ':' are keep-alive comments
+                    if (!line.startsWith("data:")) {
+                        continue;
+                    }
+                    String data = line.substring(5).trim();
+                    if (data.equals("[DONE]")) {
+                        break;
+                    }
+                    JsonObject chunk = JsonParser.parseString(data).getAsJsonObject();
+                    if (chunk.has("error")) {
+                        throw new IOException("OpenRouter error: " + chunk.get("error"));
+                    }
+                    JsonArray choices = chunk.getAsJsonArray("choices");
+                    if (choices == null || choices.size() == 0) {
+                        continue;
+                    }
+                    JsonObject delta = choices.get(0).getAsJsonObject().getAsJsonObject("delta");
+                    if (delta != null && delta.has("content") && !delta.get("content").isJsonNull()) {
+                        String token = delta.get("content").getAsString();
+                        if (!token.isEmpty()) {
+                            answer.append(token);
+                            onToken.accept(token);
+                        }
                     }
-                } else {
-                    throw new IOException("Failed to process OpenRouter response: " + e.getMessage(), e);
                 }
-            }
+                return answer.toString();
+            });
+        });
+        try {
+            return ProviderCalls.await(streamed);
+        } catch (InterruptedIOException e) {
+            throw e;
+        } catch (IOException e) {
+            throw new IOException("Failed to process OpenRouter response: " + e.getMessage(), e);
         }
     }
 
-    @Override
-    public String askQuestionWithHistory(String question, List<CodeSearchResult> relevantFiles, List<Map<String, Object>> chatHistory) throws IOException {
+    private JsonObject buildQuestionRequest(String question, List<CodeSearchResult> relevantFiles, List<Map<String, Object>> chatHistory) {
         JsonObject jsonRequest = new JsonObject();
         jsonRequest.addProperty("model", settings.openRouterGenerationModel);
         JsonArray messages = new JsonArray();
@@ -238,7 +211,7 @@ public class OpenRouterService implements GenerationService {
             context.append("I'll answer your question based on these files from the codebase:\n\n");
 
             // Include file contents for context
-            for (int i = 0; i < Math.min(3, relevantFiles.size()); i++) {
+            for (int i = 0; i < Math.min(CONTEXT_FILE_COUNT, relevantFiles.size()); i++) {
                 CodeSearchResult file = relevantFiles.get(i);
                 context.append("FILE ").append(i+1).append(": ").append(file.getFilePath()).append("\n");
                 context.append("```").append(file.getLanguage().toLowerCase()).append("\n");
@@ -287,9 +260,7 @@ public class OpenRouterService implements GenerationService {
         parameters.addProperty("temperature", 0.2); // Lower temperature for more factual responses
         parameters.addProperty("max_tokens", 1500); // Allow longer responses for detailed explanations
         jsonRequest.add("parameters", parameters);
-
-        String jsonRequestString = gson.toJson(jsonRequest);
-        return sendQuestionRequest(jsonRequestString);
+        return jsonRequest;
     }
 
     @Override
@@ -297,46 +268,55 @@ public class OpenRouterService implements GenerationService {
         return askQuestionWithHistory(question, relevantFiles, Collections.emptyList());
     }
 
-    private String sendQuestionRequest(String jsonRequestString) throws IOException {
-        int retries = 0;
-        while (true) {
-            try {
-                Request request = new Request.Builder()
-                        .url(OPENROUTER_GENERATION_ENDPOINT)
-                        .header("Authorization", "Bearer " + settings.openRouterApiKey)
-                        .header("Content-Type", "application/json")
-                        .post(RequestBody.create(jsonRequestString, MediaType.get("application/json")))
-                        .build();
-
-                try (Response response = client.newCall(request).execute()) {
-                    if (!response.isSuccessful()) {
-                        String errorMessage = handleApiError(response);
-                        throw new IOException(errorMessage);
-                    }
+    /**
+     * Send a chat completion request and return the content of the first choice. Transient errors
+     * are retried without holding a thread while waiting; rate limit errors are retried at once,
+     * since the rate limiter already holds the retry back.
+     */
+    private CompletableFuture<String> sendChatRequest(String description, JsonObject jsonRequest, boolean requireJson) {
+        String jsonRequestString = gson.toJson(jsonRequest);
+        CompletableFuture<String> attempts = ProviderCalls.withRetries(description, MAX_RETRIES + 1,
+                error -> error instanceof IOException && isTransient((IOException) error) ? retryDelayMs((IOException) error) : -1,
+                () -> {
+                    Request request = new Request.Builder()
+                            .url(OPENROUTER_GENERATION_ENDPOINT)
+                            .header("Authorization", "Bearer " + settings.openRouterApiKey)
+                            .header("Content-Type", "application/json")
+                            .post(RequestBody.create(jsonRequestString, MediaType.get("application/json")))
+                            .build();
+
+                    return ProviderCalls.send(client, request, response -> {
+                        if (!response.isSuccessful()) {
+                            String errorMessage = handleApiError(response);
+                            throw new IOException(errorMessage);
+                        }
 
-                    String responseBody = response.body().string();
-                    JsonObject jsonResponse = gson.fromJson(responseBody, JsonObject.class);
-                    return jsonResponse.getAsJsonArray("choices")
-                            .get(0).getAsJsonObject()
-                            .getAsJsonObject("message")
-                            .get("content").getAsString();
-                }
-            } catch (IOException e) {
-                if (shouldRetry(e, retries)) {
-                    retries++;
-                    int delayMs = isRateLimitError(e) ? RATE_LIMIT_RETRY_DELAY_MS : RETRY_DELAY_MS;
-                    System.out.println("Retrying question answering after error: " + e.getMessage() + " (Attempt " + retries + " of " + MAX_RETRIES + ", waiting " + delayMs + "ms)");
-                    try {
-                        Thread.sleep(delayMs);
-                    } catch (InterruptedException ie) {
-                        Thread.currentThread().interrupt();
-                        throw new IOException("Question answering interrupted", ie);
-                    }
-                } else {
-                    throw new IOException("Failed to process OpenRouter response: " + e.getMessage(), e);
-                }
+                        if (requireJson) {
+                            String contentType = response.header("Content-Type");
+                            if (contentType == null || !contentType.contains("application/json")) {
+                                String errorBody = response.body() != null ? response.body().string() : "";
+                                throw new IOException("Unexpected response type: " + contentType + ". Body: " + errorBody);
+                            }
+                        }
+
+                        String responseBody = response.body().string();
+                        JsonObject jsonResponse = gson.fromJson(responseBody, JsonObject.class);
+                        return jsonResponse.getAsJsonArray("choices")
+                                .get(0).getAsJsonObject()
+                                .getAsJsonObject("message")
+                                .get("content").getAsString();
+                    });
+                });
+        return ProviderCalls.cancelling(attempts.handle((content, error) -> {
+            if (error == null) {
+                return content;
             }
-        }
+            Throwable cause = ProviderCalls.unwrap(error);
+            if (cause instanceof CancellationException) {
+                throw (CancellationException) cause;
+            }
+            throw new CompletionException(new IOException("Failed to process OpenRouter response: " + cause.getMessage(), cause));
+        }), attempts);
     }
 
     @Override
@@ -351,10 +331,7 @@ public class OpenRouterService implements GenerationService {
         return "Unknown";
     }
 
-    private boolean shouldRetry(IOException e, int currentRetries) {
-        if (currentRetries >= MAX_RETRIES) {
-            return false;
-        }
+    private boolean isTransient(IOException e) {
         String message = e.getMessage();
         if (message == null) {
             return true;
@@ -381,6 +358,14 @@ public class OpenRouterService implements GenerationService {
                 message.contains("resource");
     }
 
+    /**
+     * Rate limit errors are retried at once: the shared client's rate limiter holds the request
+     * back until the provider's limit has reset.
+     */
+    private int retryDelayMs(IOException e) {
+        return isRateLimitError(e) ? 0 : RETRY_DELAY_MS;
+    }
+
     private String handleApiError(Response response) throws IOException {
         int statusCode = response.code();
         String errorBody = response.body() != null ? response.body().string() : "";
@@ -0,0 +1,102 @@
+package dev.balakumar.codecompass;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+
+/**
+ * Point ids for vector stores that need UUIDs or integers rather than strings, such as Qdrant.
+ *
+ * The id of a chunk is the name-based UUID (version 5, SHA-1) of the file's path relative to the
+ * project root, normalized to forward slashes, followed by "#" and the chunk's ordinal. It stays
+ * the same across sessions and machines, so re-indexing a chunk overwrites its own point and
+ * nothing else. With 122 bits, ids of different chunks practically never collide. Should two
+ * chunks still map to the same id, {@link #collisions} finds the write that would replace the
+ * other chunk's vector, so it can be refused and reported instead.
+ */
+final class PointIds {
+    // Namespace of all CodeCompass point ids
+    private static final UUID NAMESPACE = UUID.fromString("5b0e7f3c-2d1a-4e6b-9c8f-6a4d3b2e1f07");
+
+    private final Path projectRoot;
+
+    PointIds(String projectPath) {
+        this.projectRoot = Path.of(projectPath).toAbsolutePath().normalize();
+    }
+
+    /**
+     * The id of a chunk together with the name it was derived from.
+     */
+    static final class Key {
+        final String id;
+        final String name;
+
+        private Key(String id, String name) {
+            this.id = id;
+            this.name = name;
+        }
+    }
+
+    Key key(String filePath, int chunkIndex) {
+        String name = name(filePath, chunkIndex);
+        return new Key(nameUuid(name).toString(), name);
+    }
+
+    /**
+     * Find the keys of a batch about to be written whose id already belongs to another chunk,
+     * either a point that is stored or an earlier key of the same batch. Each collision is
+     * reported.
+     *
+     * @param storedNames point id to chunk name of the stored points among the batch's ids
+     * @return positions in keys of the points that must not be written
+     */
+    Set<Integer> collisions(List<Key> keys, Map<String, String> storedNames) {
+        Set<Integer> colliding = new HashSet<>();
+        Map<String, String> owners = new HashMap<>(storedNames);
+        for (int i = 0; i < keys.size(); i++) {
+            Key key = keys.get(i);
+            String owner = owners.putIfAbsent(key.id, key.name);
+            if (owner != null && !owner.equals(key.name)) {
+                System.err.println("Point id collision: " + key.name + " and " + owner + " both map to " + key.id +
+                        "; not storing " + key.name);
+                colliding.add(i);
+            }
+        }
+        return colliding;
+    }
+
+    String name(String filePath, int chunkIndex) {
+        Path path = Path.of(filePath).toAbsolutePath().normalize();
+        String relative = path.startsWith(projectRoot) ? projectRoot.relativize(path).toString() : path.toString();
+        return relative.replace('\\', '/') + "#" + chunkIndex;
+    }
+
+    /**
+     * RFC 4122 name-based UUID, version 5.
+     */
+    static UUID nameUuid(String name) {
+        MessageDigest sha1;
+        try {
+            sha1 = MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-1 not available", e);
+        }
+        sha1.update(ByteBuffer.allocate(16)
+                .putLong(NAMESPACE.getMostSignificantBits())
+                .putLong(NAMESPACE.getLeastSignificantBits())
+                .array());
+        byte[] hash = sha1.digest(name.getBytes(StandardCharsets.UTF_8));
+        hash[6] = (byte) ((hash[6] & 0x0f) | 0x50);
+        hash[8] = (byte) ((hash[8] & 0x3f) | 0x80);
+        ByteBuffer bytes = ByteBuffer.wrap(hash, 0, 16);
+        return new UUID(bytes.getLong(), bytes.getLong());
+    }
+}
@@ -0,0 +1,135 @@
+package dev.balakumar.codecompass;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The payload stored with every point, shared by the vector store implementations so search
+ * results look the same whichever backend produced them. Payloads hold only small fields; the
+ * chunk text is kept in the {@link ContentStore}.
+ */
+final class PointPayload {
+    static final List<String> CHUNK_FIELDS = Arrays.asList("chunkIndex", "chunkCount", "startLine", "endLine");
+
+    private PointPayload() {
+    }
+
+    static JsonObject build(String filePath, String summary, Map<String, String> metadata) {
+        // Enhanced payload with more structured data
+        JsonObject payload = new JsonObject();
+        payload.addProperty("filePath", filePath);
+        payload.addProperty("summary", summary);
+        // Set when the file was indexed before its summary was generated
+        payload.addProperty("summaryPending", summary == null || summary.isEmpty());
+
+        // Extract file type from path
+        String fileType = "unknown";
+        if (filePath.contains(".")) {
+            fileType = filePath.substring(filePath.lastIndexOf(".") + 1);
+        }
+        payload.addProperty("fileType", fileType);
+
+        // Extract language from metadata or default to fileType
+        String language = metadata.getOrDefault("language", fileType);
+        payload.addProperty("language", language);
+
+        // Add structured code elements
+        if (metadata.containsKey("classes")) {
+            payload.addProperty("classes", metadata.get("classes"));
+        }
+
+        if (metadata.containsKey("functions")) {
+            payload.addProperty("functions", metadata.get("functions"));
+        }
+
+        if (metadata.containsKey("imports")) {
+            payload.addProperty("imports", metadata.get("imports"));
+        }
+
+        if (metadata.containsKey("package")) {
+            payload.addProperty("package", metadata.get("package"));
+        }
+
+        // Fingerprint of the file bytes, used to skip unchanged files on re-index
+        if (metadata.containsKey("contentHash")) {
+            payload.addProperty("contentHash", metadata.get("contentHash"));
+        }
+
+        // Position of this chunk within the file
+        for (String key : CHUNK_FIELDS) {
+            if (metadata.containsKey(key)) {
+                payload.addProperty(key, Integer.parseInt(metadata.get(key)));
+            }
+        }
+
+        // Add timestamp for versioning
+        payload.addProperty("indexedAt", System.currentTimeMillis());
+
+        // Add remaining metadata
+        JsonObject metadataJson = new JsonObject();
+        for (Map.Entry<String, String> entry : metadata.entrySet()) {
+            if (!entry.getKey().equals("classes") &&
+                    !entry.getKey().equals("functions") &&
+                    !entry.getKey().equals("imports") &&
+                    !entry.getKey().equals("package") &&
+                    !entry.getKey().equals("contentHash") &&
+                    !CHUNK_FIELDS.contains(entry.getKey()) &&
+                    !entry.getKey().equals("language")) {
+                metadataJson.addProperty(entry.getKey(), entry.getValue());
+            }
+        }
+        payload.add("metadata", metadataJson);
+        return payload;
+    }
+
+    /**
+     * @param filters payload field to required value
+     */
+    static boolean matches(JsonObject payload, Map<String, String> filters) {
+        for (Map.Entry<String, String> filter : filters.entrySet()) {
+            JsonElement value = payload.get(filter.getKey());
+            if (value == null || !value.isJsonPrimitive() || !value.getAsString().equals(filter.getValue())) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    static CodeSearchResult toSearchResult(String pointId, float score, JsonObject payload) {
+        String filePath = payload.get("filePath").getAsString();
+        String summary = payload.get("summary").getAsString();
+        Map<String, String> metadata = new HashMap<>();
+
+        // Extract all top-level string fields as metadata
+        for (Map.Entry<String, JsonElement> entry : payload.entrySet()) {
+            if (entry.getValue().isJsonPrimitive() &&
+                    !entry.getKey().equals("filePath") &&
+                    !entry.getKey().equals("summary") &&
+                    !entry.getKey().equals("content")) {
+                metadata.put(entry.getKey(), entry.getValue().getAsString());
+            }
+        }
+
+        // Extract nested metadata if present
+        if (payload.has("metadata") && payload.get("metadata").isJsonObject()) {
+            JsonObject metadataJson = payload.getAsJsonObject("metadata");
+            for (Map.Entry<String, JsonElement> entry : metadataJson.entrySet()) {
+                if (entry.getValue().isJsonPrimitive()) {
+                    metadata.put(entry.getKey(), entry.getValue().getAsString());
+                }
+            }
+        }
+
+        // Content is loaded from the ContentStore for the results that need it
+        CodeSearchResult searchResult = new CodeSearchResult(pointId, filePath, summary, score, metadata);
+        if (payload.has("startLine") && payload.has("endLine")) {
+            searchResult.setLineRange(payload.get("startLine").getAsInt(), payload.get("endLine").getAsInt());
+        }
+        return searchResult;
+    }
+}
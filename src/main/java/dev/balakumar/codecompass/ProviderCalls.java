@@ -0,0 +1,232 @@
+package dev.balakumar.codecompass;
+
+import com.intellij.openapi.progress.ProgressIndicator;
+import okhttp3.*;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Asynchronous provider calls: requests sent with {@link Call#enqueue}, retries scheduled after a
+ * delay instead of sleeping on a thread, and cancellation that reaches the HTTP call. Cancelling a
+ * future returned here cancels the OkHttp call in flight, and a thread waiting in
+ * {@link #await(CompletableFuture, ProgressIndicator)} cancels the future as soon as its progress
+ * indicator is cancelled.
+ */
+public final class ProviderCalls {
+    // How often a waiting thread checks whether its progress indicator was cancelled
+    private static final long CANCEL_POLL_MS = 100;
+    private static final ExecutorService blockingCalls = Executors.newCachedThreadPool(new ThreadFactory() {
+        private final AtomicInteger threadNumber = new AtomicInteger(1);
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "CodeCompass-provider-call-" + threadNumber.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    private ProviderCalls() {
+    }
+
+    @FunctionalInterface
+    public interface ResponseParser<T> {
+        T parse(Response response) throws IOException;
+    }
+
+    @FunctionalInterface
+    public interface BlockingCall<T> {
+        T call() throws IOException;
+    }
+
+    @FunctionalInterface
+    public interface RetryDelay {
+        /**
+         * @return how long to wait before retrying after the error, or -1 to give up
+         */
+        long delayMs(Throwable error);
+    }
+
+    /**
+     * A retry policy that retries I/O errors after a fixed delay and gives up on anything else,
+     * such as a response that could not be parsed.
+     */
+    public static RetryDelay retryIoErrors(long delayMs) {
+        return error -> error instanceof IOException ? delayMs : -1;
+    }
+
+    /**
+     * Send the request without blocking and parse the response on the HTTP client's thread. The
+     * response is closed once parsed. Cancelling the returned future cancels the call.
+     */
+    public static <T> CompletableFuture<T> send(OkHttpClient client, Request request, ResponseParser<T> parser) {
+        Call call = client.newCall(AdaptiveRateLimiter.withCallerPriority(request));
+        CompletableFuture<T> future = new CompletableFuture<>();
+        future.whenComplete((result, error) -> {
+            if (future.isCancelled()) {
+                call.cancel();
+            }
+        });
+        call.enqueue(new Callback() {
+            @Override
+            public void onFailure(Call failedCall, IOException e) {
+                future.completeExceptionally(e);
+            }
+
+            @Override
+            public void onResponse(Call answeredCall, Response response) {
+                try (Response closing = response) {
+                    future.complete(parser.parse(closing));
+                } catch (IOException | RuntimeException e) {
+                    future.completeExceptionally(e);
+                }
+            }
+        });
+        return future;
+    }
+
+    /**
+     * Run attempts until one succeeds, the policy gives up or maxAttempts were made. Waiting
+     * between attempts holds no thread. Cancelling the returned future cancels the running
+     * attempt and schedules no further ones. On failure the future completes with the last error.
+     */
+    public static <T> CompletableFuture<T> withRetries(String description, int maxAttempts, RetryDelay retryDelay,
+                                                       Callable<CompletableFuture<T>> attempt) {
+        CompletableFuture<T> result = new CompletableFuture<>();
+        AtomicReference<CompletableFuture<T>> running = new AtomicReference<>();
+        result.whenComplete((value, error) -> {
+            CompletableFuture<T> current = running.get();
+            if (result.isCancelled() && current != null) {
+                current.cancel(true);
+            }
+        });
+        runAttempt(1, description, maxAttempts, retryDelay, attempt, result, running);
+        return result;
+    }
+
+    private static <T> void runAttempt(int number, String description, int maxAttempts, RetryDelay retryDelay,
+                                       Callable<CompletableFuture<T>> attempt, CompletableFuture<T> result,
+                                       AtomicReference<CompletableFuture<T>> running) {
+        if (result.isDone()) {
+            return;
+        }
+        CompletableFuture<T> current;
+        try {
+            current = attempt.call();
+        } catch (Exception e) {
+            result.completeExceptionally(e);
+            return;
+        }
+        running.set(current);
+        if (result.isCancelled()) {
+            current.cancel(true);
+            return;
+        }
+        // Retries run on a timer thread but keep the priority of the caller
+        Runnable retry = AdaptiveRateLimiter.withCallerPriority(() ->
+                runAttempt(number + 1, description, maxAttempts, retryDelay, attempt, result, running));
+        current.whenComplete((value, error) -> {
+            if (error == null) {
+                result.complete(value);
+                return;
+            }
+            Throwable cause = unwrap(error);
+            long delayMs = number < maxAttempts && !(cause instanceof CancellationException) ? retryDelay.delayMs(cause) : -1;
+            if (delayMs < 0 || result.isDone()) {
+                result.completeExceptionally(cause);
+                return;
+            }
+            System.err.println("Retrying " + description + " after error: " + cause.getMessage() +
+                    " (Attempt " + number + " of " + maxAttempts + ", waiting " + delayMs + "ms)");
+            CompletableFuture.delayedExecutor(delayMs, TimeUnit.MILLISECONDS).execute(retry);
+        });
+    }
+
+    /**
+     * Run a blocking call on a pooled thread, for providers without an asynchronous
+     * implementation. Cancelling the future does not stop the call.
+     */
+    public static <T> CompletableFuture<T> supplyAsync(BlockingCall<T> call) {
+        CompletableFuture<T> future = new CompletableFuture<>();
+        blockingCalls.execute(AdaptiveRateLimiter.withCallerPriority(() -> {
+            try {
+                future.complete(call.call());
+            } catch (IOException | RuntimeException e) {
+                future.completeExceptionally(e);
+            }
+        }));
+        return future;
+    }
+
+    /**
+     * Return a future derived from source whose cancellation also cancels source, which
+     * {@link CompletableFuture#thenApply} and its relatives do not do.
+     */
+    public static <T> CompletableFuture<T> cancelling(CompletableFuture<T> derived, Future<?> source) {
+        derived.whenComplete((value, error) -> {
+            if (derived.isCancelled()) {
+                source.cancel(true);
+            }
+        });
+        return derived;
+    }
+
+    /**
+     * Wait for the future. An interrupted wait cancels it.
+     */
+    public static <T> T await(CompletableFuture<T> future) throws IOException {
+        return await(future, null);
+    }
+
+    /**
+     * Wait for the future, cancelling it, and with it the HTTP call, as soon as the indicator is
+     * cancelled.
+     */
+    public static <T> T await(CompletableFuture<T> future, ProgressIndicator indicator) throws IOException {
+        try {
+            if (indicator == null) {
+                return future.get();
+            }
+            while (true) {
+                try {
+                    return future.get(CANCEL_POLL_MS, TimeUnit.MILLISECONDS);
+                } catch (TimeoutException e) {
+                    if (indicator.isCanceled()) {
+                        future.cancel(true);
+                        throw new InterruptedIOException("Cancelled");
+                    }
+                }
+            }
+        } catch (InterruptedException e) {
+            future.cancel(true);
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted");
+        } catch (CancellationException e) {
+            throw new InterruptedIOException("Cancelled");
+        } catch (ExecutionException e) {
+            Throwable cause = unwrap(e);
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            if (cause instanceof CancellationException) {
+                throw new InterruptedIOException("Cancelled");
+            }
+            throw new IOException(cause.getMessage(), cause);
+        }
+    }
+
+    /**
+     * @return the error behind the wrappers CompletableFuture puts around it
+     */
+    public static Throwable unwrap(Throwable error) {
+        Throwable cause = error;
+        while ((cause instanceof CompletionException || cause instanceof ExecutionException) && cause.getCause() != null) {
+            cause = cause.getCause();
+        }
+        return cause;
+    }
+}
@@ -30,4 +30,55 @@ public class ProviderSettings {
                 throw new IllegalStateException("Invalid generation provider: " + provider);
         }
     }
+
+    /**
+     * Model name used for embeddings by the given provider.
+     */
+    public static String getEmbeddingModel(CodeMapperSettingsState settings, String provider) {
+        switch (provider) {
+            case "GEMINI":
+                return settings.geminiEmbeddingModel;
+            case "OLLAMA":
+                return settings.ollamaEmbeddingModel;
+            default:
+                return "";
+        }
+    }
+
+    /**
+     * Model name used for text generation by the given provider.
+     */
+    public static String getGenerationModel(CodeMapperSettingsState settings, String provider) {
+        switch (provider) {
+            case "OPENROUTER":
+                return settings.openRouterGenerationModel;
+            case "GEMINI":
+                return settings.geminiGenerationModel;
+            case "OLLAMA":
+                return settings.ollamaGenerationModel;
+            default:
+                return "";
+        }
+    }
+
+    /**
+     * Number of requests the indexer may have in flight against the given provider at once.
+     */
+    public static int getConcurrency(CodeMapperSettingsState settings, String provider) {
+        int concurrency;
+        switch (provider) {
+            case "OPENROUTER":
+                concurrency = settings.openRouterConcurrency;
+                break;
+            case "GEMINI":
+                concurrency = settings.geminiConcurrency;
+                break;
+            case "OLLAMA":
+                concurrency = settings.ollamaConcurrency;
+                break;
+            default:
+                concurrency = 1;
+        }
+        return Math.max(1, concurrency);
+    }
 }
\ No newline at end of file
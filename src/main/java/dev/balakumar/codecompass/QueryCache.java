@@ -0,0 +1,155 @@
+package dev.balakumar.codecompass;
+
+import com.intellij.openapi.components.ServiceManager;
+import com.intellij.openapi.project.Project;
+
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * In-memory caches for search queries, shared by every vector store of a project.
+ *
+ * Query embeddings are kept in an LRU with a time to live, and concurrent requests for the same
+ * query wait for a single call to the embedding provider. Raw candidate lists, fetched without a
+ * similarity threshold, are kept briefly so a repeated search with a lower threshold (as the chat
+ * does when broadening a follow-up search) only filters them again. Any write to the index drops
+ * the candidate lists.
+ */
+public class QueryCache {
+    private static final int MAX_EMBEDDINGS = 256;
+    private static final long EMBEDDING_TTL_MS = 10 * 60 * 1000;
+    private static final int MAX_CANDIDATE_LISTS = 32;
+    private static final long CANDIDATES_TTL_MS = 60 * 1000;
+
+    private final Project project;
+    private final Map<String, Entry<float[]>> embeddings = new LinkedHashMap<String, Entry<float[]>>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Entry<float[]>> eldest) {
+            return size() > MAX_EMBEDDINGS;
+        }
+    };
+    private final Map<String, CompletableFuture<float[]>> inFlight = new ConcurrentHashMap<>();
+    private final Map<String, Entry<List<CodeSearchResult>>> candidates = new LinkedHashMap<String, Entry<List<CodeSearchResult>>>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Entry<List<CodeSearchResult>>> eldest) {
+            return size() > MAX_CANDIDATE_LISTS;
+        }
+    };
+    private long hits = 0;
+    private long misses = 0;
+
+    public QueryCache(Project project) {
+        this.project = project;
+    }
+
+    public static QueryCache getInstance(Project project) {
+        return ServiceManager.getService(project, QueryCache.class);
+    }
+
+    /**
+     * @return the embedding of the query with the configured embedding model, from the cache
+     * when it was embedded recently
+     */
+    public float[] getEmbedding(String query, EmbeddingService aiService) throws IOException {
+        String key = modelKey() + "/" + query;
+        synchronized (embeddings) {
+            Entry<float[]> cached = embeddings.get(key);
+            if (cached != null && !cached.isExpired(EMBEDDING_TTL_MS)) {
+                hits++;
+                return cached.value;
+            }
+            misses++;
+        }
+
+        CompletableFuture<float[]> call = new CompletableFuture<>();
+        CompletableFuture<float[]> running = inFlight.putIfAbsent(key, call);
+        if (running != null) {
+            return await(running);
+        }
+        try {
+            float[] embedding = aiService.getEmbedding(query);
+            synchronized (embeddings) {
+                embeddings.put(key, new Entry<>(embedding));
+            }
+            call.complete(embedding);
+            return embedding;
+        } catch (IOException | RuntimeException e) {
+            call.completeExceptionally(e);
+            throw e;
+        } finally {
+            inFlight.remove(key, call);
+        }
+    }
+
+    /**
+     * @return the candidate list cached under the key, or null if there is none or it is too old
+     */
+    public List<CodeSearchResult> getCandidates(String key) {
+        synchronized (candidates) {
+            Entry<List<CodeSearchResult>> cached = candidates.get(key);
+            return cached != null && !cached.isExpired(CANDIDATES_TTL_MS) ? cached.value : null;
+        }
+    }
+
+    public void putCandidates(String key, List<CodeSearchResult> results) {
+        synchronized (candidates) {
+            candidates.put(key, new Entry<>(results));
+        }
+    }
+
+    /**
+     * Forget candidate lists, which may no longer match the index after it changed.
+     */
+    public void invalidateCandidates() {
+        synchronized (candidates) {
+            candidates.clear();
+        }
+    }
+
+    public long getHitCount() {
+        synchronized (embeddings) {
+            return hits;
+        }
+    }
+
+    public long getMissCount() {
+        synchronized (embeddings) {
+            return misses;
+        }
+    }
+
+    private String modelKey() {
+        CodeMapperSettingsState settings = CodeMapperSettingsState.getInstance(project);
+        return settings.embeddingProvider + "/" + ProviderSettings.getEmbeddingModel(settings, settings.embeddingProvider);
+    }
+
+    private static float[] await(CompletableFuture<float[]> running) throws IOException {
+        try {
+            return running.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for query embedding", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException("Error embedding query: " + e.getCause().getMessage(), e.getCause());
+        }
+    }
+
+    private static final class Entry<T> {
+        final T value;
+        final long createdAt = System.currentTimeMillis();
+
+        Entry(T value) {
+            this.value = value;
+        }
+
+        boolean isExpired(long ttlMs) {
+            return System.currentTimeMillis() - createdAt > ttlMs;
+        }
+    }
+}
@@ -1,32 +1,67 @@
 package dev.balakumar.codecompass;
 
 import com.intellij.openapi.project.Project;
+import com.intellij.openapi.vfs.LocalFileSystem;
 import com.intellij.openapi.vfs.VirtualFile;
 import com.intellij.openapi.progress.ProgressIndicator;
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.file.Path;
 import java.util.*;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 public class SimpleIndexer {
     private final EmbeddingService aiService;
-    private VectorDBService vectorDBService;
+    private volatile VectorStore vectorDBService;
     private GenerationService genService;
     private Project project;
     private static final int MAX_RETRIES = 3;
     private static final int RETRY_DELAY_MS = 2000;
     private static final float DEFAULT_SIMILARITY_THRESHOLD = 0.5f;
+    // Most files git may report as changed before a full check of every file is cheaper
+    private static final int MAX_GIT_DELTA_FILES = 1000;
+    // Least time between two checks for a branch switch when searching
+    private static final long BRANCH_CHECK_INTERVAL_MS = 5000;
+    private volatile long branchCheckedAt = 0;
+    // Users of each store in use, so a store replaced meanwhile is closed by its last user
+    private final Map<VectorStore, Integer> storeUsers = new IdentityHashMap<>();
+    // Runs writing to the index; the store is not switched to another branch while one is going
+    private int activeRuns = 0;
+    // Set once the indexer is replaced; it then opens no further store
+    private boolean closed = false;
+    // Points written to the vector store per request when importing a snapshot
+    private static final int IMPORT_BATCH_SIZE = 256;
 
     public SimpleIndexer(Project project) {
         this.project = project;
         this.aiService = ProviderSettings.getEmbeddingService(project);
         this.genService = ProviderSettings.getGenerationService(project);
         try {
-            this.vectorDBService = new VectorDBService(project.getBasePath(), aiService);
+            this.vectorDBService = VectorStore.open(project, aiService);
         } catch (IOException e) {
             System.err.println("Error initializing vector database: " + e.getMessage());
         }
     }
 
+    public Project getProject() {
+        return project;
+    }
+
+    public EmbeddingService getEmbeddingService() {
+        return aiService;
+    }
+
+    public GenerationService getGenerationService() {
+        return genService;
+    }
+
+    /**
+     * @return the vector store, or null if it could not be opened
+     */
+    public VectorStore getVectorStore() {
+        return vectorDBService;
+    }
+
     public List<CodeSearchResult> search(String query, int limit) {
         return search(query, limit, null, DEFAULT_SIMILARITY_THRESHOLD);
     }
@@ -41,42 +76,33 @@ public class SimpleIndexer {
             return Collections.emptyList();
         }
 
-        if (vectorDBService == null) {
-            try {
-                vectorDBService = new VectorDBService(project.getBasePath(), aiService);
-            } catch (IOException e) {
-                System.err.println("Error initializing vector database for search: " + e.getMessage());
-                return Collections.emptyList();
-            }
+        try {
+            openStore();
+        } catch (IOException e) {
+            System.err.println("Error initializing vector database for search: " + e.getMessage());
+            return Collections.emptyList();
         }
 
-        int retries = 0;
-        while (retries < MAX_RETRIES) {
-            try {
-                List<CodeSearchResult> results = vectorDBService.search(query, limit, filters, similarityThreshold);
-                return results;
-            } catch (Exception e) {
-                retries++;
-                System.err.println("Error during search (attempt " + retries + " of " + MAX_RETRIES + "): " + e.getMessage());
-
-                if (retries < MAX_RETRIES) {
-                    try {
-                        Thread.sleep(RETRY_DELAY_MS);
-                    } catch (InterruptedException ie) {
-                        Thread.currentThread().interrupt();
-                        break;
-                    }
-                }
-            }
+        if (System.currentTimeMillis() - branchCheckedAt >= BRANCH_CHECK_INTERVAL_MS) {
+            checkBranch();
         }
 
-        return Collections.emptyList();
+        VectorStore store = acquireStore();
+        try {
+            return ProviderCalls.await(ProviderCalls.withRetries("search", MAX_RETRIES, error -> RETRY_DELAY_MS,
+                    () -> ProviderCalls.supplyAsync(() -> store.search(query, limit, filters, similarityThreshold))));
+        } catch (IOException e) {
+            System.err.println("Error during search: " + e.getMessage());
+            return Collections.emptyList();
+        } finally {
+            releaseStore(store);
+        }
     }
 
     public void indexProject(Project project, ProgressIndicator indicator) {
         this.project = project;
-        AtomicBoolean serviceError = new AtomicBoolean(false);
 
+        VectorStore store = null;
         try {
             // Test AI service connection with retries
             boolean connected = testAIServiceWithRetry();
@@ -88,111 +114,135 @@ public class SimpleIndexer {
             }
 
             // Test vector DB connection
-            if (vectorDBService == null) {
-                try {
-                    vectorDBService = new VectorDBService(project.getBasePath(), aiService);
-                } catch (IOException e) {
-                    System.err.println("Failed to initialize vector database: " + e.getMessage());
-                    indicator.setText("Failed to initialize vector database: " + e.getMessage());
-                    return;
-                }
+            try {
+                openStore();
+            } catch (IOException e) {
+                System.err.println("Failed to initialize vector database: " + e.getMessage());
+                indicator.setText("Failed to initialize vector database: " + e.getMessage());
+                return;
             }
 
-            if (!vectorDBService.isConnected()) {
-                indicator.setText("Failed to connect to Vector Database. Make sure Qdrant is running.");
+            // The whole run writes to the index of the branch checked out now
+            store = beginRun();
+            if (store == null || !store.isConnected()) {
+                indicator.setText("Failed to connect to vector database: " +
+                        (store != null ? store.getName() : "the vector database") + " is unavailable.");
                 return;
             }
 
-            List<IndexedFile> files = collectProjectFiles(project);
-            indicator.setText("Indexing files with AI...");
-            indicator.setIndeterminate(false);
-            int total = files.size();
-            int current = 0;
-            int processed = 0;
-            int batchSize = 5;
-            int errorCount = 0;
-
-            System.out.println("Starting to index " + total + " files");
-
-            for (int i = 0; i < files.size(); i += batchSize) {
-                if (indicator.isCanceled()) {
-                    break;
-                }
+            // Vectors from another embedding model or index format cannot be searched together with new ones
+            CodeMapperSettingsState settings = CodeMapperSettingsState.getInstance(project);
+            IndexManifest manifest = IndexManifest.getInstance(project);
+            String incompatibility = manifest.checkCompatibility(settings, vectorDBService.getDimension());
+            if (incompatibility != null) {
+                System.out.println("Rebuilding index: " + incompatibility);
+                indicator.setText("Rebuilding index: " + incompatibility);
+                // Vectors of another model are useless on every branch, so the base and all overlays are cleared
+                vectorDBService.deleteAllBranches();
+                manifest.clearFiles();
+            }
 
-                int endIndex = Math.min(i + batchSize, files.size());
-                for (int j = i; j < endIndex; j++) {
-                    IndexedFile file = files.get(j);
-                    String filePath = file.virtualFile.getPath();
-                    indicator.setText("Processing: " + filePath);
-                    indicator.setFraction((double) current / total);
+            // After a pull or branch switch, git names the few files that can differ from the index
+            String basePath = project.getBasePath();
+            String head = GitDelta.head(basePath);
+            String branch = vectorDBService.getOverlayBranch();
+            Set<String> gitChanged = incompatibility == null ? gitChangedFiles(manifest, settings.vectorStore) : null;
+            indicator.setIndeterminate(false);
 
-                    if (file.indexer.project == null) {
-                        file.indexer.project = project;
+            Map<String, String> fingerprints;
+            List<IndexedFile> changedFiles = new ArrayList<>();
+            Map<String, IndexManifest.FileStamp> stamps = new HashMap<>();
+            if (gitChanged != null) {
+                indicator.setText("Checking files changed since the last indexed commit...");
+                fingerprints = new HashMap<>();
+                List<String> deleted = new ArrayList<>();
+                for (String path : gitChanged) {
+                    // Changes made outside the IDE may not have reached the VFS yet
+                    VirtualFile file = LocalFileSystem.getInstance().refreshAndFindFileByPath(path);
+                    if (file == null || !file.isValid() || file.isDirectory()) {
+                        deleted.add(path);
+                        continue;
                     }
-
-                    if (vectorDBService == null && file.indexer.vectorDBService != null) {
-                        vectorDBService = file.indexer.vectorDBService;
+                    String fingerprint = vectorDBService.getFingerprint(path);
+                    if (fingerprint != null) {
+                        fingerprints.put(path, fingerprint);
                     }
-
-                    try {
-                        indexSingleFile(file.virtualFile, file.indexer);
-                        current++;
-                        processed++;
-                    } catch (Exception e) {
-                        errorCount++;
-                        System.err.println("Error indexing file " + filePath + ": " + e.getMessage());
-
-                        // Check if we're having persistent service errors
-                        if (e.getMessage() != null &&
-                                (e.getMessage().contains("connection") ||
-                                        e.getMessage().contains("timeout") ||
-                                        e.getMessage().contains("unavailable"))) {
-
-                            serviceError.set(true);
-
-                            // Try to reconnect to services
-                            if (testAIServiceWithRetry() && vectorDBService.isConnected()) {
-                                serviceError.set(false);
-                            } else {
-                                // If reconnection failed, abort indexing
-                                indicator.setText("Service connection lost. Aborting indexing.");
-                                break;
-                            }
-                        }
-
-                        current++;
+                    if (!manifest.isUnchanged(file, fingerprint, settings.vectorStore)) {
+                        stamps.put(path, IndexManifest.stamp(file));
+                        changedFiles.add(new IndexedFile(file, this));
                     }
-
-                    // If we're having persistent service errors, abort
-                    if (serviceError.get()) {
-                        break;
+                }
+                removeFiles(deleted);
+                manifest.removeFiles(deleted);
+                System.out.println("Index delta from git: " + changedFiles.size() + " of " + gitChanged.size() +
+                        " changed files to check, " + deleted.size() + " removed");
+            } else {
+                List<IndexedFile> files = collectProjectFiles(project);
+
+                // One bulk lookup of stored fingerprints, so unchanged files cost no AI calls
+                indicator.setText("Checking for changed files...");
+                fingerprints = vectorDBService.getFingerprints();
+                System.out.println("Loaded " + fingerprints.size() + " stored content fingerprints");
+
+                // Files that were deleted or renamed since the last run
+                indicator.setText("Removing deleted files from the index...");
+                Set<String> projectPaths = projectPaths(files);
+                int removedCount = Math.max(0, deleteOrphans(vectorDBService.getIndexedPaths(), projectPaths));
+                fingerprints.keySet().retainAll(projectPaths);
+                manifest.retainFiles(projectPaths);
+
+                // Files with the time stamp and size they had when last verified are not read again
+                for (IndexedFile file : files) {
+                    String path = file.virtualFile.getPath();
+                    if (!manifest.isUnchanged(file.virtualFile, fingerprints.get(path), settings.vectorStore)) {
+                        stamps.put(path, IndexManifest.stamp(file.virtualFile));
+                        changedFiles.add(file);
                     }
                 }
+                System.out.println("Index delta: " + changedFiles.size() + " of " + files.size() + " files to check, " +
+                        removedCount + " removed");
+            }
+            indicator.setText("Indexing files with AI...");
 
-                if (serviceError.get()) {
-                    break;
-                }
+            IndexingPipeline pipeline = new IndexingPipeline(this, vectorDBService, aiService, genService,
+                    settings, fingerprints);
+            IndexingPipeline.Result result = pipeline.run(changedFiles, indicator);
+            int errorCount = result.getErrorCount();
 
-                if (vectorDBService != null) {
-                    try {
-                        vectorDBService.saveIndex();
-                    } catch (Exception e) {
-                        System.err.println("Error saving index: " + e.getMessage());
-                    }
+            manifest.describe(settings, vectorDBService.getDimension());
+            for (Map.Entry<String, String> current : result.getCurrentHashes().entrySet()) {
+                manifest.put(current.getKey(), stamps.get(current.getKey()), current.getValue());
+            }
+            // Only a complete run moves the index to the new commit; otherwise the next run diffs from the old one
+            if (head != null && errorCount == 0 && !result.isAborted() && !indicator.isCanceled()) {
+                Set<String> dirty = GitDelta.changedSince(basePath, head);
+                if (dirty != null) {
+                    dirty.removeIf(path -> !isIndexablePath(basePath, path));
+                    manifest.setGitState(branch, head, dirty);
                 }
+            }
+            manifest.save();
 
-                System.out.println("Processed batch. Total processed: " + processed + " / " + total);
-                System.gc();
+            if (result.isAborted()) {
+                indicator.setText("Service connection lost. Aborting indexing.");
+                return;
+            }
+
+            // Files indexed without a summary, from this run or an earlier one, are summarized in the background
+            if ("DEFERRED".equals(settings.summaryMode)) {
+                SummaryBackfill.getInstance(project).enqueueAll(vectorDBService.getPendingSummaries());
             }
 
             if (vectorDBService != null) {
-                System.out.println("Indexing completed. Total documents: " + vectorDBService.getDocumentCount());
+                String summaryStats = " (summary cache: " + result.getSummaryCacheHits() + " hits, " +
+                        result.getSummaryCacheMisses() + " misses)";
+                System.out.println("Indexing completed. Total documents: " + vectorDBService.getDocumentCount() + summaryStats);
                 if (errorCount > 0) {
                     indicator.setText("Indexing completed with " + errorCount + " errors. Total documents: " +
-                            vectorDBService.getDocumentCount());
+                            vectorDBService.getDocumentCount() + summaryStats);
                 } else {
                     indicator.setText("Indexing completed successfully. Total documents: " +
-                            vectorDBService.getDocumentCount());
+                            vectorDBService.getDocumentCount() + summaryStats);
                 }
             } else {
                 System.err.println("Indexing completed but vector database is null");
@@ -202,41 +252,392 @@ public class SimpleIndexer {
             System.err.println("Error during indexing: " + e.getMessage());
             e.printStackTrace();
             indicator.setText("Error during indexing: " + e.getMessage());
+        } finally {
+            endRun(store);
         }
     }
 
-    private boolean testAIServiceWithRetry() {
-        int retries = 0;
-        while (retries < MAX_RETRIES) {
-            try {
-                boolean connected = aiService.testConnection();
-                if (connected) {
-                    return true;
-                }
-            } catch (Exception e) {
-                System.err.println("AI service connection test failed (attempt " + (retries + 1) +
-                        " of " + MAX_RETRIES + "): " + e.getMessage());
+    /**
+     * @return the code files that can differ from the index according to git, see
+     * {@link #filesDifferingFromIndex}; or null if every file has to be checked
+     */
+    private Set<String> gitChangedFiles(IndexManifest manifest, String vectorStore) {
+        if (vectorDBService.getDocumentCount() == 0) {
+            return null;
+        }
+        Set<String> changed = filesDifferingFromIndex(manifest, vectorStore);
+        if (changed != null && changed.size() > MAX_GIT_DELTA_FILES) {
+            // One bulk fingerprint lookup is cheaper than this many single ones
+            System.out.println(changed.size() + " files changed since the indexed commit; checking every file");
+            return null;
+        }
+        return changed;
+    }
+
+    /**
+     * @return the code files whose indexed version may differ from the checked out one: those
+     * changed since the commit the base index was last completely built for and those that
+     * differed from that commit then, and on an overlay branch the same for the branch's own
+     * commit, or every file in the overlay if the branch has none recorded yet; or null if that is
+     * not known
+     */
+    private Set<String> filesDifferingFromIndex(IndexManifest manifest, String vectorStore) {
+        String basePath = project.getBasePath();
+        String baseHead = manifest.getGitHead(vectorStore, null);
+        if (baseHead == null) {
+            return null;
+        }
+        Set<String> differing = GitDelta.changedSince(basePath, baseHead);
+        if (differing == null) {
+            System.out.println("Cannot diff against indexed commit " + baseHead + "; checking every file");
+            return null;
+        }
+        differing.addAll(manifest.getGitDirtyFiles(null));
+
+        // Files of the overlay have the version of the branch, files outside it that of the base
+        String branch = vectorDBService.getOverlayBranch();
+        if (branch != null) {
+            String branchHead = manifest.getGitHead(vectorStore, branch);
+            Set<String> branchChanged = branchHead != null ? GitDelta.changedSince(basePath, branchHead) : null;
+            if (branchChanged != null) {
+                differing.addAll(branchChanged);
+                differing.addAll(manifest.getGitDirtyFiles(branch));
+            } else {
+                differing.addAll(vectorDBService.getOverlayPaths());
+            }
+        }
+        differing.removeIf(path -> !isIndexablePath(basePath, path));
+        return differing;
+    }
+
+    /**
+     * Reconcile the index with the files in the project: delete the points of every indexed file
+     * that no longer exists, such as files deleted or renamed while the IDE was closed or while
+     * incremental indexing was off.
+     *
+     * @return the number of files removed from the index, or -1 if the index could not be read
+     */
+    public int compactIndex(ProgressIndicator indicator) {
+        VectorStore store = beginRun();
+        try {
+            if (store == null || !store.isConnected()) {
+                return -1;
+            }
+            // Indexed paths are read first, so a file created and indexed meanwhile is never taken for deleted
+            indicator.setText("Reading indexed files...");
+            Set<String> indexedPaths = vectorDBService.getIndexedPaths();
+            indicator.setText("Listing project files...");
+            Set<String> projectPaths = projectPaths(collectProjectFiles(project));
+            if (projectPaths.isEmpty()) {
+                // A project whose files cannot be listed would otherwise lose its whole index
+                System.out.println("Skipping index compaction: no project files found");
+                return 0;
+            }
+            indicator.setText("Removing deleted files from the index...");
+            int removed = deleteOrphans(indexedPaths, projectPaths);
+            if (removed > 0) {
+                vectorDBService.saveIndex();
+            }
+            return removed;
+        } finally {
+            endRun(store);
+        }
+    }
+
+    /**
+     * Delete the points of every indexed file that is not one of the project's files.
+     *
+     * @param indexedPaths the file paths stored in the index, or null if they could not be read
+     * @return the number of files removed, or -1 if the stored paths could not be read
+     */
+    private int deleteOrphans(Set<String> indexedPaths, Set<String> projectPaths) {
+        if (indexedPaths == null) {
+            System.err.println("Could not read the indexed file paths; deleted files stay in the index");
+            return -1;
+        }
+        Set<String> orphans = new HashSet<>(indexedPaths);
+        orphans.removeAll(projectPaths);
+        if (!orphans.isEmpty()) {
+            System.out.println("Removing " + orphans.size() + " files that are no longer in the project from the index");
+            vectorDBService.deleteDocuments(orphans);
+        }
+        return orphans.size();
+    }
+
+    private static Set<String> projectPaths(List<IndexedFile> files) {
+        Set<String> paths = new HashSet<>();
+        for (IndexedFile file : files) {
+            paths.add(file.virtualFile.getPath());
+        }
+        return paths;
+    }
+
+    /**
+     * Write a snapshot of the whole index to a file, for importing into another checkout of the
+     * project with {@link #importSnapshot}.
+     *
+     * @return the number of points written
+     */
+    public int exportSnapshot(Path target, ProgressIndicator indicator) throws IOException {
+        VectorStore store = beginConnectedRun();
+        try {
+            CodeMapperSettingsState settings = CodeMapperSettingsState.getInstance(project);
+            String basePath = project.getBasePath();
+            indicator.setText("Reading indexed files...");
+            Map<String, String> fingerprints = vectorDBService.getFingerprints();
+
+            // The snapshot matches the checked out commit except for the files that may differ from it,
+            // in the index or through local changes
+            String head = GitDelta.head(basePath);
+            Set<String> differing = head != null ? filesDifferingFromIndex(IndexManifest.getInstance(project), settings.vectorStore) : null;
+            Set<String> local = differing != null ? GitDelta.changedSince(basePath, head) : null;
+            if (local == null) {
+                differing = null;
+            } else {
+                local.removeIf(path -> !isIndexablePath(basePath, path));
+                differing.addAll(local);
+            }
+            if (differing == null) {
+                System.out.println("Index not known to match a commit; an import will check every file");
             }
+            IndexSnapshot.Header header = IndexSnapshot.Header.describe(settings, vectorDBService.getDimension(),
+                    differing != null ? head : null);
+
+            indicator.setText("Writing index snapshot...");
+            int points = IndexSnapshot.write(target, basePath, header, fingerprints,
+                    differing != null ? differing : Collections.emptySet(), vectorDBService);
+            System.out.println("Exported " + points + " points of " + fingerprints.size() + " files to " + target);
+            return points;
+        } finally {
+            endRun(store);
+        }
+    }
+
+    /**
+     * Replace the index with the contents of a snapshot written by {@link #exportSnapshot}. The
+     * manifest then records the snapshot's commit, so the next {@link #indexProject} run only
+     * checks the files that differ from it here. A canceled import leaves the index empty.
+     * Branches other than the base branch only keep their changes to the base index, so the
+     * snapshot can only be imported while the base branch is checked out.
+     *
+     * @return the number of points imported, or -1 if canceled
+     */
+    public int importSnapshot(Path source, ProgressIndicator indicator) throws IOException {
+        VectorStore store = beginConnectedRun();
+        try {
+            if (store.getOverlayBranch() != null) {
+                throw new IOException("branch " + store.getOverlayBranch() + " is checked out; " +
+                        "check out the base branch to import a snapshot into the base index");
+            }
+            CodeMapperSettingsState settings = CodeMapperSettingsState.getInstance(project);
+            String basePath = project.getBasePath();
+            try (IndexSnapshot.Reader reader = IndexSnapshot.Reader.open(source, basePath)) {
+                IndexSnapshot.Header header = reader.getHeader();
+                String incompatibility = header.checkCompatibility(settings);
+                if (incompatibility != null) {
+                    throw new IOException(incompatibility);
+                }
+                int dimension = vectorDBService.getDimension();
+                if (dimension > 0 && header.dimension > 0 && dimension != header.dimension) {
+                    throw new IOException("the snapshot's vectors have " + header.dimension +
+                            " dimensions, but the index uses " + dimension);
+                }
 
-            retries++;
-            if (retries < MAX_RETRIES) {
-                try {
-                    Thread.sleep(RETRY_DELAY_MS);
-                } catch (InterruptedException ie) {
-                    Thread.currentThread().interrupt();
-                    return false;
+                indicator.setText("Clearing the index...");
+                vectorDBService.deleteAll();
+                // Until the import completes, the next run checks every file
+                IndexManifest manifest = IndexManifest.getInstance(project);
+                manifest.clearFiles();
+                manifest.save();
+
+                Set<String> imported = new HashSet<>();
+                Set<String> failed = new HashSet<>();
+                int count = 0;
+                List<StoredPoint> batch;
+                while (!(batch = reader.next(IMPORT_BATCH_SIZE)).isEmpty()) {
+                    if (indicator.isCanceled()) {
+                        // Points of a file are spread over the snapshot, so the files imported so far may be incomplete
+                        vectorDBService.deleteAll();
+                        return -1;
+                    }
+                    Set<String> paths = new HashSet<>();
+                    for (StoredPoint point : batch) {
+                        paths.add(point.getFilePath());
+                    }
+                    if (vectorDBService.importPoints(batch)) {
+                        imported.addAll(paths);
+                        count += batch.size();
+                    } else {
+                        failed.addAll(paths);
+                    }
+                    indicator.setText("Imported " + count + " points of " + reader.getFingerprints().size() + " files");
+                }
+
+                // Files with missing points would pass for indexed, since their other points carry the right hash
+                removeFiles(failed);
+                vectorDBService.refreshDocumentCount();
+                vectorDBService.saveIndex();
+
+                Set<String> recheck = reader.getChangedFiles();
+                recheck.addAll(failed);
+                for (String path : reader.getFingerprints().keySet()) {
+                    if (!imported.contains(path)) {
+                        recheck.add(path);
+                    }
                 }
+                manifest.describe(settings, header.dimension);
+                if (header.gitCommit != null) {
+                    manifest.setGitState(null, header.gitCommit, recheck);
+                }
+                manifest.save();
+                System.out.println("Imported " + count + " points of " + imported.size() + " files from " + source +
+                        (failed.isEmpty() ? "" : "; " + failed.size() + " files failed and will be indexed again"));
+                return count;
             }
+        } finally {
+            endRun(store);
+        }
+    }
+
+    /**
+     * Open the vector store if it is not open yet.
+     */
+    private synchronized VectorStore openStore() throws IOException {
+        if (closed) {
+            throw new IOException("the indexer was closed after a settings change");
+        }
+        if (vectorDBService == null) {
+            vectorDBService = VectorStore.open(project, aiService);
+        }
+        return vectorDBService;
+    }
+
+    /**
+     * Open the vector store if it is not open yet, make sure it is reachable and start a run on it.
+     */
+    private VectorStore beginConnectedRun() throws IOException {
+        openStore();
+        VectorStore store = beginRun();
+        if (store == null || !store.isConnected()) {
+            endRun(store);
+            throw new IOException((store != null ? store.getName() : "The vector database") + " is unavailable");
         }
+        return store;
+    }
 
-        return false;
+    /**
+     * Start a run that writes to the index. The store of the branch checked out now stays in use
+     * until {@link #endRun}, so all files of the run go to one branch's index even if another
+     * branch is checked out meanwhile.
+     *
+     * @return the store of the run, or null if it is not open and there is no run to end
+     */
+    synchronized VectorStore beginRun() {
+        checkBranch();
+        VectorStore store = acquireStore();
+        if (store != null) {
+            activeRuns++;
+        }
+        return store;
+    }
+
+    synchronized void endRun(VectorStore store) {
+        if (store == null) {
+            return;
+        }
+        activeRuns--;
+        releaseStore(store);
+        if (activeRuns == 0) {
+            // A branch switch put off during the run is picked up by the next search
+            branchCheckedAt = 0;
+        }
+    }
+
+    /**
+     * Keep the current store open until {@link #releaseStore}, even if it is replaced meanwhile.
+     *
+     * @return the current store, or null if it is not open
+     */
+    private synchronized VectorStore acquireStore() {
+        VectorStore store = vectorDBService;
+        if (store != null) {
+            storeUsers.merge(store, 1, Integer::sum);
+        }
+        return store;
+    }
+
+    private synchronized void releaseStore(VectorStore store) {
+        if (store == null) {
+            return;
+        }
+        int users = storeUsers.merge(store, -1, Integer::sum);
+        if (users == 0) {
+            storeUsers.remove(store);
+            if (store != vectorDBService) {
+                store.close();
+            }
+        }
+    }
+
+    /**
+     * Make another store the current one. The previous store is closed now if nobody uses it, and
+     * otherwise by its last user.
+     */
+    private synchronized void replaceStore(VectorStore store) {
+        if (closed && store != null) {
+            store.close();
+            return;
+        }
+        VectorStore previous = vectorDBService;
+        vectorDBService = store;
+        if (previous != null && previous != store && !storeUsers.containsKey(previous)) {
+            previous.close();
+        }
+    }
+
+    /**
+     * Reopen the vector store if another branch was checked out since it was opened, so writes and
+     * searches go to that branch's overlay, or to the base index on the base branch. While a run
+     * writes to the index the switch waits until it is done.
+     */
+    public synchronized void checkBranch() {
+        branchCheckedAt = System.currentTimeMillis();
+        if (vectorDBService == null || activeRuns > 0 || closed) {
+            return;
+        }
+        String branch = VectorStore.overlayBranch(project);
+        if (Objects.equals(branch, vectorDBService.getOverlayBranch())) {
+            return;
+        }
+        System.out.println("Branch switched; using " + (branch == null ? "the base index" : "the overlay of branch " + branch));
+        try {
+            replaceStore(VectorStore.open(project, aiService));
+            QueryCache.getInstance(project).invalidateCandidates();
+        } catch (IOException e) {
+            System.err.println("Error opening the index of the checked out branch: " + e.getMessage());
+        }
+    }
+
+    boolean testAIServiceWithRetry() {
+        try {
+            return ProviderCalls.await(ProviderCalls.withRetries("AI service connection test", MAX_RETRIES, error -> RETRY_DELAY_MS,
+                    () -> ProviderCalls.supplyAsync(() -> {
+                        if (!aiService.testConnection()) {
+                            throw new IOException("no connection");
+                        }
+                        return true;
+                    })));
+        } catch (IOException e) {
+            System.err.println("AI service connection test failed: " + e.getMessage());
+            return false;
+        }
     }
 
     public static List<IndexedFile> collectProjectFiles(Project project) {
         List<IndexedFile> result = new ArrayList<>();
         VirtualFile baseDir = project.getBaseDir();
         if (baseDir != null) {
-            SimpleIndexer indexer = new SimpleIndexer(project);
+            SimpleIndexer indexer = CodeCompassService.getInstance(project).getIndexer();
             collectDirectory(baseDir, indexer, result);
         }
         return result;
@@ -257,7 +658,7 @@ public class SimpleIndexer {
         }
     }
 
-    private static boolean shouldSkipDirectory(String dirName) {
+    static boolean shouldSkipDirectory(String dirName) {
         return dirName.equals("node_modules") ||
                 dirName.equals("build") ||
                 dirName.equals("dist") ||
@@ -268,8 +669,30 @@ public class SimpleIndexer {
                 dirName.startsWith(".");
     }
 
-    private static boolean isCodeFile(VirtualFile file) {
-        String ext = file.getExtension();
+    static boolean isCodeFile(VirtualFile file) {
+        return isCodeExtension(file.getExtension());
+    }
+
+    /**
+     * Path-based variant of {@link #isCodeFile} for files that may no longer exist, e.g. in
+     * VFS delete events. Returns false for anything inside a skipped directory.
+     */
+    static boolean isIndexablePath(String basePath, String path) {
+        if (basePath == null || !path.startsWith(basePath + "/")) {
+            return false;
+        }
+        String[] segments = path.substring(basePath.length() + 1).split("/");
+        for (int i = 0; i < segments.length - 1; i++) {
+            if (shouldSkipDirectory(segments[i])) {
+                return false;
+            }
+        }
+        String name = segments[segments.length - 1];
+        int dot = name.lastIndexOf('.');
+        return dot != -1 && isCodeExtension(name.substring(dot + 1));
+    }
+
+    private static boolean isCodeExtension(String ext) {
         if (ext == null) return false;
 
         return ext.equals("java") ||
@@ -291,64 +714,218 @@ public class SimpleIndexer {
                 ext.equals("json");
     }
 
-    public void indexSingleFile(VirtualFile file, SimpleIndexer indexer) {
-        int retries = 0;
+    /**
+     * Index one file, retrying failures without holding a thread while waiting. A cancelled
+     * indicator cancels the embedding requests in flight and stops further attempts.
+     */
+    public void indexSingleFile(VirtualFile file, SimpleIndexer indexer, ProgressIndicator indicator) {
+        try {
+            ProviderCalls.await(ProviderCalls.withRetries("indexing " + file.getPath(), MAX_RETRIES,
+                    error -> error instanceof InterruptedIOException || indicator.isCanceled() ? -1 : RETRY_DELAY_MS,
+                    () -> ProviderCalls.supplyAsync(() -> {
+                        indexFile(file, indicator);
+                        return null;
+                    })), indicator);
+        } catch (InterruptedIOException e) {
+            System.err.println("Indexing " + file.getPath() + " was cancelled");
+        } catch (IOException e) {
+            System.err.println("Failed to index " + file.getPath() + " after " + MAX_RETRIES + " attempts: " + e.getMessage());
+        }
+    }
 
-        while (retries < MAX_RETRIES) {
-            try {
-                if (file.getLength() > 500000) {
-                    System.out.println("Skipping large file: " + file.getPath());
-                    return;
-                }
+    private void indexFile(VirtualFile file, ProgressIndicator indicator) throws IOException {
+        if (file.getLength() > 500000) {
+            System.out.println("Skipping large file: " + file.getPath());
+            return;
+        }
 
-                String content = new String(file.contentsToByteArray());
-                if (isBinaryFile(content)) {
-                    System.out.println("Skipping binary file: " + file.getPath());
-                    return;
-                }
+        byte[] bytes = file.contentsToByteArray();
+        String contentHash = ContentHash.sha256(bytes);
+        if (contentHash.equals(vectorDBService.getFingerprint(file.getPath()))) {
+            System.out.println("Skipping unchanged file: " + file.getPath());
+            return;
+        }
 
-                Map<String, String> metadata = extractMetadata(file, content);
-                String language = getLanguageFromFileName(file.getName());
+        String content = new String(bytes);
+        if (isBinaryFile(content)) {
+            System.out.println("Skipping binary file: " + file.getPath());
+            return;
+        }
 
-                // Create enhanced text with metadata and content
-                StringBuilder enhancedText = new StringBuilder();
-                enhancedText.append("File: ").append(file.getName()).append("\n");
-                enhancedText.append("Language: ").append(language).append("\n");
+        Map<String, String> metadata = extractMetadata(file, content);
+        metadata.put("contentHash", contentHash);
+        List<CodeChunker.Chunk> chunks = CodeChunker.chunk(content);
+        List<String> chunkTexts = new ArrayList<>(chunks.size());
+        for (CodeChunker.Chunk chunk : chunks) {
+            chunkTexts.add(buildChunkText(file, chunk, chunks.size(), metadata));
+        }
+        List<float[]> embeddings = embedAll(chunkTexts, indicator);
+
+        CodeMapperSettingsState settings = CodeMapperSettingsState.getInstance(project);
+        String summary = "EAGER".equals(settings.summaryMode)
+                ? summarize(file, content, contentHash)
+                : SummaryCache.getInstance(project).get(contentHash);
+        if (summary == null) {
+            summary = "";
+        }
+        storeChunks(file.getPath(), chunks, chunkTexts, embeddings, summary, metadata);
+        if (summary.isEmpty() && "DEFERRED".equals(settings.summaryMode)) {
+            SummaryBackfill.getInstance(project).enqueue(file.getPath(), contentHash);
+        }
+    }
 
-                if (metadata.containsKey("functions")) {
-                    enhancedText.append("Functions: ").append(metadata.get("functions")).append("\n");
-                }
+    private List<float[]> embedAll(List<String> texts, ProgressIndicator indicator) throws IOException {
+        int batchSize = Math.max(1, aiService.getMaxBatchSize());
+        List<float[]> embeddings = new ArrayList<>(texts.size());
+        for (int i = 0; i < texts.size(); i += batchSize) {
+            List<String> batch = texts.subList(i, Math.min(texts.size(), i + batchSize));
+            embeddings.addAll(ProviderCalls.await(aiService.getEmbeddingsAsync(batch), indicator));
+        }
+        return embeddings;
+    }
 
-                if (metadata.containsKey("classes")) {
-                    enhancedText.append("Classes: ").append(metadata.get("classes")).append("\n");
-                }
+    /**
+     * Write all chunks of a file and drop any chunks left over from a longer earlier version.
+     */
+    private void storeChunks(String path, List<CodeChunker.Chunk> chunks, List<String> chunkTexts,
+                             List<float[]> embeddings, String summary, Map<String, String> metadata) throws IOException {
+        CodeMapperSettingsState settings = CodeMapperSettingsState.getInstance(project);
+        AtomicBoolean failed = new AtomicBoolean(false);
+        try (VectorStore.UpsertBuffer buffer = vectorDBService.openUpsertBuffer(
+                settings.upsertBatchSize, settings.upsertBatchMaxMb * 1024L * 1024L)) {
+            for (CodeChunker.Chunk chunk : chunks) {
+                buffer.add(chunkId(path, chunk.getIndex()), chunkTexts.get(chunk.getIndex()), path, summary,
+                        chunkMetadata(metadata, chunk, chunks.size()), embeddings.get(chunk.getIndex()), stored -> {
+                            if (!stored) {
+                                failed.set(true);
+                            }
+                        });
+            }
+        }
+        if (failed.get()) {
+            throw new IOException("vector database rejected the document");
+        }
+        vectorDBService.deleteStaleChunks(Collections.singletonMap(path, chunks.size()));
+        vectorDBService.refreshDocumentCount();
+    }
 
-                enhancedText.append("Code:\n").append(content);
+    /**
+     * Point id of a chunk. The first chunk keeps the file path, so it replaces the single point
+     * that files were stored as before chunking.
+     */
+    static String chunkId(String path, int chunkIndex) {
+        return chunkIndex == 0 ? path : path + "#" + chunkIndex;
+    }
 
-                String summary = genService.generateSummary(content, file.getName());
-                vectorDBService.addOrUpdateDocument(file.getPath(), enhancedText.toString(), file.getPath(), summary, metadata);
+    static Map<String, String> chunkMetadata(Map<String, String> metadata, CodeChunker.Chunk chunk, int chunkCount) {
+        Map<String, String> chunkMetadata = new HashMap<>(metadata);
+        chunkMetadata.put("chunkIndex", String.valueOf(chunk.getIndex()));
+        chunkMetadata.put("chunkCount", String.valueOf(chunkCount));
+        chunkMetadata.put("startLine", String.valueOf(chunk.getStartLine()));
+        chunkMetadata.put("endLine", String.valueOf(chunk.getEndLine()));
+        return chunkMetadata;
+    }
 
-                // Success, exit retry loop
-                return;
+    /**
+     * Summarize a file, reusing the cached summary when this exact content was summarized before
+     * with the current generation model.
+     */
+    String summarize(VirtualFile file, String content, String contentHash) throws IOException {
+        SummaryCache summaryCache = SummaryCache.getInstance(project);
+        String summary = summaryCache.get(contentHash);
+        if (summary == null) {
+            summary = genService.generateSummary(content, file.getName());
+            summaryCache.put(contentHash, summary);
+        }
+        return summary;
+    }
 
-            } catch (Exception e) {
-                retries++;
-                System.err.println("Error indexing " + file.getPath() + " (attempt " + retries +
-                        " of " + MAX_RETRIES + "): " + e.getMessage());
-
-                if (retries < MAX_RETRIES) {
-                    try {
-                        Thread.sleep(RETRY_DELAY_MS);
-                    } catch (InterruptedException ie) {
-                        Thread.currentThread().interrupt();
-                        break;
-                    }
+    /**
+     * Generate the missing summary of a file indexed in DEFERRED mode and store it in the index.
+     * Skipped if the file changed since, since its next index update brings a new summary.
+     */
+    void backfillSummary(String filePath, String contentHash) throws IOException {
+        VirtualFile file = LocalFileSystem.getInstance().findFileByPath(filePath);
+        if (file == null || !file.isValid()) {
+            return;
+        }
+        byte[] bytes = file.contentsToByteArray();
+        if (!contentHash.equals(ContentHash.sha256(bytes))) {
+            return;
+        }
+        String summary = summarize(file, new String(bytes), contentHash);
+        VectorStore store = acquireStore();
+        try {
+            if (store != null) {
+                store.updateSummary(filePath, contentHash, summary);
+            }
+        } finally {
+            releaseStore(store);
+        }
+    }
+
+    /**
+     * Make sure a search result has a summary, generating it when the file was indexed without
+     * one. The generated summary is stored in the index as well.
+     */
+    public void ensureSummary(CodeSearchResult result) {
+        if (result.hasSummary()) {
+            return;
+        }
+        try {
+            VirtualFile file = LocalFileSystem.getInstance().findFileByPath(result.getFilePath());
+            if (file == null || !file.isValid()) {
+                return;
+            }
+            byte[] bytes = file.contentsToByteArray();
+            String contentHash = ContentHash.sha256(bytes);
+            String summary = summarize(file, new String(bytes), contentHash);
+            result.setSummary(summary);
+            VectorStore store = acquireStore();
+            try {
+                if (store != null) {
+                    store.updateSummary(result.getFilePath(), contentHash, summary);
                 }
+            } finally {
+                releaseStore(store);
             }
+        } catch (IOException e) {
+            System.err.println("Error generating summary for " + result.getFilePath() + ": " + e.getMessage());
         }
+    }
 
-        // If we get here, all retries failed
-        System.err.println("Failed to index " + file.getPath() + " after " + MAX_RETRIES + " attempts");
+    /**
+     * Load the code of the first count results from the content store, for the results that go
+     * into a prompt.
+     */
+    public void loadContent(List<CodeSearchResult> results, int count) {
+        ContentStore.getInstance(project).loadContent(results, count);
+    }
+
+    /**
+     * Create the text that gets embedded for a chunk: a short header with file name, language and
+     * the extracted classes, followed by the code itself. The function list is only added when the
+     * file is a single chunk, since it describes the whole file rather than this part of it.
+     */
+    String buildChunkText(VirtualFile file, CodeChunker.Chunk chunk, int chunkCount, Map<String, String> metadata) {
+        StringBuilder enhancedText = new StringBuilder();
+        enhancedText.append("File: ").append(file.getName()).append("\n");
+        enhancedText.append("Language: ").append(getLanguageFromFileName(file.getName())).append("\n");
+
+        if (chunkCount == 1 && metadata.containsKey("functions")) {
+            enhancedText.append("Functions: ").append(metadata.get("functions")).append("\n");
+        }
+
+        if (metadata.containsKey("classes")) {
+            enhancedText.append("Classes: ").append(metadata.get("classes")).append("\n");
+        }
+
+        if (chunkCount > 1) {
+            enhancedText.append("Lines: ").append(chunk.getStartLine()).append("-").append(chunk.getEndLine()).append("\n");
+        }
+
+        enhancedText.append("Code:\n").append(chunk.getText());
+        return enhancedText.toString();
     }
 
     private String getLanguageFromFileName(String fileName) {
@@ -370,7 +947,7 @@ public class SimpleIndexer {
         return "code";
     }
 
-    private Map<String, String> extractMetadata(VirtualFile file, String content) {
+    Map<String, String> extractMetadata(VirtualFile file, String content) {
         Map<String, String> metadata = new HashMap<>();
         metadata.put("filename", file.getName());
         metadata.put("extension", file.getExtension() != null ? file.getExtension() : "");
@@ -469,7 +1046,7 @@ public class SimpleIndexer {
         metadata.put("imports", imports.toString());
     }
 
-    private static boolean isBinaryFile(String content) {
+    static boolean isBinaryFile(String content) {
         int checkLength = Math.min(1000, content.length());
         int binaryCount = 0;
         for (int i = 0; i < checkLength; i++) {
@@ -481,28 +1058,43 @@ public class SimpleIndexer {
         return (binaryCount * 10 > checkLength);
     }
 
-    public String generateSearchContext(String query, List<CodeSearchResult> results) {
-        int retries = 0;
-        while (retries < MAX_RETRIES) {
-            try {
-                return genService.generateCodeContext(query, results);
-            } catch (IOException e) {
-                retries++;
-                System.err.println("Error generating search context (attempt " + retries +
-                        " of " + MAX_RETRIES + "): " + e.getMessage());
-
-                if (retries < MAX_RETRIES) {
-                    try {
-                        Thread.sleep(RETRY_DELAY_MS);
-                    } catch (InterruptedException ie) {
-                        Thread.currentThread().interrupt();
-                        break;
-                    }
-                }
-            }
+    /**
+     * Remove a file that was deleted or moved away from the index.
+     */
+    public void removeFile(String filePath) {
+        if (vectorDBService != null) {
+            vectorDBService.deleteDocument(filePath);
         }
+    }
 
-        return "Failed to generate context after " + MAX_RETRIES + " attempts.";
+    /**
+     * Remove files that were deleted or moved away from the index in one batch.
+     */
+    public void removeFiles(Collection<String> filePaths) {
+        if (vectorDBService != null && !filePaths.isEmpty()) {
+            vectorDBService.deleteDocuments(filePaths);
+        }
+    }
+
+    public String generateSearchContext(String query, List<CodeSearchResult> results) {
+        return generateSearchContext(query, results, null);
+    }
+
+    /**
+     * Generate the explanation shown above search results. Cancelling the indicator cancels the
+     * request to the generation provider.
+     */
+    public String generateSearchContext(String query, List<CodeSearchResult> results, ProgressIndicator indicator) {
+        try {
+            return ProviderCalls.await(ProviderCalls.withRetries("generating search context", MAX_RETRIES,
+                    ProviderCalls.retryIoErrors(RETRY_DELAY_MS),
+                    () -> genService.generateCodeContextAsync(query, results)), indicator);
+        } catch (InterruptedIOException e) {
+            return "Context generation cancelled.";
+        } catch (IOException e) {
+            System.err.println("Error generating search context: " + e.getMessage());
+            return "Failed to generate context after " + MAX_RETRIES + " attempts.";
+        }
     }
 
     public int getDocumentCount() {
@@ -512,16 +1104,31 @@ public class SimpleIndexer {
         return 0;
     }
 
+    public List<String> getUniqueLanguages() {
+        if (vectorDBService != null) {
+            return vectorDBService.getUniqueLanguages();
+        }
+        return Collections.emptyList();
+    }
+
+    /**
+     * Retire the indexer, as when a settings change replaces it. Searches and runs that still
+     * use its store finish on it, and the last of them closes it; the store is closed now if
+     * nothing uses it.
+     */
+    public synchronized void close() {
+        closed = true;
+        replaceStore(null);
+    }
+
     public void reindexAll(Project project, ProgressIndicator indicator) {
         try {
-            if (vectorDBService != null) {
-                vectorDBService.close();
-            }
+            replaceStore(null);
 
-            CleanupService.cleanupIndexFiles(project.getBasePath());
+            CleanupService.cleanupIndexFiles(project);
 
             try {
-                vectorDBService = new VectorDBService(project.getBasePath(), aiService);
+                replaceStore(VectorStore.open(project, aiService));
             } catch (IOException e) {
                 System.err.println("Error reinitializing vector database: " + e.getMessage());
                 indicator.setText("Error reinitializing vector database: " + e.getMessage());
@@ -19,6 +19,9 @@ public class StartupIndexer implements ProjectActivity {
     @Override
     public Object execute(@NotNull Project project, @NotNull Continuation<? super Unit> continuation) {
         CodeMapperSettingsState settings = CodeMapperSettingsState.getInstance(project);
+        // Connect to the providers in the background while the project opens
+        HttpClients.prewarm(project);
+
         if (!settings.enableStartupIndexing) {
             System.out.println("Startup indexing is disabled.");
             return Unit.INSTANCE;
@@ -36,12 +39,12 @@ public class StartupIndexer implements ProjectActivity {
         new Task.Backgroundable(project, "Indexing with CodeCompass") {
             @Override
             public void run(@NotNull ProgressIndicator indicator) {
-                indicator.setText("Starting AI-based indexing...");
+                indicator.setText("Checking index for changes...");
                 indicator.setIndeterminate(true);
 
                 try {
-                    CleanupService.cleanupIndexFiles(project.getBasePath());
-                    SimpleIndexer indexer = new SimpleIndexer(project);
+                    // The persisted index is kept; only files changed since the last run are processed
+                    SimpleIndexer indexer = CodeCompassService.getInstance(project).getIndexer();
                     indexer.indexProject(project, indicator);
 
                     if (!indicator.isCanceled()) {
@@ -73,28 +76,29 @@ public class StartupIndexer implements ProjectActivity {
                 boolean aiServiceAvailable = false;
                 boolean vectorDBAvailable = false;
                 String aiServiceName = "";
+                String vectorDBName = "Vector database";
 
                 try {
                     // Check AI service
-                    EmbeddingService aiService = ProviderSettings.getEmbeddingService(project);
+                    SimpleIndexer indexer = CodeCompassService.getInstance(project).getIndexer();
+                    EmbeddingService aiService = indexer.getEmbeddingService();
                     aiServiceName = aiService.getClass().getSimpleName().replace("Service", "");
                     aiServiceAvailable = aiService.testConnection();
 
                     // Check vector DB
-                    try {
-                        VectorDBService vectorDBService = new VectorDBService(project.getBasePath(), aiService);
-                        vectorDBAvailable = vectorDBService.isConnected();
-                        vectorDBService.close();
-                    } catch (Exception e) {
-                        System.err.println("Vector DB connection error: " + e.getMessage());
+                    VectorStore vectorStore = indexer.getVectorStore();
+                    if (vectorStore != null) {
+                        vectorDBName = vectorStore.getName();
+                        vectorDBAvailable = vectorStore.isConnected();
+                    } else {
                         ErrorHandler.showError(project, "Vector Database Error",
-                                "Failed to connect to Qdrant: " + e.getMessage());
+                                "Failed to open vector database. See the log for details.");
                     }
 
                     // Show appropriate notification based on service status
                     if (!aiServiceAvailable && !vectorDBAvailable) {
                         ErrorHandler.showError(project, "CodeCompass Services Unavailable",
-                                "Both " + aiServiceName + " AI service and Qdrant vector database are unavailable. " +
+                                "Both " + aiServiceName + " AI service and " + vectorDBName + " are unavailable. " +
                                         "CodeCompass features will not work correctly.");
                     } else if (!aiServiceAvailable) {
                         ErrorHandler.showWarning(project, "CodeCompass AI Service Unavailable",
@@ -102,7 +106,7 @@ public class StartupIndexer implements ProjectActivity {
                                         "Search and question answering features will not work correctly.");
                     } else if (!vectorDBAvailable) {
                         ErrorHandler.showWarning(project, "CodeCompass Vector Database Unavailable",
-                                "Qdrant vector database is unavailable. " +
+                                vectorDBName + " is unavailable. " +
                                         "CodeCompass features will not work correctly.");
                     }
                 } catch (Exception e) {
@@ -0,0 +1,34 @@
+package dev.balakumar.codecompass;
+
+import com.google.gson.JsonObject;
+
+/**
+ * A point as a vector store holds it: chunk id, vector and payload, plus the chunk text where it
+ * is known. Used to copy a whole index from one store to another, as snapshots do.
+ */
+public final class StoredPoint {
+    public final String id;
+    public final float[] vector;
+    public final JsonObject payload;
+    // Null when the text is not available
+    public final String content;
+
+    public StoredPoint(String id, float[] vector, JsonObject payload, String content) {
+        this.id = id;
+        this.vector = vector;
+        this.payload = payload;
+        this.content = content;
+    }
+
+    public String getFilePath() {
+        return payload.get("filePath").getAsString();
+    }
+
+    public int getChunkIndex() {
+        return payload.has("chunkIndex") ? payload.get("chunkIndex").getAsInt() : 0;
+    }
+
+    public StoredPoint withContent(String content) {
+        return new StoredPoint(id, vector, payload, content);
+    }
+}
@@ -0,0 +1,76 @@
+package dev.balakumar.codecompass;
+
+import com.intellij.openapi.Disposable;
+import com.intellij.openapi.components.ServiceManager;
+import com.intellij.openapi.project.Project;
+
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Low-priority background queue that generates summaries for files indexed in DEFERRED summary
+ * mode and patches them into the index. Runs one request at a time so it never competes hard
+ * with indexing or interactive use.
+ */
+public class SummaryBackfill implements Disposable {
+    private final Project project;
+    private final ExecutorService executor;
+    // Paths queued or in progress, so the same file is not summarized twice
+    private final Set<String> queued = ConcurrentHashMap.newKeySet();
+
+    public SummaryBackfill(Project project) {
+        this.project = project;
+        this.executor = Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(AdaptiveRateLimiter.background(runnable), "CodeCompass-summary-backfill");
+            thread.setDaemon(true);
+            thread.setPriority(Thread.MIN_PRIORITY);
+            return thread;
+        });
+    }
+
+    public static SummaryBackfill getInstance(Project project) {
+        return ServiceManager.getService(project, SummaryBackfill.class);
+    }
+
+    /**
+     * Queue files (path to content hash) whose summaries are still missing.
+     */
+    public void enqueueAll(Map<String, String> pending) {
+        if (!pending.isEmpty()) {
+            System.out.println("Queued " + pending.size() + " files for background summaries");
+        }
+        for (Map.Entry<String, String> entry : pending.entrySet()) {
+            enqueue(entry.getKey(), entry.getValue());
+        }
+    }
+
+    public void enqueue(String filePath, String contentHash) {
+        if (executor.isShutdown() || !queued.add(filePath)) {
+            return;
+        }
+        executor.execute(() -> {
+            try {
+                if (!project.isDisposed()) {
+                    getIndexer().backfillSummary(filePath, contentHash);
+                }
+            } catch (Exception e) {
+                // Left pending in the index; picked up again after the next index run
+                System.err.println("Error generating background summary for " + filePath + ": " + e.getMessage());
+            } finally {
+                queued.remove(filePath);
+            }
+        });
+    }
+
+    private SimpleIndexer getIndexer() {
+        return CodeCompassService.getInstance(project).getIndexer();
+    }
+
+    @Override
+    public void dispose() {
+        executor.shutdownNow();
+    }
+}
@@ -0,0 +1,98 @@
+package dev.balakumar.codecompass;
+
+import com.intellij.openapi.Disposable;
+import com.intellij.openapi.components.ServiceManager;
+import com.intellij.openapi.project.Project;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Project-local cache of file summaries in .codemapper, keyed by generation provider, model,
+ * summary prompt version and the file's content hash, so summaries are only requested for files
+ * whose content actually changed.
+ */
+public class SummaryCache implements Disposable {
+    // Bump whenever the summary prompts change, so old summaries are not reused
+    public static final int SUMMARY_PROMPT_VERSION = 1;
+    private static final String STORE_NAME = "summary_cache";
+
+    private final Project project;
+    private final BlobStore store;
+    private final AtomicLong hits = new AtomicLong(0);
+    private final AtomicLong misses = new AtomicLong(0);
+
+    public SummaryCache(Project project) {
+        this.project = project;
+        BlobStore opened = null;
+        if (project.getBasePath() != null) {
+            long maxBytes = CodeMapperSettingsState.getInstance(project).summaryCacheMaxMb * 1024L * 1024L;
+            try {
+                opened = new BlobStore(Path.of(project.getBasePath(), ".codemapper"), STORE_NAME, maxBytes);
+            } catch (IOException e) {
+                System.err.println("Summary cache unavailable: " + e.getMessage());
+            }
+        }
+        this.store = opened;
+    }
+
+    public static SummaryCache getInstance(Project project) {
+        return ServiceManager.getService(project, SummaryCache.class);
+    }
+
+    /**
+     * @return the summary generated earlier for this content with the current generation
+     * provider and model, or null
+     */
+    public String get(String contentHash) {
+        if (store == null) {
+            return null;
+        }
+        byte[] value = store.get(key(contentHash));
+        if (value == null) {
+            misses.incrementAndGet();
+            return null;
+        }
+        hits.incrementAndGet();
+        return new String(value, StandardCharsets.UTF_8);
+    }
+
+    public void put(String contentHash, String summary) {
+        if (store == null || !isCacheable(summary)) {
+            return;
+        }
+        store.put(key(contentHash), summary.getBytes(StandardCharsets.UTF_8));
+    }
+
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    public long getMissCount() {
+        return misses.get();
+    }
+
+    /**
+     * Some providers report failures as the summary text; those must not be cached.
+     */
+    private boolean isCacheable(String summary) {
+        return summary != null && !summary.trim().isEmpty() && !summary.startsWith("Failed to generate");
+    }
+
+    private String key(String contentHash) {
+        CodeMapperSettingsState settings = CodeMapperSettingsState.getInstance(project);
+        String provider = settings.generationProvider;
+        return provider + "/" + ProviderSettings.getGenerationModel(settings, provider) + "/v" +
+                SUMMARY_PROMPT_VERSION + "/" + contentHash;
+    }
+
+    @Override
+    public void dispose() {
+        if (store != null) {
+            store.close();
+            System.out.println("Summary cache closed: " + hits.get() + " hits, " + misses.get() + " misses");
+        }
+    }
+}
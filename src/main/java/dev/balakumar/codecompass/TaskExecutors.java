@@ -0,0 +1,104 @@
+package dev.balakumar.codecompass;
+
+import java.lang.reflect.Method;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Executors for the I/O-bound work of indexing and search, which spends nearly all its time
+ * waiting on the AI providers and the vector database.
+ *
+ * When the IDE runs on Java 21 or later every task gets a virtual thread of its own, so thousands
+ * of waiting tasks cost a few kilobytes each instead of a platform thread. The plugin is built for
+ * Java 17, so virtual threads are created through reflection; on older runtimes, or with the
+ * setting turned off, tasks run on a bounded pool of platform threads instead. Either way, how
+ * many requests reach a provider at once is governed by the semaphores from {@link #permits},
+ * not by the number of threads.
+ */
+public final class TaskExecutors {
+    private static final Method OF_VIRTUAL;
+    private static final Method BUILDER_NAME;
+    private static final Method BUILDER_FACTORY;
+    private static final Method NEW_THREAD_PER_TASK_EXECUTOR;
+
+    static {
+        Method ofVirtual = null;
+        Method builderName = null;
+        Method builderFactory = null;
+        Method newThreadPerTaskExecutor = null;
+        try {
+            ofVirtual = Thread.class.getMethod("ofVirtual");
+            Class<?> builder = Class.forName("java.lang.Thread$Builder");
+            builderName = builder.getMethod("name", String.class, long.class);
+            builderFactory = builder.getMethod("factory");
+            newThreadPerTaskExecutor = Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class);
+        } catch (ReflectiveOperationException e) {
+            // Java 20 or older
+            ofVirtual = null;
+        }
+        OF_VIRTUAL = ofVirtual;
+        BUILDER_NAME = builderName;
+        BUILDER_FACTORY = builderFactory;
+        NEW_THREAD_PER_TASK_EXECUTOR = newThreadPerTaskExecutor;
+    }
+
+    private static final Map<String, Semaphore> permits = new HashMap<>();
+    private static final Map<String, Integer> permitCounts = new HashMap<>();
+
+    private TaskExecutors() {
+    }
+
+    /**
+     * @return whether the runtime supports virtual threads
+     */
+    public static boolean virtualThreadsAvailable() {
+        return OF_VIRTUAL != null;
+    }
+
+    /**
+     * Create an executor for the named kind of task: one virtual thread per task when requested
+     * and supported, otherwise a pool of at most platformThreads daemon threads with an unbounded
+     * queue. Callers bound the work they submit themselves.
+     */
+    public static ExecutorService newExecutor(String name, int platformThreads, boolean virtualThreads) {
+        if (virtualThreads && virtualThreadsAvailable()) {
+            try {
+                Object builder = BUILDER_NAME.invoke(OF_VIRTUAL.invoke(null), "CodeCompass-" + name + "-", 1L);
+                ThreadFactory factory = (ThreadFactory) BUILDER_FACTORY.invoke(builder);
+                return (ExecutorService) NEW_THREAD_PER_TASK_EXECUTOR.invoke(null, factory);
+            } catch (ReflectiveOperationException | RuntimeException e) {
+                // Preview builds of Java 19 and 20 have the methods but refuse to start virtual threads
+                System.err.println("Virtual threads unavailable, using a thread pool for " + name + ": " + e.getMessage());
+            }
+        }
+
+        AtomicInteger threadNumber = new AtomicInteger(1);
+        int threads = Math.max(1, platformThreads);
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 30, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(), runnable -> {
+                    Thread thread = new Thread(runnable, "CodeCompass-" + name + "-" + threadNumber.getAndIncrement());
+                    thread.setDaemon(true);
+                    return thread;
+                });
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    /**
+     * @return the semaphore limiting requests of one kind to one provider, such as "GEMINI/embedding",
+     * shared by every indexing run. When the allowed count changes a new semaphore replaces the old
+     * one; holders of the old one release to it as before.
+     */
+    public static synchronized Semaphore permits(String key, int count) {
+        int allowed = Math.max(1, count);
+        Semaphore semaphore = permits.get(key);
+        if (semaphore == null || permitCounts.get(key) != allowed) {
+            semaphore = new Semaphore(allowed, true);
+            permits.put(key, semaphore);
+            permitCounts.put(key, allowed);
+        }
+        return semaphore;
+    }
+}
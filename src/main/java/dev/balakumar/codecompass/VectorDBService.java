@@ -6,11 +6,15 @@ import java.io.*;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.*;
-import java.util.concurrent.TimeUnit;
+import java.util.concurrent.*;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
 
-public class VectorDBService {
-    private static final String COLLECTION_NAME = "codemapper";
+/**
+ * {@link VectorStore} backed by a Qdrant server on localhost.
+ */
+public class VectorDBService implements VectorStore {
+    static final String COLLECTION_NAME = "codemapper";
     private static final String CONFIG_FILE = "codemapper_config.json";
     private static final String QDRANT_URL = "http://localhost:6333";
     private final Path dbPath;
@@ -18,20 +22,40 @@ public class VectorDBService {
     private final OkHttpClient client;
     private final Gson gson;
     private final AtomicInteger documentCount = new AtomicInteger(0);
+    private final PointIds pointIds;
+    private final String collectionName;
     private int dimensions;
     private boolean collectionExists = false;
     private static final int MAX_RETRIES = 3;
     private static final int RETRY_DELAY_MS = 2000;
-    private static final float DEFAULT_SIMILARITY_THRESHOLD = 0.5f;
+    private static final int SCROLL_PAGE_SIZE = 1000;
+    // Pages that carry vectors are much larger
+    private static final int VECTOR_SCROLL_PAGE_SIZE = 256;
+    private static final int DELETE_BATCH_SIZE = 100;
+    // Chunk index under which the tombstone of a deleted file is stored
+    private static final int TOMBSTONE_CHUNK = -1;
+    // Threads shared by every upsert buffer for writing batches in the background
+    private static final int UPSERT_FLUSH_THREADS = 2;
+    private static final ExecutorService upsertExecutor = TaskExecutors.newExecutor("qdrant-upsert", UPSERT_FLUSH_THREADS, false);
+    // Id no point ever has, since PointIds hands out version 5 UUIDs only
+    private static final String BARRIER_POINT_ID = "00000000-0000-0000-0000-000000000000";
+    // Concurrent asynchronous calls to the local Qdrant server
+    private static final int QDRANT_MAX_REQUESTS = 8;
 
     public VectorDBService(String projectPath, EmbeddingService aiService) throws IOException {
+        this(projectPath, aiService, COLLECTION_NAME);
+    }
+
+    /**
+     * Open the named collection, creating it if it does not exist. Every collection of a project
+     * shares the embedding dimension kept in .codemapper.
+     */
+    public VectorDBService(String projectPath, EmbeddingService aiService, String collectionName) throws IOException {
+        this.collectionName = collectionName;
         this.aiService = aiService;
-        this.client = new OkHttpClient.Builder()
-                .connectTimeout(60, TimeUnit.SECONDS)
-                .readTimeout(60, TimeUnit.SECONDS)
-                .writeTimeout(60, TimeUnit.SECONDS)
-                .build();
+        this.client = HttpClients.get(HttpClients.QDRANT, QDRANT_MAX_REQUESTS);
         this.gson = new GsonBuilder().setPrettyPrinting().create();
+        this.pointIds = new PointIds(projectPath);
 
         // Create the directory if it doesn't exist
         dbPath = Path.of(projectPath, ".codemapper");
@@ -74,6 +98,12 @@ public class VectorDBService {
         }
     }
 
+    @Override
+    public String getName() {
+        return "Qdrant";
+    }
+
+    @Override
     public boolean isConnected() {
         return isQdrantRunning();
     }
@@ -82,11 +112,6 @@ public class VectorDBService {
         int retries = 0;
         while (retries < MAX_RETRIES) {
             try {
-                // Use a dedicated client with longer timeouts for health check
-                OkHttpClient healthCheckClient = new OkHttpClient.Builder()
-                        .connectTimeout(10, TimeUnit.SECONDS)
-                        .readTimeout(10, TimeUnit.SECONDS)
-                        .build();
                 Request request = new Request.Builder()
                         .url(QDRANT_URL + "/healthz")
                         .get()
@@ -152,7 +177,7 @@ public class VectorDBService {
         try {
             if (collectionExists()) {
                 collectionExists = true;
-                System.out.println("Collection already exists");
+                System.out.println("Collection " + collectionName + " already exists");
                 int collectionDimensions = getCollectionDimension();
                 if (collectionDimensions != dimensions) {
                     System.out.println("Dimension mismatch! Collection: " + collectionDimensions + ", Current: " + dimensions + ". Recreating collection.");
@@ -173,7 +198,7 @@ public class VectorDBService {
         while (retries < MAX_RETRIES) {
             try {
                 Request request = new Request.Builder()
-                        .url(QDRANT_URL + "/collections/" + COLLECTION_NAME)
+                        .url(QDRANT_URL + "/collections/" + collectionName)
                         .get()
                         .build();
                 try (Response response = client.newCall(request).execute()) {
@@ -200,7 +225,7 @@ public class VectorDBService {
         while (retries < MAX_RETRIES) {
             try {
                 Request request = new Request.Builder()
-                        .url(QDRANT_URL + "/collections/" + COLLECTION_NAME)
+                        .url(QDRANT_URL + "/collections/" + collectionName)
                         .get()
                         .build();
                 try (Response response = client.newCall(request).execute()) {
@@ -293,20 +318,16 @@ public class VectorDBService {
                 fileTypeField.addProperty("type", "keyword");
                 optimizedSchema.add("fileType", fileTypeField);
 
-                JsonObject contentField = new JsonObject();
-                contentField.addProperty("type", "text");
-                optimizedSchema.add("content", contentField);
-
                 createRequest.add("schema", optimizedSchema);
 
                 Request request = new Request.Builder()
-                        .url(QDRANT_URL + "/collections/" + COLLECTION_NAME)
+                        .url(QDRANT_URL + "/collections/" + collectionName)
                         .put(RequestBody.create(gson.toJson(createRequest), MediaType.parse("application/json")))
                         .build();
                 try (Response response = client.newCall(request).execute()) {
                     if (response.isSuccessful()) {
                         collectionExists = true;
-                        System.out.println("Created new collection with dimension: " + dimensions);
+                        System.out.println("Created collection " + collectionName + " with dimension: " + dimensions);
                         return;
                     } else {
                         System.err.println("Failed to create collection: " + response.code() + " " + response.message());
@@ -334,18 +355,23 @@ public class VectorDBService {
     }
 
     private void deleteCollection() {
+        if (deleteCollection(collectionName)) {
+            collectionExists = false;
+        }
+    }
+
+    private boolean deleteCollection(String name) {
         int retries = 0;
         while (retries < MAX_RETRIES) {
             try {
                 Request request = new Request.Builder()
-                        .url(QDRANT_URL + "/collections/" + COLLECTION_NAME)
+                        .url(QDRANT_URL + "/collections/" + name)
                         .delete()
                         .build();
                 try (Response response = client.newCall(request).execute()) {
                     if (response.isSuccessful()) {
-                        System.out.println("Deleted existing collection");
-                        collectionExists = false;
-                        return;
+                        System.out.println("Deleted collection " + name);
+                        return true;
                     } else {
                         System.err.println("Failed to delete collection: " + response.code() + " " + response.message());
                         retries++;
@@ -362,11 +388,72 @@ public class VectorDBService {
                         Thread.sleep(RETRY_DELAY_MS);
                     } catch (InterruptedException ie) {
                         Thread.currentThread().interrupt();
-                        return;
+                        return false;
                     }
                 }
             }
         }
+        return false;
+    }
+
+    /**
+     * @return the names of all collections on the server, or null if they could not be listed
+     */
+    private List<String> listCollections() {
+        int retries = 0;
+        while (retries < MAX_RETRIES) {
+            try {
+                Request request = new Request.Builder()
+                        .url(QDRANT_URL + "/collections")
+                        .get()
+                        .build();
+                try (Response response = client.newCall(request).execute()) {
+                    if (response.isSuccessful()) {
+                        JsonObject jsonResponse = gson.fromJson(response.body().string(), JsonObject.class);
+                        List<String> names = new ArrayList<>();
+                        for (JsonElement collection : jsonResponse.getAsJsonObject("result").getAsJsonArray("collections")) {
+                            names.add(collection.getAsJsonObject().get("name").getAsString());
+                        }
+                        return names;
+                    }
+                    System.err.println("Failed to list collections: " + response.code() + " " + response.message());
+                }
+            } catch (Exception e) {
+                System.err.println("Error listing collections (attempt " + (retries + 1) + " of " + MAX_RETRIES + "): " + e.getMessage());
+            }
+            retries++;
+            if (retries < MAX_RETRIES) {
+                try {
+                    Thread.sleep(RETRY_DELAY_MS);
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    return null;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Drop the overlay collection of every branch except keep, which may be null. Overlays of
+     * branches that are not checked out would otherwise keep vectors of an embedding model the
+     * index no longer uses.
+     */
+    void deleteOverlays(String keep) {
+        List<String> names = listCollections();
+        if (names == null) {
+            System.err.println("Could not list the branch overlays to delete");
+            return;
+        }
+        for (String name : names) {
+            if (name.startsWith(BranchOverlayStore.OVERLAY_PREFIX) && !name.equals(keep)) {
+                deleteCollection(name);
+            }
+        }
+    }
+
+    String getCollectionName() {
+        return collectionName;
     }
 
     private void updateDocumentCount() {
@@ -375,7 +462,7 @@ public class VectorDBService {
             try {
                 if (collectionExists) {
                     Request request = new Request.Builder()
-                            .url(QDRANT_URL + "/collections/" + COLLECTION_NAME)
+                            .url(QDRANT_URL + "/collections/" + collectionName)
                             .get()
                             .build();
                     try (Response response = client.newCall(request).execute()) {
@@ -421,100 +508,845 @@ public class VectorDBService {
         }
     }
 
+    @Override
     public void addOrUpdateDocument(String id, String content, String filePath, String summary, Map<String, String> metadata) {
+        float[] embedding;
+        try {
+            embedding = aiService.getEmbedding(content);
+        } catch (Exception e) {
+            System.err.println("Error getting embedding for document " + id + ": " + e.getMessage());
+            return;
+        }
+        if (upsertDocument(id, content, filePath, summary, metadata, embedding)) {
+            updateDocumentCount();
+        }
+    }
+
+    /**
+     * Store a document whose embedding has already been computed. Unlike
+     * {@link #addOrUpdateDocument} this does not refresh the document count, so callers
+     * writing many documents should call {@link #refreshDocumentCount()} once at the end.
+     *
+     * @return true if the point was written
+     */
+    @Override
+    public boolean upsertDocument(String id, String content, String filePath, String summary, Map<String, String> metadata, float[] embedding) {
+        ensureDimension(embedding.length);
+        PointIds.Key key = pointIds.key(filePath, chunkIndex(metadata));
+        if (!collidingPoints(Collections.singletonList(key)).isEmpty()) {
+            return false;
+        }
+        JsonObject point = buildPoint(key.id, filePath, summary, metadata, embedding);
+        JsonArray points = new JsonArray();
+        points.add(point);
+        boolean stored = putPoints("{\"points\":" + points + "}", true);
+        if (stored) {
+            System.out.println("Added/updated document: " + id);
+        } else {
+            System.err.println("Failed to add document after " + MAX_RETRIES + " attempts: " + id);
+        }
+        return stored;
+    }
+
+    private static int chunkIndex(Map<String, String> metadata) {
+        return Integer.parseInt(metadata.getOrDefault("chunkIndex", "0"));
+    }
+
+    private JsonObject buildPoint(String pointId, String filePath, String summary, Map<String, String> metadata, float[] embedding) {
+        JsonObject pointRequest = new JsonObject();
+        pointRequest.addProperty("id", pointId);
+
+        JsonArray vector = new JsonArray();
+        for (float value : embedding) {
+            vector.add(value);
+        }
+        pointRequest.add("vector", vector);
+
+        JsonObject payload = PointPayload.build(filePath, summary, metadata);
+        pointRequest.add("payload", payload);
+        return pointRequest;
+    }
+
+    /**
+     * PUT an already serialized {"points": [...]} body, retrying on failure.
+     *
+     * @param wait whether Qdrant should apply the update before responding
+     */
+    private boolean putPoints(String body, boolean wait) {
         int retries = 0;
         while (retries < MAX_RETRIES) {
             try {
-                float[] embedding = aiService.getEmbedding(content);
-                if (embedding.length != dimensions) {
-                    System.out.println("Warning: Embedding dimension mismatch. Expected: " + dimensions + ", Got: " + embedding.length + ". Recreating collection.");
-                    dimensions = embedding.length;
-                    saveDimension();
-                    deleteCollection();
-                    createCollection();
+                Request request = new Request.Builder()
+                        .url(QDRANT_URL + "/collections/" + collectionName + "/points?wait=" + wait)
+                        .put(RequestBody.create(body, MediaType.parse("application/json")))
+                        .build();
+                try (Response response = client.newCall(request).execute()) {
+                    if (response.isSuccessful()) {
+                        return true;
+                    } else {
+                        System.err.println("Failed to upsert points: " + response.code() + " " + response.message());
+                        String errorBody = response.body() != null ? response.body().string() : "null";
+                        System.err.println("Response: " + errorBody);
+                        retries++;
+                        if (retries < MAX_RETRIES) {
+                            Thread.sleep(RETRY_DELAY_MS);
+                        }
+                    }
                 }
+            } catch (Exception e) {
+                System.err.println("Error upserting points to vector DB (attempt " + (retries + 1) + " of " + MAX_RETRIES + "): " + e.getMessage());
+                retries++;
+                if (retries < MAX_RETRIES) {
+                    try {
+                        Thread.sleep(RETRY_DELAY_MS);
+                    } catch (InterruptedException ie) {
+                        Thread.currentThread().interrupt();
+                        return false;
+                    }
+                }
+            }
+        }
+        return false;
+    }
 
-                long pointId = Math.abs(id.hashCode());
-                JsonObject pointRequest = new JsonObject();
-                pointRequest.addProperty("id", pointId);
+    /**
+     * Open a buffer that collects points and writes them in batches of up to maxPoints points or
+     * maxBytes of JSON. Full batches are sent in the background with wait=false; {@link
+     * UpsertBuffer#close()} sends the remainder with wait=true and waits for every batch, so
+     * everything added is searchable once it returns.
+     */
+    @Override
+    public VectorStore.UpsertBuffer openUpsertBuffer(int maxPoints, long maxBytes) {
+        return new QdrantUpsertBuffer(maxPoints, maxBytes);
+    }
 
-                JsonArray vector = new JsonArray();
-                for (float value : embedding) {
-                    vector.add(value);
+    private class QdrantUpsertBuffer implements VectorStore.UpsertBuffer {
+        // Batches in flight at once; adding blocks beyond this, which bounds memory
+        private static final int MAX_IN_FLIGHT = 4;
+
+        private final int maxPoints;
+        private final long maxBytes;
+        private final Semaphore inFlight = new Semaphore(MAX_IN_FLIGHT);
+        private final List<Future<?>> flushes = new ArrayList<>();
+        private List<String> points = new ArrayList<>();
+        private List<PointIds.Key> keys = new ArrayList<>();
+        private List<Consumer<Boolean>> callbacks = new ArrayList<>();
+        private long bytes = 0;
+        private int batchCount = 0;
+
+        private QdrantUpsertBuffer(int maxPoints, long maxBytes) {
+            this.maxPoints = Math.max(1, maxPoints);
+            this.maxBytes = Math.max(1, maxBytes);
+        }
+
+        /**
+         * Queue a point. The callback is invoked with true once the batch containing it has been
+         * accepted by Qdrant, or false if the batch failed after retries.
+         */
+        @Override
+        public void add(String id, String content, String filePath, String summary, Map<String, String> metadata,
+                        float[] embedding, Consumer<Boolean> callback) {
+            ensureDimension(embedding.length);
+            PointIds.Key key = pointIds.key(filePath, chunkIndex(metadata));
+            String point = buildPoint(key.id, filePath, summary, metadata, embedding).toString();
+            List<String> batch = null;
+            List<PointIds.Key> batchKeys = null;
+            List<Consumer<Boolean>> batchCallbacks = null;
+            synchronized (this) {
+                points.add(point);
+                keys.add(key);
+                callbacks.add(callback);
+                bytes += point.length();
+                if (points.size() >= maxPoints || bytes >= maxBytes) {
+                    batch = points;
+                    batchKeys = keys;
+                    batchCallbacks = callbacks;
+                    points = new ArrayList<>();
+                    keys = new ArrayList<>();
+                    callbacks = new ArrayList<>();
+                    bytes = 0;
                 }
-                pointRequest.add("vector", vector);
+            }
+            if (batch != null) {
+                submit(batch, batchKeys, batchCallbacks);
+            }
+        }
 
-                // Enhanced payload with more structured data
-                JsonObject payload = new JsonObject();
-                payload.addProperty("filePath", filePath);
-                payload.addProperty("summary", summary);
-                payload.addProperty("content", content);  // Store full content for RAG
+        private void submit(List<String> batch, List<PointIds.Key> batchKeys, List<Consumer<Boolean>> batchCallbacks) {
+            try {
+                inFlight.acquire();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                batchCallbacks.forEach(callback -> callback.accept(false));
+                return;
+            }
+            Future<?> flush = upsertExecutor.submit(() -> {
+                try {
+                    write(batch, batchKeys, batchCallbacks, false);
+                } finally {
+                    inFlight.release();
+                }
+            });
+            synchronized (flushes) {
+                flushes.add(flush);
+                batchCount++;
+            }
+        }
 
-                // Extract file type from path
-                String fileType = "unknown";
-                if (filePath.contains(".")) {
-                    fileType = filePath.substring(filePath.lastIndexOf(".") + 1);
+        /**
+         * Write the batch, leaving out points whose id another chunk already holds. Their
+         * callbacks get false.
+         */
+        private void write(List<String> batch, List<PointIds.Key> batchKeys, List<Consumer<Boolean>> batchCallbacks, boolean wait) {
+            Set<Integer> colliding = collidingPoints(batchKeys);
+            StringBuilder body = new StringBuilder("{\"points\":[");
+            boolean empty = true;
+            for (int i = 0; i < batch.size(); i++) {
+                if (colliding.contains(i)) {
+                    continue;
                 }
-                payload.addProperty("fileType", fileType);
+                if (!empty) {
+                    body.append(',');
+                }
+                body.append(batch.get(i));
+                empty = false;
+            }
+            boolean stored = empty || putPoints(body.append("]}").toString(), wait);
+            for (int i = 0; i < batchCallbacks.size(); i++) {
+                batchCallbacks.get(i).accept(stored && !colliding.contains(i));
+            }
+        }
 
-                // Extract language from metadata or default to fileType
-                String language = metadata.getOrDefault("language", fileType);
-                payload.addProperty("language", language);
+        /**
+         * Final barrier: wait for the batches in flight, then write whatever is left with
+         * wait=true. Qdrant applies updates in order, so once that returns every earlier batch
+         * has been applied as well. With nothing left to write, a waited delete of an id no point
+         * has serves as the barrier instead.
+         */
+        @Override
+        public void close() {
+            List<Future<?>> pending;
+            synchronized (flushes) {
+                pending = new ArrayList<>(flushes);
+                flushes.clear();
+            }
+            for (Future<?> flush : pending) {
+                try {
+                    flush.get();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                } catch (ExecutionException e) {
+                    System.err.println("Error flushing points to vector DB: " + e.getMessage());
+                }
+            }
+            List<String> batch;
+            List<PointIds.Key> batchKeys;
+            List<Consumer<Boolean>> batchCallbacks;
+            synchronized (this) {
+                batch = points;
+                batchKeys = keys;
+                batchCallbacks = callbacks;
+                points = new ArrayList<>();
+                keys = new ArrayList<>();
+                callbacks = new ArrayList<>();
+                bytes = 0;
+            }
+            if (!batch.isEmpty()) {
+                write(batch, batchKeys, batchCallbacks, true);
+                batchCount++;
+            } else if (batchCount > 0 && !deleteByFilter(barrierFilter())) {
+                System.err.println("Could not confirm that Qdrant applied the last batch");
+            }
+            System.out.println("Wrote points to vector DB in " + batchCount + " batches");
+        }
+    }
+
+    /**
+     * Recreate the collection if the embedding model started returning vectors of a
+     * different size. Synchronized because the indexing pipeline upserts from several threads.
+     */
+    private synchronized void ensureDimension(int embeddingDimension) {
+        if (embeddingDimension != dimensions) {
+            System.out.println("Warning: Embedding dimension mismatch. Expected: " + dimensions + ", Got: " + embeddingDimension + ". Recreating collection.");
+            dimensions = embeddingDimension;
+            saveDimension();
+            deleteCollection();
+            createCollection();
+        }
+    }
+
+    /**
+     * Delete chunks left over from an earlier, longer version of each file: every point of the
+     * file whose chunkIndex is at or beyond the file's current chunk count.
+     *
+     * @param chunkCounts file path to current number of chunks
+     */
+    @Override
+    public void deleteStaleChunks(Map<String, Integer> chunkCounts) {
+        List<Map.Entry<String, Integer>> entries = new ArrayList<>(chunkCounts.entrySet());
+        for (int from = 0; from < entries.size(); from += DELETE_BATCH_SIZE) {
+            JsonArray should = new JsonArray();
+            for (Map.Entry<String, Integer> entry : entries.subList(from, Math.min(entries.size(), from + DELETE_BATCH_SIZE))) {
+                JsonObject fileFilter = filePathFilter(entry.getKey());
+                JsonObject range = new JsonObject();
+                range.addProperty("gte", entry.getValue());
+                JsonObject chunkCondition = new JsonObject();
+                chunkCondition.addProperty("key", "chunkIndex");
+                chunkCondition.add("range", range);
+                fileFilter.getAsJsonArray("must").add(chunkCondition);
+                should.add(fileFilter);
+            }
+            JsonObject filter = new JsonObject();
+            filter.add("should", should);
+            deleteByFilter(filter);
+        }
+    }
+
+    /**
+     * Patch the summary of an indexed file in place with set_payload. Only points whose content
+     * hash still matches are updated, so a summary of an older version never overwrites a newer one.
+     */
+    @Override
+    public boolean updateSummary(String filePath, String contentHash, String summary) {
+        JsonObject filter = filePathFilter(filePath);
+        JsonObject hashMatch = new JsonObject();
+        hashMatch.addProperty("value", contentHash);
+        JsonObject hashCondition = new JsonObject();
+        hashCondition.addProperty("key", "contentHash");
+        hashCondition.add("match", hashMatch);
+        filter.getAsJsonArray("must").add(hashCondition);
+
+        JsonObject payload = new JsonObject();
+        payload.addProperty("summary", summary);
+        payload.addProperty("summaryPending", false);
+        JsonObject setPayloadRequest = new JsonObject();
+        setPayloadRequest.add("payload", payload);
+        setPayloadRequest.add("filter", filter);
 
-                // Add structured code elements
-                if (metadata.containsKey("classes")) {
-                    payload.addProperty("classes", metadata.get("classes"));
+        int retries = 0;
+        while (retries < MAX_RETRIES) {
+            try {
+                Request request = new Request.Builder()
+                        .url(QDRANT_URL + "/collections/" + collectionName + "/points/payload?wait=true")
+                        .post(RequestBody.create(gson.toJson(setPayloadRequest), MediaType.parse("application/json")))
+                        .build();
+                try (Response response = client.newCall(request).execute()) {
+                    if (response.isSuccessful()) {
+                        return true;
+                    } else {
+                        System.err.println("Failed to update summary: " + response.code() + " " + response.message());
+                        retries++;
+                        if (retries < MAX_RETRIES) {
+                            Thread.sleep(RETRY_DELAY_MS);
+                        }
+                    }
+                }
+            } catch (Exception e) {
+                System.err.println("Error updating summary (attempt " + (retries + 1) + " of " + MAX_RETRIES + "): " + e.getMessage());
+                retries++;
+                if (retries < MAX_RETRIES) {
+                    try {
+                        Thread.sleep(RETRY_DELAY_MS);
+                    } catch (InterruptedException ie) {
+                        Thread.currentThread().interrupt();
+                        return false;
+                    }
                 }
+            }
+        }
+        return false;
+    }
 
-                if (metadata.containsKey("functions")) {
-                    payload.addProperty("functions", metadata.get("functions"));
+    @Override
+    public void refreshDocumentCount() {
+        updateDocumentCount();
+    }
+
+    /**
+     * Delete every point stored for the given file path.
+     */
+    @Override
+    public void deleteDocument(String filePath) {
+        if (deleteByFilter(filePathFilter(filePath))) {
+            System.out.println("Deleted document: " + filePath);
+            updateDocumentCount();
+        } else {
+            System.err.println("Failed to delete document after " + MAX_RETRIES + " attempts: " + filePath);
+        }
+    }
+
+    /**
+     * Delete the points of many files with one filter request per DELETE_BATCH_SIZE paths.
+     */
+    @Override
+    public void deleteDocuments(Collection<String> filePaths) {
+        List<String> paths = new ArrayList<>(filePaths);
+        int failed = 0;
+        for (int from = 0; from < paths.size(); from += DELETE_BATCH_SIZE) {
+            JsonArray any = new JsonArray();
+            for (String path : paths.subList(from, Math.min(paths.size(), from + DELETE_BATCH_SIZE))) {
+                any.add(path);
+            }
+            JsonObject match = new JsonObject();
+            match.add("any", any);
+            JsonObject condition = new JsonObject();
+            condition.addProperty("key", "filePath");
+            condition.add("match", match);
+            JsonArray must = new JsonArray();
+            must.add(condition);
+            JsonObject filter = new JsonObject();
+            filter.add("must", must);
+            if (!deleteByFilter(filter)) {
+                failed += any.size();
+            }
+        }
+        if (failed > 0) {
+            System.err.println("Failed to delete " + failed + " of " + paths.size() + " documents after " + MAX_RETRIES + " attempts");
+        } else {
+            System.out.println("Deleted " + paths.size() + " documents");
+        }
+        updateDocumentCount();
+    }
+
+    private static JsonObject barrierFilter() {
+        JsonArray ids = new JsonArray();
+        ids.add(BARRIER_POINT_ID);
+        JsonObject hasId = new JsonObject();
+        hasId.add("has_id", ids);
+        JsonArray must = new JsonArray();
+        must.add(hasId);
+        JsonObject filter = new JsonObject();
+        filter.add("must", must);
+        return filter;
+    }
+
+    private boolean deleteByFilter(JsonObject filter) {
+        int retries = 0;
+        while (retries < MAX_RETRIES) {
+            try {
+                JsonObject deleteRequest = new JsonObject();
+                deleteRequest.add("filter", filter);
+
+                Request request = new Request.Builder()
+                        .url(QDRANT_URL + "/collections/" + collectionName + "/points/delete?wait=true")
+                        .post(RequestBody.create(gson.toJson(deleteRequest), MediaType.parse("application/json")))
+                        .build();
+                try (Response response = client.newCall(request).execute()) {
+                    if (response.isSuccessful()) {
+                        return true;
+                    } else {
+                        System.err.println("Failed to delete points: " + response.code() + " " + response.message());
+                        retries++;
+                        if (retries < MAX_RETRIES) {
+                            Thread.sleep(RETRY_DELAY_MS);
+                        }
+                    }
+                }
+            } catch (Exception e) {
+                System.err.println("Error deleting points from vector DB (attempt " + (retries + 1) + " of " + MAX_RETRIES + "): " + e.getMessage());
+                retries++;
+                if (retries < MAX_RETRIES) {
+                    try {
+                        Thread.sleep(RETRY_DELAY_MS);
+                    } catch (InterruptedException ie) {
+                        Thread.currentThread().interrupt();
+                        return false;
+                    }
                 }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Fetch the content fingerprint of every indexed file in one payload-only scroll.
+     *
+     * @return map of file path to content hash; files indexed before fingerprints existed are omitted
+     */
+    @Override
+    public Map<String, String> getFingerprints() {
+        return scrollFingerprints(null);
+    }
+
+    /**
+     * @return path and content hash of every file that was indexed without a summary
+     */
+    @Override
+    public Map<String, String> getPendingSummaries() {
+        JsonObject match = new JsonObject();
+        match.addProperty("value", true);
+        JsonObject condition = new JsonObject();
+        condition.addProperty("key", "summaryPending");
+        condition.add("match", match);
+        JsonArray must = new JsonArray();
+        must.add(condition);
+        JsonObject filter = new JsonObject();
+        filter.add("must", must);
+        return scrollFingerprints(filter);
+    }
+
+    /**
+     * @return the stored content fingerprint for a single file, or null if unknown
+     */
+    @Override
+    public String getFingerprint(String filePath) {
+        return scrollFingerprints(filePathFilter(filePath)).get(filePath);
+    }
+
+    /**
+     * Read the file path of every point in a payload-only scroll that fetches nothing else.
+     * Tombstones of deleted files are left out.
+     */
+    @Override
+    public Set<String> getIndexedPaths() {
+        JsonArray mustNot = new JsonArray();
+        mustNot.add(tombstoneCondition());
+        JsonObject filter = new JsonObject();
+        filter.add("must_not", mustNot);
+        return scrollPaths(filter);
+    }
+
+    /**
+     * @return the paths recorded as deleted with {@link #markDeleted}, or null if they could not
+     * all be read
+     */
+    Set<String> getDeletedPaths() {
+        JsonArray must = new JsonArray();
+        must.add(tombstoneCondition());
+        JsonObject filter = new JsonObject();
+        filter.add("must", must);
+        return scrollPaths(filter);
+    }
+
+    /**
+     * Record files as deleted with one tombstone point each, for collections that shadow another
+     * one, such as the overlay of a {@link BranchOverlayStore}. Tombstones carry no content hash
+     * and are never returned by searches.
+     */
+    void markDeleted(Collection<String> filePaths) {
+        if (filePaths.isEmpty()) {
+            return;
+        }
+        // Cosine distance needs a vector of non-zero length
+        JsonArray vector = new JsonArray();
+        vector.add(1);
+        for (int i = 1; i < dimensions; i++) {
+            vector.add(0);
+        }
+        List<String> paths = new ArrayList<>(filePaths);
+        List<PointIds.Key> keys = new ArrayList<>(paths.size());
+        for (String filePath : paths) {
+            keys.add(pointIds.key(filePath, TOMBSTONE_CHUNK));
+        }
+        Set<Integer> colliding = collidingPoints(keys);
+        JsonArray points = new JsonArray();
+        for (int i = 0; i < paths.size(); i++) {
+            if (colliding.contains(i)) {
+                continue;
+            }
+            String filePath = paths.get(i);
+            String pointId = keys.get(i).id;
+            JsonObject payload = new JsonObject();
+            payload.addProperty("filePath", filePath);
+            payload.addProperty("deleted", true);
+            JsonObject point = new JsonObject();
+            point.addProperty("id", pointId);
+            point.add("vector", vector);
+            point.add("payload", payload);
+            points.add(point);
+        }
+        JsonObject body = new JsonObject();
+        body.add("points", points);
+        if (!putPoints(gson.toJson(body), true)) {
+            System.err.println("Failed to record " + points.size() + " deleted files after " + MAX_RETRIES + " attempts");
+        }
+    }
 
-                if (metadata.containsKey("imports")) {
-                    payload.addProperty("imports", metadata.get("imports"));
+    private static JsonObject tombstoneCondition() {
+        JsonObject match = new JsonObject();
+        match.addProperty("value", true);
+        JsonObject condition = new JsonObject();
+        condition.addProperty("key", "deleted");
+        condition.add("match", match);
+        return condition;
+    }
+
+    private Set<String> scrollPaths(JsonObject filter) {
+        Set<String> paths = new HashSet<>();
+        if (!collectionExists) {
+            return paths;
+        }
+
+        JsonElement offset = null;
+        do {
+            JsonObject scrollRequest = new JsonObject();
+            scrollRequest.addProperty("limit", SCROLL_PAGE_SIZE);
+            JsonObject withPayload = new JsonObject();
+            JsonArray include = new JsonArray();
+            include.add("filePath");
+            withPayload.add("include", include);
+            scrollRequest.add("with_payload", withPayload);
+            scrollRequest.addProperty("with_vector", false);
+            scrollRequest.add("filter", filter);
+            if (offset != null) {
+                scrollRequest.add("offset", offset);
+            }
+
+            JsonObject result = scrollPage(scrollRequest);
+            if (result == null) {
+                // A partial list would make the files not yet seen look deleted
+                return null;
+            }
+            for (JsonElement point : result.getAsJsonArray("points")) {
+                JsonObject payload = point.getAsJsonObject().getAsJsonObject("payload");
+                if (payload != null && payload.has("filePath")) {
+                    paths.add(payload.get("filePath").getAsString());
                 }
+            }
+            offset = result.has("next_page_offset") && !result.get("next_page_offset").isJsonNull()
+                    ? result.get("next_page_offset") : null;
+        } while (offset != null);
+        return paths;
+    }
 
-                if (metadata.containsKey("package")) {
-                    payload.addProperty("package", metadata.get("package"));
+    /**
+     * Scroll through every point with its vector and payload. Tombstones are left out, so a copy
+     * of an overlay holds only the files written on its branch.
+     */
+    @Override
+    public boolean forEachPoint(Consumer<StoredPoint> visitor) {
+        if (!collectionExists) {
+            return true;
+        }
+        JsonArray mustNot = new JsonArray();
+        mustNot.add(tombstoneCondition());
+        JsonObject filter = new JsonObject();
+        filter.add("must_not", mustNot);
+
+        JsonElement offset = null;
+        do {
+            JsonObject scrollRequest = new JsonObject();
+            scrollRequest.addProperty("limit", VECTOR_SCROLL_PAGE_SIZE);
+            scrollRequest.addProperty("with_payload", true);
+            scrollRequest.addProperty("with_vector", true);
+            scrollRequest.add("filter", filter);
+            if (offset != null) {
+                scrollRequest.add("offset", offset);
+            }
+
+            JsonObject result = scrollPage(scrollRequest);
+            if (result == null) {
+                return false;
+            }
+            for (JsonElement element : result.getAsJsonArray("points")) {
+                JsonObject point = element.getAsJsonObject();
+                JsonObject payload = point.getAsJsonObject("payload");
+                JsonElement vector = point.get("vector");
+                if (payload == null || !payload.has("filePath") || vector == null || !vector.isJsonArray()) {
+                    continue;
                 }
+                JsonArray values = vector.getAsJsonArray();
+                float[] embedding = new float[values.size()];
+                for (int i = 0; i < embedding.length; i++) {
+                    embedding[i] = values.get(i).getAsFloat();
+                }
+                int chunkIndex = payload.has("chunkIndex") ? payload.get("chunkIndex").getAsInt() : 0;
+                String id = SimpleIndexer.chunkId(payload.get("filePath").getAsString(), chunkIndex);
+                visitor.accept(new StoredPoint(id, embedding, payload, null));
+            }
+            offset = result.has("next_page_offset") && !result.get("next_page_offset").isJsonNull()
+                    ? result.get("next_page_offset") : null;
+        } while (offset != null);
+        return true;
+    }
 
-                // Add timestamp for versioning
-                payload.addProperty("indexedAt", System.currentTimeMillis());
+    /**
+     * Write the points in one request under the ids {@link PointIds} gives their chunks here,
+     * whatever ids they had where they came from.
+     */
+    @Override
+    public boolean importPoints(List<StoredPoint> points) {
+        if (points.isEmpty()) {
+            return true;
+        }
+        ensureDimension(points.get(0).vector.length);
+        List<PointIds.Key> keys = new ArrayList<>(points.size());
+        for (StoredPoint point : points) {
+            keys.add(pointIds.key(point.getFilePath(), point.getChunkIndex()));
+        }
+        Set<Integer> colliding = collidingPoints(keys);
+        JsonArray body = new JsonArray();
+        for (int i = 0; i < points.size(); i++) {
+            if (colliding.contains(i)) {
+                continue;
+            }
+            StoredPoint point = points.get(i);
+            String pointId = keys.get(i).id;
+            JsonArray vector = new JsonArray();
+            for (float value : point.vector) {
+                vector.add(value);
+            }
+            JsonObject pointRequest = new JsonObject();
+            pointRequest.addProperty("id", pointId);
+            pointRequest.add("vector", vector);
+            pointRequest.add("payload", point.payload);
+            body.add(pointRequest);
+        }
+        boolean stored = putPoints("{\"points\":" + body + "}", true);
+        if (!stored) {
+            System.err.println("Failed to import " + points.size() + " points after " + MAX_RETRIES + " attempts");
+        }
+        return stored;
+    }
 
-                // Add remaining metadata
-                JsonObject metadataJson = new JsonObject();
-                for (Map.Entry<String, String> entry : metadata.entrySet()) {
-                    if (!entry.getKey().equals("classes") &&
-                            !entry.getKey().equals("functions") &&
-                            !entry.getKey().equals("imports") &&
-                            !entry.getKey().equals("package") &&
-                            !entry.getKey().equals("language")) {
-                        metadataJson.addProperty(entry.getKey(), entry.getValue());
+    /**
+     * Check a batch's point ids against the points already stored under them, which may have
+     * been written in an earlier session or imported from a snapshot, and against each other.
+     * Costs one scroll by id per batch.
+     *
+     * @return positions in keys of the points that must not be written
+     */
+    private Set<Integer> collidingPoints(List<PointIds.Key> keys) {
+        Map<String, String> storedNames = new HashMap<>();
+        if (collectionExists && !keys.isEmpty()) {
+            JsonArray ids = new JsonArray();
+            Set<String> seen = new HashSet<>();
+            for (PointIds.Key key : keys) {
+                if (seen.add(key.id)) {
+                    ids.add(key.id);
+                }
+            }
+            JsonObject hasId = new JsonObject();
+            hasId.add("has_id", ids);
+            JsonArray must = new JsonArray();
+            must.add(hasId);
+            JsonObject filter = new JsonObject();
+            filter.add("must", must);
+            JsonObject scrollRequest = new JsonObject();
+            scrollRequest.addProperty("limit", ids.size());
+            JsonObject withPayload = new JsonObject();
+            JsonArray include = new JsonArray();
+            include.add("filePath");
+            include.add("chunkIndex");
+            include.add("deleted");
+            withPayload.add("include", include);
+            scrollRequest.add("with_payload", withPayload);
+            scrollRequest.addProperty("with_vector", false);
+            scrollRequest.add("filter", filter);
+
+            JsonObject result = scrollPage(scrollRequest);
+            if (result == null) {
+                System.err.println("Could not check " + ids.size() + " point ids against the stored points");
+            } else {
+                for (JsonElement element : result.getAsJsonArray("points")) {
+                    JsonObject point = element.getAsJsonObject();
+                    JsonObject payload = point.getAsJsonObject("payload");
+                    if (payload == null || !payload.has("filePath")) {
+                        continue;
                     }
+                    int chunkIndex = payload.has("deleted") ? TOMBSTONE_CHUNK
+                            : payload.has("chunkIndex") ? payload.get("chunkIndex").getAsInt() : 0;
+                    storedNames.put(point.get("id").getAsString(), pointIds.name(payload.get("filePath").getAsString(), chunkIndex));
                 }
-                payload.add("metadata", metadataJson);
+            }
+        }
+        return pointIds.collisions(keys, storedNames);
+    }
 
-                pointRequest.add("payload", payload);
+    private Map<String, String> scrollFingerprints(JsonObject filter) {
+        Map<String, String> fingerprints = new HashMap<>();
+        // Points stored under the integer ids used before PointIds
+        JsonArray legacyIds = new JsonArray();
+        Set<String> legacyPaths = new HashSet<>();
+        if (!collectionExists) {
+            return fingerprints;
+        }
 
-                JsonArray points = new JsonArray();
-                points.add(pointRequest);
+        JsonElement offset = null;
+        do {
+            JsonObject scrollRequest = new JsonObject();
+            scrollRequest.addProperty("limit", SCROLL_PAGE_SIZE);
+            JsonObject withPayload = new JsonObject();
+            JsonArray include = new JsonArray();
+            include.add("filePath");
+            include.add("contentHash");
+            withPayload.add("include", include);
+            scrollRequest.add("with_payload", withPayload);
+            scrollRequest.addProperty("with_vector", false);
+            if (offset != null) {
+                scrollRequest.add("offset", offset);
+            }
+            if (filter != null) {
+                scrollRequest.add("filter", filter);
+            }
 
-                JsonObject requestBody = new JsonObject();
-                requestBody.add("points", points);
+            JsonObject result = scrollPage(scrollRequest);
+            if (result == null) {
+                break;
+            }
+            JsonArray points = result.getAsJsonArray("points");
+            for (JsonElement point : points) {
+                JsonElement id = point.getAsJsonObject().get("id");
+                JsonObject payload = point.getAsJsonObject().getAsJsonObject("payload");
+                if (id != null && id.isJsonPrimitive() && id.getAsJsonPrimitive().isNumber()) {
+                    legacyIds.add(id);
+                    if (payload != null && payload.has("filePath")) {
+                        legacyPaths.add(payload.get("filePath").getAsString());
+                    }
+                    continue;
+                }
+                if (payload != null && payload.has("filePath") && payload.has("contentHash")) {
+                    fingerprints.put(payload.get("filePath").getAsString(), payload.get("contentHash").getAsString());
+                }
+            }
+            offset = result.has("next_page_offset") && !result.get("next_page_offset").isJsonNull()
+                    ? result.get("next_page_offset") : null;
+        } while (offset != null);
 
+        if (legacyIds.size() > 0) {
+            deleteLegacyPoints(legacyIds);
+            fingerprints.keySet().removeAll(legacyPaths);
+        }
+        return fingerprints;
+    }
+
+    /**
+     * Delete points stored under the old 31-bit hash ids, which could collide. Their files are
+     * left out of the fingerprints, so they are indexed again under their new ids.
+     */
+    private void deleteLegacyPoints(JsonArray legacyIds) {
+        System.out.println("Replacing " + legacyIds.size() + " points stored under old hash ids");
+        for (int from = 0; from < legacyIds.size(); from += DELETE_BATCH_SIZE) {
+            JsonArray ids = new JsonArray();
+            for (int i = from; i < Math.min(legacyIds.size(), from + DELETE_BATCH_SIZE); i++) {
+                ids.add(legacyIds.get(i));
+            }
+            JsonObject hasId = new JsonObject();
+            hasId.add("has_id", ids);
+            JsonArray must = new JsonArray();
+            must.add(hasId);
+            JsonObject filter = new JsonObject();
+            filter.add("must", must);
+            deleteByFilter(filter);
+        }
+        updateDocumentCount();
+    }
+
+    private JsonObject scrollPage(JsonObject scrollRequest) {
+        int retries = 0;
+        while (retries < MAX_RETRIES) {
+            try {
                 Request request = new Request.Builder()
-                        .url(QDRANT_URL + "/collections/" + COLLECTION_NAME + "/points")
-                        .put(RequestBody.create(gson.toJson(requestBody), MediaType.parse("application/json")))
+                        .url(QDRANT_URL + "/collections/" + collectionName + "/points/scroll")
+                        .post(RequestBody.create(gson.toJson(scrollRequest), MediaType.parse("application/json")))
                         .build();
                 try (Response response = client.newCall(request).execute()) {
                     if (response.isSuccessful()) {
-                        System.out.println("Added/updated document: " + id);
-                        updateDocumentCount();
-                        return;
+                        JsonObject jsonResponse = gson.fromJson(response.body().string(), JsonObject.class);
+                        return jsonResponse.getAsJsonObject("result");
                     } else {
-                        System.err.println("Failed to add document: " + response.code() + " " + response.message());
-                        String errorBody = response.body() != null ? response.body().string() : "null";
-                        System.err.println("Response: " + errorBody);
+                        System.err.println("Failed to scroll points: " + response.code() + " " + response.message());
                         retries++;
                         if (retries < MAX_RETRIES) {
                             Thread.sleep(RETRY_DELAY_MS);
@@ -522,30 +1354,60 @@ public class VectorDBService {
                     }
                 }
             } catch (Exception e) {
-                System.err.println("Error adding document to vector DB (attempt " + (retries + 1) + " of " + MAX_RETRIES + "): " + e.getMessage());
+                System.err.println("Error scrolling points (attempt " + (retries + 1) + " of " + MAX_RETRIES + "): " + e.getMessage());
                 retries++;
                 if (retries < MAX_RETRIES) {
                     try {
                         Thread.sleep(RETRY_DELAY_MS);
                     } catch (InterruptedException ie) {
                         Thread.currentThread().interrupt();
-                        return;
+                        return null;
                     }
                 }
             }
         }
-        System.err.println("Failed to add document after " + MAX_RETRIES + " attempts: " + id);
+        return null;
     }
 
-    public List<CodeSearchResult> search(String query, int limit) {
-        return search(query, limit, null, DEFAULT_SIMILARITY_THRESHOLD);
+    private JsonObject filePathFilter(String filePath) {
+        JsonObject match = new JsonObject();
+        match.addProperty("value", filePath);
+        JsonObject condition = new JsonObject();
+        condition.addProperty("key", "filePath");
+        condition.add("match", match);
+        JsonArray must = new JsonArray();
+        must.add(condition);
+        JsonObject filter = new JsonObject();
+        filter.add("must", must);
+        return filter;
+    }
+
+    @Override
+    public List<CodeSearchResult> search(String query, int limit, Map<String, String> filters, float similarityThreshold) {
+        if (!collectionExists) {
+            System.out.println("Warning: Collection does not exist");
+            return Collections.emptyList();
+        }
+        float[] queryEmbedding;
+        try {
+            queryEmbedding = aiService.getEmbedding(query);
+        } catch (IOException e) {
+            System.err.println("Error embedding search query: " + e.getMessage());
+            return Collections.emptyList();
+        }
+        return searchByEmbedding(queryEmbedding, limit, filters, similarityThreshold);
     }
 
-    public List<CodeSearchResult> search(String query, int limit, Map<String, String> filters) {
-        return search(query, limit, filters, DEFAULT_SIMILARITY_THRESHOLD);
+    @Override
+    public List<CodeSearchResult> searchByEmbedding(float[] queryEmbedding, int limit, Map<String, String> filters, float similarityThreshold) {
+        return searchByEmbedding(queryEmbedding, limit, filters, similarityThreshold, Collections.emptySet());
     }
 
-    public List<CodeSearchResult> search(String query, int limit, Map<String, String> filters, float similarityThreshold) {
+    /**
+     * Search, leaving out every point of the excluded files and the tombstones of deleted ones.
+     */
+    List<CodeSearchResult> searchByEmbedding(float[] queryEmbedding, int limit, Map<String, String> filters,
+                                             float similarityThreshold, Collection<String> excludedPaths) {
         int retries = 0;
         while (retries < MAX_RETRIES) {
             try {
@@ -554,7 +1416,6 @@ public class VectorDBService {
                     return Collections.emptyList();
                 }
 
-                float[] queryEmbedding = aiService.getEmbedding(query);
                 if (queryEmbedding.length != dimensions) {
                     System.out.println("Warning: Query embedding dimension (" + queryEmbedding.length + ") doesn't match index dimension (" + dimensions + ").");
                     return Collections.emptyList();
@@ -567,12 +1428,17 @@ public class VectorDBService {
                 }
                 searchRequest.add("vector", vector);
                 searchRequest.addProperty("limit", limit);
-                searchRequest.addProperty("with_payload", true);
+                // Points written before the content store existed still carry their text
+                JsonObject withPayload = new JsonObject();
+                JsonArray exclude = new JsonArray();
+                exclude.add("content");
+                withPayload.add("exclude", exclude);
+                searchRequest.add("with_payload", withPayload);
                 searchRequest.addProperty("score_threshold", similarityThreshold); // Apply similarity threshold
 
                 // Add filters if provided
+                JsonObject filter = new JsonObject();
                 if (filters != null && !filters.isEmpty()) {
-                    JsonObject filter = new JsonObject();
                     JsonArray must = new JsonArray();
 
                     for (Map.Entry<String, String> entry : filters.entrySet()) {
@@ -584,11 +1450,25 @@ public class VectorDBService {
                     }
 
                     filter.add("must", must);
-                    searchRequest.add("filter", filter);
                 }
 
+                JsonArray mustNot = new JsonArray();
+                mustNot.add(tombstoneCondition());
+                if (!excludedPaths.isEmpty()) {
+                    JsonArray any = new JsonArray();
+                    excludedPaths.forEach(any::add);
+                    JsonObject match = new JsonObject();
+                    match.add("any", any);
+                    JsonObject condition = new JsonObject();
+                    condition.addProperty("key", "filePath");
+                    condition.add("match", match);
+                    mustNot.add(condition);
+                }
+                filter.add("must_not", mustNot);
+                searchRequest.add("filter", filter);
+
                 Request request = new Request.Builder()
-                        .url(QDRANT_URL + "/collections/" + COLLECTION_NAME + "/points/search")
+                        .url(QDRANT_URL + "/collections/" + collectionName + "/points/search")
                         .post(RequestBody.create(gson.toJson(searchRequest), MediaType.parse("application/json")))
                         .build();
                 try (Response response = client.newCall(request).execute()) {
@@ -605,40 +1485,7 @@ public class VectorDBService {
                             if (score < similarityThreshold) {
                                 continue;
                             }
-                            JsonObject payload = result.getAsJsonObject("payload");
-                            String filePath = payload.get("filePath").getAsString();
-                            String summary = payload.get("summary").getAsString();
-                            Map<String, String> metadata = new HashMap<>();
-
-                            // Extract content for RAG if available
-                            String content = "";
-                            if (payload.has("content") && !payload.get("content").isJsonNull()) {
-                                content = payload.get("content").getAsString();
-                            }
-
-                            // Extract all top-level string fields as metadata
-                            for (Map.Entry<String, JsonElement> entry : payload.entrySet()) {
-                                if (entry.getValue().isJsonPrimitive() &&
-                                        !entry.getKey().equals("filePath") &&
-                                        !entry.getKey().equals("summary") &&
-                                        !entry.getKey().equals("content")) {
-                                    metadata.put(entry.getKey(), entry.getValue().getAsString());
-                                }
-                            }
-
-                            // Extract nested metadata if present
-                            if (payload.has("metadata") && payload.get("metadata").isJsonObject()) {
-                                JsonObject metadataJson = payload.getAsJsonObject("metadata");
-                                for (Map.Entry<String, JsonElement> entry : metadataJson.entrySet()) {
-                                    if (entry.getValue().isJsonPrimitive()) {
-                                        metadata.put(entry.getKey(), entry.getValue().getAsString());
-                                    }
-                                }
-                            }
-
-                            // Create enhanced search result with content
-                            CodeSearchResult searchResult = new CodeSearchResult(pointId, filePath, summary, score, metadata);
-                            searchResult.setContent(content);
+                            CodeSearchResult searchResult = PointPayload.toSearchResult(pointId, score, result.getAsJsonObject("payload"));
                             searchResults.add(searchResult);
                         }
                         return searchResults;
@@ -666,10 +1513,12 @@ public class VectorDBService {
         return Collections.emptyList();
     }
 
+    @Override
     public void saveIndex() {
         // Qdrant persists data, so nothing extra to do.
     }
 
+    @Override
     public void deleteAll() {
         try {
             deleteCollection();
@@ -681,14 +1530,31 @@ public class VectorDBService {
         }
     }
 
+    /**
+     * Clear this collection and drop the overlay collections of all branches.
+     */
+    @Override
+    public void deleteAllBranches() {
+        deleteAll();
+        deleteOverlays(null);
+    }
+
+    @Override
     public int getDocumentCount() {
         return documentCount.get();
     }
 
+    @Override
+    public int getDimension() {
+        return dimensions;
+    }
+
+    @Override
     public void close() {
         // Nothing to close for the HTTP client.
     }
 
+    @Override
     public List<String> getUniqueLanguages() {
         int retries = 0;
         while (retries < MAX_RETRIES) {
@@ -705,7 +1571,7 @@ public class VectorDBService {
                 aggregateRequest.addProperty("limit", 100);
 
                 Request request = new Request.Builder()
-                        .url(QDRANT_URL + "/collections/" + COLLECTION_NAME + "/points/group")
+                        .url(QDRANT_URL + "/collections/" + collectionName + "/points/group")
                         .post(RequestBody.create(gson.toJson(aggregateRequest), MediaType.parse("application/json")))
                         .build();
 
@@ -0,0 +1,225 @@
+package dev.balakumar.codecompass;
+
+import com.intellij.openapi.project.Project;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Consumer;
+
+/**
+ * Storage and similarity search for indexed code chunks. Each point carries the embedding of a
+ * chunk plus its payload (file path, summary, content, metadata).
+ *
+ * Two implementations exist: {@link EmbeddedVectorStore}, an in-process HNSW index kept under
+ * .codemapper, and {@link VectorDBService}, which talks to a Qdrant server. The one used is
+ * chosen in the settings, and is wrapped in a {@link HybridVectorStore} that adds keyword search.
+ * With Qdrant, a branch other than the base branch is kept in a {@link BranchOverlayStore}.
+ */
+public interface VectorStore {
+    String EMBEDDED = "EMBEDDED";
+    String QDRANT = "QDRANT";
+
+    float DEFAULT_SIMILARITY_THRESHOLD = 0.5f;
+
+    /**
+     * Open the vector store selected in the project settings for the branch checked out,
+     * combined with the project's keyword index.
+     */
+    static VectorStore open(Project project, EmbeddingService aiService) throws IOException {
+        CodeMapperSettingsState settings = CodeMapperSettingsState.getInstance(project);
+        String type = settings.vectorStore;
+        VectorStore store;
+        if (QDRANT.equals(type)) {
+            VectorDBService base = new VectorDBService(project.getBasePath(), aiService);
+            String branch = overlayBranch(project);
+            store = branch == null ? base : new BranchOverlayStore(base,
+                    new VectorDBService(project.getBasePath(), aiService, BranchOverlayStore.collectionName(branch)),
+                    branch, aiService);
+        } else {
+            store = new EmbeddedVectorStore(project, aiService);
+        }
+        return new HybridVectorStore(store, LexicalIndex.getInstance(project), QueryCache.getInstance(project),
+                ContentStore.getInstance(project), aiService,
+                settings.useVirtualThreads);
+    }
+
+    /**
+     * @return the branch whose overlay {@link #open} would use now, or null for the base index
+     */
+    static String overlayBranch(Project project) {
+        CodeMapperSettingsState settings = CodeMapperSettingsState.getInstance(project);
+        if (!QDRANT.equals(settings.vectorStore) || !settings.branchOverlays) {
+            return null;
+        }
+        return BranchOverlayStore.overlayBranch(project.getBasePath(), settings.baseBranch);
+    }
+
+    /**
+     * @return the branch whose overlay this store writes to, or null if it writes to the base index
+     */
+    default String getOverlayBranch() {
+        return null;
+    }
+
+    /**
+     * @return the files written or deleted on the overlay branch, whose points in the base index
+     * are hidden; empty if the store writes to the base index
+     */
+    default Set<String> getOverlayPaths() {
+        return Collections.emptySet();
+    }
+
+    /**
+     * @return a short name of the backend for status and error messages
+     */
+    String getName();
+
+    boolean isConnected();
+
+    /**
+     * Embed and store a single document, then refresh the document count.
+     */
+    void addOrUpdateDocument(String id, String content, String filePath, String summary, Map<String, String> metadata);
+
+    /**
+     * Store a document whose embedding has already been computed. Callers writing many
+     * documents should call {@link #refreshDocumentCount()} once at the end.
+     *
+     * @return true if the point was written
+     */
+    boolean upsertDocument(String id, String content, String filePath, String summary, Map<String, String> metadata, float[] embedding);
+
+    /**
+     * Open a buffer that collects points and writes them in batches of up to maxPoints points or
+     * maxBytes. Everything added is searchable once {@link UpsertBuffer#close()} returns.
+     */
+    UpsertBuffer openUpsertBuffer(int maxPoints, long maxBytes);
+
+    /**
+     * Delete chunks left over from an earlier, longer version of each file.
+     *
+     * @param chunkCounts file path to current number of chunks
+     */
+    void deleteStaleChunks(Map<String, Integer> chunkCounts);
+
+    /**
+     * Set the summary of every chunk of a file whose content hash still matches.
+     */
+    boolean updateSummary(String filePath, String contentHash, String summary);
+
+    void refreshDocumentCount();
+
+    /**
+     * Delete every point stored for the given file path.
+     */
+    void deleteDocument(String filePath);
+
+    /**
+     * Delete every point stored for any of the given file paths, in as few requests as the
+     * backend allows, then refresh the document count.
+     */
+    void deleteDocuments(Collection<String> filePaths);
+
+    /**
+     * @return the path of every file with at least one stored point, or null if the paths could
+     * not all be read
+     */
+    Set<String> getIndexedPaths();
+
+    /**
+     * @return map of file path to content hash of every indexed file
+     */
+    Map<String, String> getFingerprints();
+
+    /**
+     * @return path and content hash of every file that was indexed without a summary
+     */
+    Map<String, String> getPendingSummaries();
+
+    /**
+     * @return the stored content fingerprint for a single file, or null if unknown
+     */
+    String getFingerprint(String filePath);
+
+    default List<CodeSearchResult> search(String query, int limit) {
+        return search(query, limit, null, DEFAULT_SIMILARITY_THRESHOLD);
+    }
+
+    default List<CodeSearchResult> search(String query, int limit, Map<String, String> filters) {
+        return search(query, limit, filters, DEFAULT_SIMILARITY_THRESHOLD);
+    }
+
+    /**
+     * @param filters payload field to required value, e.g. language to "Java"
+     */
+    List<CodeSearchResult> search(String query, int limit, Map<String, String> filters, float similarityThreshold);
+
+    /**
+     * Search with an embedding of the query the caller already has.
+     */
+    List<CodeSearchResult> searchByEmbedding(float[] queryEmbedding, int limit, Map<String, String> filters, float similarityThreshold);
+
+    /**
+     * Pass every stored point to the visitor, as for a snapshot of the index.
+     *
+     * @return false if the points could not all be read
+     */
+    boolean forEachPoint(Consumer<StoredPoint> visitor);
+
+    /**
+     * Store points copied from another index as they are, vectors and payloads unchanged. Callers
+     * should call {@link #refreshDocumentCount()} once at the end.
+     *
+     * @return true if every point was written
+     */
+    boolean importPoints(List<StoredPoint> points);
+
+    /**
+     * Persist anything that is only held in memory.
+     */
+    void saveIndex();
+
+    /**
+     * Delete every point of the index this store writes to. On an overlay branch that is the
+     * branch's overlay only; the base index stays as it is.
+     */
+    void deleteAll();
+
+    /**
+     * Delete every point of every branch: the base index and the overlays of all branches, not
+     * only the one checked out. For when the stored vectors are of no use on any branch.
+     */
+    default void deleteAllBranches() {
+        deleteAll();
+    }
+
+    int getDocumentCount();
+
+    /**
+     * @return the dimension of the stored vectors, or 0 if it is not known yet
+     */
+    int getDimension();
+
+    void close();
+
+    List<String> getUniqueLanguages();
+
+    interface UpsertBuffer extends AutoCloseable {
+        /**
+         * Queue a point. The callback is invoked with true once the point has been stored, or
+         * false if storing it failed.
+         */
+        void add(String id, String content, String filePath, String summary, Map<String, String> metadata,
+                 float[] embedding, Consumer<Boolean> callback);
+
+        /**
+         * Write whatever is still buffered and wait until every point added has been stored.
+         */
+        @Override
+        void close();
+    }
+}